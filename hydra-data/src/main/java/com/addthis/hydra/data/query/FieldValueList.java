@@ -71,6 +71,17 @@ public class FieldValueList implements BundleFormatted {
         }
     }
 
+    /**
+     * returns a committed copy of this list that can be pushed and popped
+     * independently, for example by another thread
+     */
+    public FieldValueList copy(BundleFormat format) {
+        FieldValueList copy = new FieldValueList(format);
+        copy.list.addAll(list);
+        copy.commit();
+        return copy;
+    }
+
     public boolean updateBundle(Bundle bundle) {
         for (FieldValue fv : list) {
             bundle.setValue(fv.field, fv.value);
@@ -32,6 +32,7 @@ public class FramedDataChannelReader extends DataChannelReader {
 
     public AtomicBoolean eof = new AtomicBoolean(false);
     public boolean busy;
+    private boolean waiting;
     private DataChannelError err;
     private final SourceInputStream in;
     public final String fileReferenceName;
@@ -63,6 +64,13 @@ public class FramedDataChannelReader extends DataChannelReader {
         return in.available();
     }
 
+    /**
+     * @return true if the last read returned null because no data had arrived yet
+     */
+    public boolean isWaiting() {
+        return waiting;
+    }
+
     @Override
     public Bundle read() throws IOException {
         if (eof.get()) {
@@ -72,12 +80,14 @@ public class FramedDataChannelReader extends DataChannelReader {
             throw err;
         }
         int frame;
+        waiting = false;
         if (bis != null && bis.available() > 0) {
             frame = bis.read();
         } else {
             byte[] data = in.poll(pollWaitTime, TimeUnit.MILLISECONDS);
             if (data == null) {
                 // poll timeout no data yet
+                waiting = true;
                 return null;
             } else if (data.length == 0) {
                 eof.set(true);
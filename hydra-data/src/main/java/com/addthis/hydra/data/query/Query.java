@@ -19,6 +19,7 @@ import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.addthis.basis.util.CUID;
+import com.addthis.basis.util.Parameter;
 import com.addthis.basis.util.RollingLog;
 import com.addthis.basis.util.Strings;
 
@@ -43,6 +44,9 @@ public class Query implements Codec.Codable {
 
     private static final AtomicLong queryID = new AtomicLong(0);
 
+    /* run combinable master ops as a partial aggregation on the query sources */
+    private static final boolean COMBINE = Parameter.boolValue("query.combine", true);
+
     protected static RollingLog traceLog;
 
     @Codec.Set(codable = true)
@@ -251,15 +255,47 @@ public class Query implements Codec.Codable {
     public Query createPipelinedQuery() {
         Query newQuery = cloneTo(new Query());
         if (ops != null && ops.length > 0) {
-            String newops[] = new String[ops.length - 1];
-            System.arraycopy(ops, 1, newops, 0, newops.length);
-            newQuery.ops = newops;
-            String pop = ops[0];
-            ops = new String[]{pop};
+            String[] combined = isCombined() ? QueryOpProcessor.combine(ops[0]) : null;
+            if (combined != null) {
+                /* the partial op runs on the sources after any remote ops */
+                String newops[] = new String[ops.length];
+                System.arraycopy(ops, 1, newops, 1, newops.length - 1);
+                newops[0] = combined[0];
+                newQuery.ops = newops;
+                ops = new String[]{combined[1]};
+            } else {
+                String newops[] = new String[ops.length - 1];
+                System.arraycopy(ops, 1, newops, 0, newops.length);
+                newQuery.ops = newops;
+                String pop = ops[0];
+                ops = new String[]{pop};
+            }
         }
         return newQuery;
     }
 
+    private boolean isCombined() {
+        String combine = getParameter("combine");
+        return combine != null ? Boolean.valueOf(combine) : COMBINE;
+    }
+
+    /**
+     * @return the index of the path element whose matching nodes are searched
+     *         in parallel by the query engine, or -1 to search on one thread
+     */
+    public int getParallelDepth() {
+        String parallel = getParameter("parallelDepth");
+        return parallel != null ? Integer.parseInt(parallel) : -1;
+    }
+
+    /**
+     * @return true if rows from a parallel search may be sent in the order their
+     *         subtrees finish rather than in tree order
+     */
+    public boolean isUnordered() {
+        return Boolean.valueOf(getParameter("unordered"));
+    }
+
     private Query cloneTo(Query q) {
         q.paths = paths;
         q.ops = ops;
@@ -66,6 +66,8 @@ import com.addthis.hydra.data.query.op.OpSleep;
 import com.addthis.hydra.data.query.op.OpString;
 import com.addthis.hydra.data.query.op.OpTitle;
 import com.addthis.hydra.data.query.op.OpTranspose;
+import com.addthis.hydra.data.query.op.OpUniques;
+import com.addthis.hydra.data.query.op.merge.MergeConfig;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -144,7 +146,8 @@ public class QueryOpProcessor implements DataChannelOutput, DataTableFactory, Qu
         SUM("sum"),
         TOP("top"),
         TITLE("title"),
-        TRANSPOSE(new String[]{"trans", "t"});
+        TRANSPOSE(new String[]{"trans", "t"}),
+        UNIQUES("uniques");
 
         private OPS(String token) {
             opmap.put(token, this);
@@ -352,12 +355,69 @@ public class QueryOpProcessor implements DataChannelOutput, DataTableFactory, Qu
                     case TRANSPOSE:
                         appendOp(new OpTranspose(this, queryStatusObserver));
                         break;
+                    case UNIQUES:
+                        appendOp(new OpUniques(args, queryStatusObserver));
+                        break;
                 }
             }
 
         }
     }
 
+    /**
+     * Splits an ops string into a partial aggregation that can run on every
+     * query source and the ops that finish the aggregation over the partial
+     * results. Only the first op is split since the ops after it expect fully
+     * aggregated rows.
+     *
+     * @return {partial ops, final ops} or null if the first op is not combinable
+     */
+    public static String[] combine(String ops) {
+        if (ops == null) {
+            return null;
+        }
+        String[] split = Strings.splitArray(ops, ";");
+        if (split.length == 0) {
+            return null;
+        }
+        KVPair kv = KVPair.parsePair(split[0]);
+        OPS op = opmap.get(kv.getKey());
+        String args = kv.getValue();
+        if (op == null || args == null || args.isEmpty()) {
+            return null;
+        }
+        String combined;
+        switch (op) {
+            case GATHER:
+            case MERGE:
+            case TOP:
+                combined = MergeConfig.combinedArgs(args);
+                break;
+            case UNIQUES:
+                combined = OpUniques.combinedArgs(args);
+                break;
+            case HISTOGRAM:
+                return new String[]{split[0], join(OpHistogram.COMBINE_OPS, split)};
+            default:
+                return null;
+        }
+        if (combined == null) {
+            return null;
+        }
+        return new String[]{split[0], join(kv.getKey() + "=" + combined, split)};
+    }
+
+    /**
+     * replaces the first op of a split ops string
+     */
+    private static String join(String first, String[] split) {
+        StringBuilder ops = new StringBuilder(first);
+        for (int i = 1; i < split.length; i++) {
+            ops.append(';').append(split[i]);
+        }
+        return ops.toString();
+    }
+
     @Override
     public String toString() {
         return "RP[memtip=" + memTip + ",rowtip=" + rowTip + ",rows=" + rowsin + ",cells=" + cellsin + "]";
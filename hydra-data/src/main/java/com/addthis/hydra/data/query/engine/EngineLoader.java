@@ -25,6 +25,7 @@ import com.addthis.basis.util.Parameter;
 
 import com.addthis.hydra.data.tree.DataTree;
 import com.addthis.hydra.data.tree.ReadTree;
+import com.addthis.hydra.data.tree.SegmentedTree;
 
 import com.google.common.cache.CacheLoader;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -95,7 +96,8 @@ class EngineLoader extends CacheLoader<String, QueryEngine> {
     protected QueryEngine newQueryEngineDirectory(String dir) throws Exception {
         String canonicalDirString = new File(dir).getCanonicalPath();
 
-        DataTree tree = new ReadTree(new File(canonicalDirString));
+        File treeDir = new File(canonicalDirString);
+        DataTree tree = SegmentedTree.isSegmented(treeDir) ? new SegmentedTree(treeDir, true) : new ReadTree(treeDir);
         try {
             return new QueryEngineDirectory(tree, canonicalDirString);
         } catch (Exception e) {
@@ -13,17 +13,30 @@
  */
 package com.addthis.hydra.data.query.engine;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.addthis.basis.util.ClosableIterator;
+import com.addthis.basis.util.Parameter;
 
+import com.addthis.bundle.channel.DataChannelError;
 import com.addthis.bundle.channel.DataChannelOutput;
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
 import com.addthis.bundle.core.kvp.KVBundleFormat;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.value.ValueObject;
 import com.addthis.hydra.data.query.FieldValueList;
 import com.addthis.hydra.data.query.Query;
 import com.addthis.hydra.data.query.QueryElement;
@@ -46,6 +59,25 @@ public class QueryEngine {
 
     private static final Logger log = LoggerFactory.getLogger(QueryEngine.class);
 
+    /**
+     * Workers that search the subtrees of parallel queries. How many of them a
+     * single query may use is bounded by the permits it gets from its gate.
+     */
+    private static final ForkJoinPool searchPool = new ForkJoinPool(
+            Parameter.intValue("query.engine.parallelThreads", Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Most permits a single query takes from its gate, so that one parallel query
+     * leaves permits for the queries that arrive while it runs.
+     */
+    private static final int parallelMaxPermits = Parameter.intValue("query.engine.parallelMaxPermits", 2);
+
+    /**
+     * Rows a parallel subtree may have waiting for the searching thread before it
+     * blocks.
+     */
+    private static final int parallelBufferRows = Parameter.intValue("query.engine.parallelBufferRows", 256);
+
     protected final DataTree tree;
     private final AtomicInteger used;
     private final AtomicBoolean isOpen;
@@ -180,9 +212,46 @@ public class QueryEngine {
      *                 cancels the query at the MQMaster side.
      */
     public void search(Query query, DataChannelOutput result, QueryStatusObserver observer) throws QueryException {
-        for (QueryElement[] path : query.getQueryPaths()) {
-            if (!(observer.queryCancelled || observer.queryCompleted)) {
-                search(path, result, observer);
+        search(query, result, observer, null);
+    }
+
+    /**
+     * Performs a query search, writes the results to a data channel. If the query names a parallel depth
+     * (see {@link Query#getParallelDepth()}) then the nodes matched at that depth are searched as separate
+     * subtasks. Each subtask needs a permit from the gate, which is only ever tried and never waited on,
+     * so a busy gate leaves the query searching on the calling thread. The permits are returned once
+     * every subtask has ended, including when the search fails or is cancelled.
+     *
+     * @param query    A Query object that contains the path or paths of the root query.
+     * @param result   A DataChannelOutput to which the result will be written. It is only ever called from the
+     *                 calling thread.
+     * @param observer A wrapper for a boolean flag that gets set to true by MQSource in case the user
+     *                 cancels the query at the MQMaster side.
+     * @param gate     permits for parallel subtasks, or null to search on the calling thread only
+     */
+    public void search(Query query, DataChannelOutput result, QueryStatusObserver observer,
+            Semaphore gate) throws QueryException {
+        int depth = query.getParallelDepth();
+        int permits = 0;
+        if (depth >= 0 && gate != null) {
+            int maxPermits = Math.min(parallelMaxPermits, searchPool.getParallelism());
+            while (permits < maxPermits && gate.tryAcquire()) {
+                permits++;
+            }
+        }
+        try {
+            for (QueryElement[] path : query.getQueryPaths()) {
+                if (!(observer.queryCancelled || observer.queryCompleted)) {
+                    ParallelSearch parallel = null;
+                    if (permits > 0 && depth < path.length) {
+                        parallel = new ParallelSearch(path, depth, permits, !query.isUnordered(), result, observer);
+                    }
+                    search(path, result, observer, parallel);
+                }
+            }
+        } finally {
+            if (permits > 0) {
+                gate.release(permits);
             }
         }
     }
@@ -219,6 +288,11 @@ public class QueryEngine {
      * @see {@link Query#parseQueryPath(String)}
      */
     private void search(QueryElement path[], DataChannelOutput result, QueryStatusObserver observer) throws QueryException {
+        search(path, result, observer, null);
+    }
+
+    private void search(QueryElement path[], DataChannelOutput result, QueryStatusObserver observer,
+            ParallelSearch parallel) throws QueryException {
         init();
         Thread thread = Thread.currentThread();
         synchronized (active) {
@@ -229,7 +303,10 @@ public class QueryEngine {
         try {
             LinkedList<DataTreeNode> stack = new LinkedList<>();
             stack.push(tree);
-            tableSearch(stack, new FieldValueList(new KVBundleFormat()), path, 0, result, 0, observer);
+            tableSearch(stack, new FieldValueList(new KVBundleFormat()), path, 0, result, 0, observer, parallel);
+            if (parallel != null) {
+                parallel.finish();
+            }
         } catch (QueryException ex) {
             if (log.isDebugEnabled()) {
                 log.debug("", ex);
@@ -238,6 +315,9 @@ public class QueryEngine {
             log.warn("", ex);
             throw ex;
         } finally {
+            if (parallel != null) {
+                parallel.abort();
+            }
             synchronized (active) {
                 if (!active.remove(thread)) {
                     log.warn("Active Thread {} missing from set", thread);
@@ -268,9 +348,13 @@ public class QueryEngine {
      */
     private void tableSearch(LinkedList<DataTreeNode> stack, DataTreeNode root, FieldValueList prefix, QueryElement path[],
             int pathIndex, DataChannelOutput result, int collect,
-            QueryStatusObserver queryStatusObserver) throws QueryException {
+            QueryStatusObserver queryStatusObserver, ParallelSearch parallel) throws QueryException {
+        if (parallel != null && pathIndex == parallel.depth + 1) {
+            parallel.fork(stack, root, prefix, pathIndex, collect);
+            return;
+        }
         stack.push(root);
-        tableSearch(stack, prefix, path, pathIndex, result, collect, queryStatusObserver);
+        tableSearch(stack, prefix, path, pathIndex, result, collect, queryStatusObserver, parallel);
         stack.pop();
     }
 
@@ -289,16 +373,17 @@ public class QueryEngine {
      */
     private void tableSearch(LinkedList<DataTreeNode> stack, FieldValueList prefix, QueryElement path[],
             int pathIndex, DataChannelOutput sink, int collect) throws QueryException {
-        tableSearch(stack, prefix, path, pathIndex, sink, collect, new QueryStatusObserver());
+        tableSearch(stack, prefix, path, pathIndex, sink, collect, new QueryStatusObserver(), null);
     }
 
     /**
-     * see above.
+     * see above. subtrees of a parallel search are forked when they are reached
+     * instead of being searched on this thread.
      */
     private void tableSearch(LinkedList<DataTreeNode> stack, FieldValueList prefix, QueryElement path[],
             int pathIndex, DataChannelOutput sink, int collect,
-            QueryStatusObserver queryStatusObserver) throws QueryException {
-        if (queryStatusObserver != null && queryStatusObserver.queryCancelled) {
+            QueryStatusObserver queryStatusObserver, ParallelSearch parallel) throws QueryException {
+        if (queryStatusObserver != null && queryStatusObserver.queryCancelled || parallel != null && parallel.aborted) {
             log.warn("Query closed during processing");
             throw new QueryException("Query closed during processing");
         }
@@ -338,7 +423,7 @@ public class QueryEngine {
                         log.warn("Query closed due to thread interruption:\n", exception);
                         throw exception;
                     }
-                    if (queryStatusObserver != null && queryStatusObserver.queryCancelled) {
+                    if (queryStatusObserver != null && queryStatusObserver.queryCancelled || parallel != null && parallel.aborted) {
                         if (iter instanceof ClosableIterator) {
                             ((ClosableIterator<DataTreeNode>) iter).close();
                         }
@@ -361,7 +446,7 @@ public class QueryEngine {
                     }
                 }
                 if (queryStatusObserver != null && !queryStatusObserver.queryCompleted) {
-                    tableSearch(null, prefix, path, pathIndex + 1, sink, collect + count, queryStatusObserver);
+                    tableSearch(null, prefix, path, pathIndex + 1, sink, collect + count, queryStatusObserver, parallel);
                 }
                 prefix.pop(count);
                 return;
@@ -376,7 +461,7 @@ public class QueryEngine {
                 if (queryStatusObserver != null && queryStatusObserver.queryCompleted) {
                     break;
                 }
-                if (queryStatusObserver.queryCancelled) {
+                if (queryStatusObserver.queryCancelled || parallel != null && parallel.aborted) {
                     if (iter instanceof ClosableIterator) {
                         ((ClosableIterator<DataTreeNode>) iter).close();
                     }
@@ -397,7 +482,7 @@ public class QueryEngine {
                     int count = next.update(prefix, tn);
                     if (count > 0) {
                         if (!queryStatusObserver.queryCompleted) {
-                            tableSearch(stack, tn, prefix, path, pathIndex + 1, sink, collect + count, queryStatusObserver);
+                            tableSearch(stack, tn, prefix, path, pathIndex + 1, sink, collect + count, queryStatusObserver, parallel);
                         }
                         prefix.pop(count);
                         limit--;
@@ -408,7 +493,7 @@ public class QueryEngine {
                         continue;
                     }
                     if (!queryStatusObserver.queryCompleted) {
-                        tableSearch(stack, tn, prefix, path, pathIndex + 1, sink, collect, queryStatusObserver);
+                        tableSearch(stack, tn, prefix, path, pathIndex + 1, sink, collect, queryStatusObserver, parallel);
                     }
                     limit--;
                 }
@@ -425,4 +510,290 @@ public class QueryEngine {
         }
     }
 
+
+    /**
+     * Tracks the subtrees of one query path that are searched in parallel. Subtrees
+     * are forked by the searching thread once it reaches the nodes matched at the
+     * parallel depth, at most {@code width} at a time. Their rows pass through
+     * bounded queues and are sent to the sink by the searching thread, either in
+     * the order the subtrees were forked, which is the order of a single threaded
+     * search, or in the order they arrive.
+     */
+    private final class ParallelSearch {
+
+        private final QueryElement[] path;
+        private final int depth;
+        private final int width;
+        private final boolean ordered;
+        private final DataChannelOutput sink;
+        private final QueryStatusObserver observer;
+        /** queues of the running subtrees in fork order, used when ordered */
+        private final LinkedList<RowQueue> forked = new LinkedList<>();
+        /** queue that every subtree writes to, used when unordered */
+        private final RowQueue shared;
+        private int running;
+        private volatile boolean aborted;
+        private volatile Throwable error;
+
+        ParallelSearch(QueryElement[] path, int depth, int width, boolean ordered,
+                DataChannelOutput sink, QueryStatusObserver observer) {
+            this.path = path;
+            this.depth = depth;
+            this.width = width;
+            this.ordered = ordered;
+            this.sink = sink;
+            this.observer = observer;
+            this.shared = ordered ? null : new RowQueue();
+        }
+
+        void fork(LinkedList<DataTreeNode> stack, DataTreeNode node, FieldValueList prefix,
+                int pathIndex, int collect) throws QueryException {
+            while (emitNext(false)) {
+                // send rows that have already arrived
+            }
+            while (running >= width) {
+                emitNext(true);
+            }
+            LinkedList<DataTreeNode> subtreeStack = new LinkedList<>(stack);
+            subtreeStack.push(node);
+            RowQueue rows = ordered ? new RowQueue() : shared;
+            if (ordered) {
+                forked.add(rows);
+            }
+            running++;
+            searchPool.execute(new SubtreeSearch(subtreeStack, prefix.copy(new KVBundleFormat()),
+                    pathIndex, collect, rows));
+        }
+
+        void finish() throws QueryException {
+            while (running > 0) {
+                emitNext(true);
+            }
+        }
+
+        /**
+         * stops any subtrees still running after the search failed and waits for
+         * them to end, so that none of them is reading the tree once the search
+         * returns and the engine lease is released
+         */
+        void abort() {
+            aborted = true;
+            boolean interrupted = false;
+            while (running > 0) {
+                try {
+                    if (nextQueue().take() == RowQueue.END) {
+                        ended();
+                    }
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private RowQueue nextQueue() {
+            return ordered ? forked.peekFirst() : shared;
+        }
+
+        private void ended() {
+            if (ordered) {
+                forked.removeFirst();
+            }
+            running--;
+        }
+
+        private boolean emitNext(boolean wait) throws QueryException {
+            RowQueue rows = nextQueue();
+            if (rows == null) {
+                return false;
+            }
+            Row row;
+            try {
+                row = wait ? rows.take() : rows.poll();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new QueryException("query interrupted");
+            }
+            if (row == null) {
+                return false;
+            }
+            if (row == RowQueue.END) {
+                ended();
+                Throwable subtreeError = error;
+                if (subtreeError instanceof RuntimeException) {
+                    throw (RuntimeException) subtreeError;
+                } else if (subtreeError instanceof Error) {
+                    throw (Error) subtreeError;
+                }
+            } else if (!observer.queryCompleted) {
+                sink.send(row.createBundle(sink));
+            }
+            return true;
+        }
+
+        /**
+         * Searches one subtree. Rows are built in a format private to the subtree and
+         * handed over as {@link Row}s, because neither the sink nor this format is
+         * safe to share with the searching thread.
+         */
+        private final class SubtreeSearch extends RecursiveAction implements DataChannelOutput {
+
+            private final LinkedList<DataTreeNode> stack;
+            private final FieldValueList prefix;
+            private final int pathIndex;
+            private final int collect;
+            private final RowQueue rows;
+            private final ListBundleFormat format = new ListBundleFormat();
+
+            SubtreeSearch(LinkedList<DataTreeNode> stack, FieldValueList prefix, int pathIndex, int collect,
+                    RowQueue rows) {
+                this.stack = stack;
+                this.prefix = prefix;
+                this.pathIndex = pathIndex;
+                this.collect = collect;
+                this.rows = rows;
+            }
+
+            @Override
+            protected void compute() {
+                try {
+                    tableSearch(stack, prefix, path, pathIndex, this, collect, observer, ParallelSearch.this);
+                } catch (Throwable t) {
+                    if (error == null) {
+                        error = t;
+                    }
+                } finally {
+                    rows.end();
+                }
+            }
+
+            @Override
+            public void send(Bundle row) throws DataChannelError {
+                rows.put(new Row(row));
+            }
+
+            @Override
+            public void send(List<Bundle> bundles) {
+                for (Bundle row : bundles) {
+                    send(row);
+                }
+            }
+
+            @Override
+            public void sendComplete() {
+            }
+
+            @Override
+            public void sourceError(DataChannelError er) {
+            }
+
+            @Override
+            public Bundle createBundle() {
+                return new ListBundle(format);
+            }
+        }
+    }
+
+    /**
+     * The field names and values of one row of a parallel subtree. They are copied
+     * into a bundle of the sink by the searching thread.
+     */
+    private static final class Row {
+
+        private final ArrayList<String> names = new ArrayList<>();
+        private final ArrayList<ValueObject> values = new ArrayList<>();
+
+        Row() {
+        }
+
+        Row(Bundle bundle) {
+            for (BundleField field : bundle) {
+                names.add(field.getName());
+                values.add(bundle.getValue(field));
+            }
+        }
+
+        Bundle createBundle(DataChannelOutput sink) {
+            Bundle copy = sink.createBundle();
+            for (int i = 0; i < names.size(); i++) {
+                copy.setValue(copy.getFormat().getField(names.get(i)), values.get(i));
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * Rows of parallel subtrees on their way to the searching thread. The queue is
+     * bounded so that a subtree which gets ahead of the searching thread waits for
+     * it instead of holding its rows on the heap. A subtree puts {@link #END} once
+     * it has finished. Waiting puts are managed blocks, which lets the pool start
+     * another worker for the subtree that the searching thread is waiting on.
+     */
+    private static final class RowQueue {
+
+        static final Row END = new Row();
+
+        private final ArrayBlockingQueue<Row> queue = new ArrayBlockingQueue<>(parallelBufferRows);
+
+        void put(Row row) throws DataChannelError {
+            try {
+                blockingPut(row);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new DataChannelError(ex);
+            }
+        }
+
+        /**
+         * puts {@link #END}, which the searching thread waits for even if this
+         * thread is interrupted
+         */
+        void end() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    blockingPut(END);
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void blockingPut(final Row row) throws InterruptedException {
+            if (queue.offer(row)) {
+                return;
+            }
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                private boolean done;
+
+                @Override
+                public boolean block() throws InterruptedException {
+                    if (!done) {
+                        queue.put(row);
+                        done = true;
+                    }
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    return done || (done = queue.offer(row));
+                }
+            });
+        }
+
+        Row take() throws InterruptedException {
+            return queue.take();
+        }
+
+        Row poll() {
+            return queue.poll();
+        }
+    }
 }
@@ -0,0 +1,1286 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query.op;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.io.DataChannelCodec;
+import com.addthis.bundle.value.ValueArray;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.bundle.value.ValueNumber;
+import com.addthis.bundle.value.ValueObject;
+import com.addthis.hydra.data.query.QueryOp;
+import com.addthis.hydra.data.query.QueryStatusObserver;
+import com.addthis.hydra.data.query.op.merge.AverageValue;
+import com.addthis.hydra.data.query.op.merge.DiffValue;
+import com.addthis.hydra.data.query.op.merge.JoinedValue;
+import com.addthis.hydra.data.query.op.merge.LastValue;
+import com.addthis.hydra.data.query.op.merge.MaxValue;
+import com.addthis.hydra.data.query.op.merge.MergedValue;
+import com.addthis.hydra.data.query.op.merge.MinValue;
+import com.addthis.hydra.data.query.op.merge.NumMergesValue;
+import com.addthis.hydra.data.query.op.merge.SumValue;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+
+/**
+ * Hash aggregation table behind {@link OpGather} and {@link OpMerge}.
+ * <p/>
+ * Groups are keyed on the serialized values of the key columns and found
+ * through an open addressing table with linear probing. The state of each
+ * merged column is kept in arrays indexed by group, and numeric columns
+ * accumulate into primitive longs and doubles, so merging a row into an
+ * existing group allocates nothing for them. The memory held by the table
+ * is computed from the capacity of its arrays and an estimate of the values
+ * it holds, and is updated as rows are merged.
+ * <p/>
+ * A table with a spill directory can be written out in key order and
+ * cleared when it grows too large. The partitions are merged by key when
+ * the rows are emitted, in passes if there are more of them than may be
+ * open at once. Rows are otherwise emitted in the order their
+ * groups were created.
+ */
+final class GatherTable implements Closeable {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int EMPTY = -1;
+
+    private static final byte ABSENT = 0;
+    private static final byte LONG = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte OBJECT = 3;
+
+    private static final Joiner JOINER = Joiner.on(',');
+
+    private static final Comparator<Partition> PARTITION_ORDER = new Comparator<Partition>() {
+        @Override
+        public int compare(Partition a, Partition b) {
+            int cmp = compareKeys(a.key, 0, a.key.length, b.key, 0, b.key.length);
+            return cmp != 0 ? cmp : Integer.compare(a.index, b.index);
+        }
+    };
+
+    private final MergedValue[] conf;
+    private final ListBundleFormat format;
+    private final File spillDir;
+    private final int maxFanIn;
+    private final List<File> partitions = new ArrayList<>();
+
+    private Column[] columns;
+    private int[] keyColumns;
+
+    private int size;
+    private int capacity;
+    private int[] slots;
+    private int[] hashes;
+    private int[] keyOffsets;
+    private int[] keyLengths;
+    private int[] counts;
+    private byte[] keys;
+    private int keysUsed;
+    private int keysGarbage;
+    private long objectBytes;
+
+    private byte[] scratch = new byte[64];
+    private int scratchLength;
+    private int scratchHash;
+
+    /**
+     * @param conf     merged values parsed by {@link com.addthis.hydra.data.query.op.merge.MergeConfig}
+     * @param format   format of the emitted rows
+     * @param spillDir directory for spilled partitions or null if the table never spills
+     */
+    GatherTable(MergedValue[] conf, ListBundleFormat format, File spillDir) {
+        this(conf, format, spillDir, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param conf     merged values parsed by {@link com.addthis.hydra.data.query.op.merge.MergeConfig}
+     * @param format   format of the emitted rows
+     * @param spillDir directory for spilled partitions or null if the table never spills
+     * @param maxFanIn most partitions that are read at once when they are merged
+     */
+    GatherTable(MergedValue[] conf, ListBundleFormat format, File spillDir, int maxFanIn) {
+        this.conf = conf;
+        this.format = format;
+        this.spillDir = spillDir;
+        this.maxFanIn = Math.max(2, maxFanIn);
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int newCapacity) {
+        capacity = newCapacity;
+        slots = new int[newCapacity * 2];
+        Arrays.fill(slots, EMPTY);
+        hashes = new int[newCapacity];
+        keyOffsets = new int[newCapacity];
+        keyLengths = new int[newCapacity];
+        counts = new int[newCapacity];
+        keys = new byte[newCapacity * 16];
+        keysUsed = 0;
+        keysGarbage = 0;
+        objectBytes = 0;
+        size = 0;
+        if (columns != null) {
+            for (Column column : columns) {
+                if (column != null) {
+                    column.allocate(newCapacity);
+                }
+            }
+        }
+    }
+
+    /**
+     * Binds the columns of the table to the fields of the first row
+     * in the same way {@link com.addthis.hydra.data.query.op.merge.MergeConfig} does.
+     */
+    private void bind(Bundle row) {
+        int i = 0;
+        for (BundleField field : row.getFormat()) {
+            if (i >= conf.length) {
+                break;
+            }
+            MergedValue value = conf[i++];
+            if (value != null && value.getFrom() == null) {
+                value.setFrom(field);
+                value.setTo(format.getField(field.getName()));
+            }
+        }
+        for (MergedValue value : conf) {
+            if (value instanceof NumMergesValue && value.getTo() == null) {
+                value.setTo(format.createNewField("merge_"));
+            }
+        }
+        bindColumns();
+    }
+
+    private void bindColumns() {
+        columns = new Column[conf.length];
+        int keyCount = 0;
+        for (int i = 0; i < conf.length; i++) {
+            MergedValue value = conf[i];
+            if (value == null || value.getTo() == null) {
+                continue;
+            }
+            columns[i] = newColumn(value);
+            columns[i].allocate(capacity);
+            if (value.isKey()) {
+                keyCount++;
+            }
+        }
+        keyColumns = new int[keyCount];
+        keyCount = 0;
+        for (int i = 0; i < conf.length; i++) {
+            if (columns[i] != null && conf[i].isKey()) {
+                keyColumns[keyCount++] = i;
+            }
+        }
+    }
+
+    private static Column newColumn(MergedValue value) {
+        BundleField from = value.getFrom();
+        BundleField to = value.getTo();
+        if (value instanceof NumMergesValue) {
+            return new CountColumn(to);
+        } else if (value instanceof JoinedValue) {
+            return new ObjectColumn(from, to, true);
+        } else if (value instanceof LastValue) {
+            return new ObjectColumn(from, to, false);
+        } else if (value instanceof AverageValue) {
+            return new NumberColumn(from, to, NumberColumn.AVG);
+        } else if (value instanceof SumValue) {
+            return new NumberColumn(from, to, NumberColumn.SUM);
+        } else if (value instanceof MinValue) {
+            return new NumberColumn(from, to, NumberColumn.MIN);
+        } else if (value instanceof MaxValue) {
+            return new NumberColumn(from, to, NumberColumn.MAX);
+        } else if (value instanceof DiffValue) {
+            return new NumberColumn(from, to, NumberColumn.DIFF);
+        }
+        throw new IllegalArgumentException("unsupported merge column " + value.getClass().getName());
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getCount(int group) {
+        return counts[group];
+    }
+
+    /**
+     * Serializes the key columns of a row and returns the matching group or -1.
+     * The serialized key is kept for a following call to {@link #insert()}.
+     */
+    int find(Bundle row) {
+        if (columns == null) {
+            bind(row);
+        }
+        scratchLength = 0;
+        for (int column : keyColumns) {
+            ValueObject value = row.getValue(conf[column].getFrom());
+            writeKey(value == null ? "" : value.toString());
+        }
+        return lookup();
+    }
+
+    /**
+     * Finds the group of a key returned by {@link #getKey(int)}.
+     */
+    private int find(String key) {
+        byte[] bytes = key.getBytes(Charsets.ISO_8859_1);
+        ensureScratch(bytes.length);
+        System.arraycopy(bytes, 0, scratch, 0, bytes.length);
+        scratchLength = bytes.length;
+        return lookup();
+    }
+
+    private int lookup() {
+        scratchHash = hash(scratch, 0, scratchLength);
+        int mask = slots.length - 1;
+        for (int slot = scratchHash & mask; ; slot = (slot + 1) & mask) {
+            int group = slots[slot];
+            if (group == EMPTY) {
+                return -1;
+            }
+            if (hashes[group] == scratchHash && keyLengths[group] == scratchLength &&
+                compareKeys(keys, keyOffsets[group], keyLengths[group], scratch, 0, scratchLength) == 0) {
+                return group;
+            }
+        }
+    }
+
+    /**
+     * Creates a group for the key serialized by the last call to {@link #find(Bundle)}.
+     */
+    int insert() {
+        if (size == capacity) {
+            grow();
+        }
+        if (keysUsed + scratchLength > keys.length) {
+            keys = Arrays.copyOf(keys, Math.max(keys.length * 2, keysUsed + scratchLength));
+        }
+        System.arraycopy(scratch, 0, keys, keysUsed, scratchLength);
+        int group = size++;
+        hashes[group] = scratchHash;
+        keyOffsets[group] = keysUsed;
+        keyLengths[group] = scratchLength;
+        counts[group] = 0;
+        keysUsed += scratchLength;
+        place(group);
+        return group;
+    }
+
+    private void place(int group) {
+        int mask = slots.length - 1;
+        int slot = hashes[group] & mask;
+        while (slots[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = group;
+    }
+
+    private void grow() {
+        capacity *= 2;
+        hashes = Arrays.copyOf(hashes, capacity);
+        keyOffsets = Arrays.copyOf(keyOffsets, capacity);
+        keyLengths = Arrays.copyOf(keyLengths, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        for (Column column : columns) {
+            if (column != null) {
+                column.grow(capacity);
+            }
+        }
+        slots = new int[capacity * 2];
+        Arrays.fill(slots, EMPTY);
+        for (int group = 0; group < size; group++) {
+            place(group);
+        }
+    }
+
+    /**
+     * Merges the columns of a row into a group.
+     */
+    void merge(int group, Bundle row) {
+        counts[group]++;
+        for (Column column : columns) {
+            if (column != null && column.from != null) {
+                ValueObject value = row.getValue(column.from);
+                if (value != null) {
+                    objectBytes += column.merge(group, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the key of a group as a string that identifies it in {@link #remove(String)}.
+     */
+    String getKey(int group) {
+        return new String(keys, keyOffsets[group], keyLengths[group], Charsets.ISO_8859_1);
+    }
+
+    /**
+     * Returns the value accumulated so far by a column as a long.
+     */
+    long current(int group, int column) {
+        return columns[column].current(group, counts[group]);
+    }
+
+    boolean isBound(int column) {
+        return column >= 0 && column < conf.length && columns[column] != null;
+    }
+
+    /**
+     * Removes the group with a key returned by {@link #getKey(int)}.
+     * The last group takes the place of the removed group.
+     */
+    void remove(String key) {
+        int group = find(key);
+        if (group < 0) {
+            return;
+        }
+        int mask = slots.length - 1;
+        int hole = hashes[group] & mask;
+        while (slots[hole] != group) {
+            hole = (hole + 1) & mask;
+        }
+        slots[hole] = EMPTY;
+        // shift back the entries that probed past the removed slot
+        for (int slot = (hole + 1) & mask; slots[slot] != EMPTY; slot = (slot + 1) & mask) {
+            int ideal = hashes[slots[slot]] & mask;
+            if (((slot - ideal) & mask) >= ((slot - hole) & mask)) {
+                slots[hole] = slots[slot];
+                slots[slot] = EMPTY;
+                hole = slot;
+            }
+        }
+        keysGarbage += keyLengths[group];
+        int last = --size;
+        for (Column column : columns) {
+            if (column != null) {
+                objectBytes -= column.clear(group);
+                if (group != last) {
+                    column.move(last, group);
+                }
+            }
+        }
+        if (group != last) {
+            hashes[group] = hashes[last];
+            keyOffsets[group] = keyOffsets[last];
+            keyLengths[group] = keyLengths[last];
+            counts[group] = counts[last];
+            int slot = hashes[last] & mask;
+            while (slots[slot] != last) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = group;
+        }
+        if (keysGarbage > INITIAL_CAPACITY * 16 && keysGarbage > keysUsed / 2) {
+            compactKeys();
+        }
+    }
+
+    private void compactKeys() {
+        byte[] compact = new byte[Math.max(INITIAL_CAPACITY * 16, (keysUsed - keysGarbage) * 2)];
+        int used = 0;
+        for (int group = 0; group < size; group++) {
+            System.arraycopy(keys, keyOffsets[group], compact, used, keyLengths[group]);
+            keyOffsets[group] = used;
+            used += keyLengths[group];
+        }
+        keys = compact;
+        keysUsed = used;
+        keysGarbage = 0;
+    }
+
+    /**
+     * Empties the table but keeps its arrays.
+     */
+    void clear() {
+        Arrays.fill(slots, EMPTY);
+        for (int group = 0; group < size; group++) {
+            for (Column column : columns) {
+                if (column != null) {
+                    column.clear(group);
+                }
+            }
+        }
+        size = 0;
+        keysUsed = 0;
+        keysGarbage = 0;
+        objectBytes = 0;
+    }
+
+    /**
+     * Bytes held by the arrays of the table and the values in its columns.
+     */
+    long getMemory() {
+        long bytes = slots.length * 4L + capacity * 16L + keys.length + scratch.length + objectBytes;
+        if (columns != null) {
+            for (Column column : columns) {
+                if (column != null) {
+                    bytes += (long) capacity * column.bytesPerGroup();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    boolean hasSpilled() {
+        return !partitions.isEmpty();
+    }
+
+    /**
+     * Writes the groups to a new partition in key order and releases the table.
+     */
+    void spill() throws IOException {
+        if (size == 0) {
+            return;
+        }
+        Integer[] order = new Integer[size];
+        for (int group = 0; group < size; group++) {
+            order[group] = group;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return compareKeys(keys, keyOffsets[a], keyLengths[a], keys, keyOffsets[b], keyLengths[b]);
+            }
+        });
+        File file = createPartition();
+        partitions.add(file);
+        try (PartitionWriter out = new PartitionWriter(file)) {
+            for (Integer group : order) {
+                out.write(this, group);
+            }
+        }
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private File createPartition() throws IOException {
+        if (!spillDir.exists() && !spillDir.mkdirs()) {
+            throw new IOException("unable to create " + spillDir);
+        }
+        return File.createTempFile("gather-", ".spill", spillDir);
+    }
+
+    /**
+     * Merges a group read from a partition into this table.
+     */
+    private int mergeSpilled(byte[] key, byte[] body, DataChannelCodec.ClassIndexMap classes) throws IOException {
+        ensureScratch(key.length);
+        System.arraycopy(key, 0, scratch, 0, key.length);
+        scratchLength = key.length;
+        int group = lookup();
+        if (group < 0) {
+            group = insert();
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        counts[group] += in.readInt();
+        for (Column column : columns) {
+            if (column != null) {
+                objectBytes += column.read(group, in, classes);
+            }
+        }
+        return group;
+    }
+
+    Bundle row(int group) {
+        Bundle row = new ListBundle(format);
+        for (Column column : columns) {
+            if (column != null) {
+                column.emit(group, counts[group], row);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Sends every group to the next operation. Spilled partitions are merged
+     * with the groups still in memory and sent in key order. No more than
+     * {@code maxFanIn} partitions are open at once.
+     */
+    void emit(QueryOp next, QueryStatusObserver queryStatusObserver) throws IOException {
+        if (partitions.isEmpty()) {
+            for (int group = 0; group < size && !queryStatusObserver.queryCompleted; group++) {
+                next.send(row(group));
+            }
+            return;
+        }
+        spill();
+        while (partitions.size() > maxFanIn) {
+            mergePartitions();
+        }
+        merge(partitions, next, null, queryStatusObserver);
+    }
+
+    /**
+     * Merges runs of at most {@code maxFanIn} adjacent partitions into new
+     * partitions. Runs keep the order of the partitions, which diff columns
+     * depend on.
+     */
+    private void mergePartitions() throws IOException {
+        List<File> inputs = new ArrayList<>(partitions);
+        List<File> outputs = new ArrayList<>();
+        for (int from = 0; from < inputs.size(); from += maxFanIn) {
+            List<File> run = inputs.subList(from, Math.min(from + maxFanIn, inputs.size()));
+            if (run.size() == 1) {
+                outputs.add(run.get(0));
+                continue;
+            }
+            File file = createPartition();
+            // tracked until the merge is done, so that close() deletes it
+            partitions.add(file);
+            outputs.add(file);
+            try (PartitionWriter out = new PartitionWriter(file)) {
+                merge(run, null, out, new QueryStatusObserver());
+            }
+        }
+        for (File file : inputs) {
+            if (!outputs.contains(file)) {
+                delete(file);
+            }
+        }
+        partitions.clear();
+        partitions.addAll(outputs);
+    }
+
+    /**
+     * Merges the groups of the partitions by key and either sends them to the
+     * next operation or writes them to a new partition.
+     */
+    private void merge(List<File> files, QueryOp next, PartitionWriter out,
+            QueryStatusObserver queryStatusObserver) throws IOException {
+        GatherTable merged = new GatherTable(conf, format, null);
+        merged.bindColumns();
+        PriorityQueue<Partition> queue = new PriorityQueue<>(files.size(), PARTITION_ORDER);
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                Partition partition = new Partition(i, files.get(i));
+                if (partition.next()) {
+                    queue.add(partition);
+                } else {
+                    partition.close();
+                }
+            }
+            while (!queue.isEmpty() && !queryStatusObserver.queryCompleted) {
+                Partition partition = queue.poll();
+                byte[] key = partition.key;
+                merged.clear();
+                int group = merged.mergeSpilled(key, partition.body, partition.classes);
+                advance(queue, partition);
+                while (!queue.isEmpty() && Arrays.equals(queue.peek().key, key)) {
+                    partition = queue.poll();
+                    merged.mergeSpilled(key, partition.body, partition.classes);
+                    advance(queue, partition);
+                }
+                if (out != null) {
+                    out.write(merged, group);
+                } else {
+                    next.send(merged.row(group));
+                }
+            }
+        } finally {
+            for (Partition partition : queue) {
+                partition.close();
+            }
+        }
+    }
+
+    private static void advance(PriorityQueue<Partition> queue, Partition partition) throws IOException {
+        if (partition.next()) {
+            queue.add(partition);
+        } else {
+            partition.close();
+        }
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Deletes the spilled partitions.
+     */
+    @Override
+    public void close() {
+        for (File file : partitions) {
+            delete(file);
+        }
+        partitions.clear();
+    }
+
+    private void ensureScratch(int length) {
+        if (length > scratch.length) {
+            scratch = Arrays.copyOf(scratch, Math.max(length, scratch.length * 2));
+        }
+    }
+
+    /**
+     * Appends a length prefixed string to the serialized key. Characters
+     * are written with one to three bytes so the encoding is unique.
+     */
+    private void writeKey(String value) {
+        int length = value.length();
+        ensureScratch(scratchLength + 5 + length * 3);
+        int pos = scratchLength;
+        int remaining = length;
+        while ((remaining & ~0x7f) != 0) {
+            scratch[pos++] = (byte) ((remaining & 0x7f) | 0x80);
+            remaining >>>= 7;
+        }
+        scratch[pos++] = (byte) remaining;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                scratch[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                scratch[pos++] = (byte) (0xc0 | (c >> 6));
+                scratch[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else {
+                scratch[pos++] = (byte) (0xe0 | (c >> 12));
+                scratch[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                scratch[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        scratchLength = pos;
+    }
+
+    private static int hash(byte[] bytes, int off, int len) {
+        int h = 0;
+        for (int i = off; i < off + len; i++) {
+            h = 31 * h + bytes[i];
+        }
+        // spread the low bits used by the table mask
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h;
+    }
+
+    private static int compareKeys(byte[] a, int aOff, int aLen, byte[] b, int bOff, int bLen) {
+        int len = Math.min(aLen, bLen);
+        for (int i = 0; i < len; i++) {
+            int cmp = (a[aOff + i] & 0xff) - (b[bOff + i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return aLen - bLen;
+    }
+
+    /**
+     * Approximate heap size of a value held by the table.
+     */
+    static long estimate(ValueObject value) {
+        if (value == null) {
+            return 0;
+        }
+        switch (value.getObjectType()) {
+            case INT:
+            case FLOAT:
+                return 16;
+            case STRING:
+                return 56 + 2L * value.toString().length();
+            case BYTES:
+                return 32 + value.asBytes().getBytes().length;
+            case ARRAY:
+                long bytes = 32;
+                for (ValueObject element : value.asArray()) {
+                    bytes += 8 + estimate(element);
+                }
+                return bytes;
+            default:
+                return 64;
+        }
+    }
+
+    private static void writeValue(ValueObject value, DataOutputStream out,
+            DataChannelCodec.ClassIndexMap classes) throws IOException {
+        if (value == null) {
+            out.writeBoolean(false);
+        } else {
+            out.writeBoolean(true);
+            DataChannelCodec.encodeValue(value, out, classes);
+        }
+    }
+
+    private static ValueObject readValue(DataInputStream in, DataChannelCodec.ClassIndexMap classes) throws IOException {
+        return in.readBoolean() ? DataChannelCodec.decodeValue(in, classes) : null;
+    }
+
+    /**
+     * State of one output column for every group.
+     */
+    private abstract static class Column {
+
+        final BundleField from;
+        final BundleField to;
+
+        Column(BundleField from, BundleField to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        abstract void allocate(int capacity);
+
+        abstract void grow(int capacity);
+
+        abstract int bytesPerGroup();
+
+        /**
+         * Merges a value into a group and returns the change in object bytes.
+         */
+        abstract long merge(int group, ValueObject value);
+
+        /**
+         * Empties a group and returns the object bytes it released.
+         */
+        abstract long clear(int group);
+
+        abstract void move(int from, int to);
+
+        abstract long current(int group, int count);
+
+        abstract void emit(int group, int count, Bundle row);
+
+        abstract void write(int group, DataOutputStream out, DataChannelCodec.ClassIndexMap classes)
+                throws IOException;
+
+        /**
+         * Merges a group state written by {@link #write} into a group
+         * and returns the change in object bytes.
+         */
+        abstract long read(int group, DataInputStream in, DataChannelCodec.ClassIndexMap classes)
+                throws IOException;
+    }
+
+    /**
+     * The number of merged rows of each group.
+     */
+    private static final class CountColumn extends Column {
+
+        CountColumn(BundleField to) {
+            super(null, to);
+        }
+
+        @Override
+        void allocate(int capacity) {
+        }
+
+        @Override
+        void grow(int capacity) {
+        }
+
+        @Override
+        int bytesPerGroup() {
+            return 0;
+        }
+
+        @Override
+        long merge(int group, ValueObject value) {
+            return 0;
+        }
+
+        @Override
+        long clear(int group) {
+            return 0;
+        }
+
+        @Override
+        void move(int from, int to) {
+        }
+
+        @Override
+        long current(int group, int count) {
+            return count;
+        }
+
+        @Override
+        void emit(int group, int count, Bundle row) {
+            row.setValue(to, ValueFactory.create(count));
+        }
+
+        @Override
+        void write(int group, DataOutputStream out, DataChannelCodec.ClassIndexMap classes) {
+        }
+
+        @Override
+        long read(int group, DataInputStream in, DataChannelCodec.ClassIndexMap classes) {
+            return 0;
+        }
+    }
+
+    /**
+     * Keeps the last value or joins all values of a column.
+     */
+    private static final class ObjectColumn extends Column {
+
+        private final boolean join;
+        private ValueObject[] values;
+
+        ObjectColumn(BundleField from, BundleField to, boolean join) {
+            super(from, to);
+            this.join = join;
+        }
+
+        @Override
+        void allocate(int capacity) {
+            values = new ValueObject[capacity];
+        }
+
+        @Override
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        int bytesPerGroup() {
+            return 8;
+        }
+
+        @Override
+        long merge(int group, ValueObject value) {
+            ValueObject current = values[group];
+            if (!join) {
+                values[group] = value;
+                return estimate(value) - estimate(current);
+            }
+            if (value.getObjectType() != ValueObject.TYPE.ARRAY) {
+                value = value.asString();
+            }
+            if (current == null) {
+                if (value.getObjectType() == ValueObject.TYPE.ARRAY) {
+                    ValueArray copy = ValueFactory.createArray(value.asArray().size());
+                    for (ValueObject element : value.asArray()) {
+                        copy.add(element);
+                    }
+                    value = copy;
+                }
+                values[group] = value;
+                return estimate(value);
+            }
+            long bytes = 0;
+            if (current.getObjectType() != ValueObject.TYPE.ARRAY) {
+                ValueArray array = ValueFactory.createArray(2);
+                array.add(current);
+                values[group] = array;
+                bytes += 40;
+            }
+            values[group].asArray().add(value);
+            return bytes + 8 + estimate(value);
+        }
+
+        @Override
+        long clear(int group) {
+            long bytes = estimate(values[group]);
+            values[group] = null;
+            return bytes;
+        }
+
+        @Override
+        void move(int from, int to) {
+            values[to] = values[from];
+            values[from] = null;
+        }
+
+        @Override
+        long current(int group, int count) {
+            return OpGather.num(values[group]).asLong().getLong();
+        }
+
+        @Override
+        void emit(int group, int count, Bundle row) {
+            ValueObject value = values[group];
+            if (value == null) {
+                return;
+            }
+            if (join && value.getObjectType() == ValueObject.TYPE.ARRAY) {
+                value = ValueFactory.create(JOINER.join(value.asArray()));
+            }
+            row.setValue(to, value);
+        }
+
+        @Override
+        void write(int group, DataOutputStream out, DataChannelCodec.ClassIndexMap classes) throws IOException {
+            writeValue(values[group], out, classes);
+        }
+
+        @Override
+        long read(int group, DataInputStream in, DataChannelCodec.ClassIndexMap classes) throws IOException {
+            ValueObject value = readValue(in, classes);
+            if (value == null) {
+                return 0;
+            }
+            if (!join || values[group] == null || value.getObjectType() != ValueObject.TYPE.ARRAY) {
+                return merge(group, value);
+            }
+            long bytes = 0;
+            for (ValueObject element : value.asArray()) {
+                bytes += merge(group, element);
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Sums, averages, differences, minimums or maximums of a numeric column.
+     * The kind of the first value decides whether the column accumulates longs
+     * or doubles, like the {@link ValueNumber} operations of the merged values.
+     * Values that are neither fall back to those operations.
+     */
+    private static final class NumberColumn extends Column {
+
+        static final int SUM = 0;
+        static final int AVG = 1;
+        static final int MIN = 2;
+        static final int MAX = 3;
+        static final int DIFF = 4;
+
+        private final int op;
+        private byte[] kinds;
+        private long[] bits;
+        // sum of every value after the first one for differences
+        private long[] rest;
+        private ValueNumber[] objects;
+
+        NumberColumn(BundleField from, BundleField to, int op) {
+            super(from, to);
+            this.op = op;
+        }
+
+        @Override
+        void allocate(int capacity) {
+            kinds = new byte[capacity];
+            bits = new long[capacity];
+            rest = (op == DIFF) ? new long[capacity] : null;
+            objects = new ValueNumber[capacity];
+        }
+
+        @Override
+        void grow(int capacity) {
+            kinds = Arrays.copyOf(kinds, capacity);
+            bits = Arrays.copyOf(bits, capacity);
+            rest = (op == DIFF) ? Arrays.copyOf(rest, capacity) : null;
+            objects = Arrays.copyOf(objects, capacity);
+        }
+
+        @Override
+        int bytesPerGroup() {
+            return (op == DIFF) ? 25 : 17;
+        }
+
+        @Override
+        long merge(int group, ValueObject value) {
+            return mergeNumber(group, OpGather.num(value));
+        }
+
+        private long mergeNumber(int group, ValueNumber num) {
+            switch (kinds[group]) {
+                case ABSENT:
+                    switch (num.getObjectType()) {
+                        case INT:
+                            kinds[group] = LONG;
+                            bits[group] = num.asLong().getLong();
+                            return 0;
+                        case FLOAT:
+                            kinds[group] = DOUBLE;
+                            bits[group] = Double.doubleToRawLongBits(num.asDouble().getDouble());
+                            return 0;
+                        default:
+                            kinds[group] = OBJECT;
+                            objects[group] = num;
+                            return estimate(num);
+                    }
+                case LONG: {
+                    long next = num.asLong().getLong();
+                    switch (op) {
+                        case SUM:
+                        case AVG:
+                            bits[group] += next;
+                            break;
+                        case MIN:
+                            bits[group] = Math.min(bits[group], next);
+                            break;
+                        case MAX:
+                            bits[group] = Math.max(bits[group], next);
+                            break;
+                        case DIFF:
+                            rest[group] += next;
+                            break;
+                    }
+                    return 0;
+                }
+                case DOUBLE: {
+                    double next = num.asDouble().getDouble();
+                    double value = Double.longBitsToDouble(bits[group]);
+                    switch (op) {
+                        case SUM:
+                        case AVG:
+                            value += next;
+                            break;
+                        case MIN:
+                            value = Math.min(value, next);
+                            break;
+                        case MAX:
+                            value = Math.max(value, next);
+                            break;
+                        case DIFF:
+                            rest[group] = Double.doubleToRawLongBits(Double.longBitsToDouble(rest[group]) + next);
+                            return 0;
+                    }
+                    bits[group] = Double.doubleToRawLongBits(value);
+                    return 0;
+                }
+                default: {
+                    ValueNumber current = objects[group];
+                    switch (op) {
+                        case SUM:
+                        case AVG:
+                            objects[group] = current.sum(num);
+                            break;
+                        case MIN:
+                            objects[group] = current.min(num);
+                            break;
+                        case MAX:
+                            objects[group] = current.max(num);
+                            break;
+                        case DIFF:
+                            objects[group] = current.diff(num);
+                            break;
+                    }
+                    return estimate(objects[group]) - estimate(current);
+                }
+            }
+        }
+
+        @Override
+        long clear(int group) {
+            long bytes = estimate(objects[group]);
+            kinds[group] = ABSENT;
+            bits[group] = 0;
+            if (rest != null) {
+                rest[group] = 0;
+            }
+            objects[group] = null;
+            return bytes;
+        }
+
+        @Override
+        void move(int from, int to) {
+            kinds[to] = kinds[from];
+            bits[to] = bits[from];
+            if (rest != null) {
+                rest[to] = rest[from];
+            }
+            objects[to] = objects[from];
+            clear(from);
+        }
+
+        private ValueNumber value(int group, int count) {
+            switch (kinds[group]) {
+                case LONG: {
+                    long value = bits[group];
+                    if (op == DIFF) {
+                        value -= rest[group];
+                    } else if (op == AVG) {
+                        value /= Math.max(count, 1);
+                    }
+                    return ValueFactory.create(value);
+                }
+                case DOUBLE: {
+                    double value = Double.longBitsToDouble(bits[group]);
+                    if (op == DIFF) {
+                        value -= Double.longBitsToDouble(rest[group]);
+                    } else if (op == AVG) {
+                        value /= Math.max(count, 1);
+                    }
+                    return ValueFactory.create(value);
+                }
+                case OBJECT:
+                    return (op == AVG) ? objects[group].avg(count) : objects[group];
+                default:
+                    return null;
+            }
+        }
+
+        @Override
+        long current(int group, int count) {
+            switch (kinds[group]) {
+                case LONG:
+                    return (op == DIFF) ? bits[group] - rest[group] : bits[group];
+                case DOUBLE:
+                    return (long) ((op == DIFF) ? Double.longBitsToDouble(bits[group]) -
+                                                  Double.longBitsToDouble(rest[group]) :
+                                                  Double.longBitsToDouble(bits[group]));
+                case OBJECT:
+                    return objects[group].asLong().getLong();
+                default:
+                    return 0;
+            }
+        }
+
+        @Override
+        void emit(int group, int count, Bundle row) {
+            ValueNumber value = value(group, count);
+            if (value != null) {
+                row.setValue(to, value);
+            }
+        }
+
+        @Override
+        void write(int group, DataOutputStream out, DataChannelCodec.ClassIndexMap classes) throws IOException {
+            byte kind = kinds[group];
+            out.writeByte(kind);
+            if (kind == LONG || kind == DOUBLE) {
+                out.writeLong(bits[group]);
+                if (op == DIFF) {
+                    out.writeLong(rest[group]);
+                }
+            } else if (kind == OBJECT) {
+                writeValue(objects[group], out, classes);
+            }
+        }
+
+        @Override
+        long read(int group, DataInputStream in, DataChannelCodec.ClassIndexMap classes) throws IOException {
+            byte kind = in.readByte();
+            if (kind == ABSENT) {
+                return 0;
+            }
+            ValueNumber first;
+            long restBits = 0;
+            if (kind == OBJECT) {
+                first = OpGather.num(readValue(in, classes));
+            } else {
+                long value = in.readLong();
+                if (op == DIFF) {
+                    restBits = in.readLong();
+                }
+                first = (kind == LONG) ? ValueFactory.create(value) :
+                        ValueFactory.create(Double.longBitsToDouble(value));
+            }
+            if (op != DIFF || kinds[group] == ABSENT || kind == OBJECT) {
+                long bytes = mergeNumber(group, first);
+                if (op == DIFF && kind != OBJECT && kinds[group] == kind) {
+                    rest[group] = restBits;
+                }
+                return bytes;
+            }
+            // a - (b - c) would be wrong, so the first value and the rest of the
+            // partition are both subtracted from this group
+            long bytes = mergeNumber(group, first);
+            ValueNumber others = (kind == LONG) ? ValueFactory.create(restBits) :
+                                 ValueFactory.create(Double.longBitsToDouble(restBits));
+            return bytes + mergeNumber(group, others);
+        }
+    }
+
+    /**
+     * Writes groups to a partition in the order they are given. Each group is
+     * its key and body, both length prefixed, and the partition ends with a
+     * key length of -1.
+     */
+    private static final class PartitionWriter implements Closeable {
+
+        private final DataChannelCodec.ClassIndexMap classes = DataChannelCodec.createClassIndexMap();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final DataOutputStream bodyOut = new DataOutputStream(body);
+        private final DataOutputStream out;
+
+        PartitionWriter(File file) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        }
+
+        void write(GatherTable table, int group) throws IOException {
+            out.writeInt(table.keyLengths[group]);
+            out.write(table.keys, table.keyOffsets[group], table.keyLengths[group]);
+            body.reset();
+            bodyOut.writeInt(table.counts[group]);
+            for (Column column : table.columns) {
+                if (column != null) {
+                    column.write(group, bodyOut, classes);
+                }
+            }
+            out.writeInt(body.size());
+            body.writeTo(out);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.writeInt(-1);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * A spilled partition that is read one group at a time.
+     */
+    private static final class Partition {
+
+        final int index;
+        final DataChannelCodec.ClassIndexMap classes = DataChannelCodec.createClassIndexMap();
+        private final DataInputStream in;
+        byte[] key;
+        byte[] body;
+
+        Partition(int index, File file) throws IOException {
+            this.index = index;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        }
+
+        boolean next() throws IOException {
+            int keyLength = in.readInt();
+            if (keyLength < 0) {
+                return false;
+            }
+            key = new byte[keyLength];
+            in.readFully(key);
+            body = new byte[in.readInt()];
+            in.readFully(body);
+            return true;
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -13,30 +13,23 @@
  */
 package com.addthis.hydra.data.query.op;
 
+import java.io.File;
 import java.io.IOException;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
-import com.addthis.basis.util.MemoryCounter;
 import com.addthis.basis.util.Parameter;
 
 import com.addthis.bundle.channel.DataChannelError;
 import com.addthis.bundle.core.Bundle;
-import com.addthis.bundle.core.BundleField;
-import com.addthis.bundle.core.list.ListBundle;
 import com.addthis.bundle.core.list.ListBundleFormat;
 import com.addthis.bundle.util.ValueUtil;
 import com.addthis.bundle.value.ValueNumber;
 import com.addthis.bundle.value.ValueObject;
 import com.addthis.hydra.data.query.AbstractQueryOp;
-import com.addthis.hydra.data.query.DiskBackedMap;
 import com.addthis.hydra.data.query.QueryOp;
 import com.addthis.hydra.data.query.QueryStatusObserver;
 import com.addthis.hydra.data.query.op.merge.MergeConfig;
-import com.addthis.hydra.data.query.op.merge.MergedValue;
 import com.addthis.hydra.data.util.KeyTopper;
 
 import com.yammer.metrics.Metrics;
@@ -46,7 +39,9 @@ import com.yammer.metrics.core.Meter;
  * <p>This query operation <span class="hydra-summary">merges arbitrary rows</span>.
  * <p/>
  * <p>Gather collects all rows that match the criteria of the key columns.
- * It is an in-memory operation that spill over to disk when necessary. If the key
+ * It is an in-memory operation that spill over to disk when necessary. Rows are
+ * emitted in the order their keys were first seen, or in key order once the
+ * operation has spilled to disk. If the key
  * columns are already sorted then the {@link OpMerge merge} operation is
  * a much cheaper alternative.</p>
  * <p>The syntax for this operation is "gather=[column parameters] where
@@ -95,13 +90,11 @@ public class OpGather extends AbstractQueryOp {
         return num != null ? num : ZERO;
     }
 
-    private Map<String, MergedRow> resultTable = new HashMap<>();
     private final ListBundleFormat format = new ListBundleFormat();
-    private final MergedValue[] conf;
+    private final GatherTable resultTable;
 
     private final long tipMem;
     private final long tipRow;
-    private long totalMem;
 
     private final MergeConfig mergeConfig;
     private final KeyTopper topper;
@@ -110,10 +103,12 @@ public class OpGather extends AbstractQueryOp {
 
     private boolean tippedToDisk = false;
     private boolean tipToDisk = Parameter.boolValue("opgather.tiptodisk", false);
+    private int spillFanIn = Parameter.intValue("opgather.spill.fanin", 64);
 
     private String tmpDir = "opgather.tmp";
 
     private static final Meter diskTips = Metrics.newMeter(OpGather.class, "diskTips", "diskTips", TimeUnit.SECONDS);
+    private static final Meter spills = Metrics.newMeter(OpGather.class, "spills", "spills", TimeUnit.SECONDS);
 
     final QueryStatusObserver queryStatusObserver;
 
@@ -122,13 +117,12 @@ public class OpGather extends AbstractQueryOp {
         this.tmpDir = tmpDir;
         this.tipMem = tipMem;
         this.tipRow = tipRow;
-        totalMem = 0;
 
         mergeConfig = new MergeConfig(args);
         topColumn = mergeConfig.topColumn;
         topper = mergeConfig.topper;
         topSize = mergeConfig.numericArg;
-        conf = mergeConfig.conf;
+        resultTable = new GatherTable(mergeConfig.conf, format, new File(this.tmpDir), spillFanIn);
     }
 
     @Override
@@ -136,72 +130,42 @@ public class OpGather extends AbstractQueryOp {
         if (queryStatusObserver.queryCompleted) {
             return;
         }
-        String key = mergeConfig.handleBindAndGetKey(row, format);
-        MergedRow merge = resultTable.get(key);
-        if (merge == null) {
-            merge = new MergedRow(conf, new ListBundle(format));
-            resultTable.put(key, merge);
-
-            if (!tippedToDisk) {
-                totalMem += MemoryCounter.estimateSize(merge);
-            }
-        }
-        if (!tippedToDisk) {
-            totalMem -= MemoryCounter.estimateSize(merge);
-        }
-        merge.merge(row);
-        if (tippedToDisk) {
-            // Update the result on the disk, we need to put again
-            resultTable.put(key, merge);
-        }
-        if (!tippedToDisk) {
-            totalMem += MemoryCounter.estimateSize(merge);
+        int group = resultTable.find(row);
+        if (group < 0) {
+            group = resultTable.insert();
         }
+        resultTable.merge(group, row);
 
-        if (topColumn >= 0) {
-            BundleField topColumnTo = conf[topColumn].getTo();
-            if (topColumnTo != null) {
-                ValueNumber num = num(merge.getValue(topColumnTo));
-                if (num == null) {
-                    return;
-                }
-                String drop = topper.update(key, num.asLong().getLong(), topSize);
-                if (drop != null) {
-                    if (!tippedToDisk) {
-                        totalMem -= MemoryCounter.estimateSize(resultTable.get(drop));
-                    }
-
-                    resultTable.remove(drop);
-                }
+        if (topColumn >= 0 && resultTable.isBound(topColumn)) {
+            String drop = topper.update(resultTable.getKey(group), resultTable.current(group, topColumn), topSize);
+            if (drop != null) {
+                resultTable.remove(drop);
             }
         }
 
+        boolean overMem = tipMem > 0 && resultTable.getMemory() > tipMem;
+        boolean overRows = tipRow > 0 && resultTable.size() > tipRow;
         if (!tipToDisk) {
             // If we're not tipping to disk, and the tips are set, then we will issue errors if we pass them
-            if (tipMem > 0 && totalMem > tipMem) {
+            if (overMem) {
                 throw new DataChannelError("Memory usage of gathered objects exceeds allowed " + tipMem);
             }
 
-            if (tipRow > 0 && resultTable.size() > tipRow) {
+            if (overRows) {
                 throw new DataChannelError("Number of gathered rows exceeds allowed " + tipRow);
             }
-        } else {
-            // If we're tipping to disk, and the tips are non zero, then spill to disk once we pass them
-            if (!tippedToDisk && ((tipMem > 0 && totalMem > tipMem) || (tipRow > 0 && resultTable.size() > tipRow))) {
+        } else if ((overMem || overRows) && topper == null) {
+            // If we're tipping to disk, and the tips are non zero, then spill a sorted partition once we pass them.
+            // The top of a column is bounded by the topper and never spills.
+            if (!tippedToDisk) {
                 tippedToDisk = true;
                 diskTips.mark();
-
-                // Use the smaller amount of memory for the JE cache environment
-                long memToUse = totalMem;
-                if (memToUse > tipMem) {
-                    memToUse = tipMem;
-                }
-
-                Map<String, MergedRow> diskMap = new DiskBackedMap<>(tmpDir + "/" + UUID.randomUUID(),
-                        new MergedRowFactory(conf, format), memToUse);
-
-                diskMap.putAll(resultTable);
-                resultTable = diskMap;
+            }
+            spills.mark();
+            try {
+                resultTable.spill();
+            } catch (IOException e) {
+                throw new DataChannelError(e);
             }
         }
     }
@@ -209,22 +173,19 @@ public class OpGather extends AbstractQueryOp {
     @Override
     public void sendComplete() {
         QueryOp next = getNext();
-        for (MergedRow mergedRow : resultTable.values()) {
-            if (!queryStatusObserver.queryCompleted) {
-                next.send(mergedRow.emit());
-            } else {
-                break;
-            }
+        try {
+            resultTable.emit(next, queryStatusObserver);
+        } catch (IOException e) {
+            throw new DataChannelError(e);
+        } finally {
+            resultTable.close();
         }
         next.sendComplete();
     }
 
     @Override
     public void close() throws IOException {
-        if (resultTable instanceof DiskBackedMap) {
-            ((DiskBackedMap<MergedRow>) resultTable).close();
-        }
-
+        resultTable.close();
         super.close();
     }
 }
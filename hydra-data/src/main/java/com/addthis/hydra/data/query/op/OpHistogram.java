@@ -62,6 +62,12 @@ public class OpHistogram extends AbstractRowOp {
         histo = new KeyHistogram().setScale(scale).init();
     }
 
+    /**
+     * Buckets counted by separate histograms with the same scale are
+     * combined by summing the counts of each bucket and sorting the buckets.
+     */
+    public static final String COMBINE_OPS = "gather=ks;sort=0:n:a";
+
     KeyHistogram histo;
     BundleColumnBinder binder;
     Bundle rowFactory;
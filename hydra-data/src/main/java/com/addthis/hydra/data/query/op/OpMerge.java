@@ -16,13 +16,11 @@ package com.addthis.hydra.data.query.op;
 import java.io.IOException;
 
 import com.addthis.bundle.core.Bundle;
-import com.addthis.bundle.core.list.ListBundle;
 import com.addthis.bundle.core.list.ListBundleFormat;
 import com.addthis.hydra.data.query.AbstractQueryOp;
 import com.addthis.hydra.data.query.QueryOp;
 import com.addthis.hydra.data.query.QueryStatusObserver;
 import com.addthis.hydra.data.query.op.merge.MergeConfig;
-import com.addthis.hydra.data.query.op.merge.MergedValue;
 
 
 /**
@@ -72,8 +70,8 @@ public class OpMerge extends AbstractQueryOp {
 
     private final MergeConfig mergeConfig;
     private final int countdown;
-    private final MergedValue[] conf;
     private final ListBundleFormat format = new ListBundleFormat();
+    private final GatherTable lastRow;
     private final QueryStatusObserver queryStatusObserver;
 
     public OpMerge(String args, QueryStatusObserver queryStatusObserver) {
@@ -81,39 +79,31 @@ public class OpMerge extends AbstractQueryOp {
 
         mergeConfig = new MergeConfig(args);
         countdown = mergeConfig.numericArg;
-        conf = mergeConfig.conf;
+        lastRow = new GatherTable(mergeConfig.conf, format, null);
     }
 
-    String lastkey = null;
-    MergedRow lastRow = null;
-    int rows = 0;
-
     @Override
     public void send(Bundle bundle) {
         if (queryStatusObserver.queryCompleted) {
             return;
         }
-        String key = mergeConfig.handleBindAndGetKey(bundle, format);
-
-        if (key.equals(lastkey)) {
-            lastRow.merge(bundle);
-        } else {
+        // the table holds at most the one group of the previous rows
+        int group = lastRow.find(bundle);
+        if (group < 0) {
             maybeSendLastRow();
-            lastRow = new MergedRow(conf, new ListBundle(format));
-            lastRow.merge(bundle);
-            lastkey = key;
+            group = lastRow.insert();
         }
+        lastRow.merge(group, bundle);
 
-        if (countdown > 0 && lastRow.getMergedCount() >= countdown) {
+        if (countdown > 0 && lastRow.getCount(group) >= countdown) {
             maybeSendLastRow();
         }
     }
 
     private boolean maybeSendLastRow() {
-        if (lastRow != null) {
-            getNext().send(lastRow.emit());
-            lastRow = null;
-            lastkey = null;
+        if (lastRow.size() > 0) {
+            getNext().send(lastRow.row(0));
+            lastRow.clear();
             return true;
         }
         return false;
@@ -0,0 +1,191 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query.op;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.value.ValueObject;
+import com.addthis.hydra.data.query.AbstractQueryOp;
+import com.addthis.hydra.data.query.QueryOp;
+import com.addthis.hydra.data.query.QueryStatusObserver;
+import com.addthis.hydra.data.tree.prop.DataCounting;
+
+
+/**
+ * <p>This query operation <span class="hydra-summary">rolls up cardinality estimates</span>.
+ * <p/>
+ * <p>The syntax for this operation is "uniques=[column parameters]" where
+ * column parameters is a sequence of one or more of the following letters:
+ * <ul>
+ * <li>k - this column is a key column.</li>
+ * <li>i - this column is ignored and dropped from the output.</li>
+ * <li>u - this column holds estimators of a count attachment to be merged.</li>
+ * </ul>
+ * <p/>
+ * <p>All rows with the same key columns are combined into a single row, whether or
+ * not they are adjacent. The estimators of the "u" columns are merged into one
+ * estimator per key. Hyperloglog ("hll") and hyperloglog plus ("hllp") estimators
+ * are merged directly on their serialized registers, other estimators are merged
+ * one at a time. The rows are emitted in the order their keys were first seen.
+ * The output estimators can be merged again by another uniques operation and are
+ * displayed as their cardinality. Use a count attachment without a "$" command
+ * in the query path so the estimator itself is returned.</p>
+ * <p/>
+ * <p>Example:</p>
+ * <pre>
+ * /shard-counter/+$+ips
+ *
+ * uniques=iu
+ * </pre>
+ *
+ * @user-reference
+ * @hydra-name uniques
+ */
+public class OpUniques extends AbstractQueryOp {
+
+    private static final int IGNORE = 0;
+    private static final int KEY = 1;
+    private static final int UNIQUES = 2;
+
+    private final int[] columns;
+    private final QueryStatusObserver queryStatusObserver;
+    private final Map<String, ValueObject[]> groups = new LinkedHashMap<>();
+    private final ListBundleFormat format = new ListBundleFormat();
+    private BundleField[] from;
+    private BundleField[] to;
+
+    public OpUniques(String args, QueryStatusObserver queryStatusObserver) {
+        this.queryStatusObserver = queryStatusObserver;
+        columns = new int[args.length()];
+        for (int i = 0; i < args.length(); i++) {
+            switch (args.charAt(i)) {
+                case 'k':
+                    columns[i] = KEY;
+                    break;
+                case 'u':
+                    columns[i] = UNIQUES;
+                    break;
+                case 'i':
+                    columns[i] = IGNORE;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown uniques column type : " + args.charAt(i));
+            }
+        }
+    }
+
+    /**
+     * Returns the column parameters that merge rows already produced by
+     * these column parameters. Ignored columns are no longer present.
+     */
+    public static String combinedArgs(String args) {
+        return args.replace("i", "");
+    }
+
+    private void bind(Bundle row) {
+        from = new BundleField[columns.length];
+        to = new BundleField[columns.length];
+        int i = 0;
+        for (BundleField field : row.getFormat()) {
+            if (i >= columns.length) {
+                break;
+            }
+            from[i] = field;
+            if (columns[i] != IGNORE) {
+                to[i] = format.getField(field.getName());
+            }
+            i++;
+        }
+    }
+
+    @Override
+    public void send(Bundle row) {
+        if (queryStatusObserver.queryCompleted) {
+            return;
+        }
+        if (from == null) {
+            bind(row);
+        }
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] == KEY && from[i] != null) {
+                ValueObject value = row.getValue(from[i]);
+                key.append(value == null ? "" : value.toString()).append('\0');
+            }
+        }
+        String groupKey = key.toString();
+        ValueObject[] group = groups.get(groupKey);
+        boolean created = false;
+        if (group == null) {
+            group = new ValueObject[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i] == KEY && from[i] != null) {
+                    group[i] = row.getValue(from[i]);
+                }
+            }
+            groups.put(groupKey, group);
+            created = true;
+        }
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] == UNIQUES && from[i] != null) {
+                ValueObject value = row.getValue(from[i]);
+                if (value instanceof DataCounting.LCValue) {
+                    DataCounting.LCValue current = (group[i] instanceof DataCounting.LCValue) ?
+                                                   (DataCounting.LCValue) group[i] : null;
+                    group[i] = merge(current, (DataCounting.LCValue) value);
+                } else if (created && value != null) {
+                    group[i] = value;
+                }
+            }
+        }
+    }
+
+    /**
+     * The first estimator of each group is copied so later estimators
+     * can be merged into its registers in place.
+     */
+    private static DataCounting.LCValue merge(DataCounting.LCValue current, DataCounting.LCValue next) {
+        if (current == null) {
+            return DataCounting.LCValue.copyOf(next);
+        }
+        if (current.mergeRegisters(next)) {
+            return current;
+        }
+        return (DataCounting.LCValue) current.sum(next);
+    }
+
+    @Override
+    public void sendComplete() {
+        QueryOp next = getNext();
+        for (ValueObject[] group : groups.values()) {
+            if (queryStatusObserver.queryCompleted) {
+                break;
+            }
+            Bundle out = new ListBundle(format);
+            for (int i = 0; i < columns.length; i++) {
+                if (to[i] != null) {
+                    out.setValue(to[i], group[i]);
+                }
+            }
+            next.send(out);
+        }
+        groups.clear();
+        next.sendComplete();
+    }
+}
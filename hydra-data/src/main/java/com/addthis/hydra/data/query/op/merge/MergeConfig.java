@@ -103,6 +103,44 @@ public class MergeConfig {
         this.conf = conf.toArray(new MergedValue[conf.size()]);
     }
 
+    /**
+     * Returns the column parameters that merge rows already produced by
+     * these column parameters into the same result, or null if they
+     * cannot be merged a second time. Ignored columns are no longer
+     * present and the merged row count becomes a sum, which assumes the
+     * parameters do not name more columns than the rows have. Averages,
+     * diffs, toppers and numeric arguments depend on seeing every row.
+     */
+    public static String combinedArgs(CharSequence args) {
+        StringBuilder combined = new StringBuilder(args.length());
+        boolean mergeCount = false;
+        for (int i = 0; i < args.length(); i++) {
+            char ch = args.charAt(i);
+            switch (ch) {
+                case ',':
+                case 'i':
+                    break;
+                case 'j':
+                case 'k':
+                case 'l':
+                case 'm':
+                case 'M':
+                case 's':
+                    combined.append(ch);
+                    break;
+                case 'u':
+                    mergeCount = true;
+                    break;
+                default:
+                    return null;
+            }
+        }
+        if (mergeCount) {
+            combined.append('s');
+        }
+        return combined.toString();
+    }
+
     public String handleBindAndGetKey(Bundle row, ListBundleFormat format) {
         String key = "";
         int i = 0;
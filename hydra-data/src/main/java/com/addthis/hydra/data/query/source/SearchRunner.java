@@ -17,6 +17,7 @@ package com.addthis.hydra.data.query.source;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -49,6 +50,13 @@ class SearchRunner implements Runnable {
                     new LinkedBlockingQueue<Runnable>(),
                     new ThreadFactoryBuilder().setNameFormat("querySearch-%d").build()), 5, TimeUnit.SECONDS);
 
+    /**
+     * Permits for the subtree searches of queries that ask for a parallel search.
+     * A query only takes the permits that are free when it starts.
+     */
+    static final Semaphore parallelSearchGate = new Semaphore(
+            Parameter.intValue("meshQuerySource.parallelSearchPermits", Runtime.getRuntime().availableProcessors()));
+
 
     private final Map<String, String> options;
     private final String goldDirString;
@@ -169,7 +177,7 @@ class SearchRunner implements Runnable {
      */
     protected void search() {
         final long searchStartTime = System.currentTimeMillis();
-        finalEng.search(query, queryOpProcessor, bridge.getQueryStatusObserver());
+        finalEng.search(query, queryOpProcessor, bridge.getQueryStatusObserver(), parallelSearchGate);
         queryOpProcessor.sendComplete();
         final long searchDuration = System.currentTimeMillis() - searchStartTime;
         if (log.isDebugEnabled() || query.isTraced()) {
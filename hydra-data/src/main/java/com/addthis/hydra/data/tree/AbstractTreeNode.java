@@ -8,13 +8,14 @@ import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
 
 import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 public abstract class AbstractTreeNode implements DataTreeNode, Codec.SuperCodable, Codec.ConcurrentCodable, Codec.BytesCodable {
 
     @Codec.Set(codable = true)
-    protected long hits;
+    protected volatile long hits;
     @Codec.Set(codable = true)
     protected int nodes;
     @Codec.Set(codable = true)
@@ -25,33 +26,72 @@ public abstract class AbstractTreeNode implements DataTreeNode, Codec.SuperCodab
     @Codec.Set(codable = true)
     protected HashMap<String, TreeNodeData> data;
 
+    /**
+     * Attachment dictionary of the tree. Null if the
+     * attachments are written with their full names.
+     */
+    protected TreeNodeDataSchema schema;
+
+    /**
+     * Attachments of a decoded node that have not been requested yet,
+     * in their encoded form. Null once they are decoded into {@code data}.
+     */
+    private volatile byte[] encodedData;
+
+    private long encodedDataVersion;
+
+    /**
+     * The codec reads the {@code data} field directly.
+     */
+    @Override
+    public void preEncode() {
+        decodeData();
+    }
 
     @Override
     public byte[] bytesEncode(long version) {
-        preEncode();
+        // preEncode() is not called since attachments that were never decoded are copied as they are
         if (!encodeLock()) {
             throw new RuntimeException("Unable to acquire encoding lock");
         }
         byte[] returnBytes;
         ByteBuf b = PooledByteBufAllocator.DEFAULT.buffer();
         try {
-            Varint.writeUnsignedVarLong(hits, b);
+            Varint.writeUnsignedVarLong(getCounter(), b);
             Varint.writeSignedVarInt(nodedb == null ? -1 : nodedb, b);
-            if (data != null && data.size() > 0) {
+            byte[] encoded = encodedData;
+            if (encoded != null && encodedDataVersion != version) {
+                decodeData();
+                encoded = null;
+            }
+            if (encoded != null) {
+                b.writeBytes(encoded);
+            } else if (data != null && data.size() > 0) {
                 int numAttachments = data.size();
-                Varint.writeSignedVarInt(numAttachments, b);
-                for (Map.Entry<String, TreeNodeData> entry : data.entrySet()) {
+                if (schema != null && schema.encodes()) {
+                    // negative counts below -1 mark attachments that are written with the schema
+                    Varint.writeSignedVarInt(-2 - numAttachments, b);
+                    for (Map.Entry<String, TreeNodeData> entry : data.entrySet()) {
+                        Varint.writeUnsignedVarInt(schema.idOf(entry.getKey(), entry.getValue()), b);
+                        byte[] bytes = entry.getValue().bytesEncode(version);
+                        Varint.writeUnsignedVarInt(bytes.length, b);
+                        b.writeBytes(bytes);
+                    }
+                } else {
+                    Varint.writeSignedVarInt(numAttachments, b);
+                    for (Map.Entry<String, TreeNodeData> entry : data.entrySet()) {
 
-                    byte[] keyBytes = entry.getKey().getBytes(Charset.forName("UTF-8"));
-                    Varint.writeUnsignedVarInt(keyBytes.length, b);
-                    b.writeBytes(keyBytes);
-                    String classInfo = CodecBin2.getClassFieldMap(entry.getValue().getClass()).getClassName(entry.getValue());
-                    byte[] classNameBytes = classInfo.getBytes(Charset.forName("UTF-8"));
-                    Varint.writeUnsignedVarInt(classNameBytes.length, b);
-                    b.writeBytes(classNameBytes);
-                    byte[] bytes = entry.getValue().bytesEncode(version);
-                    Varint.writeUnsignedVarInt(bytes.length, b);
-                    b.writeBytes(bytes);
+                        byte[] keyBytes = entry.getKey().getBytes(Charset.forName("UTF-8"));
+                        Varint.writeUnsignedVarInt(keyBytes.length, b);
+                        b.writeBytes(keyBytes);
+                        String classInfo = CodecBin2.getClassFieldMap(entry.getValue().getClass()).getClassName(entry.getValue());
+                        byte[] classNameBytes = classInfo.getBytes(Charset.forName("UTF-8"));
+                        Varint.writeUnsignedVarInt(classNameBytes.length, b);
+                        b.writeBytes(classNameBytes);
+                        byte[] bytes = entry.getValue().bytesEncode(version);
+                        Varint.writeUnsignedVarInt(bytes.length, b);
+                        b.writeBytes(bytes);
+                    }
                 }
             } else {
                 Varint.writeSignedVarInt(-1, b);
@@ -77,9 +117,89 @@ public abstract class AbstractTreeNode implements DataTreeNode, Codec.SuperCodab
         try {
             hits = Varint.readUnsignedVarLong(buf);
             nodedb = Varint.readSignedVarInt(buf);
+            int start = buf.readerIndex();
+            if (skipAttachments(buf)) {
+                encodedData = Arrays.copyOfRange(b, start, buf.readerIndex());
+                encodedDataVersion = version;
+            }
+            if (nodedb > 0) {
+                nodes = Varint.readUnsignedVarInt(buf);
+                bits = Varint.readUnsignedVarInt(buf);
+            } else {
+                nodedb = null;
+            }
+            postDecode();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            buf.release();
+        }
+    }
+
+    /**
+     * Advance past the encoded attachments. Returns
+     * false if the node has no attachments.
+     */
+    private static boolean skipAttachments(ByteBuf buf) {
+        int numAttachments = Varint.readSignedVarInt(buf);
+        if (numAttachments < -1) {
+            numAttachments = -2 - numAttachments;
+            for (int i = 0; i < numAttachments; i++) {
+                Varint.readUnsignedVarInt(buf);
+                buf.skipBytes(Varint.readUnsignedVarInt(buf));
+            }
+        } else if (numAttachments > 0) {
+            for (int i = 0; i < numAttachments; i++) {
+                int kl = Varint.readUnsignedVarInt(buf);
+                if (kl == 0) {
+                    continue;
+                }
+                buf.skipBytes(kl);
+                buf.skipBytes(Varint.readUnsignedVarInt(buf));
+                buf.skipBytes(Varint.readUnsignedVarInt(buf));
+            }
+        }
+        return numAttachments > 0;
+    }
+
+    /**
+     * Returns the attachments, decoding them first if they were deferred
+     * by {@link #bytesDecode(byte[], long)}. Must be called before the
+     * {@code data} field is used.
+     */
+    protected final HashMap<String, TreeNodeData> decodeData() {
+        if (encodedData != null) {
+            synchronized (this) {
+                byte[] encoded = encodedData;
+                if (encoded != null) {
+                    data = decodeAttachments(Unpooled.wrappedBuffer(encoded), encodedDataVersion);
+                    for (TreeNodeData actor : data.values()) {
+                        actor.setBoundNode(this);
+                    }
+                    encodedData = null;
+                }
+            }
+        }
+        return data;
+    }
+
+    private HashMap<String, TreeNodeData> decodeAttachments(ByteBuf buf, long version) {
+        try {
             int numAttachments = Varint.readSignedVarInt(buf);
-            if (numAttachments > 0) {
-                HashMap<String, TreeNodeData> dataMap = new HashMap<>();
+            HashMap<String, TreeNodeData> dataMap = new HashMap<>();
+            if (numAttachments < -1) {
+                if (schema == null) {
+                    throw new IllegalStateException("node attachments require the tree attachment schema");
+                }
+                numAttachments = -2 - numAttachments;
+                for (int i = 0; i < numAttachments; i++) {
+                    TreeNodeDataSchema.Entry entry = schema.get(Varint.readUnsignedVarInt(buf));
+                    TreeNodeData tn = entry.newInstance();
+                    int vl = Varint.readUnsignedVarInt(buf);
+                    tn.bytesDecode(buf.readBytes(vl).array(), version);
+                    dataMap.put(entry.key, tn);
+                }
+            } else {
                 for (int i = 0; i < numAttachments; i++) {
                     int kl = Varint.readUnsignedVarInt(buf);
                     if (kl == 0) {
@@ -93,15 +213,10 @@ public abstract class AbstractTreeNode implements DataTreeNode, Codec.SuperCodab
                     tn.bytesDecode(buf.readBytes(vl).array(), version);
                     dataMap.put(key, tn);
                 }
-                data = dataMap;
-            }
-            if (nodedb > 0) {
-                nodes = Varint.readUnsignedVarInt(buf);
-                bits = Varint.readUnsignedVarInt(buf);
-            } else {
-                nodedb = null;
             }
-            postDecode();
+            return dataMap;
+        } catch (RuntimeException e) {
+            throw e;
         } catch (Exception e) {
             throw new RuntimeException(e);
         } finally {
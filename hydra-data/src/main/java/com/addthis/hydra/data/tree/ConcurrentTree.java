@@ -31,6 +31,7 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.addthis.basis.concurrentlinkedhashmap.EvictionMediator;
 import com.addthis.basis.concurrentlinkedhashmap.MediatedEvictionConcurrentHashMap;
@@ -47,8 +48,10 @@ import com.addthis.hydra.store.db.DBKey;
 import com.addthis.hydra.store.db.IPageDB;
 import com.addthis.hydra.store.db.IPageDB.Range;
 import com.addthis.hydra.store.db.PageDB;
+import com.addthis.hydra.store.kv.ByteStoreType;
 import com.addthis.hydra.store.kv.PagedKeyValueStore;
 import com.addthis.hydra.store.skiplist.Page;
+import com.addthis.hydra.store.skiplist.PageCompression;
 import com.addthis.hydra.store.skiplist.PageFactory;
 import com.addthis.hydra.store.skiplist.SkipListCache;
 import com.addthis.hydra.store.util.MeterFileLogger;
@@ -56,6 +59,7 @@ import com.addthis.hydra.store.util.MeterFileLogger.MeterDataSource;
 import com.addthis.hydra.store.util.NamedThreadFactory;
 import com.addthis.hydra.store.util.Raw;
 
+import com.google.common.base.Supplier;
 import com.google.common.util.concurrent.AtomicDouble;
 
 import com.yammer.metrics.Metrics;
@@ -99,16 +103,20 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
     private final File root;
     private final File idFile;
     private final IPageDB<DBKey, ConcurrentTreeNode> source;
+    private final TreeNodeDataSchema dataSchema;
     private final ConcurrentTreeNode treeRootNode;
     private final ConcurrentTreeNode treeTrashNode;
     private final AtomicInteger nextDBID;
     private final AtomicBoolean closed = new AtomicBoolean(false);
     private final Meter<METERTREE> meter;
+    private final AtomicLong nodeCacheHits = new AtomicLong();
+    private final AtomicLong nodeCacheMisses = new AtomicLong();
     private final MeterFileLogger logger;
     private final AtomicDouble cacheHitRate = new AtomicDouble(0.0);
     private final boolean meterLoggerEnabled = true;
     private final MediatedEvictionConcurrentHashMap<CacheKey, ConcurrentTreeNode> cache;
     private final ScheduledExecutorService deletionThreadPool;
+    private final TreeMemoryController memoryController;
 
     @GuardedBy("treeTrashNode")
     private Range<DBKey, ConcurrentTreeNode> trashIterator;
@@ -154,8 +162,14 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
         protected int numDeletionThreads = defaultNumDeletionThreads;
         protected int cleanQSize = TreeCommonParameters.cleanQMax;
         protected int maxCache = TreeCommonParameters.maxCacheSize;
+        protected long cacheMem = TreeCommonParameters.maxCacheMem;
         protected int maxPageSize = TreeCommonParameters.maxPageSize;
         protected PageFactory pageFactory = Page.DefaultPageFactory.singleton;
+        protected ByteStoreType storeType = TreeCommonParameters.storeType;
+        protected PageCompression compression = TreeCommonParameters.compression;
+        protected boolean trainDictionary = TreeCommonParameters.trainDictionary;
+        protected long memBudget = TreeCommonParameters.memBudget;
+        protected boolean dataSchema = TreeNodeDataSchema.enabled;
 
         public Builder(File root) {
             this.root = root;
@@ -176,6 +190,11 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
             return this;
         }
 
+        public Builder maxCacheMem(long val) {
+            cacheMem = val;
+            return this;
+        }
+
         public Builder maxPageSize(int val) {
             maxPageSize = val;
             return this;
@@ -186,15 +205,51 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
             return this;
         }
 
+        public Builder storeType(ByteStoreType type) {
+            storeType = type;
+            return this;
+        }
+
+        public Builder compression(PageCompression type) {
+            compression = type;
+            return this;
+        }
+
+        public Builder trainDictionary(boolean train) {
+            trainDictionary = train;
+            return this;
+        }
+
+        /**
+         * If positive then the node cache and the page cache share
+         * this many bytes and are resized as the tree is used.
+         */
+        public Builder memBudget(long bytes) {
+            memBudget = bytes;
+            return this;
+        }
+
+        /**
+         * If true then new and modified nodes encode their attachments
+         * with the attachment dictionary of the tree.
+         */
+        public Builder dataSchema(boolean encode) {
+            dataSchema = encode;
+            return this;
+        }
+
         public ConcurrentTree build() throws Exception {
             return new ConcurrentTree(root, numDeletionThreads, cleanQSize,
-                    maxCache, maxPageSize, pageFactory);
+                    maxCache, cacheMem, maxPageSize, pageFactory, storeType, compression, trainDictionary, memBudget,
+                    dataSchema);
         }
 
     }
 
     private ConcurrentTree(File root, int numDeletionThreads, int cleanQSize, int maxCacheSize,
-            int maxPageSize, PageFactory factory) throws Exception {
+            long maxCacheMem, int maxPageSize, PageFactory factory, ByteStoreType storeType,
+            PageCompression compression, boolean trainDictionary, long memBudget,
+            boolean encodeDataSchema) throws Exception {
         //Only attempt mkdirs if we are not readonly. Theoretically should not be needed, but guarding here
         // prevent logic leak created by transient file detection issues. Regardless, while in readonly, we should
         // certainly not be attempting to create directories.
@@ -217,9 +272,17 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
         } else {
             logger = null;
         }
+        dataSchema = TreeNodeDataSchema.open(root, false, encodeDataSchema);
         source = new PageDB.Builder<>(root, ConcurrentTreeNode.class, maxPageSize, maxCacheSize)
-                .pageFactory(factory).build();
-        source.setCacheMem(TreeCommonParameters.maxCacheMem);
+                .valueFactory(new Supplier<ConcurrentTreeNode>() {
+                    @Override
+                    public ConcurrentTreeNode get() {
+                        return new ConcurrentTreeNode(dataSchema);
+                    }
+                })
+                .pageFactory(factory).storeType(storeType).compression(compression)
+                .trainDictionary(trainDictionary).build();
+        source.setCacheMem(maxCacheMem);
         source.setPageMem(TreeCommonParameters.maxPageMem);
         source.setMemSampleInterval(TreeCommonParameters.memSample);
         // create cache
@@ -250,6 +313,12 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
                     deletionThreadSleepMillis,
                     TimeUnit.MILLISECONDS);
         }
+        if (memBudget > 0) {
+            memoryController = new TreeMemoryController(this, scope, memBudget, cleanQSize);
+            memoryController.start();
+        } else {
+            memoryController = null;
+        }
 
         long openTime = System.currentTimeMillis() - start;
         log.info("dir=" + root +
@@ -260,8 +329,10 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
 
     public ConcurrentTree(File root) throws Exception {
         this(root, defaultNumDeletionThreads, TreeCommonParameters.cleanQMax,
-                TreeCommonParameters.maxCacheSize, TreeCommonParameters.maxPageSize,
-                Page.DefaultPageFactory.singleton);
+                TreeCommonParameters.maxCacheSize, TreeCommonParameters.maxCacheMem,
+                TreeCommonParameters.maxPageSize, Page.DefaultPageFactory.singleton, TreeCommonParameters.storeType,
+                TreeCommonParameters.compression, TreeCommonParameters.trainDictionary,
+                TreeCommonParameters.memBudget, TreeNodeDataSchema.enabled);
     }
 
     private class CacheMediator implements EvictionMediator<CacheKey, ConcurrentTreeNode> {
@@ -479,6 +550,10 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
         return treeRootNode;
     }
 
+    TreeNodeDataSchema getDataSchema() {
+        return dataSchema;
+    }
+
     /**
      * Package-level visibility is for testing purposes only.
      */
@@ -531,6 +606,28 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
         return cache.size();
     }
 
+    /**
+     * Change the number of nodes that the node cache may hold.
+     */
+    void setNodeCacheCapacity(long capacity) {
+        cache.setCapacity(capacity);
+    }
+
+    long getNodeCacheCapacity() {
+        return cache.capacity();
+    }
+
+    PagedKeyValueStore<DBKey, ConcurrentTreeNode> getPageStore() {
+        return source.getEps();
+    }
+
+    /**
+     * Returns the controller that sizes the caches or null if the sizes are fixed.
+     */
+    TreeMemoryController getMemoryController() {
+        return memoryController;
+    }
+
     @Override
     public double getCacheHitRate() {
         if (logger == null) {
@@ -554,6 +651,12 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
         if (log.isDebugEnabled()) {
             log.debug("closing " + this);
         }
+        if (memoryController != null) {
+            memoryController.close();
+        }
+        // the scope is unique to this tree so its gauges would never be reused
+        Metrics.defaultRegistry().removeMetric(SkipListCache.class, "treeTrashNodeCount", scope);
+        Metrics.defaultRegistry().removeMetric(SkipListCache.class, "treeTrashHitsCount", scope);
         try {
             waitOnDeletions();
         } catch (Exception e) {
@@ -611,10 +714,27 @@ public final class ConcurrentTree implements DataTree, MeterDataSource {
 
     protected void reportCacheHit() {
         meter.inc(METERTREE.CACHE_HIT);
+        nodeCacheHits.incrementAndGet();
     }
 
     protected void reportCacheMiss() {
         meter.inc(METERTREE.CACHE_MISS);
+        nodeCacheMisses.incrementAndGet();
+    }
+
+    /**
+     * Number of node cache lookups that found the node since the tree was opened.
+     * Unlike the meter these counts are never reset.
+     */
+    long getNodeCacheHits() {
+        return nodeCacheHits.get();
+    }
+
+    /**
+     * Number of node cache lookups that missed since the tree was opened.
+     */
+    long getNodeCacheMisses() {
+        return nodeCacheMisses.get();
     }
 
     protected static class CacheKey {
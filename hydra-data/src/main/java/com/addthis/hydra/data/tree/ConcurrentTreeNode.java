@@ -15,6 +15,7 @@ package com.addthis.hydra.data.tree;
 
 import com.addthis.basis.util.ClosableIterator;
 import com.addthis.basis.util.MemoryCounter.Mem;
+import com.addthis.hydra.data.util.StripedLong;
 import com.addthis.hydra.store.db.DBKey;
 import com.addthis.hydra.store.db.IPageDB.Range;
 
@@ -28,6 +29,7 @@ import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -59,6 +61,7 @@ public class ConcurrentTreeNode extends AbstractTreeNode {
             }
         };
         node.tree = tree;
+        node.schema = tree.getDataSchema();
         node.leases.incrementAndGet();
         node.nodedb = 1;
         return node;
@@ -70,6 +73,13 @@ public class ConcurrentTreeNode extends AbstractTreeNode {
     public ConcurrentTreeNode() {
     }
 
+    /**
+     * Creates a node that is about to be decoded by the tree.
+     */
+    ConcurrentTreeNode(TreeNodeDataSchema schema) {
+        this.schema = schema;
+    }
+
     protected void initIfDecoded(ConcurrentTree tree, DBKey key, String name) {
         if (decoded.get()) {
             synchronized (initLock) {
@@ -85,6 +95,7 @@ public class ConcurrentTreeNode extends AbstractTreeNode {
 
     protected void init(ConcurrentTree tree, DBKey key, String name) {
         this.tree = tree;
+        this.schema = tree.getDataSchema();
         this.dbkey = key;
         this.name = name;
     }
@@ -98,6 +109,15 @@ public class ConcurrentTreeNode extends AbstractTreeNode {
     @Mem(estimate = false, size = 64)
     private ReadWriteLock lock = new ReentrantReadWriteLock();
 
+    /**
+     * Created the first time that two threads increment the hit count at once
+     * and dropped when the node is encoded. Estimated by walking its cells.
+     */
+    private volatile StripedLong contendedHits;
+
+    private static final AtomicLongFieldUpdater<AbstractTreeNode> hitsUpdater =
+            AtomicLongFieldUpdater.newUpdater(AbstractTreeNode.class, "hits");
+
     private AtomicBoolean decoded = new AtomicBoolean(false);
     private AtomicBoolean initOnce = new AtomicBoolean(false);
     private final Object initLock = new Object();
@@ -116,7 +136,7 @@ public class ConcurrentTreeNode extends AbstractTreeNode {
 
     @SuppressWarnings("unchecked")
     public Map<String, TreeNodeData> getDataMap() {
-        return data;
+        return decodeData();
     }
 
     public boolean hasNodes() {
@@ -374,6 +394,7 @@ public class ConcurrentTreeNode extends AbstractTreeNode {
     }
 
     HashMap<String, TreeNodeData> createMap() {
+        decodeData();
         if (data == null) {
             data = new HashMap<>();
         }
@@ -392,36 +413,72 @@ public class ConcurrentTreeNode extends AbstractTreeNode {
         requireEditable();
         boolean updated = false;
         HashMap<String, TreeDataParameters> dataconf = path.dataConfig();
-        lock.writeLock().lock();
-        try {
-            if (path.countHits()) {
-                hits += state.getCountValue();
-                updated = true;
-            }
-            if (dataconf != null) {
-                if (data == null) {
-                    data = new HashMap<>(dataconf.size());
+        if (path.countHits()) {
+            incrementCounter(state.getCountValue());
+            updated = true;
+        }
+        if (dataconf != null) {
+            boolean done = false;
+            lock.readLock().lock();
+            try {
+                if (concurrentData(dataconf)) {
+                    for (Entry<String, TreeDataParameters> el : dataconf.entrySet()) {
+                        if (data.get(el.getKey()).updateChildData(state, this, el.getValue())) {
+                            updated = true;
+                        }
+                    }
+                    done = true;
                 }
-                for (Entry<String, TreeDataParameters> el : dataconf.entrySet()) {
-                    TreeNodeData tnd = data.get(el.getKey());
-                    if (tnd == null) {
-                        tnd = el.getValue().newInstance(this);
-                        data.put(el.getKey(), tnd);
-                        updated = true;
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (!done) {
+                lock.writeLock().lock();
+                try {
+                    decodeData();
+                    if (data == null) {
+                        data = new HashMap<>(dataconf.size());
                     }
-                    if (tnd.updateChildData(state, this, el.getValue())) {
-                        updated = true;
+                    for (Entry<String, TreeDataParameters> el : dataconf.entrySet()) {
+                        TreeNodeData tnd = data.get(el.getKey());
+                        if (tnd == null) {
+                            tnd = el.getValue().newInstance(this);
+                            data.put(el.getKey(), tnd);
+                            updated = true;
+                        }
+                        if (tnd.updateChildData(state, this, el.getValue())) {
+                            updated = true;
+                        }
                     }
+                } finally {
+                    lock.writeLock().unlock();
                 }
             }
-        } finally {
-            lock.writeLock().unlock();
         }
         if (updated) {
             changed.set(true);
         }
     }
 
+    /**
+     * Returns true if all the configured attachments exist and may be
+     * updated while holding only the read lock.
+     * Precondition: the read lock is held
+     */
+    private boolean concurrentData(HashMap<String, TreeDataParameters> dataconf) {
+        decodeData();
+        if (data == null) {
+            return false;
+        }
+        for (String key : dataconf.keySet()) {
+            TreeNodeData tnd = data.get(key);
+            if (tnd == null || !tnd.concurrentUpdates()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * @return true if data was changed
      */
@@ -430,7 +487,7 @@ public class ConcurrentTreeNode extends AbstractTreeNode {
         List<TreeNodeDataDeferredOperation> deferredOps = null;
         lock.writeLock().lock();
         try {
-            if (child != null && data != null) {
+            if (child != null && decodeData() != null) {
                 deferredOps = new ArrayList<>(1);
                 for (TreeNodeData<?> tnd : data.values()) {
                     if (isnew && tnd.updateParentNewChild(state, this, child, deferredOps)) {
@@ -456,6 +513,7 @@ public class ConcurrentTreeNode extends AbstractTreeNode {
     public DataTreeNodeActor getData(String key) {
         lock.readLock().lock();
         try {
+            decodeData();
             return data != null ? data.get(key) : null;
         } finally {
             lock.readLock().unlock();
@@ -467,6 +525,7 @@ public class ConcurrentTreeNode extends AbstractTreeNode {
     public Collection<String> getDataFields() {
         lock.readLock().lock();
         try {
+            decodeData();
             if (data == null || data.size() == 0) {
                 return null;
             }
@@ -481,6 +540,18 @@ public class ConcurrentTreeNode extends AbstractTreeNode {
         return nodes;
     }
 
+    @Override
+    public void preEncode() {
+        foldHits();
+        super.preEncode();
+    }
+
+    @Override
+    public byte[] bytesEncode(long version) {
+        foldHits();
+        return super.bytesEncode(version);
+    }
+
     @Override
     public void postDecode() {
         decoded.set(true);
@@ -491,10 +562,6 @@ public class ConcurrentTreeNode extends AbstractTreeNode {
         }
     }
 
-    @Override
-    public void preEncode() {
-    }
-
     /**
      * TODO warning: not thread safe. sync around next(), hasNext() when
      * concurrency is required.
@@ -614,32 +681,78 @@ public class ConcurrentTreeNode extends AbstractTreeNode {
     }
 
     /**
-     * The synchronized methods protecting the {@code counter} field
-     * is a code smell. This should probably be protected by the
-     * encoding reader/writer {@code lock} field. There is an invariant
-     * for the page storage system that the encoding (write) locks of two nodes
-     * cannot be held simultaneously and switching to the encoding lock
-     * for these methods may violate the invariant.
+     * The hit count is updated with a compare-and-set on {@code hits}.
+     * Once that fails because several threads are updating the node the
+     * increments are spread over {@link #contendedHits} instead, which is
+     * folded back into {@code hits} and dropped when the node is encoded.
      */
 
     @Override
-    public synchronized long getCounter() {
-        return hits;
+    public long getCounter() {
+        StripedLong cells = contendedHits;
+        return hits + (cells != null ? cells.sum() : 0);
     }
 
     @Override
-    public synchronized void incrementCounter() {
-        hits++;
+    public void incrementCounter() {
+        incrementCounter(1);
     }
 
     @Override
-    public synchronized long incrementCounter(long val) {
-        hits += val;
-        return hits;
+    public long incrementCounter(long val) {
+        while (true) {
+            StripedLong cells = contendedHits;
+            if (cells == null) {
+                long current = hits;
+                if (hitsUpdater.compareAndSet(this, current, current + val)) {
+                    return current + val;
+                }
+                cells = inflateHits();
+            }
+            if (cells.add(val)) {
+                return getCounter();
+            }
+            // the cells were folded into hits, retry on hits
+        }
     }
 
+    /**
+     * Not atomic with respect to concurrent increments.
+     */
     @Override
-    public synchronized void setCounter(long val) {
+    public void setCounter(long val) {
+        StripedLong cells = contendedHits;
+        if (cells != null) {
+            cells.drain();
+        }
         hits = val;
     }
+
+    private StripedLong inflateHits() {
+        synchronized (initLock) {
+            if (contendedHits == null) {
+                contendedHits = new StripedLong();
+            }
+            return contendedHits;
+        }
+    }
+
+    /**
+     * Move the contended increments into {@code hits} and drop the cells.
+     * Increments that lose the race with the fold retry on {@code hits}.
+     */
+    private void foldHits() {
+        StripedLong cells;
+        synchronized (initLock) {
+            cells = contendedHits;
+            if (cells == null) {
+                return;
+            }
+            contendedHits = null;
+        }
+        long delta = cells.seal();
+        if (delta != 0) {
+            hitsUpdater.addAndGet(this, delta);
+        }
+    }
 }
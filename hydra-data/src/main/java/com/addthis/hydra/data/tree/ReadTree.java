@@ -32,6 +32,7 @@ import com.addthis.hydra.store.db.ReadPageDB;
 import com.addthis.hydra.store.kv.ReadExternalPagedStore;
 import com.addthis.hydra.store.util.Raw;
 
+import com.google.common.base.Supplier;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
@@ -83,13 +84,23 @@ public final class ReadTree implements DataTree {
     private final LoadingCache<CacheKey, ReadTreeNode> loadingNodeCache;
     private final AtomicBoolean closed = new AtomicBoolean(false);
     private final boolean metrics;
+    private final int shares;
 
     public ReadTree(File root) throws Exception {
         this(root, false);
     }
 
     public ReadTree(File root, boolean metrics) throws Exception {
+        this(root, metrics, 1);
+    }
+
+    /**
+     * @param shares number of trees that share the configured cache sizes. Each
+     *               of them gets this fraction of the node and page caches.
+     */
+    ReadTree(File root, boolean metrics, int shares) throws Exception {
         this.metrics = metrics;
+        this.shares = Math.max(1, shares);
 
         if (!root.isDirectory()) {
             throw new IOException("Unable to open root directory '" + root + "'");
@@ -101,7 +112,7 @@ public final class ReadTree implements DataTree {
             if (nodeCacheWeight != 0) {
                 // limit by weight
                 loadingNodeCache = CacheBuilder.newBuilder()
-                        .maximumWeight(nodeCacheWeight)
+                        .maximumWeight(share(nodeCacheWeight))
                         .weigher(new Weigher<CacheKey, ReadTreeNode>() {
                             @Override
                             public int weigh(CacheKey key, ReadTreeNode value) {
@@ -129,7 +140,7 @@ public final class ReadTree implements DataTree {
             } else {
                 // Limit by the number of nodes
                 loadingNodeCache = CacheBuilder.newBuilder()
-                        .maximumSize(nodeCacheSize)
+                        .maximumSize(share(nodeCacheSize))
                         .build(
                                 new CacheLoader<CacheKey, ReadTreeNode>() {
                                     public ReadTreeNode load(CacheKey key) throws Exception {
@@ -153,6 +164,13 @@ public final class ReadTree implements DataTree {
         }
     }
 
+    /**
+     * This tree's share of a cache size. Zero keeps its meaning of unlimited or unweighted.
+     */
+    private int share(int size) {
+        return size > 0 ? Math.max(1, size / shares) : size;
+    }
+
     /**
      * Creates the ReadPageDB source object and also emits some timing metrics for that operation.
      *
@@ -162,9 +180,15 @@ public final class ReadTree implements DataTree {
     private ReadPageDB<ReadTreeNode> initSource() throws Exception {
         long start = System.currentTimeMillis();
 
+        final TreeNodeDataSchema schema = TreeNodeDataSchema.open(root, true);
         //open page db (opens byte store and bdb as well)
         ReadPageDB<ReadTreeNode> source = new ReadPageDB<>(root, ReadTreeNode.class,
-                pageCacheSize, pageCacheWeight, metrics);
+                new Supplier<ReadTreeNode>() {
+                    @Override
+                    public ReadTreeNode get() {
+                        return new ReadTreeNode(schema);
+                    }
+                }, share(pageCacheSize), share(pageCacheWeight), metrics);
 
         long openTime = System.currentTimeMillis() - start;
         log.info("dir=" + root + " openms=" + openTime);
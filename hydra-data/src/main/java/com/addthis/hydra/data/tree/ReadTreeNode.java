@@ -37,6 +37,13 @@ public class ReadTreeNode extends AbstractTreeNode implements IReadWeighable {
     public ReadTreeNode() {
     }
 
+    /**
+     * Creates a node that is about to be decoded by the tree.
+     */
+    ReadTreeNode(TreeNodeDataSchema schema) {
+        this.schema = schema;
+    }
+
     public ReadTreeNode(String name, int weight) {
         this.name = name;
         setWeight(weight);
@@ -76,7 +83,8 @@ public class ReadTreeNode extends AbstractTreeNode implements IReadWeighable {
         tn.nodes = nodes;
         tn.nodedb = nodedb;
         tn.bits = bits;
-        tn.data = data;
+        tn.data = decodeData();
+        tn.schema = schema;
         tn.tree = tree;
         return tn;
     }
@@ -163,12 +171,13 @@ public class ReadTreeNode extends AbstractTreeNode implements IReadWeighable {
 
     @Override
     public Map<String, TreeNodeData> getDataMap() {
-        return data;
+        return decodeData();
     }
 
     // TODO concurrent broken -- data classes should be responsible for their
     // own get/update sync
     public DataTreeNodeActor getData(String key) {
+        decodeData();
         return data != null ? data.get(key) : null;
     }
 
@@ -186,10 +195,6 @@ public class ReadTreeNode extends AbstractTreeNode implements IReadWeighable {
         }
     }
 
-    @Override
-    public void preEncode() {
-    }
-
     @Override
     public void setWeight(int weight) {
         bits = weight;
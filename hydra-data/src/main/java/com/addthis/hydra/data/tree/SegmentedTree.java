@@ -0,0 +1,980 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.tree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.addthis.basis.util.ClosableIterator;
+import com.addthis.basis.util.Files;
+import com.addthis.basis.util.Parameter;
+
+import com.addthis.hydra.store.db.CloseOperation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A tree whose top level nodes, such as time buckets, are each stored
+ * as a separate tree in a segment directory under the tree root.
+ * The root node only lists the segments. Below the top level every
+ * node belongs to the tree of its segment.
+ * <p/>
+ * Expiring a top level node with {@link #expire(String)}, {@link #retain(int)}
+ * or {@link #deleteNode(String)} removes it from the tree at once. Its segment
+ * is closed and its directory dropped, instead of moving the subtree to the
+ * trash of the tree, once the writers that leased the node have released it.
+ * The segment must not be updated while it is expired.
+ * <p/>
+ * Segments are opened when they are first used. A read only tree
+ * opens each segment as a {@link ReadTree} and a writable tree opens
+ * each segment as a {@link ConcurrentTree}. The open segments share the
+ * configured cache sizes, and segments that are idle are closed again.
+ */
+public final class SegmentedTree implements DataTree {
+
+    private static final Logger log = LoggerFactory.getLogger(SegmentedTree.class);
+
+    public static final String SEGMENTS = "segments";
+
+    /**
+     * Prefix of segment directories that are being deleted.
+     */
+    private static final String EXPIRED = "~expired.";
+
+    /**
+     * Segments that may be open at once. Each open segment gets this fraction
+     * of the configured tree caches, and least recently used segments without
+     * leases are closed to stay within it.
+     */
+    static int maxOpenSegments = Math.max(1, Parameter.intValue("hydra.tree.segments.maxOpen", 8));
+
+    /**
+     * Segments without leases that have not been used for this long are closed.
+     */
+    static long idleMillis = Parameter.longValue("hydra.tree.segments.idleMillis", 600000);
+
+    /**
+     * Returns true if the directory holds a segmented tree.
+     */
+    public static boolean isSegmented(File root) {
+        return new File(root, SEGMENTS).isDirectory();
+    }
+
+    private final File segmentDir;
+    private final boolean readOnly;
+    private final NavigableMap<String, Segment> segments = new ConcurrentSkipListMap<>();
+    /**
+     * Expired segments that still have leases, by name.
+     */
+    private final ConcurrentMap<String, Segment> expiring = new ConcurrentHashMap<>();
+    private final ReentrantLock rootLock = new ReentrantLock();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    public SegmentedTree(File root, boolean readOnly) throws IOException {
+        this.readOnly = readOnly;
+        this.segmentDir = new File(root, SEGMENTS);
+        if (!readOnly && !segmentDir.isDirectory() && !segmentDir.mkdirs()) {
+            throw new IOException("Unable to open or create segment directory '" + segmentDir + "'");
+        }
+        File[] dirs = segmentDir.listFiles();
+        if (dirs == null) {
+            throw new IOException("Unable to list segment directory '" + segmentDir + "'");
+        }
+        for (File dir : dirs) {
+            if (!dir.isDirectory()) {
+                continue;
+            }
+            if (dir.getName().startsWith(EXPIRED)) {
+                if (!readOnly) {
+                    Files.deleteDir(dir);
+                }
+                continue;
+            }
+            String bucket = URLDecoder.decode(dir.getName(), "UTF-8");
+            segments.put(bucket, new Segment(bucket, dir));
+        }
+        log.info("[init] dir={} segments={} readOnly={}", segmentDir, segments.size(), readOnly);
+    }
+
+    /**
+     * The directory name of a segment. Names that start with a
+     * dot are escaped so that no segment is named "." or "..".
+     */
+    static String directoryName(String bucket) {
+        try {
+            String name = URLEncoder.encode(bucket, "UTF-8");
+            return name.startsWith(".") ? "%2E" + name.substring(1) : name;
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * A top level node and the tree that holds its subtree.
+     * <p/>
+     * Writers that lease the root of the segment and iterators that are
+     * positioned on it hold a lease on the segment. A segment with leases
+     * is neither closed for being idle nor dropped when it expires; an
+     * expired segment is dropped when its last lease is released.
+     */
+    private final class Segment {
+
+        final String bucket;
+        final File dir;
+        private final AtomicInteger leases = new AtomicInteger();
+        private final CountDownLatch dropped = new CountDownLatch(1);
+        private volatile DataTree tree;
+        private volatile DataTreeNode root;
+        private volatile boolean expired;
+        private volatile long lastUsed;
+
+        Segment(String bucket, File dir) {
+            this.bucket = bucket;
+            this.dir = dir;
+        }
+
+        /**
+         * Returns the root of the segment, opening it if needed,
+         * or null if the segment has expired.
+         */
+        DataTreeNode root() {
+            DataTreeNode node = root;
+            if (node == null) {
+                closeIdleSegments(this);
+                node = open();
+            }
+            lastUsed = System.currentTimeMillis();
+            return node;
+        }
+
+        private synchronized DataTreeNode open() {
+            if (root == null && !expired) {
+                try {
+                    if (readOnly) {
+                        ReadTree readTree = new ReadTree(dir, false, maxOpenSegments);
+                        tree = readTree;
+                        root = new SegmentNode(this, readTree.getRootNode());
+                    } else {
+                        ConcurrentTree writeTree = new ConcurrentTree.Builder(dir)
+                                .cleanQSize(share(TreeCommonParameters.cleanQMax))
+                                .maxCacheSize(share(TreeCommonParameters.maxCacheSize))
+                                .maxCacheMem(share(TreeCommonParameters.maxCacheMem))
+                                .memBudget(share(TreeCommonParameters.memBudget))
+                                .build();
+                        tree = writeTree;
+                        root = new SegmentNode(this, writeTree.getRootNode());
+                    }
+                } catch (Exception ex) {
+                    throw new RuntimeException("unable to open segment " + dir, ex);
+                }
+            }
+            return root;
+        }
+
+        /**
+         * Leases the segment and returns its root, or returns
+         * null if the segment has expired.
+         */
+        DataTreeNode acquire() {
+            while (true) {
+                DataTreeNode node = root();
+                if (node == null) {
+                    return null;
+                }
+                leases.incrementAndGet();
+                if (node == root) {
+                    return node;
+                }
+                // closed or expired after it was opened
+                release();
+            }
+        }
+
+        void release() {
+            if (leases.decrementAndGet() == 0 && expired) {
+                drop();
+            }
+        }
+
+        /**
+         * Returns the tree of the segment or null if it is not open.
+         */
+        DataTree tree() {
+            return tree;
+        }
+
+        long lastUsed() {
+            return lastUsed;
+        }
+
+        /**
+         * Closes the segment if it is open, has no leases and was
+         * last used before the given time. It is opened again when
+         * it is next used.
+         */
+        synchronized boolean closeIfIdle(long usedBefore) {
+            DataTreeNode node = root;
+            if (node == null || expired || closed.get() || leases.get() > 0 || lastUsed >= usedBefore) {
+                return false;
+            }
+            root = null;
+            if (leases.get() > 0) {
+                // acquired before it saw the root cleared
+                root = node;
+                return false;
+            }
+            tree.close(false, CloseOperation.NONE);
+            tree = null;
+            log.debug("[idle] closed segment {}", bucket);
+            return true;
+        }
+
+        /**
+         * Marks the segment as expired. It is dropped now if it
+         * has no leases or else by the release of its last lease.
+         */
+        void expire() {
+            synchronized (this) {
+                expired = true;
+                root = null;
+            }
+            if (leases.get() == 0) {
+                drop();
+            }
+        }
+
+        private synchronized void drop() {
+            if (dropped.getCount() == 0) {
+                return;
+            }
+            try {
+                if (tree != null) {
+                    tree.close(false, CloseOperation.NONE);
+                    tree = null;
+                }
+                File expiredDir = new File(segmentDir, EXPIRED + dir.getName());
+                if (!dir.renameTo(expiredDir)) {
+                    log.warn("[expire] unable to rename {}, deleting in place", dir);
+                    expiredDir = dir;
+                }
+                Files.deleteDir(expiredDir);
+                log.info("[expire] dropped segment {}", bucket);
+            } finally {
+                expiring.remove(bucket, this);
+                dropped.countDown();
+            }
+        }
+
+        /**
+         * Waits until an expired segment has been dropped, so that
+         * its directory can be used by a new segment.
+         */
+        void awaitDropped() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    dropped.await();
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized void sync() throws IOException {
+            if (tree != null) {
+                tree.sync();
+            }
+        }
+
+        synchronized void close(boolean cleanLog, CloseOperation operation) {
+            if (tree != null) {
+                tree.close(cleanLog, operation);
+            }
+        }
+    }
+
+    /**
+     * This segment's share of a cache size. Zero keeps its meaning of unlimited.
+     */
+    private static int share(int size) {
+        return size > 0 ? Math.max(1, size / maxOpenSegments) : size;
+    }
+
+    private static long share(long size) {
+        return size > 0 ? Math.max(1, size / maxOpenSegments) : size;
+    }
+
+    /**
+     * Closes the segments that have been idle for longer than {@link #idleMillis}
+     * and then, while the number of open segments is at {@link #maxOpenSegments},
+     * the least recently used segments without leases.
+     */
+    private void closeIdleSegments(Segment opening) {
+        long now = System.currentTimeMillis();
+        List<Segment> open = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            if (segment != opening && segment.tree() != null && !segment.closeIfIdle(now - idleMillis)) {
+                open.add(segment);
+            }
+        }
+        if (open.size() < maxOpenSegments) {
+            return;
+        }
+        Collections.sort(open, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment a, Segment b) {
+                return Long.compare(a.lastUsed(), b.lastUsed());
+            }
+        });
+        int count = open.size();
+        for (Segment segment : open) {
+            if (count < maxOpenSegments) {
+                break;
+            }
+            if (segment.closeIfIdle(Long.MAX_VALUE)) {
+                count--;
+            }
+        }
+    }
+
+    private DataTreeNode leased(Segment segment) {
+        DataTreeNode node = segment.acquire();
+        if (node != null) {
+            ((ConcurrentTreeNode) ((SegmentNode) node).node).tryLease();
+        }
+        return node;
+    }
+
+    /**
+     * Names of the top level nodes in order.
+     */
+    public List<String> getSegmentNames() {
+        return new ArrayList<>(segments.keySet());
+    }
+
+    /**
+     * Number of segments that are open.
+     */
+    int getOpenSegmentCount() {
+        int open = 0;
+        for (Segment segment : segments.values()) {
+            if (segment.tree() != null) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    /**
+     * Directories of the segments.
+     */
+    public List<File> getSegmentDirectories() {
+        List<File> dirs = new ArrayList<>(segments.size());
+        for (Segment segment : segments.values()) {
+            dirs.add(segment.dir);
+        }
+        return dirs;
+    }
+
+    /**
+     * Remove a top level node by dropping its segment directory.
+     * Returns false if there is no such node.
+     */
+    public boolean expire(String bucket) {
+        if (readOnly) {
+            throw new UnsupportedOperationException();
+        }
+        Segment segment = segments.remove(bucket);
+        if (segment == null) {
+            return false;
+        }
+        expiring.put(bucket, segment);
+        segment.expire();
+        return true;
+    }
+
+    /**
+     * Remove every top level node with a name smaller than the bucket.
+     * Returns the number of nodes removed.
+     */
+    public int expireBefore(String bucket) {
+        int count = 0;
+        for (String name : new ArrayList<>(segments.headMap(bucket, false).keySet())) {
+            if (expire(name)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Keep the top level nodes with the largest names and remove
+     * the others. Returns the number of nodes removed.
+     */
+    public int retain(int count) {
+        int removed = 0;
+        List<String> names = getSegmentNames();
+        for (int i = 0; i < names.size() - count; i++) {
+            if (expire(names.get(i))) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public void close() {
+        close(false, CloseOperation.NONE);
+    }
+
+    @Override
+    public void close(boolean cleanLog, CloseOperation operation) {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        for (Segment segment : segments.values()) {
+            segment.close(cleanLog, operation);
+        }
+        for (Segment segment : expiring.values()) {
+            segment.drop();
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        for (Segment segment : segments.values()) {
+            segment.sync();
+        }
+    }
+
+    @Override
+    public int getDBCount() {
+        int count = 0;
+        for (Segment segment : segments.values()) {
+            DataTree tree = segment.tree();
+            if (tree != null) {
+                count += tree.getDBCount();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int getCacheSize() {
+        int size = 0;
+        for (Segment segment : segments.values()) {
+            DataTree tree = segment.tree();
+            if (tree != null) {
+                size += tree.getCacheSize();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Mean hit rate of the open segments.
+     */
+    @Override
+    public double getCacheHitRate() {
+        double rate = 0;
+        int open = 0;
+        for (Segment segment : segments.values()) {
+            DataTree tree = segment.tree();
+            if (tree != null) {
+                rate += tree.getCacheHitRate();
+                open++;
+            }
+        }
+        return open > 0 ? rate / open : 0;
+    }
+
+    /**
+     * Returns the root of a segment without a lease. The segment can be
+     * closed for being idle or to make room for other segments, or dropped
+     * when it expires, while the node is in use. Use the node only for a
+     * short lookup. Writers should use {@link #getLeasedNode(String)} and
+     * readers should use an iterator, which leases each segment it is on.
+     */
+    @Override
+    public DataTreeNode getNode(String name) {
+        Segment segment = segments.get(name);
+        return segment != null ? segment.root() : null;
+    }
+
+    @Override
+    public DataTreeNode getLeasedNode(String name) {
+        if (readOnly) {
+            throw new UnsupportedOperationException();
+        }
+        Segment segment = segments.get(name);
+        return segment != null ? leased(segment) : null;
+    }
+
+    @Override
+    public DataTreeNode getOrCreateNode(String name, DataTreeNodeInitializer init) {
+        if (readOnly) {
+            throw new UnsupportedOperationException();
+        }
+        Segment segment = segments.get(name);
+        DataTreeNode node = segment != null ? leased(segment) : null;
+        if (node != null) {
+            return node;
+        }
+        rootLock.lock();
+        try {
+            segment = segments.get(name);
+            node = segment != null ? leased(segment) : null;
+            if (node != null) {
+                return node;
+            }
+            Segment previous = expiring.get(name);
+            if (previous != null) {
+                previous.awaitDropped();
+            }
+            segment = new Segment(name, new File(segmentDir, directoryName(name)));
+            node = segment.acquire();
+            if (init != null) {
+                init.onNewNode(node);
+            }
+            segments.put(name, segment);
+            ((ConcurrentTreeNode) ((SegmentNode) node).node).tryLease();
+            return node;
+        } finally {
+            rootLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean deleteNode(String node) {
+        return expire(node);
+    }
+
+    @Override
+    public ClosableIterator<DataTreeNode> getIterator() {
+        return new SegmentIterator(segments.values().iterator());
+    }
+
+    @Override
+    public ClosableIterator<DataTreeNode> getIterator(String prefix) {
+        if (prefix == null || prefix.isEmpty()) {
+            return new SegmentIterator(new ArrayList<Segment>().iterator());
+        }
+        // the same prefix range as ConcurrentTreeNode#getNodeIterator(String)
+        StringBuilder sb = new StringBuilder(prefix.substring(0, prefix.length() - 1));
+        sb.append((char) (prefix.charAt(prefix.length() - 1) + 1));
+        return getIterator(prefix, sb.toString());
+    }
+
+    @Override
+    public ClosableIterator<DataTreeNode> getIterator(String from, String to) {
+        NavigableMap<String, Segment> range;
+        if (from != null && to != null) {
+            range = segments.subMap(from, true, to, false);
+        } else if (from != null) {
+            range = segments.tailMap(from, true);
+        } else if (to != null) {
+            range = segments.headMap(to, false);
+        } else {
+            range = segments;
+        }
+        return new SegmentIterator(range.values().iterator());
+    }
+
+    @Override
+    public Iterator<DataTreeNode> iterator() {
+        return getIterator();
+    }
+
+    @Override
+    public String getName() {
+        return "root";
+    }
+
+    @Override
+    public DataTree getTreeRoot() {
+        return this;
+    }
+
+    @Override
+    public int getNodeCount() {
+        return segments.size();
+    }
+
+    /**
+     * The root does not store hits. Returns the sum of the top level nodes.
+     */
+    @Override
+    public long getCounter() {
+        long hits = 0;
+        for (Segment segment : segments.values()) {
+            DataTreeNode node = segment.acquire();
+            if (node != null) {
+                try {
+                    hits += node.getCounter();
+                } finally {
+                    segment.release();
+                }
+            }
+        }
+        return hits;
+    }
+
+    @Override
+    public void incrementCounter() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long incrementCounter(long val) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void writeLock() {
+        rootLock.lock();
+    }
+
+    @Override
+    public void writeUnlock() {
+        rootLock.unlock();
+    }
+
+    @Override
+    public void setCounter(long val) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * The root has no attachments.
+     */
+    @Override
+    public void updateChildData(DataTreeNodeUpdater state, TreeDataParent path) {
+    }
+
+    /**
+     * The root has no attachments.
+     */
+    @Override
+    public void updateParentData(DataTreeNodeUpdater state, DataTreeNode child, boolean isnew) {
+    }
+
+    @Override
+    public boolean aliasTo(DataTreeNode target) {
+        throw new RuntimeException("root node cannot be an alias");
+    }
+
+    @Override
+    public void lease() {
+    }
+
+    @Override
+    public void release() {
+    }
+
+    @Override
+    public DataTreeNodeActor getData(String key) {
+        return null;
+    }
+
+    @Override
+    public Map<String, TreeNodeData> getDataMap() {
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "SegmentedTree[" + segmentDir + ",segments=" + segments.size() + "]";
+    }
+
+    /**
+     * Iterates over segments and holds a lease on the segment of the
+     * node it last returned until it moves on or is closed.
+     */
+    private static final class SegmentIterator implements ClosableIterator<DataTreeNode> {
+
+        private final Iterator<Segment> segments;
+        private Segment current;
+        private Segment nextSegment;
+        private DataTreeNode nextNode;
+
+        SegmentIterator(Iterator<Segment> segments) {
+            this.segments = segments;
+        }
+
+        private void advance() {
+            while (nextNode == null && segments.hasNext()) {
+                Segment segment = segments.next();
+                DataTreeNode node = segment.acquire();
+                if (node != null) {
+                    nextSegment = segment;
+                    nextNode = node;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            advance();
+            return nextNode != null;
+        }
+
+        @Override
+        public DataTreeNode next() {
+            advance();
+            if (nextNode == null) {
+                throw new NoSuchElementException();
+            }
+            if (current != null) {
+                current.release();
+            }
+            DataTreeNode node = nextNode;
+            current = nextSegment;
+            nextSegment = null;
+            nextNode = null;
+            return node;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            if (current != null) {
+                current.release();
+                current = null;
+            }
+            if (nextSegment != null) {
+                nextSegment.release();
+                nextSegment = null;
+                nextNode = null;
+            }
+        }
+    }
+
+    /**
+     * Holds a lease on a segment while iterating over the children of its root.
+     */
+    private static final class PinnedIterator implements ClosableIterator<DataTreeNode> {
+
+        private final Segment segment;
+        private final ClosableIterator<DataTreeNode> iterator;
+        private boolean closed;
+
+        PinnedIterator(Segment segment, ClosableIterator<DataTreeNode> iterator) {
+            this.segment = segment;
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public DataTreeNode next() {
+            return iterator.next();
+        }
+
+        @Override
+        public void remove() {
+            iterator.remove();
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                try {
+                    iterator.close();
+                } finally {
+                    segment.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * The root node of a segment under the name of its top level node.
+     */
+    private final class SegmentNode implements DataTreeNode {
+
+        private final Segment segment;
+        private final DataTreeNode node;
+
+        SegmentNode(Segment segment, DataTreeNode node) {
+            this.segment = segment;
+            this.node = node;
+        }
+
+        @Override
+        public String getName() {
+            return segment.bucket;
+        }
+
+        @Override
+        public DataTree getTreeRoot() {
+            return SegmentedTree.this;
+        }
+
+        @Override
+        public void lease() {
+            node.lease();
+            segment.leases.incrementAndGet();
+        }
+
+        @Override
+        public void release() {
+            node.release();
+            segment.release();
+        }
+
+        @Override
+        public int getNodeCount() {
+            return node.getNodeCount();
+        }
+
+        @Override
+        public long getCounter() {
+            return node.getCounter();
+        }
+
+        @Override
+        public void incrementCounter() {
+            node.incrementCounter();
+        }
+
+        @Override
+        public long incrementCounter(long val) {
+            return node.incrementCounter(val);
+        }
+
+        @Override
+        public void setCounter(long val) {
+            node.setCounter(val);
+        }
+
+        @Override
+        public void writeLock() {
+            node.writeLock();
+        }
+
+        @Override
+        public void writeUnlock() {
+            node.writeUnlock();
+        }
+
+        @Override
+        public DataTreeNodeActor getData(String key) {
+            return node.getData(key);
+        }
+
+        @Override
+        public DataTreeNode getNode(String name) {
+            return node.getNode(name);
+        }
+
+        @Override
+        public DataTreeNode getLeasedNode(String name) {
+            return node.getLeasedNode(name);
+        }
+
+        @Override
+        public DataTreeNode getOrCreateNode(String name, DataTreeNodeInitializer init) {
+            return node.getOrCreateNode(name, init);
+        }
+
+        /**
+         * The root of a segment cannot link to another tree.
+         */
+        @Override
+        public boolean aliasTo(DataTreeNode target) {
+            return false;
+        }
+
+        @Override
+        public boolean deleteNode(String name) {
+            return node.deleteNode(name);
+        }
+
+        @Override
+        public ClosableIterator<DataTreeNode> getIterator() {
+            segment.leases.incrementAndGet();
+            return new PinnedIterator(segment, node.getIterator());
+        }
+
+        @Override
+        public ClosableIterator<DataTreeNode> getIterator(String prefix) {
+            segment.leases.incrementAndGet();
+            return new PinnedIterator(segment, node.getIterator(prefix));
+        }
+
+        @Override
+        public ClosableIterator<DataTreeNode> getIterator(String from, String to) {
+            segment.leases.incrementAndGet();
+            return new PinnedIterator(segment, node.getIterator(from, to));
+        }
+
+        @Override
+        public Iterator<DataTreeNode> iterator() {
+            return node.iterator();
+        }
+
+        @Override
+        public void updateChildData(DataTreeNodeUpdater state, TreeDataParent path) {
+            node.updateChildData(state, path);
+        }
+
+        @Override
+        public void updateParentData(DataTreeNodeUpdater state, DataTreeNode child, boolean isnew) {
+            node.updateParentData(state, child, isnew);
+        }
+
+        @Override
+        public Map<String, TreeNodeData> getDataMap() {
+            return node.getDataMap();
+        }
+
+        @Override
+        public String toString() {
+            return "SegmentNode[" + segment.bucket + "," + node + "]";
+        }
+    }
+}
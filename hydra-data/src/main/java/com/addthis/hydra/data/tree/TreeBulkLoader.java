@@ -0,0 +1,312 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.tree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.addthis.basis.util.Files;
+import com.addthis.basis.util.Parameter;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds a new {@link ConcurrentTree} from hit counts without going
+ * through the node cache or the page cache. Every {@link #add(String[], long)}
+ * adds the hits to each node along the path. Updates are combined in memory
+ * and spilled to sorted run files. {@link #close()} merges the runs and
+ * writes the nodes to the page database as full pages in key order
+ * with a {@link TreeNodeWriter}. The directory must not contain a tree.
+ * <p/>
+ * Only hit counts are loaded. The nodes have no attachments such as data
+ * attachments or aliases, so trees whose jobs depend on them should be built
+ * by the tree mapper. Nodes with many children are expensive because the
+ * writer holds the children of every open node in memory until the node
+ * is closed.
+ * <p/>
+ * {@link #main(String[])} loads a tree from lines of tab separated fields,
+ * a hit count followed by the names along the path.
+ */
+public final class TreeBulkLoader implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(TreeBulkLoader.class);
+
+    /**
+     * Distinct paths that are combined in memory before they are spilled to a run.
+     */
+    static final int defaultMaxBuffered = Parameter.intValue("hydra.tree.bulk.buffer", 1_000_000);
+
+    /**
+     * Orders paths so that each node is followed by its subtree.
+     */
+    private static final Comparator<List<String>> pathOrder = new Comparator<List<String>>() {
+        @Override
+        public int compare(List<String> a, List<String> b) {
+            int len = Math.min(a.size(), b.size());
+            for (int i = 0; i < len; i++) {
+                int cmp = a.get(i).compareTo(b.get(i));
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return Integer.compare(a.size(), b.size());
+        }
+    };
+
+    private static final Comparator<Map.Entry<List<String>, Long>> entryOrder =
+            new Comparator<Map.Entry<List<String>, Long>>() {
+                @Override
+                public int compare(Map.Entry<List<String>, Long> a, Map.Entry<List<String>, Long> b) {
+                    return pathOrder.compare(a.getKey(), b.getKey());
+                }
+            };
+
+    private final File root;
+    private final File runDir;
+    private final List<File> runs = new ArrayList<>();
+    private final int maxBuffered;
+    private HashMap<List<String>, Long> buffer = new HashMap<>();
+    private boolean closed;
+
+    public TreeBulkLoader(File root) throws IOException {
+        this(root, defaultMaxBuffered);
+    }
+
+    TreeBulkLoader(File root, int maxBuffered) throws IOException {
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("Unable to open or create root directory '" + root + "'");
+        }
+        if (new File(root, "nextID").exists()) {
+            throw new IllegalStateException("bulk load into existing tree " + root);
+        }
+        this.root = root;
+        this.maxBuffered = maxBuffered;
+        this.runDir = new File(root, "bulk.runs");
+        if (!runDir.isDirectory() && !runDir.mkdirs()) {
+            throw new IOException("Unable to create " + runDir);
+        }
+    }
+
+    /**
+     * Add hits to every node on the path.
+     */
+    public void add(String[] path, long hits) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("bulk loader is closed");
+        }
+        if (path.length == 0) {
+            return;
+        }
+        List<String> key = Arrays.asList(path.clone());
+        Long prev = buffer.get(key);
+        buffer.put(key, prev == null ? hits : prev + hits);
+        if (buffer.size() >= maxBuffered) {
+            spill();
+        }
+    }
+
+    private List<Map.Entry<List<String>, Long>> sortedBuffer() {
+        List<Map.Entry<List<String>, Long>> sorted = new ArrayList<>(buffer.entrySet());
+        Collections.sort(sorted, entryOrder);
+        return sorted;
+    }
+
+    private void spill() throws IOException {
+        File run = new File(runDir, "run-" + runs.size());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 65536))) {
+            for (Map.Entry<List<String>, Long> entry : sortedBuffer()) {
+                out.writeInt(entry.getKey().size());
+                for (String name : entry.getKey()) {
+                    out.writeUTF(name);
+                }
+                out.writeLong(entry.getValue());
+            }
+        }
+        log.debug("[bulk] spilled {} paths to {}", buffer.size(), run);
+        runs.add(run);
+        buffer = new HashMap<>();
+    }
+
+    /**
+     * Write the tree. The loader cannot be used afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        long start = System.currentTimeMillis();
+        List<Iterator<Map.Entry<List<String>, Long>>> sources = new ArrayList<>();
+        List<RunReader> readers = new ArrayList<>();
+        try {
+            for (File run : runs) {
+                RunReader reader = new RunReader(run);
+                readers.add(reader);
+                sources.add(reader);
+            }
+            sources.add(sortedBuffer().iterator());
+            buffer = null;
+            PathWriter writer = new PathWriter(Iterators.peekingIterator(Iterators.mergeSorted(sources, entryOrder)));
+            long pages = writer.write(root);
+            log.info("[bulk] loaded " + writer.nodeCount() + " nodes into " + pages + " pages from " +
+                     runs.size() + " runs in " + (System.currentTimeMillis() - start) + "ms");
+        } finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+            Files.deleteDir(runDir);
+        }
+    }
+
+    /**
+     * Loads every line of the input, a hit count followed by the names
+     * along the path separated by tabs, and writes the tree.
+     * Returns the number of lines loaded.
+     */
+    public static long load(File root, BufferedReader in) throws IOException {
+        Pattern tab = Pattern.compile("\t");
+        long lines = 0;
+        try (TreeBulkLoader loader = new TreeBulkLoader(root)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = tab.split(line, -1);
+                long hits;
+                try {
+                    hits = Long.parseLong(fields[0]);
+                } catch (NumberFormatException ex) {
+                    throw new IOException("invalid hit count on line " + (lines + 1) + ": " + line);
+                }
+                loader.add(Arrays.copyOfRange(fields, 1, fields.length), hits);
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    public static void main(String args[]) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("usage: [write tree root] [input file, default stdin]");
+            System.exit(2);
+        }
+        InputStream input = args.length > 1 ? new FileInputStream(args[1]) : System.in;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(input, "UTF-8"))) {
+            long lines = load(new File(args[0]), in);
+            log.info("[bulk] loaded " + lines + " lines into " + args[0]);
+        }
+    }
+
+    private static final class RunReader extends AbstractIterator<Map.Entry<List<String>, Long>>
+            implements Closeable {
+
+        private final DataInputStream in;
+
+        RunReader(File run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 65536));
+        }
+
+        @Override
+        protected Map.Entry<List<String>, Long> computeNext() {
+            try {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException ex) {
+                    return endOfData();
+                }
+                String[] path = new String[length];
+                for (int i = 0; i < length; i++) {
+                    path[i] = in.readUTF();
+                }
+                return new AbstractMap.SimpleImmutableEntry<>(Arrays.asList(path), in.readLong());
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Opens and closes the nodes along the merged paths.
+     */
+    private static final class PathWriter extends TreeNodeWriter {
+
+        private final PeekingIterator<Map.Entry<List<String>, Long>> paths;
+
+        PathWriter(PeekingIterator<Map.Entry<List<String>, Long>> paths) {
+            this.paths = paths;
+        }
+
+        @Override
+        protected boolean advance() {
+            if (!paths.hasNext()) {
+                return false;
+            }
+            Map.Entry<List<String>, Long> next = paths.next();
+            List<String> path = next.getKey();
+            long hits = next.getValue();
+            while (paths.hasNext() && pathOrder.compare(paths.peek().getKey(), path) == 0) {
+                hits += paths.next().getValue();
+            }
+            int common = 0;
+            while (common < path.size() && common < depth() && frame(common + 1).name.equals(path.get(common))) {
+                common++;
+            }
+            while (depth() > common) {
+                pop();
+            }
+            for (int i = common; i < path.size(); i++) {
+                push(path.get(i));
+            }
+            for (int i = 1; i <= depth(); i++) {
+                frame(i).hits += hits;
+            }
+            return true;
+        }
+    }
+}
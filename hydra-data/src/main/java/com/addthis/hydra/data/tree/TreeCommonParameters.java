@@ -15,6 +15,9 @@ package com.addthis.hydra.data.tree;
 
 import com.addthis.basis.util.Parameter;
 
+import com.addthis.hydra.store.kv.ByteStoreType;
+import com.addthis.hydra.store.skiplist.PageCompression;
+
 public class TreeCommonParameters {
 
     static int cleanQMax = Math.max(1, Parameter.intValue("hydra.tree.cleanqmax", 100));
@@ -33,6 +36,16 @@ public class TreeCommonParameters {
     static long trashInterval = Parameter.longValue("hydra.tree.trash.interval", 0);
     static long trashMaxTime = Parameter.intValue("hydra.tree.trash.maxtime", 0);
     static boolean trashDebug = Parameter.boolValue("hydra.tree.trash.debug", false);
+    // backing store for newly created trees
+    static ByteStoreType storeType = ByteStoreType.valueOf(Parameter.value("hydra.tree.storetype", "BDB").toUpperCase());
+    // page compression codec, defaults to eps.gz.type
+    static PageCompression compression = Parameter.value("hydra.tree.compression") != null ?
+            PageCompression.valueOf(Parameter.value("hydra.tree.compression").toUpperCase()) :
+            PageCompression.defaultCompression();
+    // train a compression dictionary for new trees
+    static boolean trainDictionary = Parameter.boolValue("hydra.tree.compression.dictionary", false);
+    // bytes shared by the node cache and the page cache of a tree, 0 for fixed cache sizes
+    static long memBudget = Parameter.longValue("hydra.tree.mem.budget", 0);
 
     public static void setDefaultMaxCacheSize(int size) {
         maxCacheSize = size;
@@ -74,4 +87,20 @@ public class TreeCommonParameters {
         trashMaxTime = trashTimeLimit;
     }
 
+    public static void setDefaultStoreType(ByteStoreType type) {
+        storeType = type;
+    }
+
+    public static void setDefaultCompression(PageCompression type) {
+        compression = type;
+    }
+
+    public static void setDefaultTrainDictionary(boolean train) {
+        trainDictionary = train;
+    }
+
+    public static void setDefaultMemBudget(long bytes) {
+        memBudget = bytes;
+    }
+
 }
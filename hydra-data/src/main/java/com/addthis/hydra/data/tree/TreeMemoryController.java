@@ -0,0 +1,261 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.tree;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.basis.util.Parameter;
+
+import com.addthis.hydra.store.db.DBKey;
+import com.addthis.hydra.store.kv.PagedKeyValueStore;
+import com.addthis.hydra.store.util.NamedThreadFactory;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricsRegistry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Divides a memory budget between the node cache of a {@link ConcurrentTree}
+ * and the page cache of its page database. At a fixed interval the cache
+ * with the higher miss rate grows by a step at the expense of the other.
+ * The budget shrinks by a step while the heap is nearly full or garbage
+ * collection takes a large fraction of the time, and grows back towards
+ * the configured budget once there is headroom again.
+ * <p/>
+ * The node cache is sized in nodes which are assumed to take
+ * {@link #nodeBytes} bytes each.
+ */
+final class TreeMemoryController implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(TreeMemoryController.class);
+
+    static final long interval = Parameter.longValue("hydra.tree.mem.interval", 10000);
+    static final int nodeBytes = Math.max(1, Parameter.intValue("hydra.tree.mem.nodebytes", 1024));
+    // percent of the budget that is moved at a time
+    static final int stepPercent = Parameter.intValue("hydra.tree.mem.step", 10);
+    // percent of the budget that each cache keeps
+    static final int minPercent = Parameter.intValue("hydra.tree.mem.minshare", 10);
+    // percent of the maximum heap above which the budget shrinks
+    static final int heapHigh = Parameter.intValue("hydra.tree.mem.heap.high", 85);
+    // percent of the maximum heap below which the budget grows
+    static final int heapLow = Parameter.intValue("hydra.tree.mem.heap.low", 60);
+    // percent of the time spent in garbage collection above which the budget shrinks
+    static final int gcHigh = Parameter.intValue("hydra.tree.mem.gc.high", 10);
+
+    /**
+     * Miss rates that differ by less than this are treated as equal.
+     */
+    private static final double missThreshold = 0.05;
+
+    private final ConcurrentTree tree;
+    private final PagedKeyValueStore<DBKey, ConcurrentTreeNode> pages;
+    private final long budget;
+    private final ScheduledExecutorService executor;
+    private final String scope;
+
+    private volatile long limit;
+    private volatile long nodeMem;
+
+    private long lastAccesses;
+    private long lastFaults;
+    private long lastNodeHits;
+    private long lastNodeMisses;
+    private long lastGcMillis;
+    private long lastTime;
+
+    private final Counter adjustments;
+
+    TreeMemoryController(ConcurrentTree tree, String scope, long budget, long nodeCapacity) {
+        this.tree = tree;
+        this.pages = tree.getPageStore();
+        this.budget = budget;
+        this.scope = scope;
+        this.limit = budget;
+        this.nodeMem = clamp(nodeCapacity * nodeBytes, limit);
+        this.adjustments = Metrics.newCounter(TreeMemoryController.class, "memAdjustments", scope);
+        Metrics.newGauge(TreeMemoryController.class, "memBudget", scope, new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return limit;
+            }
+        });
+        Metrics.newGauge(TreeMemoryController.class, "nodeCacheMem", scope, new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return nodeMem;
+            }
+        });
+        Metrics.newGauge(TreeMemoryController.class, "pageCacheMem", scope, new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return limit - nodeMem;
+            }
+        });
+        Metrics.newGauge(TreeMemoryController.class, "pageCacheMemEstimate", scope, new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return pages.getMemoryEstimate();
+            }
+        });
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory(scope + "-memory-", true));
+        lastAccesses = pages.getPageAccesses();
+        lastFaults = pages.getPageFaults();
+        lastNodeHits = tree.getNodeCacheHits();
+        lastNodeMisses = tree.getNodeCacheMisses();
+        lastGcMillis = gcMillis();
+        lastTime = System.currentTimeMillis();
+        apply();
+    }
+
+    void start() {
+        executor.scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+        log.info("[memory] budget={} nodeCacheMem={} pageCacheMem={}", budget, nodeMem, limit - nodeMem);
+    }
+
+    /**
+     * Stops adjusting the caches. The metrics are removed so that a tree
+     * opened later with the same scope registers its own.
+     */
+    void close() {
+        executor.shutdownNow();
+        MetricsRegistry registry = Metrics.defaultRegistry();
+        registry.removeMetric(TreeMemoryController.class, "memAdjustments", scope);
+        registry.removeMetric(TreeMemoryController.class, "memBudget", scope);
+        registry.removeMetric(TreeMemoryController.class, "nodeCacheMem", scope);
+        registry.removeMetric(TreeMemoryController.class, "pageCacheMem", scope);
+        registry.removeMetric(TreeMemoryController.class, "pageCacheMemEstimate", scope);
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, bean.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private static double heapUsage() {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        return heap.getMax() > 0 ? (double) heap.getUsed() / heap.getMax() : 0;
+    }
+
+    @Override
+    public void run() {
+        try {
+            long now = System.currentTimeMillis();
+            long gc = gcMillis();
+            double gcFraction = now > lastTime ? (double) (gc - lastGcMillis) / (now - lastTime) : 0;
+            lastGcMillis = gc;
+            lastTime = now;
+            sample(heapUsage(), gcFraction);
+        } catch (Exception ex) {
+            log.warn("[memory] unable to adjust caches", ex);
+        }
+    }
+
+    /**
+     * Measure the miss rates of both caches since the last sample and adjust.
+     * Both rates come from cumulative counters of the tree and the page store,
+     * so that nothing else that reads the tree meters takes intervals away.
+     */
+    void sample(double heap, double gcFraction) {
+        long accesses = pages.getPageAccesses();
+        long faults = pages.getPageFaults();
+        long nodeHits = tree.getNodeCacheHits();
+        long nodeMisses = tree.getNodeCacheMisses();
+        long deltaAccesses = accesses - lastAccesses;
+        long deltaNodeMisses = nodeMisses - lastNodeMisses;
+        long deltaNodeGets = nodeHits - lastNodeHits + deltaNodeMisses;
+        double nodeMiss = deltaNodeGets > 0 ? (double) deltaNodeMisses / deltaNodeGets : 0;
+        double pageMiss = deltaAccesses > 0 ? (double) (faults - lastFaults) / deltaAccesses : 0;
+        lastAccesses = accesses;
+        lastFaults = faults;
+        lastNodeHits = nodeHits;
+        lastNodeMisses = nodeMisses;
+        update(nodeMiss, pageMiss, heap, gcFraction);
+    }
+
+    /**
+     * Keep each cache above its minimum share of the limit.
+     */
+    private static long clamp(long mem, long limit) {
+        long min = limit * minPercent / 100;
+        return Math.max(min, Math.min(limit - min, mem));
+    }
+
+    /**
+     * Move the limit and the division of the limit. Returns true if either changed.
+     */
+    boolean adjust(double nodeMiss, double pageMiss, double heap, double gcFraction) {
+        long step = budget * stepPercent / 100;
+        long prevLimit = limit;
+        long prevNodeMem = nodeMem;
+        long nextLimit = prevLimit;
+        if (heap * 100 > heapHigh || gcFraction * 100 > gcHigh) {
+            nextLimit = Math.max(step, prevLimit - step);
+        } else if (heap * 100 < heapLow) {
+            nextLimit = Math.min(budget, prevLimit + step);
+        }
+        long nextNodeMem = nextLimit == prevLimit ? prevNodeMem :
+                           (long) ((double) prevNodeMem * nextLimit / prevLimit);
+        if (pageMiss > nodeMiss + missThreshold) {
+            nextNodeMem -= step;
+        } else if (nodeMiss > pageMiss + missThreshold) {
+            nextNodeMem += step;
+        }
+        nextNodeMem = clamp(nextNodeMem, nextLimit);
+        limit = nextLimit;
+        nodeMem = nextNodeMem;
+        if (nextLimit != prevLimit || nextNodeMem != prevNodeMem) {
+            adjustments.inc();
+            log.debug("[memory] nodeMiss={} pageMiss={} heap={} gc={} limit={} nodeCacheMem={}",
+                    nodeMiss, pageMiss, heap, gcFraction, nextLimit, nextNodeMem);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adjust and resize the caches if anything changed.
+     */
+    void update(double nodeMiss, double pageMiss, double heap, double gcFraction) {
+        if (adjust(nodeMiss, pageMiss, heap, gcFraction)) {
+            apply();
+        }
+    }
+
+    private void apply() {
+        tree.setNodeCacheCapacity(Math.max(1, nodeMem / nodeBytes));
+        pages.setMaxTotalMem(limit - nodeMem);
+    }
+
+    long getLimit() {
+        return limit;
+    }
+
+    long getNodeCacheMem() {
+        return nodeMem;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.tree;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.addthis.basis.util.ClosableIterator;
+
+import com.addthis.hydra.store.util.Raw;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges several trees into a new compacted tree. The children of the
+ * nodes are walked in key order in all of the source trees at once.
+ * The hits of the nodes with the same path are summed and their attachments
+ * are {@link TreeNodeData#merge(TreeNodeData) merged}. An attachment that
+ * cannot be merged keeps the value of the first tree that has it.
+ * The merged tree is written with a {@link TreeNodeWriter}.
+ * <p/>
+ * The attachments of the source nodes are modified by the merge. Alias
+ * nodes are not followed and are written as nodes without children.
+ */
+public final class TreeMerger {
+
+    private static final Logger log = LoggerFactory.getLogger(TreeMerger.class);
+
+    private TreeMerger() {
+    }
+
+    /**
+     * Merge the trees in the source directories into the
+     * target directory. The target must not contain a tree.
+     */
+    public static void merge(File target, List<File> sources) throws Exception {
+        List<ReadTree> trees = new ArrayList<>(sources.size());
+        try {
+            List<DataTreeNode> roots = new ArrayList<>(sources.size());
+            for (File source : sources) {
+                ReadTree tree = new ReadTree(source);
+                trees.add(tree);
+                roots.add(tree.getRootNode());
+            }
+            merge(target, roots);
+        } finally {
+            for (ReadTree tree : trees) {
+                tree.close();
+            }
+        }
+    }
+
+    /**
+     * Merge the trees below the root nodes into the target
+     * directory. The target must not contain a tree.
+     */
+    public static void merge(File target, Iterable<? extends DataTreeNode> roots) throws IOException {
+        if (new File(target, "nextID").exists()) {
+            throw new IllegalStateException("merge into existing tree " + target);
+        }
+        long start = System.currentTimeMillis();
+        MergeWriter writer = new MergeWriter(roots);
+        long pages;
+        try {
+            pages = writer.write(target);
+        } finally {
+            writer.closeLevels();
+        }
+        log.info("[merge] wrote " + writer.nodeCount() + " nodes into " + pages + " pages in " +
+                 (System.currentTimeMillis() - start) + "ms, " + writer.unmerged + " attachments not merged");
+    }
+
+    /**
+     * The children of a source node, positioned at the next child.
+     */
+    private static final class Cursor {
+
+        private final ClosableIterator<DataTreeNode> children;
+        DataTreeNode head;
+        Raw key;
+
+        Cursor(ClosableIterator<DataTreeNode> children) {
+            this.children = children;
+        }
+
+        boolean next() {
+            if (children.hasNext()) {
+                head = children.next();
+                key = Raw.get(head.getName());
+                return true;
+            }
+            close();
+            return false;
+        }
+
+        void close() {
+            head = null;
+            key = null;
+            children.close();
+        }
+    }
+
+    private static final class MergeWriter extends TreeNodeWriter {
+
+        private final Iterable<? extends DataTreeNode> roots;
+
+        /**
+         * The children of the source nodes for every open node.
+         */
+        private final ArrayList<List<Cursor>> levels = new ArrayList<>();
+        private boolean started;
+        long unmerged;
+
+        MergeWriter(Iterable<? extends DataTreeNode> roots) {
+            this.roots = roots;
+        }
+
+        @Override
+        protected boolean advance() {
+            if (!started) {
+                started = true;
+                List<DataTreeNode> nodes = new ArrayList<>();
+                for (DataTreeNode root : roots) {
+                    nodes.add(root);
+                }
+                open(frame(0), nodes);
+                return true;
+            }
+            List<Cursor> level = levels.get(levels.size() - 1);
+            Raw min = null;
+            for (Cursor cursor : level) {
+                if (min == null || cursor.key.compareTo(min) < 0) {
+                    min = cursor.key;
+                }
+            }
+            if (min == null) {
+                levels.remove(levels.size() - 1);
+                if (levels.isEmpty()) {
+                    return false;
+                }
+                pop();
+                return true;
+            }
+            List<DataTreeNode> nodes = new ArrayList<>(level.size());
+            for (Iterator<Cursor> iter = level.iterator(); iter.hasNext(); ) {
+                Cursor cursor = iter.next();
+                if (cursor.key.compareTo(min) == 0) {
+                    nodes.add(cursor.head);
+                    if (!cursor.next()) {
+                        iter.remove();
+                    }
+                }
+            }
+            open(push(nodes.get(0).getName()), nodes);
+            return true;
+        }
+
+        /**
+         * Fill in the frame from the source nodes and start on their children.
+         */
+        private void open(Frame frame, List<DataTreeNode> nodes) {
+            List<Cursor> level = new ArrayList<>(nodes.size());
+            for (DataTreeNode node : nodes) {
+                frame.hits += node.getCounter();
+                mergeData(frame, node.getDataMap());
+                if (node.getNodeCount() > 0) {
+                    Cursor cursor = new Cursor(node.getIterator());
+                    if (cursor.next()) {
+                        level.add(cursor);
+                    }
+                }
+            }
+            levels.add(level);
+        }
+
+        private void mergeData(Frame frame, Map<String, TreeNodeData> data) {
+            if (data == null) {
+                return;
+            }
+            for (Map.Entry<String, TreeNodeData> entry : data.entrySet()) {
+                if (frame.data == null) {
+                    frame.data = new HashMap<>();
+                }
+                TreeNodeData value = entry.getValue();
+                TreeNodeData prev = frame.data.get(entry.getKey());
+                if (prev == null) {
+                    frame.data.put(entry.getKey(), value);
+                } else if (prev.getClass() != value.getClass() || !prev.merge(value)) {
+                    unmerged++;
+                }
+            }
+        }
+
+        void closeLevels() {
+            for (List<Cursor> level : levels) {
+                for (Cursor cursor : level) {
+                    cursor.close();
+                }
+            }
+            levels.clear();
+        }
+    }
+
+    public static void main(String args[]) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: [write tree root] [read tree root]...");
+            System.exit(2);
+        }
+        List<File> sources = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            sources.add(new File(args[i]));
+        }
+        merge(new File(args[0]), sources);
+    }
+}
@@ -63,6 +63,24 @@ public abstract class TreeNodeData<C extends TreeDataParameters<?>> implements C
      */
     public abstract boolean updateChildData(DataTreeNodeUpdater state, DataTreeNode childNode, C conf);
 
+    /**
+     * Override to return true if {@link #updateChildData} may be called by
+     * several threads at once, and concurrently with encoding. The node then
+     * updates the attachment without taking its write lock.
+     */
+    public boolean concurrentUpdates() {
+        return false;
+    }
+
+    /**
+     * Override to add another attachment of the same class to this one as
+     * if its updates had been applied here. Used to combine trees. Return
+     * false if the attachments cannot be combined.
+     */
+    public boolean merge(TreeNodeData<?> other) {
+        return false;
+    }
+
     /**
      * override to track new children
      */
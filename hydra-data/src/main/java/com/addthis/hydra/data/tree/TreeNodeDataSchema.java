@@ -0,0 +1,295 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.tree;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.lang.reflect.Constructor;
+
+import java.nio.file.Files;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+import com.addthis.basis.util.Parameter;
+
+import com.addthis.codec.CodecBin2;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dictionary of the data attachments of a tree. Each distinct pair of
+ * attachment name and attachment class is assigned a small id the first
+ * time it is encoded, and nodes are written with these ids instead of
+ * the full name and class name of every attachment. Decoding creates
+ * the attachments with constructors that are resolved once per entry.
+ * <p/>
+ * The dictionary is stored in the directory of the tree and is append
+ * only. A new entry is written and synced before its id is returned so
+ * that no page can reference an entry that is not on disk. Each entry
+ * ends with a checksum. An entry that was torn by a crash was never
+ * handed out, and opening the dictionary for writing truncates it so
+ * that later entries are not appended after it. Nodes written without
+ * the dictionary remain readable.
+ */
+public final class TreeNodeDataSchema {
+
+    private static final Logger log = LoggerFactory.getLogger(TreeNodeDataSchema.class);
+
+    public static final String FILE_NAME = "nodedata.schema";
+
+    /**
+     * Encode the attachments of new and modified nodes with the dictionary.
+     * Off by default because builds without the dictionary read nodes that
+     * are encoded with it as having no attachments.
+     */
+    static final boolean enabled = Parameter.boolValue("hydra.tree.data.schema", false);
+
+    static final class Entry {
+
+        final String key;
+        final String className;
+        final Constructor<? extends TreeNodeData> constructor;
+
+        Entry(String key, String className, Constructor<? extends TreeNodeData> constructor) {
+            this.key = key;
+            this.className = className;
+            this.constructor = constructor;
+        }
+
+        TreeNodeData newInstance() throws Exception {
+            return constructor.newInstance();
+        }
+    }
+
+    private final File file;
+
+    private final boolean readOnly;
+
+    private final boolean encode;
+
+    private volatile Entry[] entries;
+
+    /**
+     * Ids of the entries by attachment class and then by attachment name.
+     */
+    private final ConcurrentMap<Class<?>, ConcurrentMap<String, Integer>> ids = new ConcurrentHashMap<>();
+
+    private TreeNodeDataSchema(File file, boolean readOnly, boolean encode, Entry[] entries) {
+        this.file = file;
+        this.readOnly = readOnly;
+        this.encode = encode;
+        this.entries = entries;
+        for (int i = 0; i < entries.length; i++) {
+            index(entries[i], i);
+        }
+    }
+
+    /**
+     * Open the dictionary stored in the directory. A dictionary that
+     * does not exist yet is empty. A read only dictionary throws an
+     * exception when a new entry is needed.
+     */
+    public static TreeNodeDataSchema open(File dir, boolean readOnly) throws IOException {
+        return open(dir, readOnly, !readOnly && enabled);
+    }
+
+    /**
+     * Open the dictionary stored in the directory. If encode is
+     * false then nodes are written without the dictionary, but
+     * nodes that were written with it can still be read.
+     */
+    public static TreeNodeDataSchema open(File dir, boolean readOnly, boolean encode) throws IOException {
+        File file = new File(dir, FILE_NAME);
+        Entry[] entries = new Entry[0];
+        if (file.exists()) {
+            byte[] data = Files.readAllBytes(file.toPath());
+            int[] length = new int[1];
+            entries = read(data, length);
+            if (length[0] < data.length && !readOnly) {
+                log.warn("[schema] truncating {} bytes of a partial entry from {}", data.length - length[0], file);
+                try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                    out.setLength(length[0]);
+                    out.getFD().sync();
+                }
+            }
+        }
+        if (entries.length > 0) {
+            log.debug("[schema] loaded {} attachment entries for {}", entries.length, dir);
+        }
+        return new TreeNodeDataSchema(file, readOnly, encode && !readOnly, entries);
+    }
+
+    /**
+     * Reads the complete entries of the dictionary and stores their
+     * length in bytes in length[0]. Stops at the first entry that is
+     * truncated or does not match its checksum.
+     */
+    private static Entry[] read(byte[] data, int[] length) {
+        Entry[] entries = new Entry[0];
+        ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+        DataInputStream in = new DataInputStream(bytes);
+        int offset = 0;
+        while (offset < data.length) {
+            String key, className;
+            int checksum;
+            try {
+                key = in.readUTF();
+                className = in.readUTF();
+                checksum = in.readInt();
+            } catch (IOException ex) {
+                // a partial entry was never handed out
+                break;
+            }
+            int end = data.length - bytes.available();
+            if (checksum != checksum(data, offset, end - offset - 4)) {
+                break;
+            }
+            entries = Arrays.copyOf(entries, entries.length + 1);
+            entries[entries.length - 1] = new Entry(key, className, resolve(className));
+            offset = end;
+        }
+        length[0] = offset;
+        return entries;
+    }
+
+    private static int checksum(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Constructor<? extends TreeNodeData> resolve(String className) {
+        try {
+            Class<? extends TreeNodeData> clazz = (Class<? extends TreeNodeData>)
+                    CodecBin2.getClassFieldMap(TreeNodeData.class).getClass(className);
+            Constructor<? extends TreeNodeData> constructor = clazz.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return constructor;
+        } catch (Exception ex) {
+            throw new IllegalStateException("unable to resolve attachment class " + className, ex);
+        }
+    }
+
+    private void index(Entry entry, int id) {
+        Class<?> clazz = entry.constructor.getDeclaringClass();
+        ConcurrentMap<String, Integer> byKey = ids.get(clazz);
+        if (byKey == null) {
+            byKey = new ConcurrentHashMap<>();
+            ConcurrentMap<String, Integer> prev = ids.putIfAbsent(clazz, byKey);
+            if (prev != null) {
+                byKey = prev;
+            }
+        }
+        byKey.putIfAbsent(entry.key, id);
+    }
+
+    /**
+     * Returns the id of the attachment, adding an entry if necessary.
+     */
+    public int idOf(String key, TreeNodeData value) throws IOException {
+        ConcurrentMap<String, Integer> byKey = ids.get(value.getClass());
+        Integer id = (byKey != null) ? byKey.get(key) : null;
+        if (id != null) {
+            return id;
+        }
+        return add(key, value);
+    }
+
+    private synchronized int add(String key, TreeNodeData value) throws IOException {
+        ConcurrentMap<String, Integer> byKey = ids.get(value.getClass());
+        Integer id = (byKey != null) ? byKey.get(key) : null;
+        if (id != null) {
+            return id;
+        }
+        if (readOnly) {
+            throw new IllegalStateException("cannot add attachment " + key + " to read only schema " + file);
+        }
+        String className = CodecBin2.getClassFieldMap(value.getClass()).getClassName(value);
+        Entry entry = new Entry(key, className, resolve(className));
+        if (entry.constructor.getDeclaringClass() != value.getClass()) {
+            throw new IllegalStateException("attachment class " + value.getClass() +
+                                            " resolves to " + entry.constructor.getDeclaringClass());
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bytes);
+        dos.writeUTF(key);
+        dos.writeUTF(className);
+        dos.writeInt(checksum(bytes.toByteArray(), 0, bytes.size()));
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(bytes.toByteArray());
+            out.getFD().sync();
+        }
+        Entry[] current = entries;
+        Entry[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = entry;
+        entries = next;
+        index(entry, current.length);
+        return current.length;
+    }
+
+    /**
+     * Returns the entry with the given id.
+     */
+    Entry get(int id) {
+        Entry[] current = entries;
+        if (id >= current.length && readOnly) {
+            current = reload();
+        }
+        if (id < 0 || id >= current.length) {
+            throw new IllegalStateException("unknown attachment id " + id + " in " + file);
+        }
+        return current[id];
+    }
+
+    /**
+     * A read only dictionary may be behind the tree that is writing it.
+     */
+    private synchronized Entry[] reload() {
+        try {
+            Entry[] loaded = read(Files.readAllBytes(file.toPath()), new int[1]);
+            for (int i = entries.length; i < loaded.length; i++) {
+                index(loaded[i], i);
+            }
+            if (loaded.length > entries.length) {
+                entries = loaded;
+            }
+            return entries;
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Returns true if new and modified nodes are encoded with the dictionary.
+     */
+    boolean encodes() {
+        return encode;
+    }
+
+    public int size() {
+        return entries.length;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.tree;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.addthis.basis.util.Bytes;
+import com.addthis.basis.util.Files;
+
+import com.addthis.hydra.store.db.DBKey;
+import com.addthis.hydra.store.db.PageDB;
+import com.addthis.hydra.store.util.Raw;
+
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * Turns a depth first walk of a tree into nodes in key order. Subclasses
+ * {@link #push(String) open} and {@link #pop() close} the nodes of the walk
+ * from {@link #advance()}, and fill in the hits and attachments of the open
+ * nodes. A node database is assigned when a node with children is closed.
+ * Nodes close after their descendants so the databases, and with them the
+ * keys of the children that are written, increase.
+ * <p/>
+ * The children of the open nodes are held in memory until their parent
+ * is closed.
+ */
+abstract class TreeNodeWriter extends AbstractIterator<Map.Entry<DBKey, ConcurrentTreeNode>> {
+
+    /**
+     * An open node and its closed children.
+     */
+    static final class Frame {
+
+        final String name;
+        final List<Map.Entry<Raw, ConcurrentTreeNode>> children = new ArrayList<>();
+        long hits;
+        HashMap<String, TreeNodeData> data;
+
+        Frame(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final Comparator<Map.Entry<DBKey, ConcurrentTreeNode>> keyOrder =
+            new Comparator<Map.Entry<DBKey, ConcurrentTreeNode>>() {
+                @Override
+                public int compare(Map.Entry<DBKey, ConcurrentTreeNode> a, Map.Entry<DBKey, ConcurrentTreeNode> b) {
+                    return a.getKey().compareTo(b.getKey());
+                }
+            };
+
+    private final ArrayList<Frame> stack = new ArrayList<>();
+    private final ArrayDeque<Map.Entry<DBKey, ConcurrentTreeNode>> pending = new ArrayDeque<>();
+    private TreeNodeDataSchema schema;
+    private ConcurrentTreeNode rootNode;
+
+    /**
+     * database 1 holds the root of the tree
+     */
+    private int nextDB = 1;
+    private long nodeCount;
+
+    TreeNodeWriter() {
+        stack.add(new Frame("root"));
+    }
+
+    /**
+     * Continue the walk. Returns false once the walk is complete.
+     * Nodes that are still open at that point are closed.
+     */
+    protected abstract boolean advance();
+
+    /**
+     * Number of open nodes below the root.
+     */
+    protected final int depth() {
+        return stack.size() - 1;
+    }
+
+    /**
+     * The open node at a depth. The root is at depth 0.
+     */
+    protected final Frame frame(int depth) {
+        return stack.get(depth);
+    }
+
+    /**
+     * Open a child of the deepest open node. Children must
+     * be opened at most once per parent.
+     */
+    protected final Frame push(String name) {
+        Frame frame = new Frame(name);
+        stack.add(frame);
+        return frame;
+    }
+
+    /**
+     * Close the deepest open node.
+     */
+    protected final void pop() {
+        Frame frame = stack.remove(stack.size() - 1);
+        Frame parent = stack.get(stack.size() - 1);
+        parent.children.add(new AbstractMap.SimpleImmutableEntry<>(Raw.get(frame.name), node(frame)));
+    }
+
+    @Override
+    protected final Map.Entry<DBKey, ConcurrentTreeNode> computeNext() {
+        while (pending.isEmpty()) {
+            if (rootNode != null) {
+                return endOfData();
+            }
+            if (!advance()) {
+                while (depth() > 0) {
+                    pop();
+                }
+                rootNode = node(stack.get(0));
+            }
+        }
+        return pending.poll();
+    }
+
+    private ConcurrentTreeNode node(Frame frame) {
+        ConcurrentTreeNode node = new ConcurrentTreeNode(schema);
+        node.hits = frame.hits;
+        if (frame.data != null && !frame.data.isEmpty()) {
+            node.data = frame.data;
+        }
+        if (!frame.children.isEmpty()) {
+            int db = ++nextDB;
+            node.nodedb = db;
+            node.nodes = frame.children.size();
+            List<Map.Entry<DBKey, ConcurrentTreeNode>> children = new ArrayList<>(frame.children.size());
+            for (Map.Entry<Raw, ConcurrentTreeNode> child : frame.children) {
+                children.add(new AbstractMap.SimpleImmutableEntry<>(new DBKey(db, child.getKey()), child.getValue()));
+            }
+            Collections.sort(children, keyOrder);
+            pending.addAll(children);
+            nodeCount += children.size();
+            frame.children.clear();
+        }
+        return node;
+    }
+
+    /**
+     * Number of nodes below the root that have been written.
+     */
+    final long nodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Run the walk and write the tree into an empty directory.
+     * Returns the number of pages written.
+     */
+    final long write(File root) throws IOException {
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("Unable to open or create root directory '" + root + "'");
+        }
+        schema = TreeNodeDataSchema.open(root, false);
+        PageDB<ConcurrentTreeNode> db = new PageDB.Builder<>(root, ConcurrentTreeNode.class,
+                TreeCommonParameters.maxPageSize, TreeCommonParameters.maxCacheSize)
+                .storeType(TreeCommonParameters.storeType).compression(TreeCommonParameters.compression)
+                .trainDictionary(TreeCommonParameters.trainDictionary).build();
+        long pages;
+        try {
+            pages = db.bulkLoad(this);
+            // the root is smaller than every loaded key and stays in the first page
+            db.put(new DBKey(1, Raw.get("root")), rootNode);
+        } finally {
+            db.close();
+        }
+        Files.write(new File(root, "nextID"), Bytes.toBytes(Integer.toString(nextDB)), false);
+        return pages;
+    }
+}
@@ -43,6 +43,7 @@ import com.addthis.hydra.data.tree.TreeNodeData;
 import com.addthis.hydra.data.tree.TreeNodeList;
 
 import com.clearspring.analytics.stream.frequency.CountMinSketch;
+import com.clearspring.analytics.stream.frequency.FrequencyMergeException;
 
 public class DataCountMinSketch extends TreeNodeData<DataCountMinSketch.Config> implements Codec.SuperCodable {
 
@@ -207,6 +208,16 @@ public class DataCountMinSketch extends TreeNodeData<DataCountMinSketch.Config>
         return false;
     }
 
+    @Override
+    public boolean merge(TreeNodeData<?> other) {
+        try {
+            sketch = CountMinSketch.merge(sketch, ((DataCountMinSketch) other).sketch);
+            return true;
+        } catch (FrequencyMergeException e) {
+            return false;
+        }
+    }
+
     @Override
     public void postDecode() {
         sketch = CountMinSketch.deserialize(raw);
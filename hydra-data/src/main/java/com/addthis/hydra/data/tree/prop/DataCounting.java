@@ -233,7 +233,7 @@ public class DataCounting extends TreeNodeData<DataCounting.Config> implements C
     private BundleField keyAccess;
 
     // for DataKeySieve
-    void merge(DataCounting merge) {
+    synchronized void merge(DataCounting merge) {
         try {
             ic = ic.merge(merge.ic);
         } catch (CardinalityMergeException e) {
@@ -241,13 +241,119 @@ public class DataCounting extends TreeNodeData<DataCounting.Config> implements C
         }
     }
 
+    @Override
+    public synchronized boolean merge(TreeNodeData<?> other) {
+        DataCounting counting = (DataCounting) other;
+        if (counting.ver != ver) {
+            return false;
+        }
+        try {
+            ic = ic.merge(counting.ic);
+            return true;
+        } catch (CardinalityMergeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the offset of the first register word in the serialized
+     * form of a {@link HyperLogLog} or of a {@link HyperLogLogPlus} in
+     * normal mode, or -1 if the bytes do not hold a register array.
+     */
+    static int registerOffset(byte[] b) {
+        if (b == null || b.length < 8) {
+            return -1;
+        }
+        int first = readWord(b, 0);
+        if (first > 0) {
+            // hll: log2m and the length of the register words
+            return (readWord(b, 4) == b.length - 8) ? 8 : -1;
+        } else if (first == -2) {
+            // hllp: p, sp, format and the length of the register words as varints
+            int pos = 4;
+            int length = 0;
+            for (int field = 0; field < 4; field++) {
+                int value = 0;
+                int shift = 0;
+                while (true) {
+                    if (pos >= b.length || shift > 28) {
+                        return -1;
+                    }
+                    int next = b[pos++];
+                    value |= (next & 0x7f) << shift;
+                    if ((next & 0x80) == 0) {
+                        break;
+                    }
+                    shift += 7;
+                }
+                if (field == 2 && value != 0) {
+                    // sparse format
+                    return -1;
+                }
+                length = value;
+            }
+            return (length == b.length - pos) ? pos : -1;
+        }
+        return -1;
+    }
+
+    private static int readWord(byte[] b, int off) {
+        return (b[off] << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    private static void writeWord(byte[] b, int off, int word) {
+        b[off] = (byte) (word >>> 24);
+        b[off + 1] = (byte) (word >>> 16);
+        b[off + 2] = (byte) (word >>> 8);
+        b[off + 3] = (byte) word;
+    }
+
+    /**
+     * Merges the registers of a serialized {@link HyperLogLog} or normal mode
+     * {@link HyperLogLogPlus} into the serialized estimator held by target
+     * without deserializing either one. Each register word packs six five bit
+     * registers which are compared in place. Returns false and leaves target
+     * untouched if either estimator does not hold a register array or if the
+     * estimators were built with different precisions.
+     */
+    public static boolean mergeRegisters(byte[] target, byte[] source) {
+        int offset = registerOffset(target);
+        if (offset < 0 || source == null || source.length != target.length) {
+            return false;
+        }
+        for (int i = 0; i < offset; i++) {
+            if (target[i] != source[i]) {
+                return false;
+            }
+        }
+        for (int off = offset; off < target.length; off += 4) {
+            int a = readWord(target, off);
+            int b = readWord(source, off);
+            if (a == b || b == 0) {
+                continue;
+            }
+            if (a == 0) {
+                writeWord(target, off, b);
+                continue;
+            }
+            int m = Math.max(a & 0x1f, b & 0x1f)
+                    | Math.max(a & 0x3e0, b & 0x3e0)
+                    | Math.max(a & 0x7c00, b & 0x7c00)
+                    | Math.max(a & 0xf8000, b & 0xf8000)
+                    | Math.max(a & 0x1f00000, b & 0x1f00000)
+                    | Math.max(a & 0x3e000000, b & 0x3e000000);
+            writeWord(target, off, m);
+        }
+        return true;
+    }
+
     // for DataKeySieve
-    void offer(Object o) {
+    synchronized void offer(Object o) {
         ic.offer(o);
     }
 
     // for DataKeySieve
-    long count() {
+    synchronized long count() {
         return ic.cardinality();
     }
 
@@ -271,7 +377,10 @@ public class DataCounting extends TreeNodeData<DataCounting.Config> implements C
             case STRING:
             case BYTES:
             case CUSTOM:
-                ic.offer(value.toString());
+                String string = value.toString();
+                synchronized (this) {
+                    ic.offer(string);
+                }
                 break;
             case ARRAY:
                 ValueArray arr = value.asArray();
@@ -288,8 +397,17 @@ public class DataCounting extends TreeNodeData<DataCounting.Config> implements C
         }
     }
 
+    /**
+     * The estimator is guarded by the monitor of the attachment so
+     * updates do not need the write lock of the node.
+     */
+    @Override
+    public boolean concurrentUpdates() {
+        return true;
+    }
+
     @Override
-    public ValueObject getValue(String key) {
+    public synchronized ValueObject getValue(String key) {
         if (key != null) {
             if (key.equals("count")) {
                 return ValueFactory.create(ic.cardinality());
@@ -301,7 +419,13 @@ public class DataCounting extends TreeNodeData<DataCounting.Config> implements C
                 return ValueFactory.create(ic.offer(key.substring(4, key.length() - 1)) ? 1 : 0);
             }
         }
-        return new LCValue(ic);
+        // snapshot under the monitor so the value does not share the live
+        // estimator with concurrent updates
+        try {
+            return new LCValue(ver, ic.getBytes());
+        } catch (IOException e) {
+            throw new ValueTranslationException(e);
+        }
     }
 
     @Override
@@ -354,7 +478,7 @@ public class DataCounting extends TreeNodeData<DataCounting.Config> implements C
     }
 
     @Override
-    public void preEncode() {
+    public synchronized void preEncode() {
         try {
             M = ic.getBytes();
         } catch (IOException e) {
@@ -400,10 +524,125 @@ public class DataCounting extends TreeNodeData<DataCounting.Config> implements C
             this.lc = lc;
         }
 
+        private LCValue(int ver, byte[] bytes) {
+            this.ver = ver;
+            this.bytes = bytes;
+        }
+
         private ICardinality lc;
 
+        /**
+         * Serialized estimator when this value was decoded or merged. The
+         * estimator is only rebuilt from these bytes when it is needed.
+         */
+        private int ver;
+        private byte[] bytes;
+
+        /**
+         * Returns a value with its own copy of the serialized estimator
+         * that can be the target of {@link #mergeRegisters(LCValue)}.
+         */
+        public static LCValue copyOf(LCValue value) {
+            if (value.bytes != null) {
+                return new LCValue(value.ver, value.bytes.clone());
+            }
+            try {
+                return new LCValue(value.type(), value.lc.getBytes());
+            } catch (IOException e) {
+                throw new ValueTranslationException(e);
+            }
+        }
+
+        /**
+         * Merges the registers of another hll or hllp value into this one in
+         * place. This value must have been created by {@link #copyOf(LCValue)}.
+         * Returns false and leaves this value unchanged if the estimators do
+         * not both hold register arrays of the same precision.
+         */
+        public boolean mergeRegisters(LCValue other) {
+            if (bytes == null || (ver != VER_HYPER_LOG_LOG && ver != VER_HLL_PLUS)) {
+                return false;
+            }
+            byte[] source;
+            if (other.bytes != null) {
+                if (other.ver != ver) {
+                    return false;
+                }
+                source = other.bytes;
+            } else {
+                if (other.type() != ver) {
+                    return false;
+                }
+                try {
+                    source = other.lc.getBytes();
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+            if (DataCounting.mergeRegisters(bytes, source)) {
+                lc = null;
+                return true;
+            }
+            return false;
+        }
+
+        private ICardinality estimator() {
+            if (lc == null) {
+                lc = build(ver, bytes);
+            }
+            return lc;
+        }
+
+        private int type() {
+            if (lc == null) {
+                return ver;
+            }
+            Class<?> c = lc.getClass();
+            // note we don't track VER_COUNTEST_HLL differently here because
+            // it gets treated the same as VER_COUNTEST
+            return (c == LinearCounting.class ? VER_LINEAR
+                                              : c == AdaptiveCounting.class ? VER_ADAPTIVE
+                                                                            : c == CountThenEstimate.class ? VER_COUNTEST
+                                                                                                           : c == LogLog.class ? VER_LOG
+                                                                                                                               : c == HyperLogLog.class ? VER_HYPER_LOG_LOG
+                                                                                                                                                        : c == HyperLogLogPlus.class ? VER_HLL_PLUS
+                                                                                                                                                                                     : -1);
+        }
+
+        private static ICardinality build(int ver, byte[] b) {
+            switch (ver) {
+                case VER_LINEAR:
+                    return new LinearCounting(b);
+                case VER_ADAPTIVE:
+                    return new AdaptiveCounting(b);
+                case VER_COUNTEST:
+                case VER_COUNTEST_HLL:
+                    try {
+                        return new CountThenEstimate(b);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                case VER_LOG:
+                    return new LogLog(b);
+                case VER_HYPER_LOG_LOG:
+                    try {
+                        return HyperLogLog.Builder.build(b);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                case VER_HLL_PLUS:
+                    try {
+                        return HyperLogLogPlus.Builder.build(b);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                default:
+                    throw new RuntimeException("invalid count type : " + ver);
+            }
+        }
+
         private long toLong() {
-            return lc.cardinality();
+            return estimator().cardinality();
         }
 
         @Override
@@ -430,7 +669,15 @@ public class DataCounting extends TreeNodeData<DataCounting.Config> implements C
         public ValueNumber sum(ValueNumber val) {
             try {
                 if (val.getClass() == LCValue.class) {
-                    return new LCValue(lc.merge(((LCValue) val).lc));
+                    LCValue other = (LCValue) val;
+                    int type = type();
+                    if (type == VER_HYPER_LOG_LOG || type == VER_HLL_PLUS) {
+                        LCValue merged = copyOf(this);
+                        if (merged.mergeRegisters(other)) {
+                            return merged;
+                        }
+                    }
+                    return new LCValue(estimator().merge(other.estimator()));
                 }
             } catch (Exception e) {
                 throw new RuntimeException(e);
@@ -440,7 +687,7 @@ public class DataCounting extends TreeNodeData<DataCounting.Config> implements C
 
         @Override
         public String toString() {
-            return Long.toString(lc.cardinality());
+            return Long.toString(toLong());
         }
 
         @Override
@@ -465,12 +712,12 @@ public class DataCounting extends TreeNodeData<DataCounting.Config> implements C
 
         @Override
         public ValueLong asLong() throws ValueTranslationException {
-            return ValueFactory.create(lc.cardinality());
+            return ValueFactory.create(toLong());
         }
 
         @Override
         public ValueDouble asDouble() throws ValueTranslationException {
-            return ValueFactory.create(lc.cardinality()).asDouble();
+            return ValueFactory.create(toLong()).asDouble();
         }
 
         @Override
@@ -491,19 +738,9 @@ public class DataCounting extends TreeNodeData<DataCounting.Config> implements C
         @Override
         public ValueMap asMap() throws ValueTranslationException {
             try {
-                Class<?> c = lc.getClass();
-                // note we don't track VER_COUNTEST_HLL differently here because
-                // it gets treated the same as VER_COUNTEST
-                int ver = (c == LinearCounting.class ? VER_LINEAR
-                                                     : c == AdaptiveCounting.class ? VER_ADAPTIVE
-                                                                                   : c == CountThenEstimate.class ? VER_COUNTEST
-                                                                                                                  : c == LogLog.class ? VER_LOG
-                                                                                                                                      : c == HyperLogLog.class ? VER_HYPER_LOG_LOG
-                                                                                                                                                               : c == HyperLogLogPlus.class ? VER_HLL_PLUS
-                                                                                                                                                                                            : -1);
                 ValueMap map = ValueFactory.createMap();
-                map.put("t", ValueFactory.create(ver));
-                map.put("b", ValueFactory.create(lc.getBytes()));
+                map.put("t", ValueFactory.create(type()));
+                map.put("b", ValueFactory.create(bytes != null ? bytes : lc.getBytes()));
                 return map;
             } catch (Exception ex) {
                 throw new ValueTranslationException(ex);
@@ -513,37 +750,18 @@ public class DataCounting extends TreeNodeData<DataCounting.Config> implements C
         @Override
         public void setValues(ValueMap map) {
             byte b[] = map.get("b").asBytes().getBytes();
-            switch ((int) map.get("t").asLong().getLong()) {
+            int t = (int) map.get("t").asLong().getLong();
+            switch (t) {
                 case VER_LINEAR:
-                    lc = new LinearCounting(b);
-                    break;
                 case VER_ADAPTIVE:
-                    lc = new AdaptiveCounting(b);
-                    break;
                 case VER_COUNTEST:
                 case VER_COUNTEST_HLL:
-                    try {
-                        lc = new CountThenEstimate(b);
-                    } catch (Exception e) {
-                        throw new RuntimeException(e);
-                    }
-                    break;
                 case VER_LOG:
-                    lc = new LogLog(b);
-                    break;
                 case VER_HYPER_LOG_LOG:
-                    try {
-                        lc = HyperLogLog.Builder.build(b);
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                    break;
                 case VER_HLL_PLUS:
-                    try {
-                        lc = HyperLogLogPlus.Builder.build(b);
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
+                    ver = t;
+                    bytes = b;
+                    lc = null;
                     break;
                 default:
                     throw new RuntimeException("invalid count type : " + map.get("t"));
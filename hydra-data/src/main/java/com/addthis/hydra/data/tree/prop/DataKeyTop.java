@@ -190,6 +190,18 @@ public class DataKeyTop extends TreeNodeData<DataKeyTop.Config> implements Codec
         }
     }
 
+    /**
+     * Keys are added with their counts so the result is
+     * approximate once either topper has evicted keys.
+     */
+    @Override
+    public boolean merge(TreeNodeData<?> other) {
+        for (Entry<String, Long> entry : ((DataKeyTop) other).top.getSortedEntries()) {
+            top.increment(entry.getKey(), (int) Math.min(entry.getValue(), Integer.MAX_VALUE), size);
+        }
+        return true;
+    }
+
     @Override
     public ValueObject getValue(String key) {
         if (key != null && key.length() > 0) {
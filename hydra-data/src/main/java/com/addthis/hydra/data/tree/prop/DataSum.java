@@ -13,6 +13,8 @@
  */
 package com.addthis.hydra.data.tree.prop;
 
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
 import com.addthis.bundle.core.BundleField;
 import com.addthis.bundle.util.ValueUtil;
 import com.addthis.bundle.value.ValueFactory;
@@ -97,17 +99,22 @@ public class DataSum extends TreeNodeData<DataSum.Config> {
         }
     }
 
+    private static final AtomicLongFieldUpdater<DataSum> sumUpdater =
+            AtomicLongFieldUpdater.newUpdater(DataSum.class, "sum");
+    private static final AtomicLongFieldUpdater<DataSum> numUpdater =
+            AtomicLongFieldUpdater.newUpdater(DataSum.class, "num");
+
     @Codec.Set(codable = true)
-    private long sum;
+    private volatile long sum;
     @Codec.Set(codable = true)
-    private long num;
+    private volatile long num;
 
     private BundleField keyField;
 
     private void sum(ValueObject vo, int value, int base, boolean countMissing) {
         if (countMissing && vo == null) {
-            sum += value;
-            num++;
+            sumUpdater.addAndGet(this, value);
+            numUpdater.incrementAndGet(this);
             return;
         } else if (vo == null) {
             return;
@@ -120,21 +127,21 @@ public class DataSum extends TreeNodeData<DataSum.Config> {
         }
         if (base > 0) {
             try {
-                sum += ValueUtil.asNumberOrParseLong(vo, base).asLong().getLong();
+                sumUpdater.addAndGet(this, ValueUtil.asNumberOrParseLong(vo, base).asLong().getLong());
             } catch (NumberFormatException nfe) {
                 log.warn("Error adding data summing. " + vo + " is not a number");
             }
         } else {
-            sum += vo.toString().length();
+            sumUpdater.addAndGet(this, vo.toString().length());
         }
-        num++;
+        numUpdater.incrementAndGet(this);
     }
 
     @Override
     public boolean updateChildData(DataTreeNodeUpdater state, DataTreeNode tn, DataSum.Config conf) {
         if (conf.key == null) {
-            num++;
-            sum += conf.value;
+            numUpdater.incrementAndGet(this);
+            sumUpdater.addAndGet(this, conf.value);
             return true;
         }
         if (keyField == null && conf.key != null) {
@@ -144,6 +151,19 @@ public class DataSum extends TreeNodeData<DataSum.Config> {
         return true;
     }
 
+    @Override
+    public boolean concurrentUpdates() {
+        return true;
+    }
+
+    @Override
+    public boolean merge(TreeNodeData<?> other) {
+        DataSum sum = (DataSum) other;
+        sumUpdater.addAndGet(this, sum.sum);
+        numUpdater.addAndGet(this, sum.num);
+        return true;
+    }
+
     @Override
     public ValueObject getValue(String key) {
         if (key.equals("sum")) {
@@ -162,6 +162,12 @@ public class DataTDigest extends TreeNodeData<DataTDigest.Config> implements Cod
         return false;
     }
 
+    @Override
+    public boolean merge(TreeNodeData<?> other) {
+        filter.add(((DataTDigest) other).filter);
+        return true;
+    }
+
     @Override
     public void postDecode() {
         filter = TDigest.fromBytes(ByteBuffer.wrap(raw));
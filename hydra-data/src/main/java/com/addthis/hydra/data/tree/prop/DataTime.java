@@ -98,6 +98,14 @@ public class DataTime extends TreeNodeData<DataTime.Config> {
         return true;
     }
 
+    @Override
+    public boolean merge(TreeNodeData<?> other) {
+        DataTime time = (DataTime) other;
+        first = Math.min(first, time.first);
+        last = Math.max(last, time.last);
+        return true;
+    }
+
     @Override
     public ValueObject getValue(String key) {
         if (key == null) {
@@ -68,6 +68,31 @@ public final class ConcurrentKeyTopper implements Codec.SuperCodable, Codec.Byte
     @MemoryCounter.Mem(estimate = false, size = 64)
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
+    /**
+     * Min-heap of the keys in the map ordered by the count each key had
+     * when it was added to the heap. Counts only grow so a stale entry is
+     * refreshed when it reaches the top instead of on every increment.
+     * Built on the first eviction and guarded by the write lock.
+     * The array and its entries are walked by the memory estimate.
+     */
+    private HeapEntry[] heap;
+
+    private int heapSize;
+
+    private static final class HeapEntry {
+
+        // the key is shared with the map so only the reference is counted
+        @MemoryCounter.Mem(estimate = false, size = 8)
+        final String key;
+
+        long count;
+
+        HeapEntry(String key, long count) {
+            this.key = key;
+            this.count = count;
+        }
+    }
+
     @Override
     public String toString() {
         return "topper(map:" + map.toString() + ",lossy:" + lossy + ")";
@@ -75,6 +100,7 @@ public final class ConcurrentKeyTopper implements Codec.SuperCodable, Codec.Byte
 
     public ConcurrentKeyTopper init(int size) {
         map = new ConcurrentHashMapV8<>(size + 16, 0.75f, 4);
+        heap = null;
         this.lossy = true;
 
         return this;
@@ -82,6 +108,7 @@ public final class ConcurrentKeyTopper implements Codec.SuperCodable, Codec.Byte
 
     public ConcurrentKeyTopper init() {
         map = new ConcurrentHashMapV8<>(16, 0.75f, 4);
+        heap = null;
         this.lossy = true;
         return this;
     }
@@ -113,6 +140,84 @@ public final class ConcurrentKeyTopper implements Codec.SuperCodable, Codec.Byte
         return minKey;
     }
 
+    /**
+     * Precondition: the writelock is held
+     */
+    private void buildHeap() {
+        int size = map.size();
+        if (heap == null || heap.length < size + 1) {
+            heap = new HeapEntry[size + 16];
+        }
+        heapSize = 0;
+        for (Map.Entry<String, Long> entry : map.entrySet()) {
+            heap[heapSize++] = new HeapEntry(entry.getKey(), entry.getValue());
+        }
+        Arrays.fill(heap, heapSize, heap.length, null);
+        for (int i = (heapSize >>> 1) - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    /**
+     * Removes and returns the key with the smallest count.
+     * Precondition: the writelock is held and the map is not empty
+     */
+    private String pollMinKey() {
+        // keys added while the map was not full are missing from the heap
+        if (heap == null || heapSize != map.size()) {
+            buildHeap();
+        }
+        while (true) {
+            HeapEntry top = heap[0];
+            long count = map.get(top.key);
+            if (count == top.count) {
+                heapSize--;
+                heap[0] = heap[heapSize];
+                heap[heapSize] = null;
+                siftDown(0);
+                return top.key;
+            }
+            top.count = count;
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Precondition: the writelock is held
+     */
+    private void pushHeap(String key, long count) {
+        if (heapSize == heap.length) {
+            heap = Arrays.copyOf(heap, heapSize * 2);
+        }
+        int pos = heapSize++;
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (heap[parent].count <= count) {
+                break;
+            }
+            heap[pos] = heap[parent];
+            pos = parent;
+        }
+        heap[pos] = new HeapEntry(key, count);
+    }
+
+    private void siftDown(int pos) {
+        HeapEntry entry = heap[pos];
+        int half = heapSize >>> 1;
+        while (pos < half) {
+            int child = 2 * pos + 1;
+            if (child + 1 < heapSize && heap[child + 1].count < heap[child].count) {
+                child++;
+            }
+            if (entry.count <= heap[child].count) {
+                break;
+            }
+            heap[pos] = heap[child];
+            pos = child;
+        }
+        heap[pos] = entry;
+    }
+
     /**
      * returns the list sorted by greatest to least count.
      */
@@ -164,7 +269,7 @@ public final class ConcurrentKeyTopper implements Codec.SuperCodable, Codec.Byte
                 }
             }
 
-            String key = findMinKey();
+            String key = pollMinKey();
 
             long minValue = map.get(key);
 
@@ -172,12 +277,15 @@ public final class ConcurrentKeyTopper implements Codec.SuperCodable, Codec.Byte
 
             // if weight is one then we used the staging area
             // and that should be counted as an instance
+            long newValue;
             if (weight == 1) {
-                map.put(newKey, minValue + 1);
+                newValue = minValue + 1;
                 staging.set(null);
             } else {
-                map.put(newKey, minValue + weight - 1);
+                newValue = minValue + weight - 1;
             }
+            map.put(newKey, newValue);
+            pushHeap(newKey, newValue);
 
             return key;
         } finally {
@@ -290,7 +398,7 @@ public final class ConcurrentKeyTopper implements Codec.SuperCodable, Codec.Byte
 
     @Override
     public byte[] bytesEncode(long version) {
-        preEncode();
+        // the minimum computed by preEncode() is not part of this encoding
         if (map.size() == 0) {
             return EMPTY;
         }
@@ -322,6 +430,7 @@ public final class ConcurrentKeyTopper implements Codec.SuperCodable, Codec.Byte
 
     @Override
     public void bytesDecode(byte[] b, long version) {
+        heap = null;
         if (b.length == 0) {
             map = new ConcurrentHashMapV8<>(16, 0.75f, 4);
             return;
@@ -0,0 +1,176 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Sum spread over padded cells so that threads adding concurrently
+ * usually update different cache lines. Intended as the overflow of a
+ * plain counter field that is created once a compare-and-set on that
+ * field has failed, in the manner of {@code LongAdder}.
+ * <p/>
+ * As in {@code LongAdder} the cells are created lazily. The table starts
+ * with two slots, a cell is only created when a thread first adds to its
+ * slot, and the table doubles up to the number of processors when adding
+ * to a cell fails because of contention.
+ * <p/>
+ * {@link #seal()} returns the sum and stops further additions so that
+ * the owner can fold the cells back into its counter field and drop them.
+ */
+public final class StripedLong {
+
+    private static final int MAX_CELLS = Integer.highestOneBit(
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+
+    /**
+     * Value of a cell once the cells have been sealed.
+     */
+    private static final long SEALED = Long.MIN_VALUE;
+
+    /**
+     * Padded to keep the values of cells on different cache lines.
+     */
+    @SuppressWarnings("unused")
+    static final class Cell {
+
+        private static final AtomicLongFieldUpdater<Cell> valueUpdater =
+                AtomicLongFieldUpdater.newUpdater(Cell.class, "value");
+
+        volatile long value;
+        long p0, p1, p2, p3, p4, p5, p6;
+
+        boolean cas(long expect, long update) {
+            return valueUpdater.compareAndSet(this, expect, update);
+        }
+
+        long getAndSet(long update) {
+            return valueUpdater.getAndSet(this, update);
+        }
+    }
+
+    private volatile Cell[] cells = new Cell[Math.min(2, MAX_CELLS)];
+
+    private boolean sealed;
+
+    private static int hash() {
+        long id = Thread.currentThread().getId();
+        return ((int) (id ^ (id >>> 32)) * 0x9e3779b9) >>> 16;
+    }
+
+    /**
+     * Adds the delta to the sum. Returns false without adding
+     * anything if the cells have been sealed.
+     */
+    public boolean add(long delta) {
+        int hash = hash();
+        while (true) {
+            Cell[] table = cells;
+            Cell cell = table[hash & (table.length - 1)];
+            if (cell == null) {
+                cell = createCell(hash);
+                if (cell == null) {
+                    return false;
+                }
+            }
+            long current = cell.value;
+            if (current == SEALED) {
+                return false;
+            }
+            if (cell.cas(current, current + delta)) {
+                return true;
+            }
+            if (table.length < MAX_CELLS) {
+                expand(table);
+            }
+        }
+    }
+
+    private synchronized Cell createCell(int hash) {
+        if (sealed) {
+            return null;
+        }
+        Cell[] table = cells;
+        int index = hash & (table.length - 1);
+        if (table[index] == null) {
+            table[index] = new Cell();
+        }
+        return table[index];
+    }
+
+    private synchronized void expand(Cell[] table) {
+        if (!sealed && cells == table) {
+            cells = Arrays.copyOf(table, table.length << 1);
+        }
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (Cell cell : cells) {
+            if (cell != null) {
+                long value = cell.value;
+                if (value != SEALED) {
+                    sum += value;
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the sum and subtracts it from the cells. Additions that
+     * race with the drain are either returned or remain in the cells.
+     */
+    public long drain() {
+        long sum = 0;
+        for (Cell cell : cells) {
+            if (cell != null) {
+                while (true) {
+                    long value = cell.value;
+                    if (value == SEALED) {
+                        break;
+                    }
+                    if (cell.cas(value, 0)) {
+                        sum += value;
+                        break;
+                    }
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the sum and makes every later {@link #add(long)} fail.
+     * Each addition is either included in the result or fails.
+     */
+    public long seal() {
+        Cell[] table;
+        synchronized (this) {
+            sealed = true;
+            table = cells;
+        }
+        long sum = 0;
+        for (Cell cell : table) {
+            if (cell != null) {
+                long value = cell.getAndSet(SEALED);
+                if (value != SEALED) {
+                    sum += value;
+                }
+            }
+        }
+        return sum;
+    }
+}
@@ -13,8 +13,24 @@
  */
 package com.addthis.hydra.data.query;
 
+import java.io.File;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.addthis.basis.util.Files;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.hydra.data.channel.BlockingBufferedConsumer;
+
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+
 public class TestOpGather extends TestOp {
 
     @Test
@@ -30,9 +46,9 @@ public class TestOpGather extends TestOp {
                         tr().td("a", "1", "2", "3"),
                 "gather=ksssu",
                 new DataTableHelper().
+                        tr().td("a", "3", "6", "9", "3").
                         tr().td("b", "2", "4", "6", "2").
-                        tr().td("c", "2", "4", "6", "2").
-                        tr().td("a", "3", "6", "9", "3")
+                        tr().td("c", "2", "4", "6", "2")
         );
         doOpTest(
                 new DataTableHelper().
@@ -45,9 +61,9 @@ public class TestOpGather extends TestOp {
                         tr().td("a", "1", "2", "3"),
                 "gather=kaaa",
                 new DataTableHelper().
+                        tr().td("a", "1", "3", "3").
                         tr().td("b", "4", "5", "3").
-                        tr().td("c", "4", "2", "4").
-                        tr().td("a", "1", "3", "3")
+                        tr().td("c", "4", "2", "4")
         );
         doOpTest(
                 new DataTableHelper().
@@ -60,9 +76,9 @@ public class TestOpGather extends TestOp {
                         tr().td("a", "1", "2", "3"),
                 "gather=ksss",
                 new DataTableHelper().
+                        tr().td("a", "3", "9", "6").
                         tr().td("b", "8", "8", "6").
-                        tr().td("c", "1", "4", "4").
-                        tr().td("a", "3", "9", "6")
+                        tr().td("c", "1", "4", "4")
         );
         doOpTest(
                 new DataTableHelper().
@@ -75,9 +91,9 @@ public class TestOpGather extends TestOp {
                         tr().td("a", "1", "2", "3"),
                 "gather=kiss",
                 new DataTableHelper().
+                        tr().td("a", "6", "9").
                         tr().td("b", "4", "6").
-                        tr().td("c", "4", "6").
-                        tr().td("a", "6", "9")
+                        tr().td("c", "4", "6")
         );
         doOpTest(
                 new DataTableHelper().
@@ -174,6 +190,64 @@ public class TestOpGather extends TestOp {
         );
     }
 
+    private static Map<String, String> gather(String ops, boolean spill) throws Exception {
+        System.setProperty("opgather.tiptodisk", Boolean.toString(spill));
+        File tmp = Files.createTempDir();
+        try {
+            ListBundleFormat format = new ListBundleFormat();
+            BundleField[] fields = new BundleField[5];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = format.getField("c" + i);
+            }
+            BlockingBufferedConsumer buffer = new BlockingBufferedConsumer();
+            QueryOpProcessor qp = new QueryOpProcessor.Builder(buffer, new String[]{ops})
+                    .tempDir(tmp).memTip(0).rowTip(spill ? 7 : 0).build();
+            for (int i = 0; i < 1000; i++) {
+                Bundle row = new ListBundle(format);
+                row.setValue(fields[0], ValueFactory.create("key" + (i * 7 % 53)));
+                row.setValue(fields[1], ValueFactory.create(i));
+                row.setValue(fields[2], ValueFactory.create(i / 4.0));
+                row.setValue(fields[3], ValueFactory.create(i % 11));
+                if (i % 3 == 0) {
+                    row.setValue(fields[4], ValueFactory.create("v" + i));
+                }
+                qp.send(row);
+            }
+            qp.sendComplete();
+            Map<String, String> result = new HashMap<>();
+            for (Bundle row : buffer.getTable()) {
+                result.put(row.getValue(row.getFormat().getField(0)).toString(), row.toString());
+            }
+            qp.close();
+            return result;
+        } finally {
+            System.clearProperty("opgather.tiptodisk");
+            Files.deleteDir(tmp);
+        }
+    }
+
+    @Test
+    public void testGatherSpillsPartitions() throws Exception {
+        for (String ops : new String[]{"gather=ksaMju", "gather=kdmdl", "gather=kasmu"}) {
+            Map<String, String> expected = gather(ops, false);
+            assertEquals(53, expected.size());
+            assertEquals(expected, gather(ops, true));
+        }
+    }
+
+    @Test
+    public void testGatherMergesPartitionsInPasses() throws Exception {
+        // a row tip of 7 spills far more than 3 partitions, so they are merged in several passes
+        System.setProperty("opgather.spill.fanin", "3");
+        try {
+            for (String ops : new String[]{"gather=ksaMju", "gather=kdmdl", "gather=kasmu"}) {
+                assertEquals(gather(ops, false), gather(ops, true));
+            }
+        } finally {
+            System.clearProperty("opgather.spill.fanin");
+        }
+    }
+
     //@Test
     public void comparePerformance() throws Exception {
         long inMemoryTime = 0;
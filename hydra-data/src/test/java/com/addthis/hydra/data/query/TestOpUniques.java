@@ -0,0 +1,69 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query;
+
+import java.util.Iterator;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.hydra.data.channel.BlockingBufferedConsumer;
+import com.addthis.hydra.data.tree.prop.DataCounting;
+
+import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
+import com.clearspring.analytics.stream.cardinality.ICardinality;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TestOpUniques {
+
+    @Test
+    public void testUniques() throws Exception {
+        ListBundleFormat format = new ListBundleFormat();
+        BundleField day = format.getField("day");
+        BundleField site = format.getField("site");
+        BundleField ips = format.getField("ips");
+        BlockingBufferedConsumer buffer = new BlockingBufferedConsumer();
+        QueryOpProcessor qp = new QueryOpProcessor.Builder(buffer, new String[]{"uniques=iku"}).build();
+        ICardinality[] expected = {new HyperLogLogPlus(10), new HyperLogLogPlus(10)};
+        for (int i = 0; i < 40; i++) {
+            HyperLogLogPlus estimator = new HyperLogLogPlus(10);
+            for (int j = 0; j < 500; j++) {
+                estimator.offer("ip-" + (i * 100 + j));
+            }
+            expected[i % 2] = expected[i % 2].merge(estimator);
+            Bundle row = new ListBundle(format);
+            row.setValue(day, ValueFactory.create("1403" + i));
+            row.setValue(site, ValueFactory.create("site" + (i % 2)));
+            row.setValue(ips, new DataCounting.LCValue(estimator));
+            qp.send(row);
+        }
+        qp.sendComplete();
+        Iterator<Bundle> rows = buffer.getTable().iterator();
+        for (int i = 0; i < 2; i++) {
+            Bundle row = rows.next();
+            assertEquals(2, row.getCount());
+            assertEquals("site" + i, row.getValue(row.getFormat().getField("site")).toString());
+            assertEquals(expected[i].cardinality(),
+                    row.getValue(row.getFormat().getField("ips")).asLong().getLong());
+        }
+        assertFalse(rows.hasNext());
+        qp.close();
+    }
+}
@@ -13,6 +13,16 @@
  */
 package com.addthis.hydra.data.query;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.hydra.data.channel.BlockingBufferedConsumer;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -33,4 +43,85 @@ public class TestQuery {
         Query subQ = q.createPipelinedQuery();
         System.out.println(subQ.toString());
     }
+
+    @Test
+    public void pipelineCombine() {
+        String path = "+:+hits";
+        Query q = new Query("job", new String[] { path }, new String[] {"gather=iksu;sort=0", null});
+        Query subQ = q.createPipelinedQuery();
+        Assert.assertArrayEquals(new String[] {"gather=iksu", null}, subQ.getOps());
+        Assert.assertArrayEquals(new String[] {"gather=kss;sort=0"}, q.getOps());
+
+        q = new Query("job", new String[] { path }, new String[] {"histo=1,10", "map=x"});
+        subQ = q.createPipelinedQuery();
+        Assert.assertArrayEquals(new String[] {"histo=1,10", "map=x"}, subQ.getOps());
+        Assert.assertArrayEquals(new String[] {"gather=ks;sort=0:n:a"}, q.getOps());
+
+        for (String ops : new String[] {"gather=kau", "gather=kt5s", "merge=ks3", "sum=1", "sum=S1", "nodup", "sort"}) {
+            q = new Query("job", new String[] { path }, new String[] {ops});
+            subQ = q.createPipelinedQuery();
+            Assert.assertArrayEquals(new String[0], subQ.getOps());
+            Assert.assertArrayEquals(new String[] {ops}, q.getOps());
+        }
+
+        q = new Query("job", new String[] { path }, new String[] {"gather=ks"});
+        q.setParameter("combine", false);
+        subQ = q.createPipelinedQuery();
+        Assert.assertArrayEquals(new String[0], subQ.getOps());
+    }
+
+    private static List<String> run(String ops, List<List<Bundle>> sources) throws Exception {
+        BlockingBufferedConsumer buffer = new BlockingBufferedConsumer();
+        QueryOpProcessor qp = new QueryOpProcessor.Builder(buffer, new String[] {ops}).build();
+        for (List<Bundle> source : sources) {
+            for (Bundle row : source) {
+                qp.send(row);
+            }
+        }
+        qp.sendComplete();
+        List<String> result = new ArrayList<>();
+        for (Bundle row : buffer.getTable()) {
+            result.add(row.toString());
+        }
+        qp.close();
+        return result;
+    }
+
+    @Test
+    public void combinedResults() throws Exception {
+        ListBundleFormat format = new ListBundleFormat();
+        BundleField[] fields = {format.getField("day"), format.getField("site"), format.getField("hits")};
+        List<List<Bundle>> sources = new ArrayList<>();
+        for (int task = 0; task < 4; task++) {
+            List<Bundle> source = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                Bundle row = new ListBundle(format);
+                row.setValue(fields[0], ValueFactory.create(i % 7));
+                row.setValue(fields[1], ValueFactory.create("site" + (i * task % 5)));
+                row.setValue(fields[2], ValueFactory.create(i * task * 13 % 1000));
+                source.add(row);
+            }
+            sources.add(source);
+        }
+        for (String ops : new String[] {"gather=iksu;sort=0", "gather=kimu;sort=0", "uniques=kii", "histo=2,10"}) {
+            String[] combined = QueryOpProcessor.combine(ops);
+            Assert.assertNotNull(ops, combined);
+            List<List<Bundle>> partials = new ArrayList<>();
+            for (List<Bundle> source : sources) {
+                List<Bundle> partial = new ArrayList<>();
+                BlockingBufferedConsumer buffer = new BlockingBufferedConsumer();
+                QueryOpProcessor qp = new QueryOpProcessor.Builder(buffer, new String[] {combined[0]}).build();
+                for (Bundle row : source) {
+                    qp.send(row);
+                }
+                qp.sendComplete();
+                for (Bundle row : buffer.getTable()) {
+                    partial.add(row);
+                }
+                qp.close();
+                partials.add(partial);
+            }
+            Assert.assertEquals(ops, run(ops, sources), run(combined[1], partials));
+        }
+    }
 }
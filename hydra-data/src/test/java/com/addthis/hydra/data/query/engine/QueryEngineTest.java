@@ -0,0 +1,151 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query.engine;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import com.addthis.basis.util.Files;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.hydra.data.channel.BlockingBufferedConsumer;
+import com.addthis.hydra.data.query.Query;
+import com.addthis.hydra.data.query.QueryStatusObserver;
+import com.addthis.hydra.data.tree.ConcurrentTree;
+import com.addthis.hydra.data.tree.DataTreeNode;
+import com.addthis.hydra.store.db.CloseOperation;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class QueryEngineTest {
+
+    private static File dir;
+    private static ConcurrentTree tree;
+
+    @BeforeClass
+    public static void build() throws Exception {
+        dir = Files.createTempDir();
+        tree = new ConcurrentTree.Builder(dir).build();
+        DataTreeNode root = tree.getRootNode();
+        for (int i = 0; i < 2000; i++) {
+            DataTreeNode parent = root.getOrCreateNode("key" + (i % 20), null);
+            parent.incrementCounter();
+            DataTreeNode child = parent.getOrCreateNode(Integer.toString(i), null);
+            child.incrementCounter();
+            child.release();
+            parent.release();
+        }
+    }
+
+    @AfterClass
+    public static void close() throws Exception {
+        tree.close(false, CloseOperation.NONE);
+        Files.deleteDir(dir);
+    }
+
+    private static List<String> search(Query query, Semaphore gate) throws Exception {
+        BlockingBufferedConsumer consumer = new BlockingBufferedConsumer();
+        new QueryEngine(tree).search(query, consumer, new QueryStatusObserver(), gate);
+        consumer.sendComplete();
+        List<String> rows = new ArrayList<>();
+        for (Bundle row : consumer.getTable()) {
+            rows.add(row.toString());
+        }
+        return rows;
+    }
+
+    private static Query query() {
+        return new Query("job", new String[]{"+:+hits/+:+hits"}, null);
+    }
+
+    @Test
+    public void parallelOrdered() throws Exception {
+        List<String> expected = search(query(), null);
+        assertEquals(2000, expected.size());
+        for (int depth = 0; depth < 2; depth++) {
+            Semaphore gate = new Semaphore(3);
+            Query query = query();
+            query.setParameter("parallelDepth", depth);
+            assertEquals(expected, search(query, gate));
+            assertEquals(3, gate.availablePermits());
+        }
+    }
+
+    @Test
+    public void parallelUnordered() throws Exception {
+        List<String> expected = search(query(), null);
+        Query query = query();
+        query.setParameter("parallelDepth", 0);
+        query.setParameter("unordered", true);
+        List<String> rows = search(query, new Semaphore(3));
+        Collections.sort(expected);
+        Collections.sort(rows);
+        assertEquals(expected, rows);
+    }
+
+    @Test
+    public void busyGate() throws Exception {
+        Query query = query();
+        query.setParameter("parallelDepth", 0);
+        assertEquals(search(query(), null), search(query, new Semaphore(0)));
+    }
+
+    @Test
+    public void permitsPerQueryCapped() throws Exception {
+        final Semaphore gate = new Semaphore(10);
+        final List<Integer> available = new ArrayList<>();
+        BlockingBufferedConsumer consumer = new BlockingBufferedConsumer() {
+            @Override
+            public void send(Bundle row) {
+                available.add(gate.availablePermits());
+            }
+        };
+        Query query = query();
+        query.setParameter("parallelDepth", 0);
+        new QueryEngine(tree).search(query, consumer, new QueryStatusObserver(), gate);
+        assertEquals(2000, available.size());
+        assertEquals(8, (int) available.get(0));
+        assertEquals(10, gate.availablePermits());
+    }
+
+    @Test
+    public void sinkErrorEndsSubtrees() throws Exception {
+        Semaphore gate = new Semaphore(3);
+        BlockingBufferedConsumer consumer = new BlockingBufferedConsumer() {
+            @Override
+            public void send(Bundle row) {
+                throw new IllegalStateException("sink failed");
+            }
+        };
+        Query query = query();
+        query.setParameter("parallelDepth", 1);
+        try {
+            new QueryEngine(tree).search(query, consumer, new QueryStatusObserver(), gate);
+            fail("sink error was not thrown");
+        } catch (IllegalStateException ex) {
+            assertEquals("sink failed", ex.getMessage());
+        }
+        assertEquals(3, gate.availablePermits());
+        assertEquals(2000, search(query, gate).size());
+    }
+}
@@ -19,7 +19,9 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CyclicBarrier;
 
 import com.addthis.basis.test.SlowTest;
@@ -36,6 +38,7 @@ import org.slf4j.LoggerFactory;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class TestConcurrentTree {
@@ -505,5 +508,65 @@ public class TestConcurrentTree {
         }
     }
 
+    @Test
+    public void testConcurrentCounter() throws Exception {
+        File dir = makeTemporaryDirectory();
+        try {
+            final int numThreads = 8;
+            final int increments = 100000;
+            final ConcurrentTree tree = new ConcurrentTree.Builder(dir).build();
+            final ConcurrentTreeNode root = tree.getRootNode();
+            final CyclicBarrier barrier = new CyclicBarrier(numThreads);
+            final Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+            ConcurrentTreeNode encoded = tree.getOrCreateNode(root, "hot", null);
+            Thread[] threads = new Thread[numThreads];
+            for (int i = 0; i < numThreads; i++) {
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            barrier.await();
+                            ConcurrentTreeNode node = tree.getOrCreateNode(root, "hot", null);
+                            for (int j = 0; j < increments; j++) {
+                                node.incrementCounter();
+                            }
+                            node.markChanged();
+                            node.release();
+                        } catch (Throwable e) {
+                            errors.add(e);
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            // encoding folds and drops the contended cells while threads increment
+            for (int i = 0; i < numThreads; i++) {
+                while (threads[i].isAlive()) {
+                    encoded.bytesEncode(1);
+                    threads[i].join(1);
+                }
+            }
+            encoded.release();
+            assertTrue(errors.toString(), errors.isEmpty());
+            ConcurrentTreeNode node = tree.getNode(root, "hot", true);
+            assertEquals(numThreads * increments, node.getCounter());
+            ConcurrentTreeNode decoded = new ConcurrentTreeNode();
+            decoded.bytesDecode(node.bytesEncode(1), 1);
+            assertEquals(numThreads * increments, decoded.getCounter());
+            node.setCounter(5);
+            assertEquals(5, node.getCounter());
+            node.release();
+            tree.close(false, close);
+            ConcurrentTree reopened = new ConcurrentTree.Builder(dir).build();
+            node = reopened.getNode(reopened.getRootNode(), "hot", true);
+            assertEquals(5, node.getCounter());
+            node.release();
+            reopened.close(false, close);
+        } finally {
+            if (dir != null) {
+                Files.deleteDir(dir);
+            }
+        }
+    }
 
 }
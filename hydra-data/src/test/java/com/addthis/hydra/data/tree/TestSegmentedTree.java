@@ -0,0 +1,202 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.tree;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.addthis.basis.util.ClosableIterator;
+import com.addthis.basis.util.Files;
+
+import com.addthis.hydra.store.db.CloseOperation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestSegmentedTree {
+
+    private static List<String> names(ClosableIterator<DataTreeNode> iterator) {
+        List<String> names = new ArrayList<>();
+        try {
+            while (iterator.hasNext()) {
+                names.add(iterator.next().getName());
+            }
+        } finally {
+            iterator.close();
+        }
+        return names;
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        File dir = Files.createTempDir();
+        try {
+            SegmentedTree tree = new SegmentedTree(dir, false);
+            String[] days = {"140301", "140302", "140303", ".hidden"};
+            for (int day = 0; day < days.length; day++) {
+                for (int i = 0; i < 100; i++) {
+                    DataTreeNode parent = tree.getOrCreateNode(days[day], null);
+                    parent.incrementCounter();
+                    DataTreeNode child = parent.getOrCreateNode(Integer.toString(i % (day + 1)), null);
+                    child.incrementCounter();
+                    child.release();
+                    parent.release();
+                }
+            }
+            assertEquals(4, tree.getNodeCount());
+            assertEquals(400, tree.getCounter());
+            tree.close(false, CloseOperation.TEST);
+            assertTrue(SegmentedTree.isSegmented(dir));
+
+            SegmentedTree readTree = new SegmentedTree(dir, true);
+            assertEquals(Arrays.asList(".hidden", "140301", "140302", "140303"), names(readTree.getIterator()));
+            assertEquals(Arrays.asList("140302", "140303"), names(readTree.getIterator("140302", "140304")));
+            assertEquals(Arrays.asList("140301", "140302", "140303"), names(readTree.getIterator("14")));
+            DataTreeNode node = readTree.getNode("140303");
+            assertEquals("140303", node.getName());
+            assertEquals(100, node.getCounter());
+            assertEquals(3, node.getNodeCount());
+            assertEquals(Arrays.asList("0", "1", "2"), names(node.getIterator()));
+            assertEquals(34, node.getNode("0").getCounter());
+            readTree.close();
+
+            tree = new SegmentedTree(dir, false);
+            assertTrue(tree.deleteNode("140301"));
+            assertEquals(1, tree.expireBefore("140302"));
+            assertFalse(tree.expire("140301"));
+            assertEquals(1, tree.retain(1));
+            assertEquals(Arrays.asList("140303"), tree.getSegmentNames());
+            DataTreeNode parent = tree.getLeasedNode("140303");
+            assertNotNull(parent);
+            parent.incrementCounter();
+            parent.release();
+            assertNull(tree.getNode("140302"));
+            tree.close(false, CloseOperation.TEST);
+            assertEquals(1, new File(dir, SegmentedTree.SEGMENTS).list().length);
+
+            readTree = new SegmentedTree(dir, true);
+            assertEquals(101, readTree.getCounter());
+            readTree.close();
+        } finally {
+            Files.deleteDir(dir);
+        }
+    }
+
+    @Test
+    public void testExpireWhileWriting() throws Exception {
+        File dir = Files.createTempDir();
+        try {
+            final SegmentedTree tree = new SegmentedTree(dir, false);
+            final AtomicBoolean done = new AtomicBoolean(false);
+            final AtomicReference<Throwable> error = new AtomicReference<>();
+            Thread[] writers = new Thread[4];
+            for (int i = 0; i < writers.length; i++) {
+                final Random random = new Random(i);
+                writers[i] = new Thread("WriterThread" + i) {
+                    @Override
+                    public void run() {
+                        try {
+                            while (!done.get()) {
+                                DataTreeNode parent = tree.getOrCreateNode("b" + random.nextInt(4), null);
+                                parent.incrementCounter();
+                                DataTreeNode child = parent.getOrCreateNode(Integer.toString(random.nextInt(50)), null);
+                                child.incrementCounter();
+                                child.release();
+                                parent.release();
+                            }
+                        } catch (Throwable t) {
+                            error.compareAndSet(null, t);
+                        }
+                    }
+                };
+                writers[i].start();
+            }
+            for (int i = 0; i < 200; i++) {
+                tree.expire("b" + (i % 4));
+                Thread.sleep(1);
+            }
+            done.set(true);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            assertNull(error.get());
+            tree.close(false, CloseOperation.TEST);
+
+            // only the segments that were written after their last expiry are left
+            String[] left = new File(dir, SegmentedTree.SEGMENTS).list();
+            SegmentedTree readTree = new SegmentedTree(dir, true);
+            assertEquals(left.length, readTree.getNodeCount());
+            for (String name : readTree.getSegmentNames()) {
+                DataTreeNode node = readTree.getNode(name);
+                assertEquals(node.getCounter(), sum(node));
+            }
+            readTree.close();
+        } finally {
+            Files.deleteDir(dir);
+        }
+    }
+
+    private static long sum(DataTreeNode node) {
+        long hits = 0;
+        ClosableIterator<DataTreeNode> iterator = node.getIterator();
+        try {
+            while (iterator.hasNext()) {
+                hits += iterator.next().getCounter();
+            }
+        } finally {
+            iterator.close();
+        }
+        return hits;
+    }
+
+    @Test
+    public void testIdleSegmentsClosed() throws Exception {
+        int maxOpen = SegmentedTree.maxOpenSegments;
+        SegmentedTree.maxOpenSegments = 2;
+        File dir = Files.createTempDir();
+        try {
+            SegmentedTree tree = new SegmentedTree(dir, false);
+            for (int pass = 0; pass < 3; pass++) {
+                for (int day = 0; day < 5; day++) {
+                    DataTreeNode parent = tree.getOrCreateNode("day" + day, null);
+                    parent.incrementCounter();
+                    parent.release();
+                    assertTrue(tree.getOpenSegmentCount() <= 2);
+                }
+            }
+            assertEquals(15, tree.getCounter());
+            tree.close(false, CloseOperation.TEST);
+
+            SegmentedTree readTree = new SegmentedTree(dir, true);
+            for (int day = 0; day < 5; day++) {
+                assertEquals(3, readTree.getNode("day" + day).getCounter());
+            }
+            readTree.close();
+        } finally {
+            SegmentedTree.maxOpenSegments = maxOpen;
+            Files.deleteDir(dir);
+        }
+    }
+}
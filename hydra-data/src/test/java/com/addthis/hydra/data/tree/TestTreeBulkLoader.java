@@ -0,0 +1,99 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.tree;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.StringReader;
+
+import com.addthis.basis.util.Files;
+
+import com.addthis.hydra.store.db.CloseOperation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+public class TestTreeBulkLoader {
+
+    @Test
+    public void testBulkLoad() throws Exception {
+        File dir = Files.createTempDir();
+        try {
+            int count = 500;
+            // a small buffer spills every few paths into a run
+            TreeBulkLoader loader = new TreeBulkLoader(dir, 64);
+            for (int pass = 0; pass < 2; pass++) {
+                for (int i = count - 1; i >= 0; i--) {
+                    loader.add(new String[]{"day" + (i % 7), Integer.toString(i)}, 1);
+                    loader.add(new String[]{"total"}, 2);
+                }
+            }
+            loader.close();
+            assertFalse(new File(dir, "bulk.runs").exists());
+            ConcurrentTree tree = new ConcurrentTree.Builder(dir).build();
+            ConcurrentTreeNode root = tree.getRootNode();
+            assertEquals(8, root.getNodeCount());
+            assertEquals(4 * count, tree.getNode(root, "total", false).getCounter());
+            int nodes = 0;
+            for (int day = 0; day < 7; day++) {
+                ConcurrentTreeNode parent = tree.getNode(root, "day" + day, true);
+                assertNotNull(parent);
+                nodes += parent.getNodeCount();
+                assertEquals(2 * parent.getNodeCount(), parent.getCounter());
+                for (int i = day; i < count; i += 7) {
+                    ConcurrentTreeNode node = tree.getNode(parent, Integer.toString(i), false);
+                    assertNotNull(node);
+                    assertEquals(2, node.getCounter());
+                }
+                // the loaded tree can be updated as usual
+                ConcurrentTreeNode child = tree.getOrCreateNode(parent, "new", null);
+                child.incrementCounter();
+                child.release();
+                parent.release();
+            }
+            assertEquals(count, nodes);
+            tree.close(false, CloseOperation.TEST);
+            tree = new ConcurrentTree.Builder(dir).build();
+            root = tree.getRootNode();
+            ConcurrentTreeNode parent = tree.getNode(root, "day3", false);
+            assertEquals(1, tree.getNode(parent, "new", false).getCounter());
+            tree.close(false, CloseOperation.TEST);
+        } finally {
+            Files.deleteDir(dir);
+        }
+    }
+
+    @Test
+    public void testLoadLines() throws Exception {
+        File dir = Files.createTempDir();
+        try {
+            String input = "3\ta\tb\n2\ta\tc\n\n1\ta\tb\n4\td\n";
+            assertEquals(4, TreeBulkLoader.load(dir, new BufferedReader(new StringReader(input))));
+            ConcurrentTree tree = new ConcurrentTree.Builder(dir).build();
+            ConcurrentTreeNode root = tree.getRootNode();
+            ConcurrentTreeNode a = tree.getNode(root, "a", true);
+            assertEquals(6, a.getCounter());
+            assertEquals(4, tree.getNode(a, "b", false).getCounter());
+            assertEquals(2, tree.getNode(a, "c", false).getCounter());
+            a.release();
+            assertEquals(4, tree.getNode(root, "d", false).getCounter());
+            tree.close(false, CloseOperation.TEST);
+        } finally {
+            Files.deleteDir(dir);
+        }
+    }
+}
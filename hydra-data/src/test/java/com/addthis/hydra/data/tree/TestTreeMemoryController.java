@@ -0,0 +1,146 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.tree;
+
+import java.io.File;
+
+import com.addthis.basis.util.Files;
+
+import com.addthis.hydra.store.db.CloseOperation;
+import com.addthis.hydra.store.db.DBKey;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MetricName;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestTreeMemoryController {
+
+    @Test
+    public void testFixedSizes() throws Exception {
+        File dir = Files.createTempDir();
+        try {
+            ConcurrentTree tree = new ConcurrentTree.Builder(dir).memBudget(0).build();
+            assertNull(tree.getMemoryController());
+            tree.close(false, CloseOperation.NONE);
+        } finally {
+            Files.deleteDir(dir);
+        }
+    }
+
+    @Test
+    public void testAdjust() throws Exception {
+        File dir = Files.createTempDir();
+        try {
+            long budget = 10_000_000;
+            long step = budget * TreeMemoryController.stepPercent / 100;
+            long min = budget * TreeMemoryController.minPercent / 100;
+            ConcurrentTree tree = new ConcurrentTree.Builder(dir).cleanQSize(1).memBudget(budget).build();
+            TreeMemoryController controller = tree.getMemoryController();
+            assertNotNull(controller);
+            assertEquals(budget, controller.getLimit());
+            assertEquals(min, controller.getNodeCacheMem());
+            assertEquals(min / TreeMemoryController.nodeBytes, tree.getNodeCacheCapacity());
+
+            // the node cache misses more often
+            assertTrue(controller.adjust(0.5, 0.1, 0.5, 0));
+            assertEquals(min + step, controller.getNodeCacheMem());
+            // similar miss rates
+            assertFalse(controller.adjust(0.5, 0.48, 0.5, 0));
+            // the page cache misses more often
+            assertTrue(controller.adjust(0.1, 0.5, 0.5, 0));
+            assertEquals(min, controller.getNodeCacheMem());
+            // never below the minimum share
+            assertFalse(controller.adjust(0.1, 0.5, 0.5, 0));
+
+            // the heap is nearly full
+            assertTrue(controller.adjust(0, 0, 0.95, 0));
+            assertEquals(budget - step, controller.getLimit());
+            // garbage collection takes too long
+            assertTrue(controller.adjust(0, 0, 0.7, 0.5));
+            assertEquals(budget - 2 * step, controller.getLimit());
+            // headroom returns the budget
+            assertTrue(controller.adjust(0, 0, 0.2, 0));
+            assertTrue(controller.adjust(0, 0, 0.2, 0));
+            assertEquals(budget, controller.getLimit());
+            assertFalse(controller.adjust(0, 0, 0.2, 0));
+
+            controller.update(0.5, 0, 0.5, 0);
+            assertEquals(min + step, controller.getNodeCacheMem());
+            assertEquals(controller.getNodeCacheMem() / TreeMemoryController.nodeBytes,
+                    tree.getNodeCacheCapacity());
+            tree.close(false, CloseOperation.NONE);
+        } finally {
+            Files.deleteDir(dir);
+        }
+    }
+
+    @Test
+    public void testNoMisses() throws Exception {
+        File dir = Files.createTempDir();
+        try {
+            ConcurrentTree tree = new ConcurrentTree.Builder(dir).memBudget(10_000_000).build();
+            TreeMemoryController controller = tree.getMemoryController();
+            DataTreeNode root = tree.getRootNode();
+            root.getOrCreateNode("a", null).release();
+            controller.sample(0.7, 0);
+            long nodeMem = controller.getNodeCacheMem();
+            long limit = controller.getLimit();
+
+            // node cache hits and page reads from memory, neither cache misses
+            for (int i = 0; i < 100; i++) {
+                assertNotNull(root.getNode("a"));
+                tree.getPageStore().getValue(new DBKey(0, "missing" + i));
+            }
+            // the interval meter is read elsewhere, which must not affect the controller
+            tree.getCacheHitRate();
+            controller.sample(0.7, 0);
+            assertEquals(nodeMem, controller.getNodeCacheMem());
+            assertEquals(limit, controller.getLimit());
+            tree.close(false, CloseOperation.NONE);
+        } finally {
+            Files.deleteDir(dir);
+        }
+    }
+
+    private static int controllerMetrics() {
+        int count = 0;
+        for (MetricName name : Metrics.defaultRegistry().allMetrics().keySet()) {
+            if (name.getType().equals(TreeMemoryController.class.getSimpleName())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testCloseRemovesMetrics() throws Exception {
+        File dir = Files.createTempDir();
+        try {
+            int before = controllerMetrics();
+            ConcurrentTree tree = new ConcurrentTree.Builder(dir).memBudget(10_000_000).build();
+            assertEquals(before + 5, controllerMetrics());
+            tree.close(false, CloseOperation.NONE);
+            assertEquals(before, controllerMetrics());
+        } finally {
+            Files.deleteDir(dir);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.tree;
+
+import java.io.File;
+
+import java.util.Arrays;
+
+import com.addthis.basis.util.Files;
+
+import com.addthis.hydra.data.tree.prop.DataTime;
+import com.addthis.hydra.store.db.CloseOperation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class TestTreeMerger {
+
+    private static void build(File dir, int from, int to, long time) throws Exception {
+        ConcurrentTree tree = new ConcurrentTree.Builder(dir).build();
+        ConcurrentTreeNode root = tree.getRootNode();
+        for (int i = from; i < to; i++) {
+            ConcurrentTreeNode parent = tree.getOrCreateNode(root, "key" + (i % 10), null);
+            parent.incrementCounter();
+            ConcurrentTreeNode child = tree.getOrCreateNode(parent, Integer.toString(i), null);
+            child.incrementCounter();
+            child.release();
+            parent.release();
+        }
+        ConcurrentTreeNode node = tree.getOrCreateNode(root, "time", null);
+        node.incrementCounter();
+        DataTime data = new DataTime();
+        data.setFirst(time);
+        data.setLast(time);
+        node.createMap().put("time", data);
+        node.markChanged();
+        node.release();
+        tree.close(false, CloseOperation.TEST);
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        File first = Files.createTempDir();
+        File second = Files.createTempDir();
+        File target = Files.createTempDir();
+        try {
+            build(first, 0, 500, 100);
+            build(second, 250, 1000, 300);
+            TreeMerger.merge(target, Arrays.asList(first, second));
+            ConcurrentTree tree = new ConcurrentTree.Builder(target).build();
+            ConcurrentTreeNode root = tree.getRootNode();
+            assertEquals(11, root.getNodeCount());
+            for (int key = 0; key < 10; key++) {
+                ConcurrentTreeNode parent = tree.getNode(root, "key" + key, true);
+                assertNotNull(parent);
+                assertEquals(125, parent.getCounter());
+                assertEquals(100, parent.getNodeCount());
+                for (int i = key; i < 1000; i += 10) {
+                    ConcurrentTreeNode child = tree.getNode(parent, Integer.toString(i), false);
+                    assertEquals(i >= 250 && i < 500 ? 2 : 1, child.getCounter());
+                    assertNull(child.getDataMap());
+                }
+                parent.release();
+            }
+            ConcurrentTreeNode node = tree.getNode(root, "time", false);
+            assertEquals(2, node.getCounter());
+            DataTime time = (DataTime) node.getData("time");
+            assertEquals(100, time.getValue("first").asLong().getLong());
+            assertEquals(300, time.getValue("last").asLong().getLong());
+            tree.close(false, CloseOperation.TEST);
+        } finally {
+            Files.deleteDir(first);
+            Files.deleteDir(second);
+            Files.deleteDir(target);
+        }
+    }
+}
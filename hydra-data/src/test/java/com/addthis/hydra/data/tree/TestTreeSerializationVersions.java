@@ -14,6 +14,7 @@
 package com.addthis.hydra.data.tree;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 
 import java.util.Map;
@@ -27,6 +28,7 @@ import com.addthis.hydra.store.skiplist.Page;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
@@ -142,5 +144,110 @@ public class TestTreeSerializationVersions {
         }
     }
 
+    @Test
+    public void testAttachmentSchema() throws Exception {
+        File dir = makeTemporaryDirectory();
+        try {
+            int count = 1000;
+            ConcurrentTree tree = new ConcurrentTree.Builder(dir).dataSchema(true).build();
+            ConcurrentTreeNode root = tree.getRootNode();
+            for (int i = 0; i < count; i++) {
+                ConcurrentTreeNode node = tree.getOrCreateNode(root, Integer.toString(i), null);
+                DataTime first = new DataTime();
+                first.setFirst(i);
+                first.setLast(i + count);
+                node.createMap().put("time", first);
+                if (i % 2 == 0) {
+                    DataTime second = new DataTime();
+                    second.setFirst(2 * i);
+                    second.setLast(2 * i + count);
+                    node.createMap().put("even", second);
+                }
+                node.markChanged();
+                node.release();
+            }
+            tree.close(false, close);
+            assertTrue(new File(dir, TreeNodeDataSchema.FILE_NAME).exists());
+            tree = new ConcurrentTree.Builder(dir).build();
+            assertEquals(2, tree.getDataSchema().size());
+            for (int i = 0; i < count; i++) {
+                ConcurrentTreeNode node = tree.getNode(root, Integer.toString(i), true);
+                assertNotNull(node);
+                Map<String, TreeNodeData> attachments = node.getDataMap();
+                assertEquals(i % 2 == 0 ? 2 : 1, attachments.size());
+                DataTime attachment = (DataTime) attachments.get("time");
+                assertEquals(i, attachment.first());
+                assertEquals(i + count, attachment.last());
+                node.release();
+            }
+            tree.close(false, close);
+            ReadTree readTree = new ReadTree(dir);
+            try {
+                for (int i = 0; i < count; i += 2) {
+                    DataTreeNode node = readTree.getRootNode().getNode(Integer.toString(i));
+                    assertNotNull(node);
+                    DataTime attachment = (DataTime) node.getDataMap().get("even");
+                    assertEquals(2 * i, attachment.first());
+                    assertEquals(2 * i + count, attachment.last());
+                }
+            } finally {
+                readTree.close();
+            }
+        } finally {
+            if (dir != null) {
+                Files.deleteDir(dir);
+            }
+        }
+    }
+
+    @Test
+    public void testSchemaPartialEntry() throws Exception {
+        File dir = makeTemporaryDirectory();
+        try {
+            TreeNodeDataSchema schema = TreeNodeDataSchema.open(dir, false, true);
+            assertEquals(0, schema.idOf("time", new DataTime()));
+            assertEquals(1, schema.idOf("even", new DataTime()));
+            File file = new File(dir, TreeNodeDataSchema.FILE_NAME);
+            long length = file.length();
+            // an entry that was torn by a crash
+            try (FileOutputStream out = new FileOutputStream(file, true)) {
+                out.write(new byte[]{0, 4, 'o', 'd'});
+            }
+            assertEquals(2, TreeNodeDataSchema.open(dir, true).size());
+            assertEquals(length + 4, file.length());
+            schema = TreeNodeDataSchema.open(dir, false, true);
+            assertEquals(length, file.length());
+            assertEquals(2, schema.idOf("odd", new DataTime()));
+            schema = TreeNodeDataSchema.open(dir, true);
+            assertEquals(3, schema.size());
+            assertEquals("even", schema.get(1).key);
+            assertEquals("odd", schema.get(2).key);
+        } finally {
+            if (dir != null) {
+                Files.deleteDir(dir);
+            }
+        }
+    }
+
+    @Test
+    public void testDeferredAttachments() throws Exception {
+        ConcurrentTreeNode node = new ConcurrentTreeNode();
+        DataTime attachment = new DataTime();
+        attachment.setFirst(1);
+        attachment.setLast(2);
+        node.createMap().put("time", attachment);
+        byte[] encoded = node.bytesEncode(1);
+        ConcurrentTreeNode decoded = new ConcurrentTreeNode();
+        decoded.bytesDecode(encoded, 1);
+        // untouched attachments are written back as they were read
+        assertArrayEquals(encoded, decoded.bytesEncode(1));
+        DataTime result = (DataTime) decoded.getDataMap().get("time");
+        assertEquals(1, result.first());
+        assertEquals(2, result.last());
+        result.setLast(3);
+        ConcurrentTreeNode updated = new ConcurrentTreeNode();
+        updated.bytesDecode(decoded.bytesEncode(1), 1);
+        assertEquals(3, ((DataTime) updated.getData("time")).last());
+    }
 
 }
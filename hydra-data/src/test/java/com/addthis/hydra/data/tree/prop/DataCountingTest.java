@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.tree.prop;
+
+import java.util.Arrays;
+
+import com.clearspring.analytics.stream.cardinality.HyperLogLog;
+import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
+import com.clearspring.analytics.stream.cardinality.ICardinality;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DataCountingTest {
+
+    private static void offer(ICardinality estimator, int from, int to) {
+        for (int i = from; i < to; i++) {
+            estimator.offer("value-" + i);
+        }
+    }
+
+    @Test
+    public void testMergeHyperLogLog() throws Exception {
+        HyperLogLog a = new HyperLogLog(0.05);
+        HyperLogLog b = new HyperLogLog(0.05);
+        offer(a, 0, 5000);
+        offer(b, 2500, 10000);
+        byte[] target = a.getBytes();
+        assertTrue(DataCounting.mergeRegisters(target, b.getBytes()));
+        ICardinality expected = a.merge(b);
+        assertArrayEquals(expected.getBytes(), target);
+        assertEquals(expected.cardinality(), HyperLogLog.Builder.build(target).cardinality());
+
+        byte[] other = new HyperLogLog(0.01).getBytes();
+        byte[] copy = Arrays.copyOf(target, target.length);
+        assertFalse(DataCounting.mergeRegisters(target, other));
+        assertArrayEquals(copy, target);
+    }
+
+    @Test
+    public void testMergeHyperLogLogPlus() throws Exception {
+        HyperLogLogPlus a = new HyperLogLogPlus(12);
+        HyperLogLogPlus b = new HyperLogLogPlus(12);
+        offer(a, 0, 5000);
+        offer(b, 2500, 10000);
+        byte[] target = a.getBytes();
+        assertTrue(DataCounting.registerOffset(target) > 0);
+        assertTrue(DataCounting.mergeRegisters(target, b.getBytes()));
+        ICardinality expected = a.merge(b);
+        assertArrayEquals(expected.getBytes(), target);
+        assertEquals(expected.cardinality(), HyperLogLogPlus.Builder.build(target).cardinality());
+
+        HyperLogLogPlus sparse = new HyperLogLogPlus(12, 20);
+        offer(sparse, 0, 10);
+        assertEquals(-1, DataCounting.registerOffset(sparse.getBytes()));
+    }
+
+    @Test
+    public void testValueSum() throws Exception {
+        HyperLogLog a = new HyperLogLog(0.05);
+        HyperLogLog b = new HyperLogLog(0.05);
+        offer(a, 0, 1000);
+        offer(b, 500, 2000);
+        DataCounting.LCValue decoded = new DataCounting.LCValue();
+        decoded.setValues(new DataCounting.LCValue(b).asMap());
+        DataCounting.LCValue sum = new DataCounting.LCValue();
+        sum.setValues(new DataCounting.LCValue(a).sum(decoded).asCustom().asMap());
+        assertEquals(a.merge(b).cardinality(), sum.asLong().getLong());
+        // the inputs are not modified
+        assertEquals(a.cardinality(), new DataCounting.LCValue(a).asLong().getLong());
+        assertEquals(b.cardinality(), decoded.asLong().getLong());
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import com.addthis.basis.util.MemoryCounter;
+import com.addthis.basis.util.Numbers;
+
+/**
+ * Times weighted increments of a {@link ConcurrentKeyTopper} over a gaussian
+ * key stream, against a topper that finds its eviction victim by scanning
+ * the whole map, which is how the topper evicted before it kept a heap.
+ * Run from the test classpath:
+ * <pre>
+ * java com.addthis.hydra.data.util.ConcurrentKeyTopperBenchmark [operations] [size]...
+ * </pre>
+ */
+public class ConcurrentKeyTopperBenchmark {
+
+    private static final int WARMUP_ROUNDS = 3;
+
+    private static final int ROUNDS = 5;
+
+    /**
+     * The topper with a full scan on every eviction.
+     */
+    private static class ScanTopper {
+
+        private final Map<String, Long> map = new HashMap<>();
+
+        void increment(String id, int weight, int maxSize) {
+            Long current = map.get(id);
+            if (current != null) {
+                map.put(id, current + weight);
+            } else if (map.size() < maxSize) {
+                map.put(id, (long) weight);
+            } else {
+                String minKey = null;
+                long minValue = Long.MAX_VALUE;
+                for (Map.Entry<String, Long> entry : map.entrySet()) {
+                    if (entry.getValue() < minValue) {
+                        minValue = entry.getValue();
+                        minKey = entry.getKey();
+                    }
+                }
+                map.remove(minKey);
+                map.put(id, minValue + weight);
+            }
+        }
+    }
+
+    private static String[] keys(int operations, int size) {
+        Random random = new Random(size);
+        String[] keys = new String[operations];
+        for (int i = 0; i < operations; i++) {
+            keys[i] = "key" + Math.abs((long) (random.nextGaussian() * size * 4));
+        }
+        return keys;
+    }
+
+    private static int[] weights(int operations) {
+        Random random = new Random(operations);
+        int[] weights = new int[operations];
+        for (int i = 0; i < operations; i++) {
+            weights[i] = 1 + random.nextInt(4);
+        }
+        return weights;
+    }
+
+    private static long timeHeap(String[] keys, int[] weights, int size) {
+        ConcurrentKeyTopper topper = new ConcurrentKeyTopper().init(size);
+        long start = System.nanoTime();
+        for (int i = 0; i < keys.length; i++) {
+            topper.increment(keys[i], weights[i], size);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (topper.size() != size) {
+            throw new IllegalStateException("topper size " + topper.size() + " != " + size);
+        }
+        return elapsed;
+    }
+
+    private static long timeScan(String[] keys, int[] weights, int size) {
+        ScanTopper topper = new ScanTopper();
+        long start = System.nanoTime();
+        for (int i = 0; i < keys.length; i++) {
+            topper.increment(keys[i], weights[i], size);
+        }
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int operations = args.length > 0 ? Numbers.parseInt(args[0], 2_000_000, 10) : 2_000_000;
+        int[] sizes = {100, 1000, 5000};
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                sizes[i - 1] = Numbers.parseInt(args[i], 100, 10);
+            }
+        }
+        int[] weights = weights(operations);
+        System.out.printf("%8s %14s %14s %14s%n", "size", "scan ns/op", "heap ns/op", "heap bytes");
+        for (int size : sizes) {
+            String[] keys = keys(operations, size);
+            long scan = Long.MAX_VALUE;
+            long heap = Long.MAX_VALUE;
+            for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+                long scanTime = timeScan(keys, weights, size);
+                long heapTime = timeHeap(keys, weights, size);
+                if (round >= WARMUP_ROUNDS) {
+                    scan = Math.min(scan, scanTime);
+                    heap = Math.min(heap, heapTime);
+                }
+            }
+            ConcurrentKeyTopper topper = new ConcurrentKeyTopper().init(size);
+            for (int i = 0; i < keys.length; i++) {
+                topper.increment(keys[i], weights[i], size);
+            }
+            System.out.printf("%8d %14.1f %14.1f %14d%n", size, (double) scan / operations,
+                    (double) heap / operations, MemoryCounter.estimateSize(topper));
+        }
+    }
+}
@@ -18,6 +18,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import org.apache.commons.lang3.RandomStringUtils;
 
@@ -254,5 +255,33 @@ public class TestConcurrentKeyTopper {
         }
     }
 
+    @Test
+    public void testEvictsMinimum() {
+        ConcurrentKeyTopper topper = new ConcurrentKeyTopper();
+        topper.init();
+        Random random = new Random(0);
+        int maxSize = 50;
+        for (int i = 0; i < 20000; i++) {
+            String key = Integer.toString(random.nextInt(200));
+            int weight = 1 + random.nextInt(3);
+            long min = Long.MAX_VALUE;
+            for (Map.Entry<String, Long> entry : topper.getSortedEntries()) {
+                min = Math.min(min, entry.getValue());
+            }
+            boolean present = topper.get(key) != null;
+            String evicted = topper.increment(key, weight, maxSize);
+            if (evicted != null && !present && topper.get(key) != null) {
+                // the key took the place of an entry with the smallest count
+                assertEquals(min + (weight == 1 ? 1 : weight - 1), (long) topper.get(key));
+                assertNull(topper.get(evicted));
+            }
+            assertTrue(topper.size() <= maxSize);
+        }
+        byte[] serialized = topper.bytesEncode(0);
+        ConcurrentKeyTopper decoded = new ConcurrentKeyTopper();
+        decoded.bytesDecode(serialized, 0);
+        assertEquals(topper.size(), decoded.size());
+        assertNotNull(decoded.increment("new", 2, maxSize));
+    }
 
 }
@@ -41,6 +41,7 @@ import com.addthis.hydra.data.query.QueryOpProcessor;
 import com.addthis.hydra.data.query.QueryStatusObserver;
 import com.addthis.hydra.data.query.source.ErrorHandlingQuerySource;
 import com.addthis.hydra.data.query.source.QueryHandle;
+import com.addthis.hydra.data.query.source.QuerySource;
 import com.addthis.hydra.job.IJob;
 import com.addthis.hydra.job.Job;
 import com.addthis.hydra.job.JobConfigManager;
@@ -74,6 +75,11 @@ public class MeshQueryMaster extends SimpleChannelInboundHandler<Query> implemen
     private static final String meshPeers = Parameter.value("qmaster.mesh.peers", "localhost");
     private static final int meshPeerPort = Parameter.intValue("qmaster.mesh.peer.port", 5101);
     private static final boolean enableZooKeeper = Parameter.boolValue("qmaster.enableZooKeeper", true);
+    private static final boolean enableResultCache = Parameter.boolValue("qmaster.cache.enabled", true);
+    private static final long resultCacheMemoryBytes = Parameter.longValue("qmaster.cache.memoryBytes", 256L * 1024 * 1024);
+    private static final long resultCacheDiskBytes = Parameter.longValue("qmaster.cache.diskBytes", 1024L * 1024 * 1024);
+    private static final long resultCacheEntryBytes = Parameter.longValue("qmaster.cache.entryBytes", 16L * 1024 * 1024);
+    private static final String resultCacheDir = Parameter.value("qmaster.cache.dir", "query.cache");
 
     /**
      * A ZooKeeper/Priam backed data structure that keeps track of
@@ -146,6 +152,11 @@ public class MeshQueryMaster extends SimpleChannelInboundHandler<Query> implemen
                     }
             );
 
+    /**
+     * final results of recent queries, null if disabled
+     */
+    private final QueryResultCache resultCache;
+
     private final ConcurrentHashMap<String, Boolean> hostMap = new ConcurrentHashMap<>();
 
     public MeshQueryMaster(QueryTracker tracker) throws Exception {
@@ -155,6 +166,8 @@ public class MeshQueryMaster extends SimpleChannelInboundHandler<Query> implemen
         cachey = new MeshFileRefCache(meshy);
         connectToMeshPeers();
         this.hostTracker = new MeshHostTracker(meshy);
+        this.resultCache = enableResultCache ? new QueryResultCache(resultCacheMemoryBytes,
+                resultCacheDiskBytes, resultCacheEntryBytes, new File(resultCacheDir)) : null;
 
         try {
             // Delete the tmp directory (disk sort directory)
@@ -227,10 +240,6 @@ public class MeshQueryMaster extends SimpleChannelInboundHandler<Query> implemen
 
         query.setTraced((enableZooKeeper && queryConfigWatcher.shouldTrace(query.getJob())) || query.isTraced());
 
-        /** create a processor chain based in query ops terminating in provided consumer */
-        QueryOpProcessor wrappedConsumer = query.getProcessor(consumer, new QueryStatusObserver());
-        query.queryStatusObserver = wrappedConsumer.getQueryStatusObserver();
-
         Map<Integer, Set<FileReferenceWrapper>> fileReferenceMap;
         try {
             fileReferenceMap = cachey.get(query.getJob());
@@ -242,6 +251,7 @@ public class MeshQueryMaster extends SimpleChannelInboundHandler<Query> implemen
             throw new QueryException("Exception getting file references: " + e.getMessage());
         }
 
+        Long jobEndTime = null;
         if (enableZooKeeper) {
             IJob zkJob;
             try {
@@ -253,6 +263,7 @@ public class MeshQueryMaster extends SimpleChannelInboundHandler<Query> implemen
                 final String errorMessage = "[MeshQueryMaster] Error:  unable to find ZK reference for job: " + job;
                 throw new QueryException(errorMessage);
             }
+            jobEndTime = zkJob.getEndTime();
 
             final int taskCount = new Job(zkJob).getTaskCount();
             int fileReferenceCount = fileReferenceMap.size();
@@ -278,7 +289,103 @@ public class MeshQueryMaster extends SimpleChannelInboundHandler<Query> implemen
             }
         }
 
+        String cacheKey = resultCache != null ?
+                          QueryResultCache.key(query, opsLog, QueryResultCache.version(fileReferenceMap, jobEndTime)) : null;
+        if (cacheKey != null) {
+            return runCachedQuery(cacheKey, query, remoteQuery, consumer, fileReferenceMap, opsLog);
+        }
+        Map<Integer, Set<QueryData>> sourceMap = new HashMap<>();
+        Set<QueryData> queryData = createQueryData(query, remoteQuery, fileReferenceMap, sourceMap);
+        return runQuery(query, consumer, sourceMap, queryData, opsLog);
+    }
+
+    private QueryHandle runQuery(Query query, DataChannelOutput consumer, Map<Integer, Set<QueryData>> sourceMap,
+            Set<QueryData> potentialQueryDataList, String[] opsLog) {
+        /** create a processor chain based in query ops terminating in provided consumer */
+        QueryOpProcessor wrappedConsumer = query.getProcessor(consumer, new QueryStatusObserver());
+        query.queryStatusObserver = wrappedConsumer.getQueryStatusObserver();
+
+        MeshSourceAggregator aggregator = new MeshSourceAggregator(sourceMap, new ConcurrentHashMap<>(hostMap), this);
+        QueryHandle handle = tracker.runAndTrackQuery(aggregator, potentialQueryDataList,
+                query, wrappedConsumer, opsLog);
+        if (enableZooKeeper) {
+            jobFailureDetector.indicateSuccess(query.getParameter("job", query.getJob()));
+        }
+        return handle;
+    }
+
+    /**
+     * Tracks a query that is answered by the result cache. The tracker sees
+     * every cached query whether it is replayed, waits for an identical query
+     * or runs on the tasks, so it is listed, can be canceled and times out.
+     * A query that runs on the tasks is not tracked a second time, and its op
+     * processor is closed by its handle when it is canceled.
+     */
+    private QueryHandle runCachedQuery(final String cacheKey, Query query, Query remoteQuery,
+            DataChannelOutput consumer, Map<Integer, Set<FileReferenceWrapper>> fileReferenceMap, String[] opsLog) {
         final Map<Integer, Set<QueryData>> sourceMap = new HashMap<>();
+        Set<QueryData> queryData = createQueryData(query, remoteQuery, fileReferenceMap, sourceMap);
+        final QuerySource untracked = new QuerySource() {
+            @Override
+            public QueryHandle query(Query query, DataChannelOutput consumer) throws QueryException {
+                return runUntrackedQuery(query, consumer, sourceMap);
+            }
+
+            @Override
+            public void noop() {
+            }
+
+            @Override
+            public boolean isClosed() {
+                return false;
+            }
+        };
+        QuerySource cached = new QuerySource() {
+            @Override
+            public QueryHandle query(Query query, DataChannelOutput consumer) throws QueryException {
+                return resultCache.query(cacheKey, query, consumer, untracked);
+            }
+
+            @Override
+            public void noop() {
+            }
+
+            @Override
+            public boolean isClosed() {
+                return false;
+            }
+        };
+        return tracker.runAndTrackQuery(cached, queryData, query, consumer, opsLog);
+    }
+
+    private QueryHandle runUntrackedQuery(Query query, DataChannelOutput consumer,
+            Map<Integer, Set<QueryData>> sourceMap) {
+        final QueryOpProcessor wrappedConsumer = query.getProcessor(consumer, new QueryStatusObserver());
+        query.queryStatusObserver = wrappedConsumer.getQueryStatusObserver();
+
+        MeshSourceAggregator aggregator = new MeshSourceAggregator(sourceMap, new ConcurrentHashMap<>(hostMap), this);
+        final QueryHandle handle = aggregator.query(query, wrappedConsumer);
+        if (enableZooKeeper) {
+            jobFailureDetector.indicateSuccess(query.getParameter("job", query.getJob()));
+        }
+        return new QueryHandle() {
+            @Override
+            public void cancel(String message) {
+                handle.cancel(message);
+                try {
+                    wrappedConsumer.close();
+                } catch (Exception e) {
+                    log.warn("Error while closing queryOpProcessor", e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates the per task query data of the query and returns all of them.
+     */
+    private Set<QueryData> createQueryData(Query query, Query remoteQuery,
+            Map<Integer, Set<FileReferenceWrapper>> fileReferenceMap, Map<Integer, Set<QueryData>> sourceMap) {
         final HashMap<String, String> options = new HashMap<>();
         options.put("query", CodecJSON.encodeString(remoteQuery));
         Set<QueryData> potentialQueryDataList = new HashSet<>();
@@ -291,13 +398,7 @@ public class MeshQueryMaster extends SimpleChannelInboundHandler<Query> implemen
             }
             sourceMap.put(entry.getKey(), queryDataSet);
         }
-        MeshSourceAggregator aggregator = new MeshSourceAggregator(sourceMap, new ConcurrentHashMap<>(hostMap), this);
-        QueryHandle handle = tracker.runAndTrackQuery(aggregator, potentialQueryDataList,
-                query, wrappedConsumer, opsLog);
-        if (enableZooKeeper) {
-            jobFailureDetector.indicateSuccess(query.getParameter("job", query.getJob()));
-        }
-        return handle;
+        return potentialQueryDataList;
     }
 
     private String validateJobForQuery(Query query, String job) {
@@ -21,6 +21,7 @@ import com.addthis.bundle.channel.DataChannelOutput;
 import com.addthis.hydra.data.query.Query;
 import com.addthis.hydra.data.query.engine.QueryEngine;
 import com.addthis.hydra.data.query.QueryException;
+import com.addthis.hydra.data.query.QueryStatusObserver;
 import com.addthis.hydra.data.query.source.QueryHandle;
 import com.addthis.hydra.data.query.source.QuerySource;
 
@@ -35,9 +36,13 @@ import org.slf4j.LoggerFactory;
 public abstract class QueryEngineSource implements QuerySource {
 
     private static int maxConcurrency = Parameter.intValue("query.engine.source.maxConcurrency", 4);
+    private static int parallelSearchPermits = Parameter.intValue("query.engine.source.parallelSearchPermits",
+            Runtime.getRuntime().availableProcessors());
 
     private final Logger log = LoggerFactory.getLogger(QueryEngineSource.class);
     private final Semaphore engineGate = new Semaphore(maxConcurrency);
+    /** permits for the subtree searches of parallel queries, apart from the engine gate */
+    private final Semaphore parallelSearchGate = new Semaphore(parallelSearchPermits);
 
     private final Gauge<Integer> engineGatePermitMetric = Metrics.newGauge(QueryEngineSource.class, "engineGatePermitMetric", new Gauge<Integer>() {
         @Override
@@ -74,7 +79,7 @@ public abstract class QueryEngineSource implements QuerySource {
                 engineGate.acquire(1);
                 engineGateHistogram.update(engineGate.availablePermits());
                 engine = getEngineLease();
-                engine.search(query, consumer);
+                engine.search(query, consumer, new QueryStatusObserver(), parallelSearchGate);
                 consumer.sendComplete();
             } catch (QueryException e) {
                 log.warn("query exception " + query.uuid() + " " + e + " " + consumer);
@@ -0,0 +1,553 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.query;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.addthis.basis.util.Files;
+import com.addthis.basis.util.Parameter;
+
+import com.addthis.bundle.channel.DataChannelError;
+import com.addthis.bundle.channel.DataChannelOutput;
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.io.DataChannelReader;
+import com.addthis.bundle.io.DataChannelWriter;
+import com.addthis.hydra.data.query.Query;
+import com.addthis.hydra.data.query.source.QueryHandle;
+import com.addthis.hydra.data.query.source.QuerySource;
+import com.addthis.meshy.service.file.FileReference;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the final results of queries on the query master. Results are keyed
+ * by job, paths and ops plus a version of the job's data, so a cached result
+ * is replaced as soon as a task publishes new data.
+ * <p/>
+ * Results live in a memory tier bounded by their encoded size. Results evicted
+ * from memory move to a disk tier that is also bounded by size and evicts the
+ * least recently used result. Identical queries that arrive while a result is
+ * being computed wait for that execution instead of querying every task again.
+ * The "nocache" query parameter bypasses the cache.
+ */
+public class QueryResultCache {
+
+    private static final Logger log = LoggerFactory.getLogger(QueryResultCache.class);
+
+    private static final int replayThreads = Parameter.intValue("qmaster.cache.replayThreads", 4);
+
+    private static final ExecutorService replayPool = MoreExecutors
+            .getExitingExecutorService(new ThreadPoolExecutor(replayThreads, replayThreads, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactoryBuilder().setNameFormat("queryCacheReplay-%d").build()));
+
+    /* metrics */
+    private static final Counter hits = Metrics.newCounter(QueryResultCache.class, "hits");
+    private static final Counter diskHits = Metrics.newCounter(QueryResultCache.class, "diskHits");
+    private static final Counter misses = Metrics.newCounter(QueryResultCache.class, "misses");
+    private static final Counter shared = Metrics.newCounter(QueryResultCache.class, "shared");
+    private static final Counter uncacheable = Metrics.newCounter(QueryResultCache.class, "uncacheable");
+
+    private final long maxEntryBytes;
+    private final Cache<String, byte[]> memory;
+    private final DiskTier disk;
+    private final ConcurrentHashMap<String, Execution> running = new ConcurrentHashMap<>();
+
+    /**
+     * @param memoryBytes   bound on the encoded size of the results held in memory
+     * @param diskBytes     bound on the encoded size of the results held on disk, zero disables the disk tier
+     * @param maxEntryBytes results that encode to more bytes than this are not cached
+     * @param dir           directory of the disk tier, cleared on startup
+     */
+    public QueryResultCache(long memoryBytes, long diskBytes, long maxEntryBytes, File dir) {
+        this.maxEntryBytes = maxEntryBytes;
+        this.disk = diskBytes > 0 ? new DiskTier(dir, diskBytes) : null;
+        this.memory = CacheBuilder.newBuilder()
+                .maximumWeight(memoryBytes)
+                .weigher(new Weigher<String, byte[]>() {
+                    @Override
+                    public int weigh(String key, byte[] value) {
+                        return value.length;
+                    }
+                })
+                .removalListener(new RemovalListener<String, byte[]>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, byte[]> notification) {
+                        if (disk != null && notification.getCause() == RemovalCause.SIZE) {
+                            disk.put(notification.getKey(), notification.getValue());
+                        }
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * @return the cache key of the query, or null if the query asked not to be cached
+     */
+    public static String key(Query query, String[] ops, String version) {
+        if (Boolean.valueOf(query.getParameter("nocache"))) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder();
+        key.append(query.getJob()).append('\n').append(version);
+        // rows of an unordered query may arrive in any order so they must not answer an ordered one
+        key.append('\n').append(query.isUnordered() ? "unordered" : "ordered");
+        for (String path : query.getPaths()) {
+            key.append('\n').append(path);
+        }
+        key.append("\nops");
+        if (ops != null) {
+            for (String op : ops) {
+                key.append('\n').append(op != null ? op : "");
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * A version of the data of a job that changes whenever a task publishes
+     * new data or a run of the job completes.
+     */
+    public static String version(Map<Integer, Set<FileReferenceWrapper>> fileReferences, Long jobEndTime) {
+        long lastModified = 0;
+        int references = 0;
+        for (Set<FileReferenceWrapper> wrappers : fileReferences.values()) {
+            for (FileReferenceWrapper wrapper : wrappers) {
+                FileReference reference = wrapper.fileReference;
+                lastModified = Math.max(lastModified, reference.lastModified);
+                references++;
+            }
+        }
+        return fileReferences.size() + "/" + references + "/" + lastModified + "/" + jobEndTime;
+    }
+
+    /**
+     * Answers the query from the cache, from an identical query that is already
+     * running or else runs it on the source and caches its results.
+     */
+    public QueryHandle query(String key, Query query, DataChannelOutput consumer, QuerySource source) {
+        byte[] result = get(key);
+        if (result != null) {
+            hits.inc();
+            Replay replay = new Replay(result, query, consumer);
+            replayPool.execute(replay);
+            return replay;
+        }
+        Execution execution = new Execution(key);
+        Execution existing = running.putIfAbsent(key, execution);
+        if (existing != null) {
+            Waiter waiter = new Waiter(query, consumer, source);
+            if (existing.add(waiter)) {
+                shared.inc();
+                return waiter;
+            }
+            // the execution finished in the meantime so run the query without the cache
+            return source.query(query, consumer);
+        }
+        misses.inc();
+        try {
+            return source.query(query, execution.record(consumer));
+        } catch (RuntimeException e) {
+            execution.finish(null, null);
+            throw e;
+        }
+    }
+
+    private byte[] get(String key) {
+        byte[] result = memory.getIfPresent(key);
+        if (result == null && disk != null) {
+            result = disk.remove(key);
+            if (result != null) {
+                diskHits.inc();
+                memory.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    public long memorySize() {
+        return memory.size();
+    }
+
+    public long diskSize() {
+        return disk != null ? disk.size() : 0;
+    }
+
+    /**
+     * One execution of a query whose results are recorded for the cache and
+     * for identical queries that arrived while it was running.
+     */
+    private class Execution {
+
+        private final String key;
+        private final List<Waiter> waiters = new ArrayList<>();
+        private boolean finished;
+
+        Execution(String key) {
+            this.key = key;
+        }
+
+        synchronized boolean add(Waiter waiter) {
+            if (finished) {
+                return false;
+            }
+            waiters.add(waiter);
+            return true;
+        }
+
+        DataChannelOutput record(DataChannelOutput consumer) {
+            return new Recorder(this, consumer);
+        }
+
+        /**
+         * @param result the encoded results, or null if they are not cached
+         */
+        void finish(byte[] result, DataChannelError error) {
+            List<Waiter> finishedWaiters;
+            synchronized (this) {
+                finished = true;
+                running.remove(key, this);
+                finishedWaiters = new ArrayList<>(waiters);
+                waiters.clear();
+            }
+            if (result != null) {
+                memory.put(key, result);
+            }
+            for (Waiter waiter : finishedWaiters) {
+                waiter.finish(result, error);
+            }
+        }
+    }
+
+    /**
+     * Passes the results of a query to its consumer while encoding them.
+     */
+    private class Recorder implements DataChannelOutput {
+
+        private final Execution execution;
+        private final DataChannelOutput consumer;
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private DataChannelWriter writer = new DataChannelWriter(bytes);
+
+        Recorder(Execution execution, DataChannelOutput consumer) {
+            this.execution = execution;
+            this.consumer = consumer;
+        }
+
+        private synchronized void record(Bundle bundle) {
+            if (writer == null) {
+                return;
+            }
+            try {
+                writer.write(bundle);
+                if (bytes.size() > maxEntryBytes) {
+                    uncacheable.inc();
+                    writer = null;
+                    bytes = null;
+                }
+            } catch (IOException e) {
+                log.warn("unable to record query result", e);
+                writer = null;
+                bytes = null;
+            }
+        }
+
+        @Override
+        public void send(Bundle bundle) throws DataChannelError {
+            record(bundle);
+            consumer.send(bundle);
+        }
+
+        @Override
+        public void send(List<Bundle> bundles) {
+            for (Bundle bundle : bundles) {
+                record(bundle);
+            }
+            consumer.send(bundles);
+        }
+
+        @Override
+        public void sendComplete() {
+            byte[] result = null;
+            synchronized (this) {
+                if (writer != null) {
+                    try {
+                        writer.close();
+                        result = bytes.toByteArray();
+                    } catch (IOException e) {
+                        log.warn("unable to record query result", e);
+                    }
+                    writer = null;
+                    bytes = null;
+                }
+            }
+            try {
+                consumer.sendComplete();
+            } finally {
+                execution.finish(result, null);
+            }
+        }
+
+        @Override
+        public void sourceError(DataChannelError er) {
+            synchronized (this) {
+                writer = null;
+                bytes = null;
+            }
+            try {
+                consumer.sourceError(er);
+            } finally {
+                execution.finish(null, er);
+            }
+        }
+
+        @Override
+        public Bundle createBundle() {
+            return consumer.createBundle();
+        }
+    }
+
+    /**
+     * A query waiting for an identical query to finish. It replays the
+     * results of that query or runs itself if they were not recorded.
+     * Canceling a waiter that has not started yet ends it with an error.
+     */
+    private class Waiter implements QueryHandle {
+
+        private final Query query;
+        private final DataChannelOutput consumer;
+        private final QuerySource source;
+        private QueryHandle handle;
+        private String canceled;
+
+        Waiter(Query query, DataChannelOutput consumer, QuerySource source) {
+            this.query = query;
+            this.consumer = consumer;
+            this.source = source;
+        }
+
+        void finish(final byte[] result, DataChannelError error) {
+            synchronized (this) {
+                if (canceled != null) {
+                    return;
+                }
+                if (result != null) {
+                    Replay replay = new Replay(result, query, consumer);
+                    handle = replay;
+                    replayPool.execute(replay);
+                    return;
+                }
+                handle = new Pending();
+            }
+            // the results were too large to record or the other query failed
+            replayPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    QueryHandle started;
+                    try {
+                        started = source.query(query, consumer);
+                    } catch (Exception e) {
+                        consumer.sourceError(DataChannelError.promote(e));
+                        return;
+                    }
+                    String message;
+                    synchronized (Waiter.this) {
+                        handle = started;
+                        message = canceled;
+                    }
+                    if (message != null) {
+                        started.cancel(message);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void cancel(String message) {
+            QueryHandle current;
+            synchronized (this) {
+                if (canceled != null) {
+                    return;
+                }
+                canceled = message;
+                current = handle;
+            }
+            if (current == null) {
+                consumer.sourceError(new DataChannelError(message));
+            } else {
+                current.cancel(message);
+            }
+        }
+    }
+
+    /**
+     * Handle of a query that is being started. It is canceled once started.
+     */
+    private static class Pending implements QueryHandle {
+
+        @Override
+        public void cancel(String message) {
+        }
+    }
+
+    /**
+     * Sends cached results to a consumer. Canceling a replay
+     * that has not completed ends it with an error.
+     */
+    private static class Replay implements QueryHandle, Runnable {
+
+        private final byte[] result;
+        private final Query query;
+        private final DataChannelOutput consumer;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+
+        Replay(byte[] result, Query query, DataChannelOutput consumer) {
+            this.result = result;
+            this.query = query;
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void run() {
+            if (log.isDebugEnabled() || query.isTraced()) {
+                Query.emitTrace("Answering query: " + query.uuid() + " from the result cache");
+            }
+            try {
+                DataChannelReader reader = new DataChannelReader(consumer, new ByteArrayInputStream(result));
+                Bundle bundle;
+                try {
+                    while (!done.get() && (bundle = reader.read()) != null) {
+                        consumer.send(bundle);
+                    }
+                } catch (EOFException eof) {
+                    // thrown by DataChannelReader when end of stream is reached
+                }
+                if (done.compareAndSet(false, true)) {
+                    consumer.sendComplete();
+                }
+            } catch (Exception e) {
+                if (done.compareAndSet(false, true)) {
+                    consumer.sourceError(DataChannelError.promote(e));
+                }
+            }
+        }
+
+        @Override
+        public void cancel(String message) {
+            if (done.compareAndSet(false, true)) {
+                consumer.sourceError(new DataChannelError(message));
+            }
+        }
+    }
+
+    /**
+     * Results evicted from memory, stored one file per result and evicted
+     * in least recently used order.
+     */
+    private static class DiskTier {
+
+        private final File dir;
+        private final long maxBytes;
+        private final LinkedHashMap<String, Integer> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes;
+
+        DiskTier(File dir, long maxBytes) {
+            this.dir = dir;
+            this.maxBytes = maxBytes;
+            Files.deleteDir(dir);
+            Files.initDirectory(dir);
+        }
+
+        private File file(String key) {
+            return new File(dir, Hashing.sha1().hashString(key, Charsets.UTF_8).toString());
+        }
+
+        synchronized void put(String key, byte[] value) {
+            if (value.length > maxBytes) {
+                return;
+            }
+            try {
+                Files.write(file(key), value, false);
+            } catch (IOException e) {
+                log.warn("unable to write cached query result", e);
+                return;
+            }
+            Integer previous = entries.put(key, value.length);
+            if (previous != null) {
+                bytes -= previous;
+            }
+            bytes += value.length;
+            Iterator<Map.Entry<String, Integer>> iterator = entries.entrySet().iterator();
+            while (bytes > maxBytes && iterator.hasNext()) {
+                Map.Entry<String, Integer> eldest = iterator.next();
+                iterator.remove();
+                bytes -= eldest.getValue();
+                file(eldest.getKey()).delete();
+            }
+        }
+
+        synchronized byte[] remove(String key) {
+            Integer length = entries.remove(key);
+            if (length == null) {
+                return null;
+            }
+            bytes -= length;
+            File file = file(key);
+            try {
+                return Files.read(file);
+            } catch (IOException e) {
+                log.warn("unable to read cached query result", e);
+                return null;
+            } finally {
+                file.delete();
+            }
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+    }
+}
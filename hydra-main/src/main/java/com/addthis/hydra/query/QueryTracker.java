@@ -193,12 +193,26 @@ public class QueryTracker {
 
     public QueryHandle runAndTrackQuery(QuerySource source, Collection<QueryData> queryDataCollection,
             Query query, QueryOpProcessor consumer, String[] opsLog) throws QueryException {
+        return runAndTrackQuery(source, queryDataCollection, query, consumer, consumer, opsLog);
+    }
+
+    /**
+     * Tracks a query whose source creates and closes its own op processor,
+     * such as a query that is answered by the result cache.
+     */
+    public QueryHandle runAndTrackQuery(QuerySource source, Collection<QueryData> queryDataCollection,
+            Query query, DataChannelOutput consumer, String[] opsLog) throws QueryException {
+        return runAndTrackQuery(source, queryDataCollection, query, consumer, null, opsLog);
+    }
+
+    private QueryHandle runAndTrackQuery(QuerySource source, Collection<QueryData> queryDataCollection,
+            Query query, DataChannelOutput consumer, QueryOpProcessor processor, String[] opsLog) throws QueryException {
         if (queuedCounter.count() > MAX_QUEUED_QUERIES) {
             // server overloaded, reject query to prevent OOM
             throw new QueryException("Unable to handle query: " + query.uuid() + ". Queue size exceeds max value: " + MAX_QUEUED_QUERIES);
         }
         calls.inc();
-        QueryEntry entry = new QueryEntry(query, consumer, opsLog);
+        QueryEntry entry = new QueryEntry(query, processor, opsLog);
 
         if (MAX_CONCURRENT_QUERIES > 0 && !acquireQueryGate(query, entry)) {
             throw new QueryException("Timed out waiting for queryGate.  Timeout was: " + MAX_QUERY_GATE_WAIT_TIME + " seconds");
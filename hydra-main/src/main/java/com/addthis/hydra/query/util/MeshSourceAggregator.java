@@ -26,10 +26,8 @@ import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -51,8 +49,9 @@ import com.addthis.hydra.data.query.QueryException;
 import com.addthis.hydra.data.query.source.QueryConsumer;
 import com.addthis.hydra.data.query.source.QueryHandle;
 import com.addthis.hydra.query.MeshQueryMaster;
+import com.addthis.meshy.ChannelMaster;
+import com.addthis.meshy.ChannelState;
 import com.addthis.meshy.service.file.FileReference;
-import com.addthis.meshy.service.stream.SourceInputStream;
 import com.addthis.meshy.service.stream.StreamSource;
 
 import com.google.common.util.concurrent.MoreExecutors;
@@ -61,6 +60,7 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Counter;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 public class MeshSourceAggregator implements com.addthis.hydra.data.query.source.QuerySource {
@@ -68,6 +68,8 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
     private static final Logger log = LoggerFactory.getLogger(MeshSourceAggregator.class);
 
     private static final int frameReaderThreads = Parameter.intValue("meshSourceAggregator.frameReaderThreads", 50);
+    // frames decoded by one source before it yields its reader thread to other sources
+    private static final int frameBatchSize = Parameter.intValue("meshSourceAggregator.frameBatchSize", 1000);
     private static final int queryOpThreads = Parameter.intValue("meshSourceAggregator.queryOpThreads", 50);
 
     private static final boolean parallelQuery = Parameter.boolValue("qmaster.parallelQuery", false);
@@ -83,9 +85,6 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
                     new ThreadFactoryBuilder().setNameFormat("queryOp-%d").build()));
 
 
-    // Queue for sources -- one source per task per query
-    private static final BlockingQueue<QuerySource> readerQueue = new LinkedBlockingDeque<>();
-
     private static final boolean enableStragglerCheck = Parameter.boolValue("meshSourceAggregator.enableStragglerCheck", false);
     // Enables straggler check logic.
     private static final int stragglerCheckPeriod = Parameter.intValue("meshSourceAggregator.stragglerCheckPeriodMillis", 1000);
@@ -97,7 +96,6 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
     private static final double stragglerCheckMeanRuntimeFactor = Double.parseDouble(Parameter.value("meshSourceAggregator.stragglerCheckMeanRuntimeFactor", "1.3"));
     // A task actually is a straggler if its runtime is more than 1.5 times the mean runtime of tasks for this query
     private static final boolean prioritiseReadOnlyWorkers = Parameter.boolValue("meshSourceAggregator.prioritiseReadOnlyWorkers", false);
-    private static final int pollWaitTime = Parameter.intValue("meshSourceAggregator.pollWaitTime", 50);
 
     /**
      * Identifies the number of standard deviations required to run stragglers when hosts are slow
@@ -118,6 +116,7 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
     private final int totalTasks;
     private final long startTime;
     private final Lock runtimeLock = new ReentrantLock();
+    private final MeshQueryMaster meshQueryMaster;
     private AggregateHandle handle;
     private static StragglerCheckThread stragglerCheckThread;
 
@@ -132,12 +131,9 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
     public MeshSourceAggregator(Map<Integer, Set<QueryData>> sourcesByTaskID, Map<String, Boolean> hostMap, MeshQueryMaster meshQueryMaster) {
         this.sourcesByTaskID = sourcesByTaskID;
         this.hostMap = hostMap;
+        this.meshQueryMaster = meshQueryMaster;
         totalTasks = sourcesByTaskID.size();
         if (initialize.compareAndSet(false, true)) {
-            for (int i = 0; i < frameReaderThreads; i++) {
-                frameReaderPool.submit(new SourceReader(meshQueryMaster));
-            }
-
             if (enableStragglerCheck) {
                 stragglerCheckThread = new StragglerCheckThread();
             }
@@ -180,13 +176,33 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
 
     private String requestQueryData(QueryData queryData, Query query) {
         QuerySource reader = new QuerySource(queryData, handle, query);
-        readerQueue.add(reader);
         if (log.isTraceEnabled()) {
             log.trace("Setting start time. QueryID:" + query.uuid() + " host:" + queryData.hostEntryInfo.getHostName());
         }
         return reader.id;
     }
 
+    /**
+     * Opens the frames of a task. The listener is called whenever
+     * frames arrive or the stream ends.
+     */
+    FramedDataChannelReader openFrames(QueryData queryData, Runnable listener) throws IOException {
+        FileReference fileReference = queryData.fileReference;
+        FrameSource frameSource = new FrameSource(queryData.channelMaster, fileReference.getHostUUID(),
+                fileReference.getHostUUID(), fileReference.name, queryData.queryOptions, 0);
+        frameSource.listener = listener;
+        return new FramedDataChannelReader(frameSource.getInputStream(), fileReference.name,
+                DataChannelCodec.createClassIndexMap(), DataChannelCodec.createFieldIndexMap(), 0);
+    }
+
+    /**
+     * Returns another file reference for a task whose file reference failed.
+     */
+    FileReference replacementFileReference(QueryData queryData) throws IOException {
+        return meshQueryMaster.getReplacementFileReferenceForSingleTask(queryData.jobId, queryData.taskId,
+                queryData.fileReference);
+    }
+
     @Override
     public void noop() {
     }
@@ -455,191 +471,235 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
         }
     }
 
-    private static class SourceReader implements Runnable {
+    /* A special type of Exception that indicates that a FileReference in MeshQueryMaster's cache may be out of date and
+    that retrying via a mesh lookup may */
+    private static class FileReferenceIOException extends Exception {}
+
+    /**
+     * Stream source that tells its query source when frames arrive or the
+     * stream ends so that no reader thread has to poll for them.
+     */
+    private static class FrameSource extends StreamSource {
+
+        private volatile Runnable listener;
+
+        FrameSource(ChannelMaster master, String targetUuid, String nodeUuid, String fileName,
+                Map<String, String> options, int maxSend) throws IOException {
+            super(master, targetUuid, nodeUuid, fileName, options, maxSend);
+        }
+
+        private void notifyListener() {
+            Runnable frameListener = listener;
+            if (frameListener != null) {
+                frameListener.run();
+            }
+        }
+
+        @Override
+        public void receive(ChannelState state, int length, ChannelBuffer buffer) throws Exception {
+            super.receive(state, length, buffer);
+            notifyListener();
+        }
+
+        @Override
+        public void receiveComplete() throws Exception {
+            super.receiveComplete();
+            notifyListener();
+        }
+
+        @Override
+        public void channelClosed(ChannelState state) {
+            super.channelClosed(state);
+            notifyListener();
+        }
+    }
+
+    /**
+     * Decodes the frames of one task as they arrive. A source is run on the
+     * frame reader pool when it is told that frames arrived and reads until
+     * none are left. Meshy only requests more data from the worker as the
+     * frames are read, so a slow consumer holds back its sources.
+     */
+    private class QuerySource implements QueryHandle, Runnable {
+
+        final QueryData queryData;
+        final AggregateHandle consumer;
+        final Query query;
+        volatile boolean canceled = false;
+        volatile boolean obsolete = false;
+        volatile boolean done = false;
+        // frame notifications not yet handled by a run of this source
+        private final AtomicInteger pending = new AtomicInteger();
+        private final FramedDataChannelReader dataChannelReader;
+        private int lines;
+        private boolean foundBundle = false;
+        private AtomicBoolean started = new AtomicBoolean(false);
+        private String id = UUID.randomUUID().toString();
 
-        private final MeshQueryMaster meshQueryMaster;
+        private QuerySource(QueryData queryData, AggregateHandle consumer, Query query) {
+            this.queryData = queryData;
+            this.consumer = consumer;
+            this.query = query;
+            // notifications only count until the first run is scheduled below
+            pending.set(1);
+            this.dataChannelReader = getFrames();
+            consumer.addHandle(this);
+            // read any frames that arrived before the reader was set
+            frameReaderPool.execute(this);
+        }
+
+        private FramedDataChannelReader getFrames() {
+            FileReference fileReference = queryData.fileReference;
+            try {
+                return openFrames(queryData, new Runnable() {
+                    @Override
+                    public void run() {
+                        dataAvailable();
+                    }
+                });
+            } catch (IOException e) {
+                log.warn("Error getting query handle for fileReference: " + fileReference.getHostUUID() + "/" + fileReference.name, e);
+                throw new QueryException(e);
+            }
+        }
 
-        SourceReader (MeshQueryMaster meshQueryMaster) {
-            this.meshQueryMaster = meshQueryMaster;
+        void dataAvailable() {
+            if (pending.getAndIncrement() == 0) {
+                frameReaderPool.execute(this);
+            }
         }
 
-        @SuppressWarnings("InfiniteLoopStatement")
         @Override
         public void run() {
-            while (!exiting.get()) {
-                QuerySource querySource = null;
+            int seen = pending.get();
+            try {
+                if (readFrames()) {
+                    // frames are still buffered, let the sources of other queries run first
+                    frameReaderPool.execute(this);
+                    return;
+                }
+            } catch (FileReferenceIOException ex) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Received IOException for task " + getKey() + "; attempting retry");
+                }
+                totalRetryRequests.inc();
                 try {
-                    querySource = readerQueue.poll(100, TimeUnit.MILLISECONDS);
-                    try {
-                        processQuerySource(querySource);
-                    } catch (FileReferenceIOException ex) {
-                        if (log.isDebugEnabled()) {
-                            log.debug("Received IOException for task " + querySource.getKey() + "; attempting retry");
-                        }
-                        totalRetryRequests.inc();
-                        processQuerySource(replaceQuerySource(querySource));
-                    }
+                    replaceQuerySource();
                 } catch (Exception e) {
-                    // this is going to rethrow exception, so we need to replace this SourceReader in the pool
-                    frameReaderPool.submit(new SourceReader(meshQueryMaster));
-                    handleQuerySourceError(querySource, e);
+                    handleQuerySourceError(e);
                 }
+                return;
+            } catch (Exception e) {
+                handleQuerySourceError(e);
+                return;
+            }
+            // frames that arrived while reading need another run
+            if (pending.addAndGet(-seen) > 0) {
+                frameReaderPool.execute(this);
             }
         }
 
-        private QuerySource replaceQuerySource(QuerySource querySource) throws IOException {
+        private QuerySource replaceQuerySource() throws IOException {
             // Invoked when a cached FileReference throws an IO Exception
             // Get a fresh FileReference and make a new QuerySource with that FileReference and the same parameters otherwise
-            FileReference fileReference = meshQueryMaster.getReplacementFileReferenceForSingleTask(querySource.getJobId(), querySource.getTaskId(), querySource.getFileReference());
-            return querySource.createCloneWithReplacementFileReference(fileReference);
-        }
-
-        private void processQuerySource(QuerySource querySource) throws DataChannelError, IOException, FileReferenceIOException {
-            if (querySource != null) {
-                // loops until the source is done, query is canceled
-                // or source returns a null bundle which indicates its complete or just doesn't
-                // have data at the moment
-                while (!querySource.done && !querySource.consumer.canceled.get()) {
-                    boolean processedNext = false;
-                    try {
-                        processedNext = processNextBundle(querySource);
-                    } catch (IOException io) {
-                        if (querySource.lines == 0) {
-                            // This QuerySource does not have this file anymore. Signal to the caller that a retry may resolve the issue.
-                            throw new FileReferenceIOException();
-                        }
-                        else {
-                            // This query source has started sending lines. Need to fail the query.
-                            throw io;
-                        }
+            FileReference fileReference = replacementFileReference(queryData);
+            return createCloneWithReplacementFileReference(fileReference);
+        }
 
+        /**
+         * Reads until the source is done, the query is canceled or no frames are left.
+         *
+         * @return true if it stopped after frameBatchSize frames with more frames buffered
+         */
+        private boolean readFrames() throws DataChannelError, IOException, FileReferenceIOException {
+            int frames = 0;
+            while (!done && !consumer.canceled.get()) {
+                if (frames++ >= frameBatchSize) {
+                    return true;
+                }
+                boolean processedNext = false;
+                try {
+                    processedNext = processNextBundle();
+                } catch (IOException io) {
+                    if (lines == 0) {
+                        // This QuerySource does not have this file anymore. Signal to the caller that a retry may resolve the issue.
+                        throw new FileReferenceIOException();
+                    } else {
+                        // This query source has started sending lines. Need to fail the query.
+                        throw io;
                     }
+                }
 
-                    if (!processedNext) {
-                        // is the source exhausted, not canceled and not obsolete
-                        if (querySource.done
-                            && !querySource.obsolete
-                            && !querySource.consumer.canceled.get()) {
-                            // Save the time and lines in the hostEntryInfo
-                            QueryData queryData = querySource.queryData;
-                            queryData.hostEntryInfo.setLines(querySource.lines);
-                            queryData.hostEntryInfo.setFinished();
-
-                            // Mark this task as complete (and query if all done)
-                            querySource.consumer.markTaskCompleted(queryData.taskId, querySource);
-                            querySource.done = true;
-                            querySource.close();
-
-                            if (log.isTraceEnabled()) {
-                                log.trace("Adding time & lines: QueryID: " + querySource.query.uuid() + " host:" + queryData.hostEntryInfo.getHostName());
-                            }
+                if (!processedNext) {
+                    // is the source exhausted, not canceled and not obsolete
+                    if (done && !obsolete && !consumer.canceled.get()) {
+                        // Save the time and lines in the hostEntryInfo
+                        queryData.hostEntryInfo.setLines(lines);
+                        queryData.hostEntryInfo.setFinished();
 
-                        } else if (!querySource.dataChannelReader.busy && querySource.done || querySource.obsolete || querySource.consumer.canceled.get()) {
-                            if (log.isTraceEnabled() || querySource.query.isTraced()) {
-                                Query.emitTrace("ignoring response for query: " + querySource.query.uuid() + " from source: " + querySource.id + " for task: " + querySource.getTaskId() + " d:" + querySource.done + " o:" + querySource.obsolete + " c:" + querySource.consumer.canceled.get() + " l:" + querySource.lines);
-                            }
-                            QueryData queryData = querySource.queryData;
-                            queryData.hostEntryInfo.setIgnored();
+                        // Mark this task as complete (and query if all done)
+                        consumer.markTaskCompleted(queryData.taskId, this);
+                        close();
+
+                        if (log.isTraceEnabled()) {
+                            log.trace("Adding time & lines: QueryID: " + query.uuid() + " host:" + queryData.hostEntryInfo.getHostName());
                         }
-                        break;
+
+                    } else if (!dataChannelReader.busy && done || obsolete || consumer.canceled.get()) {
+                        if (log.isTraceEnabled() || query.isTraced()) {
+                            Query.emitTrace("ignoring response for query: " + query.uuid() + " from source: " + id + " for task: " + getTaskId() + " d:" + done + " o:" + obsolete + " c:" + consumer.canceled.get() + " l:" + lines);
+                        }
+                        queryData.hostEntryInfo.setIgnored();
+                    } else if (!canceled && !dataChannelReader.isWaiting()) {
+                        // a busy frame, the next frame may already be buffered
+                        continue;
                     }
-                }
-                if (!querySource.consumer.done.get() && !querySource.consumer.errored.get() &&
-                    !querySource.done && !querySource.isEof() && !querySource.obsolete && !querySource.canceled) {
-                    // source still has more data but hasn't completed yet.
-                    readerQueue.add(querySource);
+                    break;
                 }
             }
+            return false;
         }
 
-        private void handleQuerySourceError(QuerySource querySource, Exception error) {
+        private void handleQuerySourceError(Exception error) {
             try {
-                log.warn("QueryError: " + error.getMessage() + " --- " + querySource.query.uuid() + ":" + querySource.getTaskId() + ":" + querySource.queryData.hostEntryInfo.getHostName() + " failed after receiving: " + querySource.lines + " lines");
+                log.warn("QueryError: " + error.getMessage() + " --- " + query.uuid() + ":" + getTaskId() + ":" + queryData.hostEntryInfo.getHostName() + " failed after receiving: " + lines + " lines");
                 // invalidate file reference cache to prevent persistent errors from bogging everything down
                 // TODO:  find more intelligent way to do this...
                 meshQueryMaster.invalidateFileReferenceCache();
 
                 // Cancel the query through the query tracker
-                meshQueryMaster.getQueryTracker().cancelRunning(querySource.query.uuid(), error.getMessage());
+                meshQueryMaster.getQueryTracker().cancelRunning(query.uuid(), error.getMessage());
 
-                // Throw the exception so it can be seen in the logs
                 if (error instanceof DataChannelError) {
-                    throw querySource.consumer.error((DataChannelError) error);
+                    consumer.error((DataChannelError) error);
                 } else {
-                    throw querySource.consumer.error(new DataChannelError(error));
+                    consumer.error(new DataChannelError(error));
                 }
-                // TODO: this flat doesn't work, not sure why so removing for now
-                // check to see if we should resubmit query
-                // resubmitQueryIfPossible(querySource, e);
-            } catch (Exception e)  {
+            } catch (Exception e) {
                 log.warn("", e);
-                throw new RuntimeException(e);
             }
         }
 
-        private boolean processNextBundle(QuerySource querySource) throws IOException, DataChannelError {
-            Bundle nextBundle = querySource.next();
-            if (querySource.canceled || querySource.obsolete) {
+        private boolean processNextBundle() throws IOException, DataChannelError {
+            Bundle nextBundle = next();
+            if (canceled || obsolete) {
                 return false;
             }
 
-            if (querySource.query != null && querySource.query.queryStatusObserver != null && querySource.query.queryStatusObserver.queryCompleted) {
+            if (query != null && query.queryStatusObserver != null && query.queryStatusObserver.queryCompleted) {
                 if (log.isDebugEnabled()) {
-                    log.debug("Query complete flag is set. Finishing task: " + querySource.getTaskId());
+                    log.debug("Query complete flag is set. Finishing task: " + getTaskId());
                 }
-                querySource.done = true;
+                done = true;
                 return false;
             }
 
             if (nextBundle != null) {
-                querySource.consumer.send(nextBundle);
-                return !querySource.isEof();
+                consumer.send(nextBundle);
+                return !isEof();
             }
             return false;
         }
-    }
-
-    /* A special type of Exception that indicates that a FileReference in MeshQueryMaster's cache may be out of date and
-    that retrying via a mesh lookup may */
-    private static class FileReferenceIOException extends Exception {}
-
-    private class QuerySource implements QueryHandle {
-
-        final QueryData queryData;
-        final AggregateHandle consumer;
-        final Query query;
-        volatile boolean canceled = false;
-        volatile boolean obsolete = false;
-        volatile boolean done = false;
-        private final DataChannelCodec.ClassIndexMap classMap = DataChannelCodec.createClassIndexMap();
-        private final DataChannelCodec.FieldIndexMap fieldMap = DataChannelCodec.createFieldIndexMap();
-        private final SourceInputStream sourceInputStream;
-        private FramedDataChannelReader dataChannelReader;
-        private int lines;
-        private boolean foundBundle = false;
-        private AtomicBoolean started = new AtomicBoolean(false);
-        private String id = UUID.randomUUID().toString();
-
-        private QuerySource(QueryData queryData, AggregateHandle consumer, Query query) {
-            this.queryData = queryData;
-            this.consumer = consumer;
-            this.query = query;
-            this.sourceInputStream = getInputStream();
-            dataChannelReader = new FramedDataChannelReader(this.sourceInputStream, queryData.fileReference.name, classMap, fieldMap, pollWaitTime);
-            consumer.addHandle(this);
-        }
-
-        public SourceInputStream getInputStream() {
-            FileReference fileReference = queryData.fileReference;
-            StreamSource source = null;
-            try {
-                source = new StreamSource(queryData.channelMaster, fileReference.getHostUUID(), fileReference.getHostUUID(), fileReference.name, queryData.queryOptions, 0);
-            } catch (IOException e) {
-                log.warn("Error getting query handle for fileReference: " + fileReference.getHostUUID() + "/" + fileReference.name, e);
-                throw new QueryException(e);
-            }
-            return source.getInputStream();
-        }
 
         private Bundle next() throws IOException, DataChannelError {
             if (canceled || obsolete) {
@@ -46,6 +46,7 @@ import com.addthis.hydra.data.query.channel.QueryHost;
 import com.addthis.hydra.data.query.source.QueryHandle;
 import com.addthis.hydra.data.query.source.QuerySource;
 import com.addthis.hydra.data.tree.ReadTree;
+import com.addthis.hydra.data.tree.SegmentedTree;
 import com.addthis.hydra.query.QueryEngineSource;
 
 import org.slf4j.Logger;
@@ -263,6 +264,9 @@ public class QueryChannelUtil {
                 @Override
                 public QueryEngine getEngineLease() {
                     try {
+                        if (SegmentedTree.isSegmented(dir)) {
+                            return new QueryEngine(new SegmentedTree(dir, true));
+                        }
                         return new QueryEngine(new ReadTree(dir));
                     } catch (Exception e) {
                         throw new RuntimeException(e);
@@ -79,6 +79,10 @@ public final class HttpQueryCallHandler {
         }
         query.setParameterIfNotYetSet("parallel", kv.getValue("parallel"));
         query.setParameterIfNotYetSet("allowPartial", kv.getValue("allowPartial"));
+        query.setParameterIfNotYetSet("combine", kv.getValue("combine"));
+        query.setParameterIfNotYetSet("nocache", kv.getValue("nocache"));
+        query.setParameterIfNotYetSet("parallelDepth", kv.getValue("parallelDepth"));
+        query.setParameterIfNotYetSet("unordered", kv.getValue("unordered"));
         query.setParameterIfNotYetSet("dsortcompression", kv.getValue("dsortcompression"));
 
         String filename = kv.getValue("filename", "query");
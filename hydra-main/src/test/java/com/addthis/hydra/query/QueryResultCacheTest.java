@@ -0,0 +1,228 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.query;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.addthis.basis.util.Files;
+
+import com.addthis.bundle.channel.DataChannelOutput;
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.hydra.data.channel.BlockingBufferedConsumer;
+import com.addthis.hydra.data.query.Query;
+import com.addthis.hydra.data.query.QueryException;
+import com.addthis.hydra.data.query.source.QueryHandle;
+import com.addthis.hydra.data.query.source.QuerySource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class QueryResultCacheTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() {
+        Files.deleteDir(dir);
+    }
+
+    /**
+     * Sends a fixed table, or holds on to its consumers until {@link #complete()} is called.
+     */
+    private static class TableSource implements QuerySource {
+
+        private final boolean hold;
+        private final List<DataChannelOutput> held = new ArrayList<>();
+        private volatile int executions;
+
+        TableSource(boolean hold) {
+            this.hold = hold;
+        }
+
+        @Override
+        public synchronized QueryHandle query(Query query, DataChannelOutput consumer) throws QueryException {
+            executions++;
+            if (hold) {
+                held.add(consumer);
+            } else {
+                send(consumer);
+            }
+            return new QueryHandle() {
+                @Override
+                public void cancel(String message) {
+                }
+            };
+        }
+
+        synchronized void complete() {
+            for (DataChannelOutput consumer : held) {
+                send(consumer);
+            }
+            held.clear();
+        }
+
+        private static void send(DataChannelOutput consumer) {
+            for (int i = 0; i < 5; i++) {
+                Bundle row = consumer.createBundle();
+                row.setValue(row.getFormat().getField("key"), ValueFactory.create("key" + i));
+                row.setValue(row.getFormat().getField("count"), ValueFactory.create(i * 10));
+                consumer.send(row);
+            }
+            consumer.sendComplete();
+        }
+
+        @Override
+        public void noop() {
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+    }
+
+    private static String result(BlockingBufferedConsumer consumer) throws Exception {
+        StringBuilder result = new StringBuilder();
+        for (Bundle row : consumer.getTable()) {
+            result.append(row.toString()).append('\n');
+        }
+        return result.toString();
+    }
+
+    private static Query query() {
+        return new Query("job", new String[]{"+:+hits"}, new String[]{"gather=ks", null});
+    }
+
+    @Test
+    public void testHit() throws Exception {
+        QueryResultCache cache = new QueryResultCache(1024 * 1024, 0, 1024 * 1024, dir);
+        TableSource source = new TableSource(false);
+        String key = QueryResultCache.key(query(), query().getOps(), "v1");
+        BlockingBufferedConsumer first = new BlockingBufferedConsumer();
+        cache.query(key, query(), first, source);
+        String expected = result(first);
+        BlockingBufferedConsumer second = new BlockingBufferedConsumer();
+        cache.query(key, query(), second, source);
+        assertEquals(expected, result(second));
+        assertEquals(1, source.executions);
+
+        // a new version of the data is a miss
+        BlockingBufferedConsumer third = new BlockingBufferedConsumer();
+        cache.query(QueryResultCache.key(query(), query().getOps(), "v2"), query(), third, source);
+        assertEquals(expected, result(third));
+        assertEquals(2, source.executions);
+    }
+
+    @Test
+    public void testSharedExecution() throws Exception {
+        QueryResultCache cache = new QueryResultCache(1024 * 1024, 0, 1024 * 1024, dir);
+        TableSource source = new TableSource(true);
+        String key = QueryResultCache.key(query(), query().getOps(), "v1");
+        BlockingBufferedConsumer first = new BlockingBufferedConsumer();
+        BlockingBufferedConsumer second = new BlockingBufferedConsumer();
+        cache.query(key, query(), first, source);
+        cache.query(key, query(), second, source);
+        assertEquals(1, source.executions);
+        source.complete();
+        assertEquals(result(first), result(second));
+    }
+
+    @Test
+    public void testCancelWaiter() throws Exception {
+        QueryResultCache cache = new QueryResultCache(1024 * 1024, 0, 1024 * 1024, dir);
+        TableSource source = new TableSource(true);
+        String key = QueryResultCache.key(query(), query().getOps(), "v1");
+        BlockingBufferedConsumer first = new BlockingBufferedConsumer();
+        BlockingBufferedConsumer second = new BlockingBufferedConsumer();
+        cache.query(key, query(), first, source);
+        QueryHandle waiter = cache.query(key, query(), second, source);
+        waiter.cancel("canceled");
+        try {
+            second.waitComplete();
+            fail("a canceled waiter should end with an error");
+        } catch (QueryException expected) {
+            // expected
+        }
+        // the shared query is not affected
+        source.complete();
+        assertEquals(5, first.getTable().size());
+        assertEquals(1, source.executions);
+    }
+
+    @Test
+    public void testTooLarge() throws Exception {
+        QueryResultCache cache = new QueryResultCache(1024 * 1024, 0, 10, dir);
+        TableSource source = new TableSource(true);
+        String key = QueryResultCache.key(query(), query().getOps(), "v1");
+        BlockingBufferedConsumer first = new BlockingBufferedConsumer();
+        BlockingBufferedConsumer second = new BlockingBufferedConsumer();
+        cache.query(key, query(), first, source);
+        cache.query(key, query(), second, source);
+        source.complete();
+        String expected = result(first);
+        // the waiting query runs itself once the results could not be recorded
+        while (source.executions < 2) {
+            Thread.sleep(10);
+        }
+        source.complete();
+        assertEquals(expected, result(second));
+        assertEquals(0, cache.memorySize());
+    }
+
+    @Test
+    public void testDiskTier() throws Exception {
+        QueryResultCache cache = new QueryResultCache(1, 1024 * 1024, 1024 * 1024, dir);
+        TableSource source = new TableSource(false);
+        String key = QueryResultCache.key(query(), query().getOps(), "v1");
+        BlockingBufferedConsumer first = new BlockingBufferedConsumer();
+        cache.query(key, query(), first, source);
+        String expected = result(first);
+        assertEquals(0, cache.memorySize());
+        assertEquals(1, cache.diskSize());
+        BlockingBufferedConsumer second = new BlockingBufferedConsumer();
+        cache.query(key, query(), second, source);
+        assertEquals(expected, result(second));
+        assertEquals(1, source.executions);
+    }
+
+    @Test
+    public void testUnorderedKey() {
+        Query unordered = query();
+        unordered.setParameter("unordered", true);
+        assertFalse(QueryResultCache.key(query(), query().getOps(), "v1").equals(
+                QueryResultCache.key(unordered, unordered.getOps(), "v1")));
+    }
+
+    @Test
+    public void testNoCache() {
+        Query query = query();
+        query.setParameter("nocache", true);
+        assertNull(QueryResultCache.key(query, query.getOps(), "v1"));
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.query.util;
+
+import java.io.IOException;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.hydra.data.channel.BlockingBufferedConsumer;
+import com.addthis.hydra.data.query.FramedDataChannelReader;
+import com.addthis.hydra.data.query.Query;
+import com.addthis.meshy.service.file.FileReference;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class MeshSourceAggregatorTest {
+
+    private static final Bundle EOF = new ListBundle();
+
+    /**
+     * Frames of a task that are added by the test, standing in for
+     * a stream source that tells its listener when frames arrive.
+     */
+    private static class StubFrames extends FramedDataChannelReader {
+
+        private final ConcurrentLinkedQueue<Bundle> frames = new ConcurrentLinkedQueue<>();
+        private final Runnable listener;
+        private final boolean missing;
+        private volatile boolean waiting;
+
+        StubFrames(String name, Runnable listener, boolean missing) {
+            super(null, name, 0);
+            this.listener = listener;
+            this.missing = missing;
+        }
+
+        void add(int count) {
+            for (int i = 0; i < count; i++) {
+                Bundle bundle = new ListBundle();
+                bundle.setValue(bundle.getFormat().getField("row"), ValueFactory.create(i));
+                frames.add(bundle);
+            }
+        }
+
+        void end() {
+            frames.add(EOF);
+            listener.run();
+        }
+
+        @Override
+        public Bundle read() throws IOException {
+            if (missing) {
+                throw new IOException("file reference is out of date");
+            }
+            if (eof.get()) {
+                return null;
+            }
+            Bundle bundle = frames.poll();
+            waiting = bundle == null;
+            if (bundle == EOF) {
+                eof.set(true);
+                return null;
+            }
+            return bundle;
+        }
+
+        @Override
+        public boolean isWaiting() {
+            return waiting;
+        }
+    }
+
+    /**
+     * Aggregator whose tasks read stub frames. The file reference
+     * named "missing" fails and is replaced by "replacement".
+     */
+    private static class StubAggregator extends MeshSourceAggregator {
+
+        final Map<String, StubFrames> opened = new ConcurrentHashMap<>();
+        final List<String> replaced = new CopyOnWriteArrayList<>();
+
+        StubAggregator(Map<Integer, Set<QueryData>> sourcesByTaskID) {
+            super(sourcesByTaskID, new HashMap<String, Boolean>(), null);
+        }
+
+        @Override
+        FramedDataChannelReader openFrames(QueryData queryData, Runnable listener) {
+            String name = queryData.fileReference.name;
+            StubFrames frames = new StubFrames(name, listener, name.equals("missing"));
+            opened.put(name, frames);
+            return frames;
+        }
+
+        @Override
+        FileReference replacementFileReference(QueryData queryData) {
+            replaced.add(queryData.fileReference.name);
+            return new FileReference("replacement", 0, 0);
+        }
+    }
+
+    private static Set<QueryData> task(String name, int taskId) {
+        Set<QueryData> queryData = new HashSet<>();
+        queryData.add(new QueryData(null, new FileReference(name, 0, 0), new HashMap<String, String>(), "job", taskId));
+        return queryData;
+    }
+
+    private static StubFrames await(StubAggregator aggregator, String name) throws InterruptedException {
+        StubFrames frames;
+        while ((frames = aggregator.opened.get(name)) == null) {
+            Thread.sleep(10);
+        }
+        return frames;
+    }
+
+    @Test
+    public void testFrames() throws Exception {
+        Map<Integer, Set<QueryData>> sources = new HashMap<>();
+        sources.put(0, task("large", 0));
+        sources.put(1, task("small", 1));
+        sources.put(2, task("missing", 2));
+        StubAggregator aggregator = new StubAggregator(sources);
+        Query query = new Query("job", new String[]{"+:+hits"}, null);
+        query.setParameter("parallel", "true");
+        BlockingBufferedConsumer consumer = new BlockingBufferedConsumer();
+        aggregator.query(query, consumer);
+
+        // more frames than one run reads, with a single notification,
+        // only complete if the source yields and runs again
+        StubFrames large = await(aggregator, "large");
+        large.add(2500);
+        large.end();
+
+        // frames that arrive in several notifications
+        StubFrames small = await(aggregator, "small");
+        for (int i = 0; i < 10; i++) {
+            small.add(1);
+            small.listener.run();
+        }
+        small.end();
+
+        // the missing file is replaced before any rows were read
+        StubFrames replacement = await(aggregator, "replacement");
+        replacement.add(5);
+        replacement.end();
+
+        assertEquals(2515, consumer.getTable().size());
+        assertEquals(1, aggregator.replaced.size());
+        assertEquals("missing", aggregator.replaced.get(0));
+    }
+}
@@ -20,10 +20,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import java.util.Arrays;
+
 import com.addthis.basis.util.Bytes;
 
 import com.addthis.hydra.store.util.Raw;
 
+import io.netty.buffer.ByteBuf;
 
 public final class DBKey implements IPageDB.Key, Comparable<DBKey> {
 
@@ -33,8 +36,17 @@ public final class DBKey implements IPageDB.Key, Comparable<DBKey> {
     private final Raw key;
 
     public DBKey(byte raw[]) {
-        id = Bytes.toInt(raw, 0, 4);
-        key = Raw.get(Bytes.cut(raw, 4, raw.length - 4));
+        this(raw, 0, raw.length);
+    }
+
+    /**
+     * Decode the key from {@code length} bytes of the array
+     * beginning at {@code offset}. The array is not retained.
+     */
+    public DBKey(byte raw[], int offset, int length) {
+        id = ((raw[offset] & 0xff) << 24) | ((raw[offset + 1] & 0xff) << 16) |
+             ((raw[offset + 2] & 0xff) << 8) | (raw[offset + 3] & 0xff);
+        key = Raw.get(Arrays.copyOfRange(raw, offset + 4, offset + length));
     }
 
     public DBKey(InputStream in) throws IOException {
@@ -70,10 +82,22 @@ public final class DBKey implements IPageDB.Key, Comparable<DBKey> {
     }
 
     public byte[] toBytes() {
-        if (key == null) {
-            return Bytes.toBytes(id);
-        }
-        return Raw.get(Bytes.toBytes(id)).cat(key).toBytes();
+        byte[] keyBytes = key.toBytes();
+        byte[] result = new byte[4 + keyBytes.length];
+        result[0] = (byte) (id >>> 24);
+        result[1] = (byte) (id >>> 16);
+        result[2] = (byte) (id >>> 8);
+        result[3] = (byte) id;
+        System.arraycopy(keyBytes, 0, result, 4, keyBytes.length);
+        return result;
+    }
+
+    /**
+     * Append the same bytes as {@link #toBytes()} to the buffer.
+     */
+    public void writeTo(ByteBuf out) {
+        out.writeInt(id);
+        out.writeBytes(key.toBytes());
     }
 
     public void writeOut(OutputStream out) throws IOException {
@@ -16,18 +16,26 @@ package com.addthis.hydra.store.db;
 import com.addthis.codec.CodableStatistics;
 import com.addthis.codec.Codec;
 import com.addthis.codec.CodecBin2;
+import com.addthis.hydra.store.kv.BufferKeyCoder;
 import com.addthis.hydra.store.kv.KeyCoder;
 import com.addthis.hydra.store.util.Raw;
 
 import com.google.common.base.Objects;
+import com.google.common.base.Supplier;
+
+import io.netty.buffer.ByteBuf;
 
 /**
  */
-class DBKeyCoder<V extends Codec.BytesCodable> implements KeyCoder<DBKey, V> {
+class DBKeyCoder<V extends Codec.BytesCodable> implements KeyCoder<DBKey, V>, BufferKeyCoder<DBKey> {
 
     protected final Codec codec;
     protected final static CodecBin2 codecBin2 = new CodecBin2();
     protected final Class<? extends V> clazz;
+    /**
+     * Creates the values that are decoded. Null to use the no-arg constructor of {@link #clazz}.
+     */
+    protected final Supplier<? extends V> factory;
 
     private static final byte[] zero = new byte[0];
 
@@ -36,8 +44,17 @@ class DBKeyCoder<V extends Codec.BytesCodable> implements KeyCoder<DBKey, V> {
     }
 
     public DBKeyCoder(Codec codec, Class<? extends V> clazz) {
+        this(codec, clazz, null);
+    }
+
+    public DBKeyCoder(Codec codec, Class<? extends V> clazz, Supplier<? extends V> factory) {
         this.codec = codec;
         this.clazz = clazz;
+        this.factory = factory;
+    }
+
+    private V newValue() throws Exception {
+        return (factory != null) ? factory.get() : clazz.newInstance();
     }
 
     @Override
@@ -75,16 +92,26 @@ class DBKeyCoder<V extends Codec.BytesCodable> implements KeyCoder<DBKey, V> {
         return (key != null && key.length > 0) ? new DBKey(key) : null;
     }
 
+    @Override
+    public void keyEncode(DBKey key, ByteBuf out) {
+        key.writeTo(out);
+    }
+
+    @Override
+    public DBKey keyDecode(byte[] data, int offset, int length) {
+        return (length > 0) ? new DBKey(data, offset, length) : null;
+    }
+
     @Override
     public V valueDecode(byte[] value, EncodeType encodeType) {
 
         try {
             switch (encodeType) {
                 case LEGACY:
-                    return codec.decode(clazz.newInstance(), value);
+                    return codec.decode(newValue(), value);
                 case SPARSE:
                     if (value.length > 0) {
-                        V v = clazz.newInstance();
+                        V v = newValue();
                         v.bytesDecode(value, encodeType.ordinal());
                         return v;
                     } else {
@@ -30,12 +30,16 @@ import com.addthis.basis.util.Parameter;
 
 import com.addthis.codec.Codec;
 import com.addthis.hydra.store.kv.ByteStore;
-import com.addthis.hydra.store.kv.ConcurrentByteStoreBDB;
+import com.addthis.hydra.store.kv.ByteStoreMapped;
+import com.addthis.hydra.store.kv.ByteStoreType;
 import com.addthis.hydra.store.kv.PagedKeyValueStore;
 import com.addthis.hydra.store.skiplist.Page;
+import com.addthis.hydra.store.skiplist.PageCompression;
 import com.addthis.hydra.store.skiplist.PageFactory;
 import com.addthis.hydra.store.skiplist.SkipListCache;
 
+import com.google.common.base.Supplier;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -63,6 +67,10 @@ public class PageDB<V extends Codec.BytesCodable> implements IPageDB<DBKey, V> {
         // Optional parameters - initialized to default values;
         protected String dbname = defaultDbName;
         protected PageFactory pageFactory = Page.DefaultPageFactory.singleton;
+        protected ByteStoreType storeType = ByteStoreType.BDB;
+        protected PageCompression compression = PageCompression.defaultCompression();
+        protected boolean trainDictionary = false;
+        protected Supplier<? extends V> valueFactory = null;
 
         public Builder(File dir, Class<? extends V> clazz, int maxPageSize, int maxPages) {
             this.dir = dir;
@@ -81,8 +89,45 @@ public class PageDB<V extends Codec.BytesCodable> implements IPageDB<DBKey, V> {
             return this;
         }
 
+        /**
+         * Type of store to create when the directory is empty.
+         * An existing store is always reopened with its own type.
+         */
+        public Builder storeType(ByteStoreType type) {
+            this.storeType = type;
+            return this;
+        }
+
+        /**
+         * Codec used to compress pages as they are written. Pages
+         * record their codec so it may change between opens.
+         */
+        public Builder compression(PageCompression compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * Train a compression dictionary from the first pages written
+         * if the directory does not yet have one.
+         */
+        public Builder trainDictionary(boolean train) {
+            this.trainDictionary = train;
+            return this;
+        }
+
+        /**
+         * Creates the values that are read from the database. By default
+         * the no-arg constructor of the value class is used.
+         */
+        public Builder valueFactory(Supplier<? extends V> factory) {
+            this.valueFactory = factory;
+            return this;
+        }
+
         public PageDB<V> build() throws IOException {
-            return new PageDB<>(dir, clazz, dbname, maxPageSize, maxPages, pageFactory);
+            return new PageDB<>(dir, clazz, dbname, maxPageSize, maxPages, pageFactory, storeType,
+                    compression, trainDictionary, valueFactory);
         }
 
     }
@@ -98,14 +143,49 @@ public class PageDB<V extends Codec.BytesCodable> implements IPageDB<DBKey, V> {
 
     public PageDB(File dir, Class<? extends V> clazz, String dbname, int maxPageSize,
             int maxPages, PageFactory factory) throws IOException {
+        this(dir, clazz, dbname, maxPageSize, maxPages, factory, ByteStoreType.BDB);
+    }
+
+    public PageDB(File dir, Class<? extends V> clazz, String dbname, int maxPageSize,
+            int maxPages, PageFactory factory, ByteStoreType storeType) throws IOException {
+        this(dir, clazz, dbname, maxPageSize, maxPages, factory, storeType,
+                PageCompression.defaultCompression(), false);
+    }
+
+    public PageDB(File dir, Class<? extends V> clazz, String dbname, int maxPageSize,
+            int maxPages, PageFactory factory, ByteStoreType storeType,
+            PageCompression compression, boolean trainDictionary) throws IOException {
+        this(dir, clazz, dbname, maxPageSize, maxPages, factory, storeType, compression, trainDictionary, null);
+    }
+
+    public PageDB(File dir, Class<? extends V> clazz, String dbname, int maxPageSize,
+            int maxPages, PageFactory factory, ByteStoreType storeType,
+            PageCompression compression, boolean trainDictionary,
+            Supplier<? extends V> valueFactory) throws IOException {
         ByteStore store;
-        this.keyCoder = new DBKeyCoder<>(clazz);
-        store = new ConcurrentByteStoreBDB(dir, dbname);
+        this.keyCoder = new DBKeyCoder<>(DBKeyCoder.codecBin2, clazz, valueFactory);
+        store = ByteStoreType.detect(dir, storeType).open(dir, dbname, false);
+        // any export is stale as soon as the store is writable
+        ByteStoreMapped.invalidate(dir);
         this.eps =  new SkipListCache.Builder<>(keyCoder, store, maxPageSize, maxPages).
-        pageFactory(factory).build();
+        pageFactory(factory).compression(compression).dictionary(dir, trainDictionary).build();
         Files.write(new File(dir, "db.type"), Bytes.toBytes(getClass().getName()), false);
     }
 
+    /**
+     * Export the closed page database in the directory to a single memory
+     * mapped file. Subsequent read only opens serve from the export until
+     * the database is opened for writing again.
+     */
+    public static void exportMapped(File dir) throws IOException {
+        ByteStore store = ByteStoreType.detect(dir, ByteStoreType.BDB).open(dir, defaultDbName, true);
+        try {
+            ByteStoreMapped.export(store, dir);
+        } finally {
+            store.close();
+        }
+    }
+
     @Override
     public String toString() {
         return "PageDB:" + keyCoder + "," + eps;
@@ -131,6 +211,14 @@ public class PageDB<V extends Codec.BytesCodable> implements IPageDB<DBKey, V> {
         eps.removeValues(from, to, inclusive);
     }
 
+    /**
+     * Write entries that are sorted by key into an empty database.
+     * See {@link PagedKeyValueStore#bulkLoad(Iterator)}.
+     */
+    public long bulkLoad(Iterator<Entry<DBKey, V>> entries) {
+        return eps.bulkLoad(entries);
+    }
+
     public TreeMap<DBKey, V> toTreeMap() {
         try {
             Range<DBKey, V> range = this.range(this.eps.getFirstKey(), new DBKey(Integer.MAX_VALUE, ""));
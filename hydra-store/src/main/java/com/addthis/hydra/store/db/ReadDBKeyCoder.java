@@ -15,6 +15,8 @@ package com.addthis.hydra.store.db;
 
 import com.addthis.codec.Codec;
 
+import com.google.common.base.Supplier;
+
 /**
  */
 public class ReadDBKeyCoder<V extends IReadWeighable & Codec.BytesCodable> extends DBKeyCoder<V> {
@@ -23,6 +25,10 @@ public class ReadDBKeyCoder<V extends IReadWeighable & Codec.BytesCodable> exten
         super(codec, clazz);
     }
 
+    public ReadDBKeyCoder(Codec codec, Class<? extends V> clazz, Supplier<? extends V> factory) {
+        super(codec, clazz, factory);
+    }
+
     public ReadDBKeyCoder(Class<? extends V> clazz) {
         super(clazz);
     }
@@ -26,9 +26,12 @@ import com.addthis.basis.util.Parameter;
 import com.addthis.codec.Codec;
 import com.addthis.codec.CodecBin2;
 import com.addthis.hydra.store.kv.ByteStore;
-import com.addthis.hydra.store.kv.ByteStoreBDB;
+import com.addthis.hydra.store.kv.ByteStoreType;
 import com.addthis.hydra.store.kv.PagedKeyValueStore;
 import com.addthis.hydra.store.kv.ReadExternalPagedStore;
+import com.addthis.hydra.store.skiplist.PageDictionary;
+
+import com.google.common.base.Supplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,9 +60,19 @@ public class ReadPageDB<V extends IReadWeighable & Codec.BytesCodable> implement
 
     public ReadPageDB(File dir, Class<? extends V> clazz, int maxSize,
             int maxWeight, boolean metrics) throws IOException {
+        this(dir, clazz, null, maxSize, maxWeight, metrics);
+    }
+
+    /**
+     * @param factory creates the values that are read. If null the
+     *                no-arg constructor of the value class is used.
+     */
+    public ReadPageDB(File dir, Class<? extends V> clazz, Supplier<? extends V> factory, int maxSize,
+            int maxWeight, boolean metrics) throws IOException {
         this.clazz = clazz;
-        ByteStore store = new ByteStoreBDB(dir, defaultDbName, true);
-        this.eps = new ReadExternalPagedStore<>(new ReadDBKeyCoder<>(codec, clazz), store, maxSize, maxWeight, metrics);
+        ByteStore store = ByteStoreType.detectReadOnly(dir, ByteStoreType.BDB).open(dir, defaultDbName, true);
+        this.eps = new ReadExternalPagedStore<>(new ReadDBKeyCoder<>(codec, clazz, factory), store, maxSize, maxWeight,
+                metrics, PageDictionary.load(dir));
     }
 
     public String toString() {
@@ -0,0 +1,36 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.kv;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Optional interface of a {@link KeyCoder} that can encode keys into
+ * and decode keys out of a shared buffer. Page encoding and decoding use
+ * it to avoid allocating a byte array for every key. The encoding must be
+ * identical to {@link KeyCoder#keyEncode(Object)}.
+ */
+public interface BufferKeyCoder<K> {
+
+    /**
+     * Append the encoding of a non-null key to the buffer.
+     */
+    void keyEncode(K key, ByteBuf out);
+
+    /**
+     * Decode a key from {@code length} bytes of the array beginning
+     * at {@code offset}. The array may be reused once this returns.
+     */
+    K keyDecode(byte[] data, int offset, int length);
+}
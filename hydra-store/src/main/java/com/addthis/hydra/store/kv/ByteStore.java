@@ -35,6 +35,12 @@ public interface ByteStore {
 
     public void put(byte[] key, byte[] val);
 
+    /**
+     * Store several entries in a single operation. Entries are written
+     * in iteration order, so callers should supply them sorted by key.
+     */
+    public void putAll(Map<byte[], byte[]> entries);
+
     public byte[] get(byte[] key);
 
     /**
@@ -144,6 +144,19 @@ public class ByteStoreBDB implements ByteStore {
         puts.incrementAndGet();
     }
 
+    /**
+     * Sorted input keeps successive writes within neighbouring btree
+     * nodes. Entries are not written through a shared cursor because
+     * a cursor holds the lock of its current record and would block
+     * concurrent readers for the duration of the batch.
+     */
+    @Override
+    public void putAll(Map<byte[], byte[]> entries) {
+        for (Map.Entry<byte[], byte[]> entry : entries.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
     @Override
     public byte[] get(byte[] key) {
         final DatabaseEntry dv = new DatabaseEntry();
@@ -0,0 +1,1041 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.kv;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.addthis.basis.util.Bytes;
+import com.addthis.basis.util.ClosableIterator;
+import com.addthis.basis.util.Files;
+import com.addthis.basis.util.Parameter;
+
+import com.addthis.hydra.store.util.NamedThreadFactory;
+
+import com.google.common.primitives.UnsignedBytes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Log structured byte store that complies with ByteStore for use with
+ * SkipListCache. Writes land in an in-memory sorted table that is flushed
+ * to an immutable sorted segment on disk once it grows past
+ * {@link #memtableBytes}. Segments are merged in the background by a
+ * size-tiered compaction. Each segment carries a sparse key index and a
+ * bloom filter so that point reads only touch segments that may hold the key.
+ * <p/>
+ * The set of live segments is recorded in a manifest file that is replaced
+ * atomically. Like the deferred-write BDB stores there is no write ahead log:
+ * entries that have not been flushed when the process dies are lost, and
+ * {@link #close()} is what makes the store durable.
+ */
+public class ByteStoreLSM implements ByteStore {
+
+    private static final Logger log = LoggerFactory.getLogger(ByteStoreLSM.class);
+
+    static final long memtableBytes = Parameter.longValue("eps.lsm.memtable.bytes", 64 * 1024 * 1024);
+    static final int maxPendingMemtables = Parameter.intValue("eps.lsm.memtable.pending", 2);
+    static final int compactionSegments = Parameter.intValue("eps.lsm.compaction.segments", 4);
+    static final int compactionRatio = Parameter.intValue("eps.lsm.compaction.ratio", 2);
+    static final int indexInterval = Parameter.intValue("eps.lsm.index.interval", 16);
+    static final int bloomBitsPerKey = Parameter.intValue("eps.lsm.bloom.bits", 10);
+    static final int bloomHashes = Parameter.intValue("eps.lsm.bloom.hashes", 4);
+
+    static final String MANIFEST = "lsm.manifest";
+    static final String MANIFEST_HEADER = "lsm 1";
+    static final String SEGMENT_SUFFIX = ".seg";
+
+    /**
+     * Marker value for deleted keys. Always compared by identity.
+     */
+    static final byte[] TOMBSTONE = new byte[0];
+
+    static final Comparator<byte[]> comparator = UnsignedBytes.lexicographicalComparator();
+
+    private final File dir;
+    private final boolean readonly;
+
+    /**
+     * Guards replacement of {@link #state}. Mutations of the active memtable
+     * and all point reads hold the read lock. Memtable rotation, flush and
+     * compaction swap in a new state under the write lock, so a segment is
+     * never released while a point read can still observe it.
+     */
+    private final ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
+    private volatile State state;
+
+    private final Object flushLock = new Object();
+    private final Object compactLock = new Object();
+    private final Object manifestLock = new Object();
+    private final AtomicLong activeBytes = new AtomicLong(0);
+    private final AtomicLong nextSequence = new AtomicLong(0);
+    private final AtomicBoolean maintenanceScheduled = new AtomicBoolean(false);
+    private final ExecutorService maintenance;
+
+    private final AtomicLong gets = new AtomicLong(0);
+    private final AtomicLong puts = new AtomicLong(0);
+    private final AtomicLong bytesIn = new AtomicLong(0);
+    private final AtomicLong bytesOut = new AtomicLong(0);
+    private final AtomicLong flushes = new AtomicLong(0);
+    private final AtomicLong compactions = new AtomicLong(0);
+    private final HashSet<ClosableIterator<PageEntry>> openIterators = new HashSet<>();
+
+    private volatile boolean closed;
+
+    public ByteStoreLSM(File dir) {
+        this(dir, false);
+    }
+
+    public ByteStoreLSM(File dir, boolean readonly) {
+        this.dir = readonly ? dir : Files.initDirectory(dir);
+        this.readonly = readonly;
+        try {
+            List<LSMSegment> segments = openManifest();
+            state = new State(newMemtable(), Collections.<ConcurrentSkipListMap<byte[], byte[]>>emptyList(),
+                    segments);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        if (readonly) {
+            maintenance = null;
+        } else {
+            maintenance = Executors.newSingleThreadExecutor(
+                    new NamedThreadFactory("lsm-maintenance-" + dir.getName() + "-", true));
+        }
+    }
+
+    /**
+     * Returns true if the directory holds a log structured store.
+     */
+    public static boolean exists(File dir) {
+        return new File(dir, MANIFEST).isFile();
+    }
+
+    @Override
+    public String toString() {
+        return "BSLSM[" + gets + "," + puts + "," + state.segments.size() + "]";
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return readonly;
+    }
+
+    @Override
+    public boolean hasKey(byte[] key) {
+        return lookup(key) != null;
+    }
+
+    @Override
+    public byte[] firstKey() {
+        return seekHigher(null, false);
+    }
+
+    @Override
+    public byte[] firstEntry() {
+        byte[] key = firstKey();
+        return key != null ? get(key) : null;
+    }
+
+    @Override
+    public byte[] lastKey() {
+        return seekLower(null, false);
+    }
+
+    @Override
+    public void put(byte[] key, byte[] val) {
+        if (readonly) {
+            throw new UnsupportedOperationException("put on read only store " + dir);
+        }
+        puts.incrementAndGet();
+        bytesOut.addAndGet(key.length + val.length);
+        write(key, val);
+    }
+
+    /**
+     * Applies the entries to the memtable under a single acquisition
+     * of the state lock and checks for a flush once at the end.
+     */
+    @Override
+    public void putAll(Map<byte[], byte[]> entries) {
+        if (readonly) {
+            throw new UnsupportedOperationException("put on read only store " + dir);
+        }
+        long bytes = 0;
+        stateLock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("store is closed " + dir);
+            }
+            ConcurrentSkipListMap<byte[], byte[]> memtable = state.memtable;
+            for (Map.Entry<byte[], byte[]> entry : entries.entrySet()) {
+                memtable.put(entry.getKey(), entry.getValue());
+                bytes += entry.getKey().length + entry.getValue().length;
+            }
+        } finally {
+            stateLock.readLock().unlock();
+        }
+        puts.addAndGet(entries.size());
+        bytesOut.addAndGet(bytes);
+        checkMemtable(bytes + 32 * entries.size());
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        byte[] value = lookup(key);
+        gets.incrementAndGet();
+        if (value != null) {
+            bytesIn.addAndGet(key.length + value.length);
+        }
+        return value;
+    }
+
+    @Override
+    public byte[] higherKey(byte[] key) {
+        return seekHigher(key, false);
+    }
+
+    @Override
+    public byte[] lowerKey(byte[] key) {
+        return seekLower(key, false);
+    }
+
+    @Override
+    public byte[] floorKey(byte[] key) {
+        return seekLower(key, true);
+    }
+
+    @Override
+    public Map.Entry<byte[], byte[]> floorEntry(byte[] key) {
+        byte[] floor = floorKey(key);
+        if (floor == null) {
+            return null;
+        }
+        byte[] value = get(floor);
+        return value != null ? new Entry(floor, value) : null;
+    }
+
+    /**
+     * Deletes the key and returns the key that precedes it. Returns null
+     * if the key was not present or it was the first key in the store.
+     */
+    @Override
+    public byte[] delete(byte[] key) {
+        if (readonly) {
+            throw new UnsupportedOperationException("delete on read only store " + dir);
+        }
+        if (lookup(key) == null) {
+            return null;
+        }
+        write(key, TOMBSTONE);
+        return lowerKey(key);
+    }
+
+    @Override
+    public ClosableIterator<PageEntry> iterator(byte[] start) {
+        return iterator(start, false);
+    }
+
+    @Override
+    public ClosableIterator<PageEntry> keyIterator(byte[] start) {
+        return iterator(start, true);
+    }
+
+    @Override
+    public long count() {
+        long count = 0;
+        ClosableIterator<PageEntry> iterator = keyIterator(null);
+        try {
+            while (iterator.hasNext()) {
+                iterator.next();
+                count++;
+            }
+        } finally {
+            iterator.close();
+        }
+        return count;
+    }
+
+    @Override
+    public void close() {
+        close(false);
+    }
+
+    /**
+     * Close the store.
+     *
+     * @param cleanLog if true then merge all segments into one and drop deleted keys.
+     */
+    @Override
+    public void close(boolean cleanLog) {
+        if (closed) {
+            return;
+        }
+        log.info("Closing lsm store for: " + dir.getAbsolutePath());
+        synchronized (openIterators) {
+            if (openIterators.size() > 0) {
+                log.warn("closing " + openIterators.size() + " iterators on close");
+                for (Object e : openIterators.toArray(new Object[openIterators.size()])) {
+                    ((ClosableIterator<PageEntry>) e).close();
+                }
+            }
+        }
+        if (!readonly) {
+            maintenance.shutdown();
+            try {
+                maintenance.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                rotateMemtable();
+                flushPending();
+                if (cleanLog) {
+                    compactAll();
+                }
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        closed = true;
+        State current = state;
+        log.info("pages:gets=" + gets + " puts=" + puts + " in=" + bytesIn + " out=" + bytesOut +
+                 " flushes=" + flushes + " compactions=" + compactions + " segments=" + current.segments.size());
+        for (LSMSegment segment : current.segments) {
+            segment.release();
+        }
+    }
+
+    /**
+     * Number of on disk segments. Exposed for tests and monitoring.
+     */
+    int segmentCount() {
+        return state.segments.size();
+    }
+
+    /**
+     * Flush all buffered writes to disk without closing the store.
+     */
+    public void sync() {
+        if (readonly) {
+            return;
+        }
+        try {
+            rotateMemtable();
+            flushPending();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Merge all segments into a single segment without closing the store.
+     */
+    public void compact() {
+        if (readonly) {
+            return;
+        }
+        try {
+            compactAll();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private void write(byte[] key, byte[] val) {
+        stateLock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("store is closed " + dir);
+            }
+            state.memtable.put(key, val);
+        } finally {
+            stateLock.readLock().unlock();
+        }
+        checkMemtable(key.length + val.length + 32);
+    }
+
+    private void checkMemtable(long written) {
+        if (activeBytes.addAndGet(written) >= memtableBytes) {
+            rotateMemtable();
+            if (state.immutables.size() > maxPendingMemtables) {
+                // apply back pressure rather than buffer without bound
+                try {
+                    flushPending();
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            } else {
+                scheduleMaintenance();
+            }
+        }
+    }
+
+    private byte[] lookup(byte[] key) {
+        stateLock.readLock().lock();
+        try {
+            State current = state;
+            byte[] value = current.memtable.get(key);
+            if (value == null) {
+                for (ConcurrentSkipListMap<byte[], byte[]> table : current.immutables) {
+                    value = table.get(key);
+                    if (value != null) {
+                        break;
+                    }
+                }
+            }
+            if (value == null) {
+                for (LSMSegment segment : current.segments) {
+                    Map.Entry<byte[], byte[]> entry = segment.get(key);
+                    if (entry != null) {
+                        value = entry.getValue();
+                        break;
+                    }
+                }
+            }
+            return value == TOMBSTONE ? null : value;
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the greatest live key less than (or equal to when inclusive)
+     * the target. A null target returns the last key.
+     */
+    private byte[] seekLower(byte[] key, boolean inclusive) {
+        stateLock.readLock().lock();
+        try {
+            State current = state;
+            while (true) {
+                Map.Entry<byte[], byte[]> best = null;
+                for (ConcurrentSkipListMap<byte[], byte[]> table : current.tables()) {
+                    Map.Entry<byte[], byte[]> entry = (key == null) ? table.lastEntry() :
+                                                     inclusive ? table.floorEntry(key) : table.lowerEntry(key);
+                    if (entry != null && (best == null || comparator.compare(entry.getKey(), best.getKey()) > 0)) {
+                        best = entry;
+                    }
+                }
+                for (LSMSegment segment : current.segments) {
+                    Map.Entry<byte[], byte[]> entry = segment.floor(key, inclusive);
+                    if (entry != null && (best == null || comparator.compare(entry.getKey(), best.getKey()) > 0)) {
+                        best = entry;
+                    }
+                }
+                if (best == null) {
+                    return null;
+                }
+                if (resolve(current, best) != TOMBSTONE) {
+                    return best.getKey();
+                }
+                key = best.getKey();
+                inclusive = false;
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the least live key greater than (or equal to when inclusive)
+     * the target. A null target returns the first key.
+     */
+    private byte[] seekHigher(byte[] key, boolean inclusive) {
+        stateLock.readLock().lock();
+        try {
+            State current = state;
+            while (true) {
+                Map.Entry<byte[], byte[]> best = null;
+                for (ConcurrentSkipListMap<byte[], byte[]> table : current.tables()) {
+                    Map.Entry<byte[], byte[]> entry = (key == null) ? table.firstEntry() :
+                                                     inclusive ? table.ceilingEntry(key) : table.higherEntry(key);
+                    if (entry != null && (best == null || comparator.compare(entry.getKey(), best.getKey()) < 0)) {
+                        best = entry;
+                    }
+                }
+                for (LSMSegment segment : current.segments) {
+                    Map.Entry<byte[], byte[]> entry = segment.ceiling(key, inclusive);
+                    if (entry != null && (best == null || comparator.compare(entry.getKey(), best.getKey()) < 0)) {
+                        best = entry;
+                    }
+                }
+                if (best == null) {
+                    return null;
+                }
+                if (resolve(current, best) != TOMBSTONE) {
+                    return best.getKey();
+                }
+                key = best.getKey();
+                inclusive = false;
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The candidate found by a seek may be shadowed by a newer version of
+     * the same key, so return the value from the newest source that has it.
+     */
+    private static byte[] resolve(State current, Map.Entry<byte[], byte[]> candidate) throws IOException {
+        byte[] key = candidate.getKey();
+        for (ConcurrentSkipListMap<byte[], byte[]> table : current.tables()) {
+            byte[] value = table.get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+        for (LSMSegment segment : current.segments) {
+            Map.Entry<byte[], byte[]> entry = segment.get(key);
+            if (entry != null) {
+                return entry.getValue();
+            }
+        }
+        return candidate.getValue();
+    }
+
+    private ClosableIterator<PageEntry> iterator(byte[] start, boolean keyonly) {
+        byte[] begin = (start == null || start.length == 0) ? null : floorKey(start);
+        if (begin == null) {
+            begin = firstKey();
+        }
+        List<Iterator<Map.Entry<byte[], byte[]>>> sources = new ArrayList<>();
+        List<LSMSegment> retained = new ArrayList<>();
+        stateLock.readLock().lock();
+        try {
+            State current = state;
+            if (begin != null) {
+                for (ConcurrentSkipListMap<byte[], byte[]> table : current.tables()) {
+                    sources.add(table.tailMap(begin, true).entrySet().iterator());
+                }
+                for (LSMSegment segment : current.segments) {
+                    if (segment.retain()) {
+                        retained.add(segment);
+                        sources.add(segment.new SegmentIterator(segment.seek(begin, true, keyonly)));
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            for (LSMSegment segment : retained) {
+                segment.release();
+            }
+            throw new RuntimeException(ex);
+        } finally {
+            stateLock.readLock().unlock();
+        }
+        LSMIterator iterator = new LSMIterator(new MergeIterator(sources, false), retained, keyonly);
+        synchronized (openIterators) {
+            openIterators.add(iterator);
+        }
+        return iterator;
+    }
+
+    private void scheduleMaintenance() {
+        if (maintenanceScheduled.compareAndSet(false, true)) {
+            try {
+                maintenance.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        maintenanceScheduled.set(false);
+                        try {
+                            flushPending();
+                            compactTiers();
+                        } catch (Exception ex) {
+                            log.warn("lsm maintenance failed for " + dir, ex);
+                        }
+                    }
+                });
+            } catch (Exception ex) {
+                maintenanceScheduled.set(false);
+                log.warn("unable to schedule lsm maintenance for " + dir, ex);
+            }
+        }
+    }
+
+    /**
+     * Move the active memtable to the head of the flush queue.
+     */
+    private void rotateMemtable() {
+        stateLock.writeLock().lock();
+        try {
+            State current = state;
+            if (current.memtable.isEmpty()) {
+                return;
+            }
+            List<ConcurrentSkipListMap<byte[], byte[]>> immutables = new ArrayList<>(current.immutables.size() + 1);
+            immutables.add(current.memtable);
+            immutables.addAll(current.immutables);
+            state = new State(newMemtable(), immutables, current.segments);
+            activeBytes.set(0);
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Write every pending memtable to a segment, oldest first.
+     */
+    private void flushPending() throws IOException {
+        synchronized (flushLock) {
+            while (true) {
+                List<ConcurrentSkipListMap<byte[], byte[]>> pending = state.immutables;
+                if (pending.isEmpty()) {
+                    return;
+                }
+                ConcurrentSkipListMap<byte[], byte[]> table = pending.get(pending.size() - 1);
+                long sequence = nextSequence.getAndIncrement();
+                LSMSegment segment = LSMSegment.write(segmentFile(sequence), sequence,
+                        table.entrySet().iterator(), table.size(), indexInterval, bloomBitsPerKey, bloomHashes);
+                stateLock.writeLock().lock();
+                try {
+                    State current = state;
+                    List<ConcurrentSkipListMap<byte[], byte[]>> immutables = new ArrayList<>(current.immutables);
+                    immutables.remove(immutables.size() - 1);
+                    List<LSMSegment> segments = new ArrayList<>(current.segments.size() + 1);
+                    segments.add(segment);
+                    segments.addAll(current.segments);
+                    writeManifest(segments);
+                    state = new State(current.memtable, immutables, segments);
+                } finally {
+                    stateLock.writeLock().unlock();
+                }
+                flushes.incrementAndGet();
+                if (log.isDebugEnabled()) {
+                    log.debug("flushed " + segment + " for " + dir);
+                }
+            }
+        }
+    }
+
+    /**
+     * Size tiered compaction. Starting from the newest segment, grow a run
+     * of segments while each older segment is no larger than the ratio
+     * times the bytes in the run. Merge the run once it is long enough.
+     */
+    private void compactTiers() throws IOException {
+        synchronized (compactLock) {
+            while (true) {
+                List<LSMSegment> segments = state.segments;
+                List<LSMSegment> run = null;
+                for (int begin = 0; begin < segments.size() && run == null; begin++) {
+                    long runBytes = segments.get(begin).fileSize;
+                    int end = begin + 1;
+                    while (end < segments.size() && segments.get(end).fileSize <= runBytes * compactionRatio) {
+                        runBytes += segments.get(end).fileSize;
+                        end++;
+                    }
+                    if (end - begin >= compactionSegments) {
+                        run = segments.subList(begin, end);
+                    }
+                }
+                if (run == null) {
+                    return;
+                }
+                merge(new ArrayList<>(run), run.get(run.size() - 1) == segments.get(segments.size() - 1));
+            }
+        }
+    }
+
+    private void compactAll() throws IOException {
+        synchronized (compactLock) {
+            List<LSMSegment> segments = state.segments;
+            boolean hasTombstones = false;
+            if (segments.size() == 1) {
+                LSMSegment.Cursor cursor = segments.get(0).seek(null, true, true);
+                try {
+                    while (!hasTombstones && cursor.advance()) {
+                        hasTombstones = cursor.isTombstone();
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            if (segments.size() > 1 || hasTombstones) {
+                merge(new ArrayList<>(segments), true);
+            }
+        }
+    }
+
+    /**
+     * Merge a contiguous run of segments into one segment and swap it in.
+     *
+     * @param run        segments ordered newest first
+     * @param dropDeletes true if the run includes the oldest segment
+     */
+    private void merge(List<LSMSegment> run, boolean dropDeletes) throws IOException {
+        List<Iterator<Map.Entry<byte[], byte[]>>> sources = new ArrayList<>(run.size());
+        long records = 0;
+        for (LSMSegment segment : run) {
+            sources.add(segment.new SegmentIterator(segment.seek(null, true, false)));
+            records += segment.recordCount;
+        }
+        long sequence = nextSequence.getAndIncrement();
+        LSMSegment merged = LSMSegment.write(segmentFile(sequence), sequence,
+                new MergeIterator(sources, dropDeletes), records, indexInterval, bloomBitsPerKey, bloomHashes);
+        stateLock.writeLock().lock();
+        try {
+            State current = state;
+            List<LSMSegment> segments = new ArrayList<>(current.segments);
+            int position = segments.indexOf(run.get(0));
+            segments.removeAll(run);
+            if (merged.recordCount > 0) {
+                segments.add(position, merged);
+            } else {
+                merged.markObsolete();
+                merged.release();
+            }
+            writeManifest(segments);
+            state = new State(current.memtable, current.immutables, segments);
+            for (LSMSegment segment : run) {
+                segment.markObsolete();
+                segment.release();
+            }
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        compactions.incrementAndGet();
+        if (log.isDebugEnabled()) {
+            log.debug("merged " + run + " into " + merged + " for " + dir);
+        }
+    }
+
+    private File segmentFile(long sequence) {
+        return new File(dir, String.format("%016x", sequence) + SEGMENT_SUFFIX);
+    }
+
+    private List<LSMSegment> openManifest() throws IOException {
+        File manifest = new File(dir, MANIFEST);
+        List<LSMSegment> segments = new ArrayList<>();
+        HashSet<String> live = new HashSet<>();
+        long maxSequence = -1;
+        if (manifest.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(manifest))) {
+                String line = reader.readLine();
+                if (!MANIFEST_HEADER.equals(line)) {
+                    throw new IOException("unrecognized manifest " + manifest + " : " + line);
+                }
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    long sequence = Long.parseLong(line, 16);
+                    File file = segmentFile(sequence);
+                    segments.add(LSMSegment.open(file, sequence));
+                    live.add(file.getName());
+                    maxSequence = Math.max(maxSequence, sequence);
+                }
+            }
+        } else if (readonly) {
+            throw new IOException("missing manifest " + manifest);
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        maxSequence = Math.max(maxSequence,
+                                Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()), 16));
+                    } catch (NumberFormatException ignored) {
+                    }
+                    // leftovers from an interrupted flush or compaction
+                    if (!readonly && !live.contains(name) && !file.delete()) {
+                        log.warn("unable to delete orphaned segment " + file);
+                    }
+                }
+            }
+        }
+        nextSequence.set(maxSequence + 1);
+        if (!manifest.exists() && !readonly) {
+            writeManifest(segments);
+        }
+        return segments;
+    }
+
+    private void writeManifest(List<LSMSegment> segments) throws IOException {
+        synchronized (manifestLock) {
+            File manifest = new File(dir, MANIFEST);
+            File temp = new File(dir, MANIFEST + ".tmp");
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, "UTF-8"));
+                writer.println(MANIFEST_HEADER);
+                for (LSMSegment segment : segments) {
+                    writer.println(String.format("%016x", segment.sequence));
+                }
+                writer.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(manifest)) {
+                throw new IOException("unable to replace manifest " + manifest);
+            }
+        }
+    }
+
+    private static ConcurrentSkipListMap<byte[], byte[]> newMemtable() {
+        return new ConcurrentSkipListMap<>(comparator);
+    }
+
+    /**
+     * Immutable snapshot of the sources of the store, newest first.
+     */
+    private static final class State {
+
+        final ConcurrentSkipListMap<byte[], byte[]> memtable;
+        final List<ConcurrentSkipListMap<byte[], byte[]>> immutables;
+        final List<LSMSegment> segments;
+
+        State(ConcurrentSkipListMap<byte[], byte[]> memtable,
+                List<ConcurrentSkipListMap<byte[], byte[]>> immutables,
+                List<LSMSegment> segments) {
+            this.memtable = memtable;
+            this.immutables = Collections.unmodifiableList(immutables);
+            this.segments = Collections.unmodifiableList(segments);
+        }
+
+        List<ConcurrentSkipListMap<byte[], byte[]>> tables() {
+            List<ConcurrentSkipListMap<byte[], byte[]>> tables = new ArrayList<>(immutables.size() + 1);
+            tables.add(memtable);
+            tables.addAll(immutables);
+            return tables;
+        }
+    }
+
+    static final class Entry implements Map.Entry<byte[], byte[]>, PageEntry {
+
+        private final byte[] key;
+        private final byte[] value;
+
+        Entry(byte[] key, byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public byte[] getKey() {
+            return key;
+        }
+
+        @Override
+        public byte[] getValue() {
+            return value;
+        }
+
+        @Override
+        public byte[] setValue(byte[] value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public byte[] key() {
+            return key;
+        }
+
+        @Override
+        public byte[] value() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return "PE:" + Bytes.toString(key) + "=" + (value == TOMBSTONE ? "<deleted>" : Bytes.toString(value));
+        }
+    }
+
+    /**
+     * Merges sorted sources that are ordered newest first. When several
+     * sources hold the same key only the newest version is returned.
+     */
+    static final class MergeIterator implements Iterator<Map.Entry<byte[], byte[]>> {
+
+        private final PriorityQueue<Source> queue;
+        private final boolean dropDeletes;
+        private Map.Entry<byte[], byte[]> next;
+
+        MergeIterator(List<Iterator<Map.Entry<byte[], byte[]>>> sources, boolean dropDeletes) {
+            this.dropDeletes = dropDeletes;
+            this.queue = new PriorityQueue<>(Math.max(1, sources.size()));
+            for (int i = 0; i < sources.size(); i++) {
+                Source source = new Source(sources.get(i), i);
+                if (source.advance()) {
+                    queue.add(source);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !queue.isEmpty()) {
+                Source top = queue.poll();
+                Map.Entry<byte[], byte[]> candidate = top.current;
+                if (top.advance()) {
+                    queue.add(top);
+                }
+                while (!queue.isEmpty() && comparator.compare(queue.peek().current.getKey(), candidate.getKey()) == 0) {
+                    Source shadowed = queue.poll();
+                    if (shadowed.advance()) {
+                        queue.add(shadowed);
+                    }
+                }
+                if (!(dropDeletes && candidate.getValue() == TOMBSTONE)) {
+                    next = candidate;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<byte[], byte[]> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<byte[], byte[]> result = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private static final class Source implements Comparable<Source> {
+
+            final Iterator<Map.Entry<byte[], byte[]>> iterator;
+            final int age;
+            Map.Entry<byte[], byte[]> current;
+
+            Source(Iterator<Map.Entry<byte[], byte[]>> iterator, int age) {
+                this.iterator = iterator;
+                this.age = age;
+            }
+
+            boolean advance() {
+                current = iterator.hasNext() ? iterator.next() : null;
+                return current != null;
+            }
+
+            @Override
+            public int compareTo(Source other) {
+                int cmp = comparator.compare(current.getKey(), other.current.getKey());
+                return cmp != 0 ? cmp : Integer.compare(age, other.age);
+            }
+        }
+    }
+
+    private final class LSMIterator implements ClosableIterator<PageEntry> {
+
+        private final MergeIterator merge;
+        private final boolean keyonly;
+        private List<LSMSegment> retained;
+        private PageEntry next;
+        private byte[] lastKey;
+
+        LSMIterator(MergeIterator merge, List<LSMSegment> retained, boolean keyonly) {
+            this.merge = merge;
+            this.retained = retained;
+            this.keyonly = keyonly;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && retained != null) {
+                while (merge.hasNext()) {
+                    Map.Entry<byte[], byte[]> entry = merge.next();
+                    if (entry.getValue() != TOMBSTONE) {
+                        next = new Entry(entry.getKey(), keyonly ? null : entry.getValue());
+                        break;
+                    }
+                }
+                if (next == null) {
+                    close();
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public PageEntry next() {
+            if (hasNext()) {
+                PageEntry ret = next;
+                lastKey = ret.key();
+                next = null;
+                return ret;
+            }
+            throw new NoSuchElementException();
+        }
+
+        @Override
+        public void remove() {
+            if (lastKey == null) {
+                throw new IllegalStateException();
+            }
+            delete(lastKey);
+        }
+
+        @Override
+        public void close() {
+            List<LSMSegment> release;
+            synchronized (this) {
+                release = retained;
+                retained = null;
+            }
+            if (release != null) {
+                for (LSMSegment segment : release) {
+                    segment.release();
+                }
+                synchronized (openIterators) {
+                    openIterators.remove(this);
+                }
+            }
+        }
+
+        @Override
+        protected void finalize() {
+            close();
+        }
+    }
+}
@@ -0,0 +1,499 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.kv;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.addthis.basis.util.Bytes;
+import com.addthis.basis.util.ClosableIterator;
+import com.addthis.basis.util.Parameter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read only byte store that serves a single immutable sorted file
+ * through memory mappings. The file is produced by {@link #export}
+ * from any other store once a job has finished writing to it.
+ * Reads go straight to the OS page cache without the locking and
+ * cursor overhead of BerkeleyDB.
+ * <p/>
+ * File layout:
+ * <pre>
+ * int magic
+ * [record]*   int key length, key, int value length, value
+ * [index]     int entry count, then (int key length, key, long offset)
+ *             for every interval-th record
+ * [footer]    long index offset, long record count, int chunk size, int magic
+ * </pre>
+ * The file is mapped in chunks. Records never straddle a chunk boundary;
+ * the writer emits a key length of -1 and skips to the next chunk instead.
+ */
+public class ByteStoreMapped implements ByteStore {
+
+    private static final Logger log = LoggerFactory.getLogger(ByteStoreMapped.class);
+
+    public static final String FILE = "db.mapped";
+
+    static final int defaultIndexInterval = Parameter.intValue("eps.mapped.index.interval", 32);
+    static final int defaultChunkSize = Parameter.intValue("eps.mapped.chunk", 1 << 30);
+
+    static final int MAGIC = 0x4d415031;
+    static final int FOOTER_SIZE = 24;
+    static final int HEADER_SIZE = 4;
+    static final int PADDING = -1;
+
+    private final File file;
+    private final MappedByteBuffer[] chunks;
+    private final int chunkSize;
+    private final long dataEnd;
+    private final long recordCount;
+    private final byte[][] indexKeys;
+    private final long[] indexOffsets;
+
+    private final AtomicLong gets = new AtomicLong(0);
+    private final AtomicLong bytesIn = new AtomicLong(0);
+
+    private volatile boolean closed;
+
+    public ByteStoreMapped(File dir) {
+        this.file = new File(dir, FILE);
+        try (RandomAccessFile access = new RandomAccessFile(file, "r")) {
+            FileChannel channel = access.getChannel();
+            long size = channel.size();
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            channel.read(footer, size - FOOTER_SIZE);
+            footer.flip();
+            long indexOffset = footer.getLong();
+            recordCount = footer.getLong();
+            chunkSize = footer.getInt();
+            if (footer.getInt() != MAGIC) {
+                throw new IOException("invalid footer in " + file);
+            }
+            dataEnd = indexOffset;
+            int count = (int) ((size + chunkSize - 1) / chunkSize);
+            chunks = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long position = (long) i * chunkSize;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(chunkSize, size - position));
+            }
+            if (chunk(0).getInt(0) != MAGIC) {
+                throw new IOException("invalid header in " + file);
+            }
+            ByteBuffer index = ByteBuffer.allocate((int) (size - FOOTER_SIZE - indexOffset));
+            channel.read(index, indexOffset);
+            index.flip();
+            int entries = index.getInt();
+            indexKeys = new byte[entries][];
+            indexOffsets = new long[entries];
+            for (int i = 0; i < entries; i++) {
+                indexKeys[i] = new byte[index.getInt()];
+                index.get(indexKeys[i]);
+                indexOffsets[i] = index.getLong();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Returns true if the directory holds an exported store.
+     */
+    public static boolean exists(File dir) {
+        return new File(dir, FILE).isFile();
+    }
+
+    /**
+     * Remove an export that no longer reflects the writable store in the directory.
+     */
+    public static void invalidate(File dir) {
+        File export = new File(dir, FILE);
+        if (export.exists() && !export.delete()) {
+            log.warn("unable to remove stale export " + export);
+        }
+    }
+
+    /**
+     * Write the contents of a store into the directory as a mapped store.
+     * The file is written under a temporary name and renamed into place.
+     */
+    public static void export(ByteStore source, File dir) throws IOException {
+        export(source, dir, defaultIndexInterval, defaultChunkSize);
+    }
+
+    static void export(ByteStore source, File dir, int indexInterval, int chunkSize) throws IOException {
+        File temp = new File(dir, FILE + ".tmp");
+        File target = new File(dir, FILE);
+        ArrayList<byte[]> indexKeys = new ArrayList<>();
+        ArrayList<Long> indexOffsets = new ArrayList<>();
+        long records = 0;
+        long position = 0;
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+        ClosableIterator<PageEntry> iterator = source.iterator(null);
+        try {
+            out.writeInt(MAGIC);
+            position += HEADER_SIZE;
+            while (iterator.hasNext()) {
+                PageEntry entry = iterator.next();
+                byte[] key = entry.key();
+                byte[] value = entry.value();
+                long length = 8L + key.length + value.length;
+                if (length + 4 > chunkSize) {
+                    throw new IOException("entry of " + length + " bytes exceeds chunk size " + chunkSize);
+                }
+                long remaining = chunkSize - (position % chunkSize);
+                if (length > remaining) {
+                    // leave room for the padding marker
+                    if (remaining >= 4) {
+                        out.writeInt(PADDING);
+                        remaining -= 4;
+                        position += 4;
+                    }
+                    for (long i = 0; i < remaining; i++) {
+                        out.write(0);
+                    }
+                    position += remaining;
+                }
+                if (records % indexInterval == 0) {
+                    indexKeys.add(key);
+                    indexOffsets.add(position);
+                }
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeInt(value.length);
+                out.write(value);
+                position += length;
+                records++;
+            }
+            long indexOffset = position;
+            out.writeInt(indexKeys.size());
+            for (int i = 0; i < indexKeys.size(); i++) {
+                out.writeInt(indexKeys.get(i).length);
+                out.write(indexKeys.get(i));
+                out.writeLong(indexOffsets.get(i));
+            }
+            out.writeLong(indexOffset);
+            out.writeLong(records);
+            out.writeInt(chunkSize);
+            out.writeInt(MAGIC);
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            iterator.close();
+            out.close();
+        }
+        if (!temp.renameTo(target)) {
+            throw new IOException("unable to rename " + temp + " to " + target);
+        }
+        log.info("exported " + records + " records to " + target + " size=" + target.length());
+    }
+
+    @Override
+    public String toString() {
+        return "BSMAP[" + file + "," + recordCount + "," + gets + "]";
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    public boolean hasKey(byte[] key) {
+        long offset = floorOffset(key, true);
+        return offset >= 0 && compareKey(offset, key) == 0;
+    }
+
+    @Override
+    public byte[] firstKey() {
+        long offset = first();
+        return offset >= 0 ? readKey(offset) : null;
+    }
+
+    @Override
+    public byte[] firstEntry() {
+        long offset = first();
+        return offset >= 0 ? readValue(offset) : null;
+    }
+
+    @Override
+    public byte[] lastKey() {
+        long offset = floorOffset(null, true);
+        return offset >= 0 ? readKey(offset) : null;
+    }
+
+    @Override
+    public void put(byte[] key, byte[] val) {
+        throw new UnsupportedOperationException("put on read only store " + file);
+    }
+
+    @Override
+    public void putAll(Map<byte[], byte[]> entries) {
+        throw new UnsupportedOperationException("put on read only store " + file);
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        gets.incrementAndGet();
+        long offset = floorOffset(key, true);
+        if (offset >= 0 && compareKey(offset, key) == 0) {
+            byte[] value = readValue(offset);
+            bytesIn.addAndGet(key.length + value.length);
+            return value;
+        }
+        return null;
+    }
+
+    @Override
+    public byte[] higherKey(byte[] key) {
+        long offset = floorOffset(key, true);
+        offset = (offset < 0) ? first() : next(offset);
+        return offset >= 0 ? readKey(offset) : null;
+    }
+
+    @Override
+    public byte[] lowerKey(byte[] key) {
+        long offset = floorOffset(key, false);
+        return offset >= 0 ? readKey(offset) : null;
+    }
+
+    @Override
+    public byte[] floorKey(byte[] key) {
+        long offset = floorOffset(key, true);
+        return offset >= 0 ? readKey(offset) : null;
+    }
+
+    @Override
+    public Map.Entry<byte[], byte[]> floorEntry(byte[] key) {
+        long offset = floorOffset(key, true);
+        if (offset < 0) {
+            return null;
+        }
+        gets.incrementAndGet();
+        byte[] floorKey = readKey(offset);
+        byte[] value = readValue(offset);
+        bytesIn.addAndGet(floorKey.length + value.length);
+        return new AbstractMap.SimpleImmutableEntry<>(floorKey, value);
+    }
+
+    @Override
+    public byte[] delete(byte[] key) {
+        throw new UnsupportedOperationException("delete on read only store " + file);
+    }
+
+    @Override
+    public ClosableIterator<PageEntry> iterator(byte[] start) {
+        return iterator(start, false);
+    }
+
+    @Override
+    public ClosableIterator<PageEntry> keyIterator(byte[] start) {
+        return iterator(start, true);
+    }
+
+    @Override
+    public long count() {
+        return recordCount;
+    }
+
+    @Override
+    public void close() {
+        close(false);
+    }
+
+    /**
+     * The mappings are released when they are garbage collected.
+     */
+    @Override
+    public void close(boolean cleanLog) {
+        closed = true;
+        log.info("pages:gets=" + gets + " in=" + bytesIn + " for " + file);
+    }
+
+    private ClosableIterator<PageEntry> iterator(byte[] start, final boolean keyonly) {
+        long begin = (start == null || start.length == 0) ? -1 : floorOffset(start, true);
+        final long offset = (begin < 0) ? first() : begin;
+        return new ClosableIterator<PageEntry>() {
+            private long next = offset;
+
+            @Override
+            public boolean hasNext() {
+                return next >= 0 && !closed;
+            }
+
+            @Override
+            public PageEntry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final byte[] key = readKey(next);
+                final byte[] value = keyonly ? null : readValue(next);
+                next = ByteStoreMapped.this.next(next);
+                return new PageEntry() {
+                    @Override
+                    public byte[] key() {
+                        return key;
+                    }
+
+                    @Override
+                    public byte[] value() {
+                        return value;
+                    }
+
+                    @Override
+                    public String toString() {
+                        return "PE:" + Bytes.toString(key) + "=" + Bytes.toString(value);
+                    }
+                };
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("remove on read only store " + file);
+            }
+
+            @Override
+            public void close() {
+                next = -1;
+            }
+        };
+    }
+
+    private ByteBuffer chunk(int chunk) {
+        return chunks[chunk];
+    }
+
+    /**
+     * Returns the offset of the first record at or after the position,
+     * skipping chunk padding, or -1 at the end of the data.
+     */
+    private long align(long offset) {
+        while (offset < dataEnd) {
+            int within = (int) (offset % chunkSize);
+            if (chunkSize - within < 4 || chunk((int) (offset / chunkSize)).getInt(within) == PADDING) {
+                offset += chunkSize - within;
+            } else {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private long first() {
+        return align(HEADER_SIZE);
+    }
+
+    private long next(long offset) {
+        ByteBuffer buffer = chunk((int) (offset / chunkSize));
+        int within = (int) (offset % chunkSize);
+        int keyLength = buffer.getInt(within);
+        int valueLength = buffer.getInt(within + 4 + keyLength);
+        return align(offset + 8 + keyLength + valueLength);
+    }
+
+    /**
+     * Returns the offset of the record with the greatest key less than
+     * (or equal to when inclusive) the target or -1. A null target
+     * returns the last record.
+     */
+    private long floorOffset(byte[] key, boolean inclusive) {
+        int low = 0;
+        int high = indexKeys.length - 1;
+        int block = -1;
+        if (key == null) {
+            block = high;
+        } else {
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = ByteStoreLSM.comparator.compare(indexKeys[mid], key);
+                if (cmp < 0 || (inclusive && cmp == 0)) {
+                    block = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+        }
+        if (block < 0) {
+            return -1;
+        }
+        long result = -1;
+        for (long offset = indexOffsets[block]; offset >= 0; offset = next(offset)) {
+            if (key != null) {
+                int cmp = compareKey(offset, key);
+                if (cmp > 0 || (!inclusive && cmp == 0)) {
+                    break;
+                }
+            }
+            result = offset;
+        }
+        return result;
+    }
+
+    /**
+     * Unsigned comparison of the key at the offset against the target
+     * without copying it out of the mapping.
+     */
+    private int compareKey(long offset, byte[] key) {
+        ByteBuffer buffer = chunk((int) (offset / chunkSize));
+        int within = (int) (offset % chunkSize);
+        int length = buffer.getInt(within);
+        int start = within + 4;
+        int limit = Math.min(length, key.length);
+        for (int i = 0; i < limit; i++) {
+            int a = buffer.get(start + i) & 0xff;
+            int b = key[i] & 0xff;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return length - key.length;
+    }
+
+    private byte[] readKey(long offset) {
+        ByteBuffer buffer = chunk((int) (offset / chunkSize)).duplicate();
+        int within = (int) (offset % chunkSize);
+        byte[] key = new byte[buffer.getInt(within)];
+        buffer.position(within + 4);
+        buffer.get(key);
+        return key;
+    }
+
+    private byte[] readValue(long offset) {
+        ByteBuffer buffer = chunk((int) (offset / chunkSize)).duplicate();
+        int within = (int) (offset % chunkSize);
+        int keyLength = buffer.getInt(within);
+        byte[] value = new byte[buffer.getInt(within + 4 + keyLength)];
+        buffer.position(within + 8 + keyLength);
+        buffer.get(value);
+        return value;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.kv;
+
+import java.io.File;
+import java.io.FilenameFilter;
+
+/**
+ * The on disk implementations of {@link ByteStore}.
+ * <p/>
+ * The type of an existing store is detected from the files in its
+ * directory, so changing the configured type of a job only affects
+ * directories that do not yet hold any data.
+ */
+public enum ByteStoreType {
+
+    /**
+     * BerkeleyDB JE. The default.
+     */
+    BDB {
+        @Override
+        public ByteStore open(File dir, String dbname, boolean readonly) {
+            return readonly ? new ByteStoreBDB(dir, dbname, true) : new ConcurrentByteStoreBDB(dir, dbname);
+        }
+    },
+
+    /**
+     * Log structured merge store. See {@link ByteStoreLSM}. The store owns
+     * the whole directory and ignores the database name.
+     */
+    LSM {
+        @Override
+        public ByteStore open(File dir, String dbname, boolean readonly) {
+            return new ByteStoreLSM(dir, readonly);
+        }
+    },
+
+    /**
+     * Memory mapped export of another store. See {@link ByteStoreMapped}.
+     * Read only.
+     */
+    MAPPED {
+        @Override
+        public ByteStore open(File dir, String dbname, boolean readonly) {
+            if (!readonly) {
+                throw new UnsupportedOperationException("mapped stores are read only: " + dir);
+            }
+            return new ByteStoreMapped(dir);
+        }
+    };
+
+    public abstract ByteStore open(File dir, String dbname, boolean readonly);
+
+    /**
+     * Returns the type to use for read only access to the directory.
+     * An exported mapped store is preferred over the store it was exported from.
+     */
+    public static ByteStoreType detectReadOnly(File dir, ByteStoreType fallback) {
+        if (ByteStoreMapped.exists(dir)) {
+            return MAPPED;
+        }
+        return detect(dir, fallback);
+    }
+
+    /**
+     * Returns the type of the writable store in the directory, or the
+     * fallback type if the directory does not hold a store.
+     */
+    public static ByteStoreType detect(File dir, ByteStoreType fallback) {
+        if (ByteStoreLSM.exists(dir)) {
+            return LSM;
+        }
+        String[] logs = dir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".jdb");
+            }
+        });
+        if (logs != null && logs.length > 0) {
+            return BDB;
+        }
+        return fallback;
+    }
+}
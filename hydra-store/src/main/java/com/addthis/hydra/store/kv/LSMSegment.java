@@ -0,0 +1,592 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.kv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.addthis.basis.util.Varint;
+
+import com.addthis.hydra.store.util.Raw;
+import com.addthis.hydra.store.util.SeenFilterBasic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An immutable sorted run of (key, value) pairs on disk for {@link ByteStoreLSM}.
+ * <p/>
+ * File layout:
+ * <pre>
+ * [record]*   varint key length, key, flag byte, varint value length, value
+ * [index]     varint entry count, then (varint key length, key, varlong offset)
+ *             for every {@link #indexInterval}-th record
+ * [bloom]     int bit count, int hashes, int words, int[] words
+ * [footer]    long index offset, long bloom offset, long record count, int magic
+ * </pre>
+ * Only the sparse index and the bloom filter are held on the heap.
+ * A segment is reference counted. The owning store holds one reference
+ * and iterators hold another for their lifetime, so a compacted segment
+ * is closed and unlinked only after its last reader has finished.
+ */
+final class LSMSegment {
+
+    private static final Logger log = LoggerFactory.getLogger(LSMSegment.class);
+
+    static final int MAGIC = 0x4c534d31;
+
+    static final int FOOTER_SIZE = 28;
+
+    static final byte FLAG_VALUE = 0;
+    static final byte FLAG_TOMBSTONE = 1;
+
+    private static final int readBuffer = 64 * 1024;
+
+    /**
+     * Reused by point lookups to read one index block. Blocks larger
+     * than {@link #readBuffer} get a buffer of their own.
+     */
+    private static final ThreadLocal<ByteBuffer> blockBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(4096);
+        }
+    };
+
+    final File file;
+
+    final long sequence;
+
+    final long recordCount;
+
+    final long fileSize;
+
+    private final FileChannel channel;
+
+    private final byte[][] indexKeys;
+
+    private final long[] indexOffsets;
+
+    private final long dataEnd;
+
+    private final SeenFilterBasic<Raw> bloom;
+
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private volatile boolean obsolete;
+
+    private LSMSegment(File file, long sequence) throws IOException {
+        this.file = file;
+        this.sequence = sequence;
+        this.channel = new RandomAccessFile(file, "r").getChannel();
+        this.fileSize = channel.size();
+        if (fileSize < FOOTER_SIZE) {
+            channel.close();
+            throw new IOException("truncated segment " + file);
+        }
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+        readFully(footer, fileSize - FOOTER_SIZE);
+        footer.flip();
+        long indexOffset = footer.getLong();
+        long bloomOffset = footer.getLong();
+        recordCount = footer.getLong();
+        if (footer.getInt() != MAGIC) {
+            channel.close();
+            throw new IOException("invalid segment footer " + file);
+        }
+        dataEnd = indexOffset;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new ChannelInputStream(indexOffset, bloomOffset), readBuffer));
+        int entries = Varint.readUnsignedVarInt(in);
+        indexKeys = new byte[entries][];
+        indexOffsets = new long[entries];
+        for (int i = 0; i < entries; i++) {
+            indexKeys[i] = readBytes(in);
+            indexOffsets[i] = Varint.readUnsignedVarLong(in);
+        }
+        in = new DataInputStream(new BufferedInputStream(
+                new ChannelInputStream(bloomOffset, fileSize - FOOTER_SIZE), readBuffer));
+        int bits = in.readInt();
+        int hashes = in.readInt();
+        int words = in.readInt();
+        bloom = new SeenFilterBasic<>(bits, hashes);
+        int[] store = bloom.getBitStore();
+        for (int i = 0; i < words; i++) {
+            store[i] = in.readInt();
+        }
+    }
+
+    static LSMSegment open(File file, long sequence) throws IOException {
+        return new LSMSegment(file, sequence);
+    }
+
+    /**
+     * Write a sorted stream of entries into a new segment file. Values
+     * that are identical to {@link ByteStoreLSM#TOMBSTONE} are written as
+     * deletion markers.
+     *
+     * @param entries    entries in strictly ascending key order
+     * @param count      an upper bound on the number of entries, used to size the bloom filter
+     */
+    static LSMSegment write(File file, long sequence, Iterator<Map.Entry<byte[], byte[]>> entries,
+            long count, int indexInterval, int bloomBitsPerKey, int bloomHashes) throws IOException {
+        int bits = (int) Math.min(Integer.MAX_VALUE - 32, Math.max(64, count * bloomBitsPerKey));
+        SeenFilterBasic<Raw> filter = new SeenFilterBasic<>(bits, bloomHashes);
+        ArrayList<byte[]> indexKeys = new ArrayList<>();
+        ArrayList<Long> indexOffsets = new ArrayList<>();
+        long records = 0;
+        CountingOutputStream counter = new CountingOutputStream(new FileOutputStream(file));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(counter, readBuffer));
+        try {
+            while (entries.hasNext()) {
+                Map.Entry<byte[], byte[]> entry = entries.next();
+                byte[] key = entry.getKey();
+                byte[] value = entry.getValue();
+                if (records % indexInterval == 0) {
+                    out.flush();
+                    indexKeys.add(key);
+                    indexOffsets.add(counter.written);
+                }
+                filter.setSeen(Raw.get(key));
+                writeBytes(out, key);
+                if (value == ByteStoreLSM.TOMBSTONE) {
+                    out.writeByte(FLAG_TOMBSTONE);
+                    Varint.writeUnsignedVarInt(0, out);
+                } else {
+                    out.writeByte(FLAG_VALUE);
+                    writeBytes(out, value);
+                }
+                records++;
+            }
+            out.flush();
+            long indexOffset = counter.written;
+            Varint.writeUnsignedVarInt(indexKeys.size(), out);
+            for (int i = 0; i < indexKeys.size(); i++) {
+                writeBytes(out, indexKeys.get(i));
+                Varint.writeUnsignedVarLong(indexOffsets.get(i), out);
+            }
+            out.flush();
+            long bloomOffset = counter.written;
+            int[] store = filter.getBitStore();
+            out.writeInt(filter.getBitCount());
+            out.writeInt(filter.getBitsPerEntry());
+            out.writeInt(store.length);
+            for (int word : store) {
+                out.writeInt(word);
+            }
+            out.writeLong(indexOffset);
+            out.writeLong(bloomOffset);
+            out.writeLong(records);
+            out.writeInt(MAGIC);
+            out.flush();
+            counter.sync();
+        } finally {
+            out.close();
+        }
+        return new LSMSegment(file, sequence);
+    }
+
+    boolean retain() {
+        while (true) {
+            int current = references.get();
+            if (current <= 0) {
+                return false;
+            }
+            if (references.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                log.warn("Error closing segment " + file, ex);
+            }
+            if (obsolete && !file.delete()) {
+                log.warn("Unable to delete obsolete segment " + file);
+            }
+        }
+    }
+
+    /**
+     * Mark this segment as replaced by a compaction. The file is removed
+     * once the last reference is released.
+     */
+    void markObsolete() {
+        obsolete = true;
+    }
+
+    boolean mightContain(byte[] key) {
+        return bloom.getSeen(Raw.get(key));
+    }
+
+    /**
+     * Returns the position of the greatest index entry whose key is less
+     * than (or equal to when inclusive) the target, or -1.
+     */
+    private int indexFloor(byte[] key, boolean inclusive) {
+        int low = 0;
+        int high = indexKeys.length - 1;
+        int result = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = ByteStoreLSM.comparator.compare(indexKeys[mid], key);
+            if (cmp < 0 || (inclusive && cmp == 0)) {
+                result = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the entry stored under the key, an entry whose value is
+     * {@link ByteStoreLSM#TOMBSTONE} if the key was deleted, or null
+     * if this segment knows nothing about the key.
+     */
+    Map.Entry<byte[], byte[]> get(byte[] key) throws IOException {
+        if (!mightContain(key)) {
+            return null;
+        }
+        int block = indexFloor(key, true);
+        if (block < 0) {
+            return null;
+        }
+        Cursor cursor = readBlock(block);
+        while (cursor.advance()) {
+            int cmp = ByteStoreLSM.comparator.compare(cursor.key, key);
+            if (cmp == 0) {
+                return cursor.entry();
+            } else if (cmp > 0) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the entry with the greatest key less than the target (or equal
+     * to it when inclusive). A null target is treated as positive infinity.
+     */
+    Map.Entry<byte[], byte[]> floor(byte[] key, boolean inclusive) throws IOException {
+        int block = (key == null) ? indexKeys.length - 1 : indexFloor(key, inclusive);
+        if (block < 0) {
+            return null;
+        }
+        Cursor cursor = readBlock(block);
+        Map.Entry<byte[], byte[]> result = null;
+        while (cursor.advance()) {
+            if (key != null) {
+                int cmp = ByteStoreLSM.comparator.compare(cursor.key, key);
+                if (cmp > 0 || (!inclusive && cmp == 0)) {
+                    break;
+                }
+            }
+            result = cursor.entry();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the entry with the least key greater than the target (or equal
+     * to it when inclusive). A null target is treated as negative infinity.
+     */
+    Map.Entry<byte[], byte[]> ceiling(byte[] key, boolean inclusive) throws IOException {
+        Cursor cursor = seek(key, inclusive, false);
+        return cursor.advance() ? cursor.entry() : null;
+    }
+
+    /**
+     * Position a cursor immediately before the first entry whose key
+     * is greater than (or equal to when inclusive) the target.
+     */
+    Cursor seek(byte[] key, boolean inclusive, boolean keyOnly) throws IOException {
+        if (indexKeys.length == 0) {
+            return new Cursor(dataEnd, keyOnly);
+        }
+        int block = (key == null) ? 0 : Math.max(0, indexFloor(key, true));
+        Cursor cursor = new Cursor(indexOffsets[block], keyOnly);
+        if (key != null) {
+            cursor.skipBelow(key, inclusive);
+        }
+        return cursor;
+    }
+
+    /**
+     * Read an index block with positional reads and return a cursor over
+     * its records. The block holds every key from its index key up to the
+     * next index key, which is all that get and floor need to look at.
+     */
+    private Cursor readBlock(int block) throws IOException {
+        long start = indexOffsets[block];
+        long end = (block + 1 < indexOffsets.length) ? indexOffsets[block + 1] : dataEnd;
+        int length = (int) (end - start);
+        ByteBuffer buffer = blockBuffer.get();
+        if (length > buffer.capacity()) {
+            buffer = ByteBuffer.allocate(length);
+            if (length <= readBuffer) {
+                blockBuffer.set(buffer);
+            }
+        }
+        buffer.clear();
+        buffer.limit(length);
+        readFully(buffer, start);
+        return new Cursor(new DataInputStream(new ByteArrayInputStream(buffer.array(), 0, length)), false);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        Varint.writeUnsignedVarInt(bytes.length, out);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[Varint.readUnsignedVarInt(in)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "LSMSegment[" + file.getName() + "," + recordCount + "," + fileSize + "]";
+    }
+
+    /**
+     * Forward-only reader over the records of the segment. Not thread safe.
+     */
+    final class Cursor {
+
+        private final DataInputStream in;
+
+        private final boolean keyOnly;
+
+        private byte[] pendingKey;
+
+        private byte[] pendingValue;
+
+        byte[] key;
+
+        byte[] value;
+
+        Cursor(long offset, boolean keyOnly) {
+            this(new DataInputStream(new BufferedInputStream(
+                    new ChannelInputStream(offset, dataEnd), readBuffer)), keyOnly);
+        }
+
+        Cursor(DataInputStream in, boolean keyOnly) {
+            this.in = in;
+            this.keyOnly = keyOnly;
+        }
+
+        /**
+         * Move to the next record. Returns false at the end of the segment.
+         */
+        boolean advance() throws IOException {
+            if (pendingKey != null) {
+                key = pendingKey;
+                value = pendingValue;
+                pendingKey = null;
+                pendingValue = null;
+                return true;
+            }
+            int keyLength;
+            try {
+                keyLength = Varint.readUnsignedVarInt(in);
+            } catch (EOFException ex) {
+                key = null;
+                value = null;
+                return false;
+            }
+            key = new byte[keyLength];
+            in.readFully(key);
+            byte flag = in.readByte();
+            int valueLength = Varint.readUnsignedVarInt(in);
+            if (flag == FLAG_TOMBSTONE) {
+                value = ByteStoreLSM.TOMBSTONE;
+            } else if (keyOnly) {
+                in.skipBytes(valueLength);
+                value = null;
+            } else {
+                value = new byte[valueLength];
+                in.readFully(value);
+            }
+            return true;
+        }
+
+        boolean isTombstone() {
+            return value == ByteStoreLSM.TOMBSTONE;
+        }
+
+        Map.Entry<byte[], byte[]> entry() {
+            return new ByteStoreLSM.Entry(key, value);
+        }
+
+        private void skipBelow(byte[] target, boolean inclusive) throws IOException {
+            while (advance()) {
+                int cmp = ByteStoreLSM.comparator.compare(key, target);
+                if (cmp > 0 || (inclusive && cmp == 0)) {
+                    pendingKey = key;
+                    pendingValue = value;
+                    return;
+                }
+            }
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Positional reads against the shared file channel so that any number
+     * of cursors can read the same segment concurrently.
+     */
+    private final class ChannelInputStream extends InputStream {
+
+        private long position;
+
+        private final long end;
+
+        ChannelInputStream(long position, long end) {
+            this.position = position;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : (single[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            length = (int) Math.min(length, end - position);
+            int read = channel.read(ByteBuffer.wrap(bytes, offset, length), position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private final FileOutputStream file;
+
+        long written;
+
+        CountingOutputStream(FileOutputStream out) {
+            super(out);
+            this.file = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            written++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            written += length;
+        }
+
+        void sync() throws IOException {
+            file.getFD().sync();
+        }
+    }
+
+    /**
+     * Iterator over a segment that holds a reference to it until exhausted or closed.
+     */
+    final class SegmentIterator implements Iterator<Map.Entry<byte[], byte[]>> {
+
+        private final Cursor cursor;
+
+        private boolean ready;
+
+        private boolean done;
+
+        SegmentIterator(Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!ready && !done) {
+                try {
+                    ready = cursor.advance();
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+                done = !ready;
+            }
+            return ready;
+        }
+
+        @Override
+        public Map.Entry<byte[], byte[]> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ready = false;
+            return cursor.entry();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.kv;
+
+import java.nio.ByteBuffer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.addthis.basis.util.ClosableIterator;
+
+import com.addthis.hydra.store.util.FrequencySketch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+/**
+ * Keeps recently used encoded pages of another ByteStore in off-heap
+ * memory. Pages that are written or read through this store are copied
+ * into pooled direct buffers and discarded in least recently used order
+ * once more than {@code maxBytes} are held. Point reads that hit the
+ * cache never reach the underlying store. All other operations are
+ * passed through.
+ * <p/>
+ * The cache is split by key hash into segments with their own lock,
+ * recency order and share of {@code maxBytes}. Accesses are counted in a
+ * {@link FrequencySketch}. A write of a key that is not cached is only
+ * admitted if it fits or if the key is used more often than the least
+ * recently used entry that it would evict, so that pages written once do
+ * not push out pages that are read repeatedly. Values read from the store
+ * are always admitted.
+ * <p/>
+ * Every write and delete is applied to the underlying store before the
+ * cache is updated, so the cache never holds a value that the store does
+ * not. A value read from the store is only cached if no write to a key in
+ * the same segment happened while it was being read, which prevents a
+ * slow read from replacing a newer value.
+ */
+public class OffHeapPageCache implements ByteStore {
+
+    private static final Logger log = LoggerFactory.getLogger(OffHeapPageCache.class);
+
+    private static final int MAX_SEGMENTS = 16;
+
+    /**
+     * Smallest share of the cache that is given its own segment.
+     */
+    private static final long MIN_SEGMENT_BYTES = 1 << 20;
+
+    private final ByteStore store;
+
+    private final Segment[] segments;
+
+    private final FrequencySketch sketch;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+    private final AtomicLong rejections = new AtomicLong(0);
+
+    public OffHeapPageCache(ByteStore store, long maxBytes) {
+        this.store = store;
+        int count = (int) Math.max(1, Math.min(MAX_SEGMENTS, maxBytes / MIN_SEGMENT_BYTES));
+        count = Integer.highestOneBit(count);
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(maxBytes / count);
+        }
+        this.sketch = new FrequencySketch((int) Math.max(1024, Math.min(1 << 20, maxBytes >>> 10)));
+    }
+
+    private static int hash(byte[] key) {
+        int hash = 1;
+        for (byte b : key) {
+            hash = 31 * hash + b;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private Segment segment(int hash) {
+        return segments[hash & (segments.length - 1)];
+    }
+
+    /**
+     * One lock, recency order and byte budget of the cache.
+     */
+    private final class Segment {
+
+        private final long maxBytes;
+
+        /**
+         * Values larger than this are never cached.
+         */
+        private final long maxEntryBytes;
+
+        // guarded by this
+        private final LinkedHashMap<ByteBuffer, ByteBuf> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+        // guarded by this
+        private long writes;
+
+        // guarded by this
+        private long bytes;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+            this.maxEntryBytes = maxBytes / 16;
+        }
+
+        /**
+         * Returns true if a new entry of the given size may evict the least
+         * recently used entries. Caller must hold the monitor.
+         */
+        private boolean admit(int hash, int length) {
+            if (bytes + length <= maxBytes || entries.isEmpty()) {
+                return true;
+            }
+            ByteBuffer eldest = entries.keySet().iterator().next();
+            return sketch.frequencyOfHash(hash) > sketch.frequencyOfHash(hash(eldest.array()));
+        }
+
+        /**
+         * Store a copy of the value. A value that is written is subject
+         * to admission. Caller must hold the monitor.
+         */
+        private void insert(byte[] key, int hash, byte[] value, boolean write) {
+            ByteBuffer cacheKey = ByteBuffer.wrap(key.clone());
+            ByteBuf previous;
+            if (value.length > maxEntryBytes) {
+                previous = entries.remove(cacheKey);
+            } else if (write && !entries.containsKey(cacheKey) && !admit(hash, value.length)) {
+                rejections.incrementAndGet();
+                return;
+            } else {
+                ByteBuf buffer = PooledByteBufAllocator.DEFAULT.directBuffer(value.length, value.length);
+                buffer.writeBytes(value);
+                bytes += value.length;
+                previous = entries.put(cacheKey, buffer);
+            }
+            if (previous != null) {
+                bytes -= previous.readableBytes();
+                previous.release();
+            }
+            Iterator<ByteBuf> iterator = entries.values().iterator();
+            while (bytes > maxBytes && iterator.hasNext()) {
+                ByteBuf eldest = iterator.next();
+                iterator.remove();
+                bytes -= eldest.readableBytes();
+                eldest.release();
+                evictions.incrementAndGet();
+            }
+        }
+
+        /**
+         * Drop the cached value of a key that is being modified.
+         * Caller must hold the monitor.
+         */
+        private void invalidate(byte[] key) {
+            writes++;
+            ByteBuf previous = entries.remove(ByteBuffer.wrap(key));
+            if (previous != null) {
+                bytes -= previous.readableBytes();
+                previous.release();
+            }
+        }
+
+        private void clear() {
+            for (ByteBuf buffer : entries.values()) {
+                buffer.release();
+            }
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        int hash = hash(key);
+        Segment segment = segment(hash);
+        sketch.incrementHash(hash);
+        long generation;
+        synchronized (segment) {
+            ByteBuf buffer = segment.entries.get(ByteBuffer.wrap(key));
+            if (buffer != null) {
+                byte[] value = new byte[buffer.readableBytes()];
+                buffer.getBytes(buffer.readerIndex(), value);
+                hits.incrementAndGet();
+                return value;
+            }
+            generation = segment.writes;
+        }
+        misses.incrementAndGet();
+        byte[] value = store.get(key);
+        if (value != null) {
+            synchronized (segment) {
+                if (segment.writes == generation) {
+                    segment.insert(key, hash, value, false);
+                }
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public void put(byte[] key, byte[] val) {
+        store.put(key, val);
+        write(key, val);
+    }
+
+    private void write(byte[] key, byte[] val) {
+        int hash = hash(key);
+        Segment segment = segment(hash);
+        sketch.incrementHash(hash);
+        synchronized (segment) {
+            segment.writes++;
+            segment.insert(key, hash, val, true);
+        }
+    }
+
+    @Override
+    public void putAll(Map<byte[], byte[]> entries) {
+        store.putAll(entries);
+        for (Map.Entry<byte[], byte[]> entry : entries.entrySet()) {
+            write(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public byte[] delete(byte[] key) {
+        Segment segment = segment(hash(key));
+        synchronized (segment) {
+            segment.invalidate(key);
+        }
+        byte[] result = store.delete(key);
+        synchronized (segment) {
+            // discard anything cached by a read that overlapped the delete
+            segment.invalidate(key);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean hasKey(byte[] key) {
+        Segment segment = segment(hash(key));
+        synchronized (segment) {
+            if (segment.entries.containsKey(ByteBuffer.wrap(key))) {
+                return true;
+            }
+        }
+        return store.hasKey(key);
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return store.isReadOnly();
+    }
+
+    @Override
+    public byte[] firstKey() {
+        return store.firstKey();
+    }
+
+    @Override
+    public byte[] lastKey() {
+        return store.lastKey();
+    }
+
+    @Override
+    public byte[] higherKey(byte[] key) {
+        return store.higherKey(key);
+    }
+
+    @Override
+    public byte[] lowerKey(byte[] key) {
+        return store.lowerKey(key);
+    }
+
+    @Override
+    public byte[] floorKey(byte[] key) {
+        return store.floorKey(key);
+    }
+
+    @Override
+    public Map.Entry<byte[], byte[]> floorEntry(byte[] key) {
+        return store.floorEntry(key);
+    }
+
+    @Override
+    public byte[] firstEntry() {
+        return store.firstEntry();
+    }
+
+    @Override
+    public ClosableIterator<PageEntry> iterator(byte[] start) {
+        return store.iterator(start);
+    }
+
+    @Override
+    public ClosableIterator<PageEntry> keyIterator(byte[] start) {
+        return store.keyIterator(start);
+    }
+
+    @Override
+    public void close() {
+        close(false);
+    }
+
+    @Override
+    public void close(boolean cleanLog) {
+        try {
+            store.close(cleanLog);
+        } finally {
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    segment.clear();
+                }
+            }
+            log.info("[close] off-heap page cache hits={} misses={} evictions={} rejections={}",
+                    hits.get(), misses.get(), evictions.get(), rejections.get());
+        }
+    }
+
+    @Override
+    public long count() {
+        return store.count();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    public long getBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bytes += segment.bytes;
+            }
+        }
+        return bytes;
+    }
+}
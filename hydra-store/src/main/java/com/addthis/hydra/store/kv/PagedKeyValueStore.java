@@ -13,6 +13,9 @@
  */
 package com.addthis.hydra.store.kv;
 
+import java.util.Iterator;
+import java.util.Map;
+
 import com.addthis.codec.Codec;
 import com.addthis.hydra.store.db.CloseOperation;
 
@@ -36,6 +39,30 @@ public interface PagedKeyValueStore<K, V extends Codec.BytesCodable> extends Key
 
     public void setMemEstimateInterval(int interval);
 
+    /**
+     * Estimated number of bytes held by the pages in memory.
+     */
+    public long getMemoryEstimate();
+
+    /**
+     * Number of page reads since the store was opened.
+     */
+    public long getPageAccesses();
+
+    /**
+     * Number of page reads since the store was opened
+     * that loaded the page from the external store.
+     */
+    public long getPageFaults();
+
+    /**
+     * Write entries that are sorted by key into an empty store without
+     * going through the page cache.
+     *
+     * @return number of pages written
+     */
+    public long bulkLoad(Iterator<Map.Entry<K, V>> entries);
+
     public void close();
 
     /**
@@ -34,6 +34,9 @@ import com.addthis.codec.Codec;
 import com.addthis.hydra.store.db.IReadWeighable;
 import com.addthis.hydra.store.db.ReadDBKeyCoder;
 import com.addthis.hydra.store.kv.metrics.ExternalPagedStoreMetrics;
+import com.addthis.hydra.store.skiplist.PageCompression;
+import com.addthis.hydra.store.skiplist.PageDictionary;
+import com.addthis.hydra.store.skiplist.PrefixKeyCodec;
 
 import com.addthis.basis.util.Varint;
 import com.google.common.cache.CacheBuilder;
@@ -48,6 +51,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xerial.snappy.SnappyInputStream;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+
 /**
  * read only caching page store intended to play nice with the query system
  * <p/>
@@ -80,6 +86,8 @@ public class ReadExternalPagedStore<K extends Comparable<K>, V extends IReadWeig
     private final boolean collectMetrics;
 
     private static final int FLAGS_IS_SPARSE = 1 << 5;
+    private static final int FLAGS_HAS_DICTIONARY = 1 << 6;
+    private static final int FLAGS_PREFIX_KEYS = 1 << 7;
 
     /**
      * guava loading cache for storing pages. Get method takes the exact page key, so finding the
@@ -92,13 +100,22 @@ public class ReadExternalPagedStore<K extends Comparable<K>, V extends IReadWeig
 
     final KeyCoder<K, V> keyCoder;
 
+    //dictionary for pages compressed with one, or null
+    private final PageDictionary dictionary;
+
     public ReadExternalPagedStore(KeyCoder<K, V> keyCoder, final ByteStore pages, int maxSize, int maxWeight) {
         this(keyCoder, pages, maxSize, maxWeight, false);
     }
 
     public ReadExternalPagedStore(final KeyCoder<K, V> keyCoder, final ByteStore pages, int maxSize, int maxWeight, boolean collect) {
+        this(keyCoder, pages, maxSize, maxWeight, collect, null);
+    }
+
+    public ReadExternalPagedStore(final KeyCoder<K, V> keyCoder, final ByteStore pages, int maxSize, int maxWeight,
+            boolean collect, PageDictionary dictionary) {
         this.keyCoder = keyCoder;
         this.pages = pages;
+        this.dictionary = dictionary;
         log.info("[init] maxSize=" + maxSize + " maxWeight=" + maxWeight);
 
         collectMetrics = collectMetricsParameter || collect;
@@ -188,8 +205,18 @@ public class ReadExternalPagedStore<K extends Comparable<K>, V extends IReadWeig
         try {
             InputStream in = new ByteArrayInputStream(page);
             int flags = in.read() & 0xff;
+            ByteBuf buffer = null;
             int gztype = flags & 0x0f;
             boolean isSparse = (flags & FLAGS_IS_SPARSE) != 0;
+            if (isSparse) {
+                // sparse pages may use any codec
+                if ((flags & FLAGS_HAS_DICTIONARY) != 0 && dictionary == null) {
+                    throw new IllegalStateException("page requires a compression dictionary that is not loaded");
+                }
+                buffer = PageCompression.fromFlags(flags).decompress(page, dictionary);
+                in = new ByteBufInputStream(buffer);
+                gztype = 0;
+            }
             switch (gztype) {
                 case 1:
                     in = new InflaterInputStream(in);
@@ -213,17 +240,28 @@ public class ReadExternalPagedStore<K extends Comparable<K>, V extends IReadWeig
                 }
                 int count = entries;
 
-                K firstKey = keyCoder.keyDecode(Bytes.readBytes(in, Varint.readUnsignedVarInt(dis)));
+                byte[] firstKeyEncoded = Bytes.readBytes(in, Varint.readUnsignedVarInt(dis));
+                K firstKey = keyCoder.keyDecode(firstKeyEncoded);
                 int nextFirstKeyLength = Varint.readUnsignedVarInt(dis);
                 K nextFirstKey = null;
                 if (nextFirstKeyLength > 0) {
                     nextFirstKey = keyCoder.keyDecode(Bytes.readBytes(in, nextFirstKeyLength));
                 }
+                PrefixKeyCodec<K> prefixCodec = null;
+                if ((flags & FLAGS_PREFIX_KEYS) != 0) {
+                    // the stream reads straight from the buffer so both may be used
+                    prefixCodec = new PrefixKeyCodec<>(keyCoder);
+                    prefixCodec.reset(firstKeyEncoded);
+                }
                 decode = new TreePage(firstKey).setNextFirstKey(nextFirstKey);
                 while (count-- > 0) {
-                    byte kb[] = Bytes.readBytes(in, Varint.readUnsignedVarInt(dis));
+                    K key;
+                    if (prefixCodec != null) {
+                        key = prefixCodec.decode(buffer);
+                    } else {
+                        key = keyCoder.keyDecode(Bytes.readBytes(in, Varint.readUnsignedVarInt(dis)));
+                    }
                     byte vb[] = Bytes.readBytes(in, Varint.readUnsignedVarInt(dis));
-                    K key = keyCoder.keyDecode(kb);
                     decode.map.put(key, new PageValue(vb, KeyCoder.EncodeType.SPARSE));
                 }
 
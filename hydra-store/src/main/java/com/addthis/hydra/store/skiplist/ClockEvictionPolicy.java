@@ -0,0 +1,40 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.skiplist;
+
+/**
+ * The WS-CLOCK policy. A page is evicted once it has not been accessed
+ * for longer than the timeout, otherwise the least recently used page
+ * of the pass is evicted. Uses recency only.
+ */
+public class ClockEvictionPolicy extends EvictionPolicy {
+
+    static final String NAME = "clock";
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public boolean evictable(Page<?, ?> candidate, long age, long timeout) {
+        return age >= timeout;
+    }
+
+    @Override
+    public boolean preferVictim(Page<?, ?> candidate, long candidateTime,
+            Page<?, ?> victim, long victimTime) {
+        return candidateTime < victimTime;
+    }
+}
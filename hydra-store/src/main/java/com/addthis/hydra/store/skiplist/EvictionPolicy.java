@@ -0,0 +1,91 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.skiplist;
+
+import com.addthis.basis.util.Parameter;
+
+/**
+ * Decides which pages the eviction threads of a {@link SkipListCache}
+ * write out to the external store. The eviction threads walk the pages in
+ * memory in clock order. During the first pass a page is evicted if the
+ * policy considers it {@link #evictable(Page, long, long) evictable}.
+ * If no page qualifies then the {@link #preferVictim(Page, long, Page, long)
+ * preferred} page of the pass is evicted unconditionally.
+ * <p/>
+ * A policy instance belongs to a single cache. Its methods are called
+ * concurrently by reader, writer and eviction threads without any page
+ * lock held.
+ */
+public abstract class EvictionPolicy {
+
+    static final String defaultPolicy = Parameter.value("eps.cache.eviction.policy", "clock");
+
+    /**
+     * Name of the policy. Used to label the hit rate metrics of the cache.
+     */
+    public abstract String name();
+
+    /**
+     * Called each time a page is accessed.
+     */
+    public void onAccess(Page<?, ?> page) {
+    }
+
+    /**
+     * Called each time a page is read from the external store.
+     */
+    public void onFault(Page<?, ?> page) {
+    }
+
+    /**
+     * Returns true if the candidate may be evicted in the first pass.
+     *
+     * @param age     nanoseconds since the page was last accessed
+     * @param timeout current minimum age for eviction. It is adjusted by
+     *                the eviction threads to the rate at which pages
+     *                must be evicted.
+     */
+    public abstract boolean evictable(Page<?, ?> candidate, long age, long timeout);
+
+    /**
+     * Returns true if the candidate is a better victim than the current victim
+     * when no page was evictable. The timestamps are the access times observed
+     * during the pass.
+     */
+    public abstract boolean preferVictim(Page<?, ?> candidate, long candidateTime,
+            Page<?, ?> victim, long victimTime);
+
+    /**
+     * Create a policy by name. Recognized names are "clock" and "tinylfu".
+     */
+    public static EvictionPolicy create(String name) {
+        switch (name) {
+            case ClockEvictionPolicy.NAME:
+                return new ClockEvictionPolicy();
+            case TinyLfuEvictionPolicy.NAME:
+                return new TinyLfuEvictionPolicy();
+            default:
+                throw new IllegalArgumentException("unknown eviction policy: " + name);
+        }
+    }
+
+    public static EvictionPolicy defaultPolicy() {
+        return create(defaultPolicy);
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+}
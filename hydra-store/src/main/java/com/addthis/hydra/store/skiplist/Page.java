@@ -13,34 +13,28 @@
  */
 package com.addthis.hydra.store.skiplist;
 
-import com.addthis.basis.io.GZOut;
 import com.addthis.basis.util.Bytes;
 import com.addthis.basis.util.MemoryCounter;
 import com.addthis.basis.util.Parameter;
 import com.addthis.codec.Codec;
 import com.addthis.hydra.store.kv.KeyCoder;
 import com.addthis.basis.util.Varint;
-import com.jcraft.jzlib.Deflater;
-import com.jcraft.jzlib.DeflaterOutputStream;
 import com.jcraft.jzlib.InflaterInputStream;
 import com.ning.compress.lzf.LZFInputStream;
-import com.ning.compress.lzf.LZFOutputStream;
 import com.yammer.metrics.core.Histogram;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufInputStream;
 import io.netty.buffer.ByteBufOutputStream;
 import io.netty.buffer.Unpooled;
 import org.xerial.snappy.SnappyInputStream;
-import org.xerial.snappy.SnappyOutputStream;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.zip.GZIPInputStream;
 
@@ -54,6 +48,17 @@ public class Page<K, V extends Codec.BytesCodable> {
     static final int estimateRollMin = Parameter.intValue("eps.mem.estimate.roll.min", 1000);
     static final int estimateRollFactor = Parameter.intValue("eps.mem.estimate.roll.factor", 100);
 
+    /**
+     * Holds the uncompressed page while it is encoded. Grows to the
+     * largest page encoded by the thread.
+     */
+    private static final ThreadLocal<ByteBuf> encodeBuffers = new ThreadLocal<ByteBuf>() {
+        @Override
+        protected ByteBuf initialValue() {
+            return Unpooled.buffer();
+        }
+    };
+
     final SkipListCache<K, V> parent;
 
     final K firstKey;
@@ -87,9 +92,13 @@ public class Page<K, V extends Codec.BytesCodable> {
     @Nullable
     ArrayList<V> values;
 
+    /**
+     * Encoded values. After a page is read from disk this is a
+     * {@link RawValueSlices} over the decompressed page.
+     */
     @GuardedBy("lock")
     @Nullable
-    ArrayList<byte[]> rawValues;
+    List<byte[]> rawValues;
 
     @GuardedBy("lock")
     @Nonnull
@@ -106,6 +115,8 @@ public class Page<K, V extends Codec.BytesCodable> {
 
     protected static final int FLAGS_IS_SPARSE = 1 << 5;
     protected static final int FLAGS_HAS_ESTIMATES = 1 << 4;
+    protected static final int FLAGS_HAS_DICTIONARY = 1 << 6;
+    protected static final int FLAGS_PREFIX_KEYS = 1 << 7;
 
     protected final KeyCoder<K, V> keyCoder;
 
@@ -174,28 +185,9 @@ public class Page<K, V extends Codec.BytesCodable> {
         SkipListCacheMetrics metrics = parent.metrics;
         parent.numPagesEncoded.getAndIncrement();
         try {
-            OutputStream os = out;
-            out.write(gztype | FLAGS_HAS_ESTIMATES | FLAGS_IS_SPARSE);
-            switch (gztype) {
-                case 0:
-                    break;
-                case 1:
-                    os = new DeflaterOutputStream(out, new Deflater(gzlevel));
-                    break;
-                case 2:
-                    os = new GZOut(out, gzbuf, gzlevel);
-                    break;
-                case 3:
-                    os = new LZFOutputStream(out);
-                    break;
-                case 4:
-                    os = new SnappyOutputStream(out);
-                    break;
-                default:
-                    throw new RuntimeException("invalid gztype: " + gztype);
-            }
-
-            DataOutputStream dos = new DataOutputStream(os);
+            ByteBuf raw = encodeBuffers.get();
+            raw.clear();
+            DataOutputStream dos = new DataOutputStream(new ByteBufOutputStream(raw));
             byte[] firstKeyEncoded = keyCoder.keyEncode(firstKey);
             byte[] nextFirstKeyEncoded = keyCoder.keyEncode(nextFirstKey);
 
@@ -208,40 +200,61 @@ public class Page<K, V extends Codec.BytesCodable> {
             if (nextFirstKeyEncoded.length > 0) {
                 dos.write(nextFirstKeyEncoded);
             }
+            PrefixKeyCodec<K> prefixCodec = null;
+            if (SkipListCache.prefixKeys) {
+                prefixCodec = parent.prefixCodecs.get();
+                prefixCodec.reset(firstKeyEncoded);
+            }
             for (int i = 0; i < size; i++) {
-                byte[] keyEncoded = keyCoder.keyEncode(keys.get(i));
-                byte[] rawVal = rawValues.get(i);
+                if (prefixCodec != null) {
+                    // dos is unbuffered so the key can be written to the buffer directly
+                    int keyLength = prefixCodec.encode(keys.get(i), raw);
+                    updateHistogram(metrics.encodeKeySize, keyLength, record);
+                } else {
+                    byte[] keyEncoded = keyCoder.keyEncode(keys.get(i));
 
-                if (rawVal == null || encodeType != KeyCoder.EncodeType.SPARSE) {
-                    fetchValue(i);
-                    rawVal = keyCoder.valueEncode(values.get(i), KeyCoder.EncodeType.SPARSE);
-                }
+                    updateHistogram(metrics.encodeKeySize, keyEncoded.length, record);
 
-                updateHistogram(metrics.encodeKeySize, keyEncoded.length, record);
-                updateHistogram(metrics.encodeValueSize, rawVal.length, record);
+                    Varint.writeUnsignedVarInt(keyEncoded.length, dos);
+                    dos.write(keyEncoded);
+                }
 
-                Varint.writeUnsignedVarInt(keyEncoded.length, dos);
-                dos.write(keyEncoded);
-                Varint.writeUnsignedVarInt(rawVal.length, dos);
-                dos.write(rawVal);
+                if (!hasRawValue(i) || encodeType != KeyCoder.EncodeType.SPARSE) {
+                    fetchValue(i);
+                    byte[] rawVal = keyCoder.valueEncode(values.get(i), KeyCoder.EncodeType.SPARSE);
+                    updateHistogram(metrics.encodeValueSize, rawVal.length, record);
+                    Varint.writeUnsignedVarInt(rawVal.length, dos);
+                    dos.write(rawVal);
+                } else if (rawValues instanceof RawValueSlices) {
+                    // copy the unmodified value straight from the page buffer
+                    RawValueSlices slices = (RawValueSlices) rawValues;
+                    updateHistogram(metrics.encodeValueSize, slices.length(i), record);
+                    Varint.writeUnsignedVarInt(slices.length(i), dos);
+                    slices.writeTo(i, dos);
+                } else {
+                    byte[] rawVal = rawValues.get(i);
+                    updateHistogram(metrics.encodeValueSize, rawVal.length, record);
+                    Varint.writeUnsignedVarInt(rawVal.length, dos);
+                    dos.write(rawVal);
+                }
             }
 
             Varint.writeUnsignedVarInt((estimateTotal > 0 ? estimateTotal : 1), dos);
             Varint.writeUnsignedVarInt((estimates > 0 ? estimates : 1), dos);
-            switch (gztype) {
-                case 1:
-                    ((DeflaterOutputStream) os).finish();
-                    break;
-                case 2:
-                    ((GZOut) os).finish();
-                    break;
-                case 4:
-                    os.flush();
-                    break;
+            PageCompression compression = parent.compression;
+            PageDictionary dictionary = null;
+            if (compression.supportsDictionary()) {
+                dictionary = parent.dictionary(raw.array(), raw.arrayOffset(), raw.readableBytes());
+            }
+            int flags = compression.id() | FLAGS_HAS_ESTIMATES | FLAGS_IS_SPARSE;
+            if (prefixCodec != null) {
+                flags |= FLAGS_PREFIX_KEYS;
             }
-            os.flush();
-            os.close();
-            dos.close();
+            if (dictionary != null) {
+                flags |= FLAGS_HAS_DICTIONARY;
+            }
+            out.write(flags);
+            compression.compress(raw.array(), raw.arrayOffset(), raw.readableBytes(), out, dictionary);
 
             ByteBuf buffer = out.buffer();
 
@@ -260,12 +273,16 @@ public class Page<K, V extends Codec.BytesCodable> {
 
     public void  decode(byte[] page) {
         parent.numPagesDecoded.getAndIncrement();
+        int flags = page[0] & 0xff;
+        if ((flags & FLAGS_IS_SPARSE) != 0) {
+            decodeSparse(page, flags);
+            return;
+        }
         ByteBuf buffer = Unpooled.wrappedBuffer(page);
         try {
             InputStream in = new ByteBufInputStream(buffer);
-            int flags = in.read() & 0xff;
+            in.read();
             int gztype = flags & 0x0f;
-            boolean isSparse = (flags & FLAGS_IS_SPARSE) != 0;
             boolean hasEstimates = (flags & FLAGS_HAS_ESTIMATES) != 0;
             int readEstimateTotal, readEstimates;
             switch (gztype) {
@@ -284,74 +301,119 @@ public class Page<K, V extends Codec.BytesCodable> {
             }
             K firstKey;
             byte[] nextFirstKey;
-            if (isSparse) {
-                encodeType = KeyCoder.EncodeType.SPARSE;
-                DataInputStream dis = new DataInputStream(in);
-                int entries = Varint.readUnsignedVarInt(dis);
-
-                firstKey = keyCoder.keyDecode(Bytes.readBytes(in, Varint.readUnsignedVarInt(dis)));
-                int nextFirstKeyLength = Varint.readUnsignedVarInt(dis);
-                if (nextFirstKeyLength > 0) {
-                    nextFirstKey = Bytes.readBytes(in, nextFirstKeyLength);
-                } else {
-                    nextFirstKey = null;
-                }
+            encodeType = KeyCoder.EncodeType.LEGACY;
+            int entries = (int) Bytes.readLength(in);
+
+            firstKey = keyCoder.keyDecode(Bytes.readBytes(in));
+            nextFirstKey = Bytes.readBytes(in);
+
+            int bytes = 0;
+
+            size = entries;
+            keys = new ArrayList<>(size);
+            values = new ArrayList<>(size);
+            rawValues = new ArrayList<>(size);
+
+            for (int i = 0; i < entries; i++) {
+                byte kb[] = Bytes.readBytes(in);
+                byte vb[] = Bytes.readBytes(in);
+                bytes += kb.length + vb.length;
+                keys.add(keyCoder.keyDecode(kb));
+                values.add(null);
+                rawValues.add(vb);
+            }
 
-                int bytes = 0;
+            if (hasEstimates) {
+                readEstimateTotal = (int) Bytes.readLength(in);
+                readEstimates = (int) Bytes.readLength(in);
+                setAverage(readEstimateTotal, readEstimates);
+            } else {
+                /** use a pessimistic/conservative byte/entry estimate */
+                setAverage(bytes * estimateMissingFactor, entries);
+            }
 
-                size = entries;
-                keys = new ArrayList<>(size);
-                values = new ArrayList<>(size);
-                rawValues = new ArrayList<>(size);
+            updateMemoryEstimate();
 
-                for (int i = 0; i < entries; i++) {
-                    byte kb[] = Bytes.readBytes(in, Varint.readUnsignedVarInt(dis));
-                    byte vb[] = Bytes.readBytes(in, Varint.readUnsignedVarInt(dis));
-                    bytes += kb.length + vb.length;
-                    keys.add(keyCoder.keyDecode(kb));
-                    values.add(null);
-                    rawValues.add(vb);
-                }
+            assert (this.firstKey.equals(firstKey));
 
-                if (hasEstimates) {
-                    readEstimateTotal = Varint.readUnsignedVarInt(dis);
-                    readEstimates = Varint.readUnsignedVarInt(dis);
-                    setAverage(readEstimateTotal, readEstimates);
-                } else {
-                    /** use a pessimistic/conservative byte/entry estimate */
-                    setAverage(bytes * estimateMissingFactor, entries);
-                }
-            } else {
-                encodeType = KeyCoder.EncodeType.LEGACY;
-                int entries = (int) Bytes.readLength(in);
-
-                firstKey = keyCoder.keyDecode(Bytes.readBytes(in));
-                nextFirstKey = Bytes.readBytes(in);
-
-                int bytes = 0;
-
-                size = entries;
-                keys = new ArrayList<>(size);
-                values = new ArrayList<>(size);
-                rawValues = new ArrayList<>(size);
-
-                for (int i = 0; i < entries; i++) {
-                    byte kb[] = Bytes.readBytes(in);
-                    byte vb[] = Bytes.readBytes(in);
-                    bytes += kb.length + vb.length;
-                    keys.add(keyCoder.keyDecode(kb));
-                    values.add(null);
-                    rawValues.add(vb);
+            this.nextFirstKey = keyCoder.keyDecode(nextFirstKey);
+
+            in.close();
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Decode a sparse page without stream wrappers. The page is decompressed
+     * into a single buffer and values remain slices of that buffer until
+     * they are fetched.
+     */
+    private void decodeSparse(byte[] page, int flags) {
+        try {
+            boolean hasEstimates = (flags & FLAGS_HAS_ESTIMATES) != 0;
+            PageDictionary dictionary = null;
+            if ((flags & FLAGS_HAS_DICTIONARY) != 0) {
+                dictionary = parent.dictionary;
+                if (dictionary == null) {
+                    throw new IllegalStateException("page requires a compression dictionary that is not loaded");
                 }
+            }
+            ByteBuf buffer = PageCompression.fromFlags(flags).decompress(page, dictionary);
+            byte[] data = buffer.array();
+            int start = buffer.arrayOffset();
+            encodeType = KeyCoder.EncodeType.SPARSE;
+            int entries = Varint.readUnsignedVarInt(buffer);
+
+            byte[] firstKeyEncoded = readBytes(buffer, Varint.readUnsignedVarInt(buffer));
+            K firstKey = keyCoder.keyDecode(firstKeyEncoded);
+            int nextFirstKeyLength = Varint.readUnsignedVarInt(buffer);
+            byte[] nextFirstKey = nextFirstKeyLength > 0 ? readBytes(buffer, nextFirstKeyLength) : null;
+
+            PrefixKeyCodec<K> prefixCodec = null;
+            if ((flags & FLAGS_PREFIX_KEYS) != 0) {
+                prefixCodec = parent.prefixCodecs.get();
+                prefixCodec.reset(firstKeyEncoded);
+            }
+
+            int bytes = 0;
 
-                if (hasEstimates) {
-                    readEstimateTotal = (int) Bytes.readLength(in);
-                    readEstimates = (int) Bytes.readLength(in);
-                    setAverage(readEstimateTotal, readEstimates);
+            size = entries;
+            keys = new ArrayList<>(size);
+            values = new ArrayList<>(size);
+            RawValueSlices slices = new RawValueSlices(data, size);
+            rawValues = slices;
+
+            for (int i = 0; i < entries; i++) {
+                K key;
+                int keyLength;
+                if (prefixCodec != null) {
+                    key = prefixCodec.decode(buffer);
+                    keyLength = prefixCodec.keyLength();
                 } else {
-                    /** use a pessimistic/conservative byte/entry estimate */
-                    setAverage(bytes * estimateMissingFactor, entries);
+                    byte kb[] = readBytes(buffer, Varint.readUnsignedVarInt(buffer));
+                    key = keyCoder.keyDecode(kb);
+                    keyLength = kb.length;
                 }
+                int valueLength = Varint.readUnsignedVarInt(buffer);
+                slices.addSlice(start + buffer.readerIndex(), valueLength);
+                buffer.skipBytes(valueLength);
+                bytes += keyLength + valueLength;
+                keys.add(key);
+                values.add(null);
+            }
+
+            if (hasEstimates) {
+                int readEstimateTotal = Varint.readUnsignedVarInt(buffer);
+                int readEstimates = Varint.readUnsignedVarInt(buffer);
+                setAverage(readEstimateTotal, readEstimates);
+            } else {
+                /** use a pessimistic/conservative byte/entry estimate */
+                setAverage(bytes * estimateMissingFactor, entries);
             }
 
             updateMemoryEstimate();
@@ -359,17 +421,19 @@ public class Page<K, V extends Codec.BytesCodable> {
             assert (this.firstKey.equals(firstKey));
 
             this.nextFirstKey = keyCoder.keyDecode(nextFirstKey);
-
-            in.close();
         } catch (RuntimeException ex) {
             throw ex;
         } catch (Exception ex) {
             throw new RuntimeException(ex);
-        } finally {
-            buffer.release();
         }
     }
 
+    private static byte[] readBytes(ByteBuf buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.readBytes(bytes);
+        return bytes;
+    }
+
     private int estimatedMem() {
         /**
          * We want to account for the three pointers that point
@@ -522,13 +586,24 @@ public class Page<K, V extends Codec.BytesCodable> {
      * result of {@link #rawValues}.
      */
     public void fetchValue(int position) {
-       V value = values.get(position);
-        byte[] rawValue = rawValues.get(position);
+        V value = values.get(position);
         if (value == null) {
+            byte[] rawValue = rawValues.get(position);
             values.set(position, keyCoder.valueDecode(rawValue, encodeType));
         }
     }
 
+    /**
+     * Returns true if {@link #rawValues} holds an encoded
+     * value at the position. Does not copy the value.
+     */
+    public boolean hasRawValue(int position) {
+        if (rawValues instanceof RawValueSlices) {
+            return !((RawValueSlices) rawValues).isNull(position);
+        }
+        return rawValues.get(position) != null;
+    }
+
     public boolean splitCondition() {
         if (size == 1) {
             return false;
@@ -0,0 +1,341 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.skiplist;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import com.addthis.basis.io.GZOut;
+import com.addthis.basis.util.Parameter;
+import com.addthis.basis.util.Varint;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdCompressCtx;
+import com.github.luben.zstd.ZstdDecompressCtx;
+import com.google.common.io.ByteStreams;
+import com.ning.compress.lzf.LZFInputStream;
+import com.ning.compress.lzf.LZFOutputStream;
+
+import org.xerial.snappy.SnappyInputStream;
+import org.xerial.snappy.SnappyOutputStream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+/**
+ * Compression codecs for encoded pages. The id of the codec is stored in
+ * the low four bits of the flags byte that begins every page, so each page
+ * records how it was written and trees may switch codecs at any time.
+ * Ids 0 through 4 are the original "eps.gz.type" values and keep their
+ * original formats.
+ * <p/>
+ * Compressors and decompressors that hold native memory are pooled per
+ * thread. Pages are encoded by the eviction threads, so in practice each
+ * eviction thread reuses a single instance of each.
+ */
+public enum PageCompression {
+
+    NONE(0) {
+        @Override
+        public void compress(byte[] src, int offset, int length, OutputStream out,
+                PageDictionary dictionary) throws IOException {
+            out.write(src, offset, length);
+        }
+
+        @Override
+        public ByteBuf decompress(byte[] page, PageDictionary dictionary) {
+            return Unpooled.wrappedBuffer(page, 1, page.length - 1);
+        }
+    },
+
+    /**
+     * zlib format. Compatible with the jzlib streams that were used previously.
+     */
+    DEFLATE(1) {
+        @Override
+        public void compress(byte[] src, int offset, int length, OutputStream out,
+                PageDictionary dictionary) throws IOException {
+            Deflater deflater = deflaters.get();
+            deflater.reset();
+            deflater.setInput(src, offset, length);
+            deflater.finish();
+            byte[] scratch = scratch(Math.max(1024, length >> 2));
+            while (!deflater.finished()) {
+                int count = deflater.deflate(scratch);
+                out.write(scratch, 0, count);
+            }
+        }
+
+        @Override
+        public ByteBuf decompress(byte[] page, PageDictionary dictionary) throws IOException {
+            Inflater inflater = inflaters.get();
+            inflater.reset();
+            inflater.setInput(page, 1, page.length - 1);
+            byte[] data = new byte[Math.max(64, page.length * 4)];
+            int length = 0;
+            try {
+                while (!inflater.finished()) {
+                    if (length == data.length) {
+                        data = Arrays.copyOf(data, data.length * 2);
+                    }
+                    int read = inflater.inflate(data, length, data.length - length);
+                    if (read == 0 && !inflater.finished() &&
+                            (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("truncated page");
+                    }
+                    length += read;
+                }
+            } catch (DataFormatException ex) {
+                throw new IOException(ex);
+            }
+            return Unpooled.wrappedBuffer(data, 0, length);
+        }
+    },
+
+    GZIP(2) {
+        @Override
+        public void compress(byte[] src, int offset, int length, OutputStream out,
+                PageDictionary dictionary) throws IOException {
+            GZOut os = new GZOut(out, Page.gzbuf, Page.gzlevel);
+            os.write(src, offset, length);
+            os.finish();
+        }
+
+        @Override
+        public ByteBuf decompress(byte[] page, PageDictionary dictionary) throws IOException {
+            return readFully(new GZIPInputStream(stream(page)));
+        }
+    },
+
+    LZF(3) {
+        @Override
+        public void compress(byte[] src, int offset, int length, OutputStream out,
+                PageDictionary dictionary) throws IOException {
+            LZFOutputStream os = new LZFOutputStream(out);
+            os.write(src, offset, length);
+            os.flush();
+        }
+
+        @Override
+        public ByteBuf decompress(byte[] page, PageDictionary dictionary) throws IOException {
+            return readFully(new LZFInputStream(stream(page)));
+        }
+    },
+
+    SNAPPY(4) {
+        @Override
+        public void compress(byte[] src, int offset, int length, OutputStream out,
+                PageDictionary dictionary) throws IOException {
+            SnappyOutputStream os = new SnappyOutputStream(out);
+            os.write(src, offset, length);
+            os.flush();
+        }
+
+        @Override
+        public ByteBuf decompress(byte[] page, PageDictionary dictionary) throws IOException {
+            return readFully(new SnappyInputStream(stream(page)));
+        }
+    },
+
+    /**
+     * LZ4 block format preceded by the uncompressed length as a varint.
+     */
+    LZ4(5) {
+        @Override
+        public void compress(byte[] src, int offset, int length, OutputStream out,
+                PageDictionary dictionary) throws IOException {
+            byte[] scratch = scratch(lz4Compressor.maxCompressedLength(length));
+            int count = lz4Compressor.compress(src, offset, length, scratch, 0, scratch.length);
+            writeLength(length, out);
+            out.write(scratch, 0, count);
+        }
+
+        @Override
+        public ByteBuf decompress(byte[] page, PageDictionary dictionary) throws IOException {
+            ByteBuf input = Unpooled.wrappedBuffer(page, 1, page.length - 1);
+            int length = Varint.readUnsignedVarInt(input);
+            byte[] data = new byte[length];
+            lz4Decompressor.decompress(page, 1 + input.readerIndex(), data, 0, length);
+            return Unpooled.wrappedBuffer(data);
+        }
+    },
+
+    /**
+     * Zstandard frame preceded by the uncompressed length as a varint.
+     * Pages may be compressed against a trained {@link PageDictionary}.
+     */
+    ZSTD(6) {
+        @Override
+        public void compress(byte[] src, int offset, int length, OutputStream out,
+                PageDictionary dictionary) throws IOException {
+            ZstdCompressCtx ctx = (dictionary != null) ? dictionary.compressor() : zstdCompressors.get();
+            byte[] scratch = scratch((int) Zstd.compressBound(length));
+            int count = ctx.compressByteArray(scratch, 0, scratch.length, src, offset, length);
+            writeLength(length, out);
+            out.write(scratch, 0, count);
+        }
+
+        @Override
+        public ByteBuf decompress(byte[] page, PageDictionary dictionary) throws IOException {
+            ZstdDecompressCtx ctx = (dictionary != null) ? dictionary.decompressor() : zstdDecompressors.get();
+            ByteBuf input = Unpooled.wrappedBuffer(page, 1, page.length - 1);
+            int length = Varint.readUnsignedVarInt(input);
+            int start = 1 + input.readerIndex();
+            byte[] data = new byte[length];
+            ctx.decompressByteArray(data, 0, length, page, start, page.length - start);
+            return Unpooled.wrappedBuffer(data);
+        }
+
+        @Override
+        public boolean supportsDictionary() {
+            return true;
+        }
+    };
+
+    static final int zstdLevel = Parameter.intValue("eps.zstd.level", 3);
+
+    private static final LZ4Compressor lz4Compressor = LZ4Factory.fastestInstance().fastCompressor();
+    private static final LZ4FastDecompressor lz4Decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Page.gzlevel);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private static final ThreadLocal<ZstdCompressCtx> zstdCompressors = new ThreadLocal<ZstdCompressCtx>() {
+        @Override
+        protected ZstdCompressCtx initialValue() {
+            ZstdCompressCtx ctx = new ZstdCompressCtx();
+            ctx.setLevel(zstdLevel);
+            return ctx;
+        }
+    };
+
+    private static final ThreadLocal<ZstdDecompressCtx> zstdDecompressors = new ThreadLocal<ZstdDecompressCtx>() {
+        @Override
+        protected ZstdDecompressCtx initialValue() {
+            return new ZstdDecompressCtx();
+        }
+    };
+
+    /**
+     * Output buffer for the block codecs. Grows to the largest page
+     * encoded by the thread.
+     */
+    private static final ThreadLocal<byte[]> scratchBuffers = new ThreadLocal<>();
+
+    private final int id;
+
+    private PageCompression(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Value stored in the low four bits of the page flags.
+     */
+    public int id() {
+        return id;
+    }
+
+    public boolean supportsDictionary() {
+        return false;
+    }
+
+    /**
+     * Compress {@code length} bytes of {@code src} beginning at {@code offset}
+     * onto the output stream. The dictionary is null unless the codec
+     * {@link #supportsDictionary() supports} one.
+     */
+    public abstract void compress(byte[] src, int offset, int length, OutputStream out,
+            PageDictionary dictionary) throws IOException;
+
+    /**
+     * Decompress a page including its leading flags byte. The readable bytes
+     * of the returned buffer are the uncompressed page and the buffer is
+     * always backed by a heap array.
+     */
+    public abstract ByteBuf decompress(byte[] page, PageDictionary dictionary) throws IOException;
+
+    public static PageCompression fromId(int id) {
+        for (PageCompression compression : values()) {
+            if (compression.id == id) {
+                return compression;
+            }
+        }
+        throw new RuntimeException("invalid gztype: " + id);
+    }
+
+    /**
+     * The codec of an encoded page.
+     */
+    public static PageCompression fromFlags(int flags) {
+        return fromId(flags & 0x0f);
+    }
+
+    /**
+     * The codec selected with the "eps.gz.type" parameter.
+     */
+    public static PageCompression defaultCompression() {
+        return fromId(Page.gztype);
+    }
+
+    private static byte[] scratch(int length) {
+        byte[] scratch = scratchBuffers.get();
+        if (scratch == null || scratch.length < length) {
+            scratch = new byte[length];
+            scratchBuffers.set(scratch);
+        }
+        return scratch;
+    }
+
+    private static void writeLength(int length, OutputStream out) throws IOException {
+        while ((length & ~0x7f) != 0) {
+            out.write((length & 0x7f) | 0x80);
+            length >>>= 7;
+        }
+        out.write(length);
+    }
+
+    private static InputStream stream(byte[] page) {
+        return new ByteBufInputStream(Unpooled.wrappedBuffer(page, 1, page.length - 1));
+    }
+
+    private static ByteBuf readFully(InputStream in) throws IOException {
+        try {
+            return Unpooled.wrappedBuffer(ByteStreams.toByteArray(in));
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.skiplist;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Arrays;
+
+import com.addthis.basis.util.Files;
+import com.addthis.basis.util.Parameter;
+
+import com.github.luben.zstd.ZstdCompressCtx;
+import com.github.luben.zstd.ZstdDecompressCtx;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A compression dictionary trained on the pages of a single tree.
+ * Pages of a tree share most of their structure (key prefixes, value
+ * class names, field layout) and a dictionary lets each page compress
+ * against that shared content instead of rediscovering it.
+ * <p/>
+ * The dictionary is stored in the directory of the page database and
+ * never changes once it has been written. Pages that were compressed
+ * with it are marked in their flags byte. Pages written before the
+ * dictionary existed remain readable without it.
+ */
+public final class PageDictionary {
+
+    private static final Logger log = LoggerFactory.getLogger(PageDictionary.class);
+
+    public static final String FILE_NAME = "db.dict";
+
+    static final int dictionarySize = Parameter.intValue("eps.zstd.dict.size", 64 * 1024);
+    static final int sampleSize = Parameter.intValue("eps.zstd.dict.samples", 8 * 1024 * 1024);
+    static final int sampleMaxPage = Parameter.intValue("eps.zstd.dict.sample.max", 64 * 1024);
+
+    private final byte[] bytes;
+
+    private final ZstdDictCompress compressDict;
+
+    private final ZstdDictDecompress decompressDict;
+
+    private final ThreadLocal<ZstdCompressCtx> compressors = new ThreadLocal<ZstdCompressCtx>() {
+        @Override
+        protected ZstdCompressCtx initialValue() {
+            ZstdCompressCtx ctx = new ZstdCompressCtx();
+            ctx.setLevel(PageCompression.zstdLevel);
+            ctx.loadDict(compressDict);
+            return ctx;
+        }
+    };
+
+    private final ThreadLocal<ZstdDecompressCtx> decompressors = new ThreadLocal<ZstdDecompressCtx>() {
+        @Override
+        protected ZstdDecompressCtx initialValue() {
+            ZstdDecompressCtx ctx = new ZstdDecompressCtx();
+            ctx.loadDict(decompressDict);
+            return ctx;
+        }
+    };
+
+    public PageDictionary(byte[] bytes) {
+        this.bytes = bytes;
+        this.compressDict = new ZstdDictCompress(bytes, PageCompression.zstdLevel);
+        this.decompressDict = new ZstdDictDecompress(bytes);
+    }
+
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    ZstdCompressCtx compressor() {
+        return compressors.get();
+    }
+
+    ZstdDecompressCtx decompressor() {
+        return decompressors.get();
+    }
+
+    /**
+     * Returns the dictionary stored in the directory or null if
+     * the directory does not have a dictionary.
+     */
+    public static PageDictionary load(File dir) {
+        File file = new File(dir, FILE_NAME);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return new PageDictionary(Files.read(file));
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Write the dictionary to the directory. The file is written
+     * under a temporary name and renamed so a crash never leaves
+     * a partial dictionary behind.
+     */
+    public void save(File dir) throws IOException {
+        File file = new File(dir, FILE_NAME);
+        File tmp = new File(dir, FILE_NAME + ".tmp");
+        Files.write(tmp, bytes, false);
+        if (!tmp.renameTo(file)) {
+            throw new IOException("unable to rename " + tmp + " to " + file);
+        }
+    }
+
+    /**
+     * Collects uncompressed pages as they are encoded and trains
+     * a dictionary once enough samples have been seen. The dictionary
+     * is saved to disk before it is returned so that no page can be
+     * written with a dictionary that has not been persisted.
+     */
+    static final class Trainer {
+
+        private final File dir;
+
+        private final ZstdDictTrainer trainer;
+
+        private boolean done;
+
+        Trainer(File dir) {
+            this(dir, sampleSize, dictionarySize);
+        }
+
+        Trainer(File dir, int sampleSize, int dictionarySize) {
+            this.dir = dir;
+            this.trainer = new ZstdDictTrainer(sampleSize, dictionarySize);
+        }
+
+        /**
+         * Offer a sample. Returns the trained dictionary when the sample
+         * buffer has filled, otherwise null.
+         */
+        synchronized PageDictionary offer(byte[] src, int offset, int length) {
+            if (done || length > sampleMaxPage) {
+                return null;
+            }
+            if (trainer.addSample(Arrays.copyOfRange(src, offset, offset + length))) {
+                return null;
+            }
+            done = true;
+            try {
+                PageDictionary dictionary = new PageDictionary(trainer.trainSamples());
+                dictionary.save(dir);
+                log.info("[dictionary] trained {} byte dictionary for {}", dictionary.bytes.length, dir);
+                return dictionary;
+            } catch (Exception ex) {
+                log.warn("[dictionary] training failed for " + dir, ex);
+                return null;
+            }
+        }
+
+        synchronized boolean isDone() {
+            return done;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.skiplist;
+
+import java.util.Arrays;
+
+import com.addthis.basis.util.Varint;
+
+import com.addthis.hydra.store.kv.BufferKeyCoder;
+import com.addthis.hydra.store.kv.KeyCoder;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Front coding of the sorted keys of a page. Each key is written as the
+ * length of the prefix it shares with the encoding of the previous key,
+ * followed by the length and bytes of the remaining suffix. The first key
+ * is coded against the first key of the page. Keys of sibling tree nodes
+ * share the parent id and usually much of their name, so most keys shrink
+ * to a few bytes.
+ * <p/>
+ * Instances reuse their buffers and are not thread safe. When the key
+ * coder implements {@link BufferKeyCoder} no byte array is allocated per key.
+ */
+public final class PrefixKeyCodec<K> {
+
+    private final KeyCoder<K, ?> keyCoder;
+
+    private final BufferKeyCoder<K> bufferKeyCoder;
+
+    private ByteBuf previous = Unpooled.buffer();
+
+    private ByteBuf current = Unpooled.buffer();
+
+    private byte[] key = new byte[64];
+
+    private int keyLength;
+
+    @SuppressWarnings("unchecked")
+    public PrefixKeyCodec(KeyCoder<K, ?> keyCoder) {
+        this.keyCoder = keyCoder;
+        this.bufferKeyCoder = (keyCoder instanceof BufferKeyCoder) ? (BufferKeyCoder<K>) keyCoder : null;
+    }
+
+    /**
+     * Begin a page whose first key has the given encoding.
+     */
+    public void reset(byte[] firstKeyEncoded) {
+        previous.clear();
+        previous.writeBytes(firstKeyEncoded);
+        ensureCapacity(firstKeyEncoded.length);
+        System.arraycopy(firstKeyEncoded, 0, key, 0, firstKeyEncoded.length);
+        keyLength = firstKeyEncoded.length;
+    }
+
+    /**
+     * Append the next key to the output. Returns the length
+     * of the full encoding of the key.
+     */
+    public int encode(K next, ByteBuf out) {
+        current.clear();
+        if (bufferKeyCoder != null) {
+            bufferKeyCoder.keyEncode(next, current);
+        } else {
+            current.writeBytes(keyCoder.keyEncode(next));
+        }
+        int length = current.readableBytes();
+        int limit = Math.min(length, previous.readableBytes());
+        int shared = 0;
+        while (shared < limit && current.getByte(shared) == previous.getByte(shared)) {
+            shared++;
+        }
+        Varint.writeUnsignedVarInt(shared, out);
+        Varint.writeUnsignedVarInt(length - shared, out);
+        out.writeBytes(current, shared, length - shared);
+        ByteBuf swap = previous;
+        previous = current;
+        current = swap;
+        return length;
+    }
+
+    /**
+     * Read the next key from the input.
+     */
+    public K decode(ByteBuf in) {
+        int shared = Varint.readUnsignedVarInt(in);
+        int suffix = Varint.readUnsignedVarInt(in);
+        if (shared > keyLength) {
+            throw new IllegalStateException("shared prefix " + shared + " exceeds previous key length " + keyLength);
+        }
+        ensureCapacity(shared + suffix);
+        in.readBytes(key, shared, suffix);
+        keyLength = shared + suffix;
+        if (bufferKeyCoder != null) {
+            return bufferKeyCoder.keyDecode(key, 0, keyLength);
+        } else {
+            return keyCoder.keyDecode(Arrays.copyOf(key, keyLength));
+        }
+    }
+
+    /**
+     * The full encoding of the key most recently decoded.
+     */
+    public int keyLength() {
+        return keyLength;
+    }
+
+    private void ensureCapacity(int length) {
+        if (key.length < length) {
+            key = Arrays.copyOf(key, Math.max(length, key.length * 2));
+        }
+    }
+}
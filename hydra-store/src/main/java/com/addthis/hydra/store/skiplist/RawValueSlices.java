@@ -0,0 +1,159 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.skiplist;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * The raw values of a decoded page. Values that came from disk are
+ * offsets into the single buffer that holds the decompressed page, so
+ * faulting a page in allocates one array instead of one per value.
+ * Values written after the page was decoded are stored as arrays.
+ * <p/>
+ * {@link #get(int)} copies a slice out of the buffer. Callers on the
+ * hot path use {@link #isNull(int)}, {@link #length(int)} and
+ * {@link #writeTo(int, DataOutput)} instead. {@link #set(int, byte[])}
+ * and {@link #remove(int)} do not copy the previous element and return
+ * it only if it was stored as an array.
+ */
+final class RawValueSlices extends AbstractList<byte[]> implements RandomAccess {
+
+    private final byte[] buffer;
+
+    /**
+     * Offset into {@link #buffer}, or -1 if the value is in {@link #arrays}.
+     */
+    private int[] offsets;
+
+    private int[] lengths;
+
+    private byte[][] arrays;
+
+    private int size;
+
+    RawValueSlices(byte[] buffer, int capacity) {
+        this.buffer = buffer;
+        this.offsets = new int[Math.max(1, capacity)];
+        this.lengths = new int[offsets.length];
+        this.arrays = new byte[offsets.length][];
+    }
+
+    void addSlice(int offset, int length) {
+        ensureCapacity(size + 1);
+        offsets[size] = offset;
+        lengths[size] = length;
+        arrays[size] = null;
+        size++;
+    }
+
+    boolean isNull(int index) {
+        checkIndex(index);
+        return offsets[index] < 0 && arrays[index] == null;
+    }
+
+    int length(int index) {
+        checkIndex(index);
+        return offsets[index] >= 0 ? lengths[index] : arrays[index].length;
+    }
+
+    void writeTo(int index, DataOutput out) throws IOException {
+        checkIndex(index);
+        if (offsets[index] >= 0) {
+            out.write(buffer, offsets[index], lengths[index]);
+        } else {
+            out.write(arrays[index]);
+        }
+    }
+
+    @Override
+    public byte[] get(int index) {
+        checkIndex(index);
+        if (offsets[index] >= 0) {
+            return Arrays.copyOfRange(buffer, offsets[index], offsets[index] + lengths[index]);
+        }
+        return arrays[index];
+    }
+
+    @Override
+    public byte[] set(int index, byte[] element) {
+        checkIndex(index);
+        byte[] prev = arrays[index];
+        offsets[index] = -1;
+        arrays[index] = element;
+        return prev;
+    }
+
+    @Override
+    public void add(int index, byte[] element) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("index " + index + " size " + size);
+        }
+        ensureCapacity(size + 1);
+        int moved = size - index;
+        System.arraycopy(offsets, index, offsets, index + 1, moved);
+        System.arraycopy(lengths, index, lengths, index + 1, moved);
+        System.arraycopy(arrays, index, arrays, index + 1, moved);
+        offsets[index] = -1;
+        lengths[index] = 0;
+        arrays[index] = element;
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public byte[] remove(int index) {
+        checkIndex(index);
+        byte[] prev = arrays[index];
+        int moved = size - index - 1;
+        System.arraycopy(offsets, index + 1, offsets, index, moved);
+        System.arraycopy(lengths, index + 1, lengths, index, moved);
+        System.arraycopy(arrays, index + 1, arrays, index, moved);
+        size--;
+        arrays[size] = null;
+        modCount++;
+        return prev;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(arrays, 0, size, null);
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > offsets.length) {
+            int grow = Math.max(capacity, offsets.length + (offsets.length >> 1));
+            offsets = Arrays.copyOf(offsets, grow);
+            lengths = Arrays.copyOf(lengths, grow);
+            arrays = Arrays.copyOf(arrays, grow);
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + " size " + size);
+        }
+    }
+}
@@ -19,9 +19,11 @@ import com.addthis.codec.Codec;
 import com.addthis.hydra.store.db.CloseOperation;
 import com.addthis.hydra.store.kv.ByteStore;
 import com.addthis.hydra.store.kv.KeyCoder;
+import com.addthis.hydra.store.kv.OffHeapPageCache;
 import com.addthis.hydra.store.kv.PagedKeyValueStore;
 import com.addthis.hydra.store.util.MetricsUtil;
 import com.addthis.hydra.store.util.NamedThreadFactory;
+import com.google.common.primitives.UnsignedBytes;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Gauge;
 import io.netty.buffer.ByteBufAllocator;
@@ -30,6 +32,7 @@ import io.netty.buffer.PooledByteBufAllocator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
@@ -39,16 +42,21 @@ import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * ::TWO INVARIANTS TO AVOID DEADLOCK AND MAINTAIN CONSISTENCY::
@@ -89,7 +97,38 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
     static final int expirationDelta = Parameter.intValue("cache.expire.delta", 1000);
     private static final int defaultEvictionThreads = Parameter.intValue("cache.threadcount.eviction", 1);
     private static final int fixedNumberEvictions = Parameter.intValue("cache.batch.evictions", 10);
+    /**
+     * Dirty pages evicted by a thread are written to the external store
+     * in groups of up to this many pages. Set to 1 to write each page as
+     * it is evicted.
+     */
+    static final int writeBatchPages = Parameter.intValue("eps.cache.write.batch.pages", 32);
+    static final int writeBatchBytes = Parameter.intValue("eps.cache.write.batch.bytes", 8 * 1024 * 1024);
     static final boolean trackEncodingByteUsage = Parameter.boolValue("eps.cache.track.encoding", false);
+    /**
+     * Write the keys of a page with front coding. See {@link PrefixKeyCodec}.
+     * Pages written either way remain readable.
+     */
+    static final boolean prefixKeys = Parameter.boolValue("eps.page.prefix.keys", true);
+    /**
+     * Size in bytes of the off-heap tier of encoded pages that sits
+     * between the heap cache and the external store. Zero disables it.
+     */
+    static final long defaultOffHeapBytes = Parameter.longValue("eps.cache.offheap.bytes", 0);
+    /**
+     * Number of pages that an iterator reads ahead once it has crossed
+     * {@link #prefetchTrigger} page boundaries. Zero disables read-ahead.
+     */
+    static final int prefetchPages = Parameter.intValue("eps.cache.prefetch.pages", 4);
+    static final int prefetchTrigger = Parameter.intValue("eps.cache.prefetch.trigger", 2);
+    private static final int prefetchThreads = Parameter.intValue("eps.cache.prefetch.threads", 2);
+    private static final int prefetchQueue = Parameter.intValue("eps.cache.prefetch.queue", 64);
+
+    /**
+     * One in this many page accesses marks the pageAccesses meter, by this
+     * many accesses. Marking a meter on every access contends on its counters.
+     */
+    static final int accessSampleRate = Math.max(1, Parameter.intValue("eps.cache.access.sample", 16));
 
     /**
      * Used as an absolute delta from maxPages when using that upper bound.
@@ -135,18 +174,44 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
 
     final String scope = "SkipListCache" + Integer.toString(scopeGenerator.getAndIncrement());
 
-    final SkipListCacheMetrics metrics = new SkipListCacheMetrics(this);
+    final EvictionPolicy evictionPolicy;
+
+    final ThreadLocal<PrefixKeyCodec<K>> prefixCodecs = new ThreadLocal<PrefixKeyCodec<K>>() {
+        @Override
+        protected PrefixKeyCodec<K> initialValue() {
+            return new PrefixKeyCodec<>(keyCoder);
+        }
+    };
+
+    final SkipListCacheMetrics metrics;
 
     private final ScheduledExecutorService evictionThreadPool, purgeThreadPool;
 
+    /**
+     * Loads pages ahead of sequential iterators. Null if read-ahead
+     * is disabled. Requests are dropped when the queue is full.
+     */
+    private final ThreadPoolExecutor prefetchThreadPool;
+
     private final Comparator comparator;
 
     final KeyCoder<K, V> keyCoder;
 
     final PageFactory pageFactory;
 
-    long softTotalMem;
-    long maxTotalMem;
+    final PageCompression compression;
+
+    /**
+     * Dictionary used to compress pages. Null until one has been
+     * loaded from disk or trained.
+     */
+    volatile PageDictionary dictionary;
+
+    private volatile PageDictionary.Trainer dictionaryTrainer;
+
+    // resized by the tree memory controller while the eviction thread reads them
+    volatile long softTotalMem;
+    volatile long maxTotalMem;
     long maxPageMem;
     boolean overrideDefaultMaxPages;
     int estimateInterval;
@@ -176,6 +241,11 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
         protected int numEvictionThreads = defaultEvictionThreads;
         protected int maxPages = defaultMaxPages;
         protected PageFactory pageFactory = Page.DefaultPageFactory.singleton;
+        protected PageCompression compression = PageCompression.defaultCompression();
+        protected File dictionaryDir = null;
+        protected boolean trainDictionary = false;
+        protected long offHeapBytes = defaultOffHeapBytes;
+        protected EvictionPolicy evictionPolicy = null;
 
         public Builder(KeyCoder<K, V> keyCoder, ByteStore store, int maxPageSize) {
             this.externalStore = store;
@@ -207,9 +277,54 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
             return this;
         }
 
+        @SuppressWarnings("unused")
+        public Builder<K, V> compression(PageCompression val) {
+            compression = val;
+            return this;
+        }
+
+        /**
+         * Directory that holds the compression dictionary of the cache.
+         * An existing dictionary is always used by codecs that support one.
+         * If {@code train} is true and the directory has no dictionary then
+         * one is trained from the first pages that are written.
+         */
+        @SuppressWarnings("unused")
+        public Builder<K, V> dictionary(File dir, boolean train) {
+            dictionaryDir = dir;
+            trainDictionary = train;
+            return this;
+        }
+
+        /**
+         * Keep up to {@code bytes} of recently used encoded pages in
+         * off-heap memory so that page faults on them skip the external
+         * store. Zero disables the off-heap tier.
+         */
+        @SuppressWarnings("unused")
+        public Builder<K, V> offHeapCache(long bytes) {
+            offHeapBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Policy that selects the pages to evict. Defaults to the
+         * policy named by "eps.cache.eviction.policy".
+         */
+        @SuppressWarnings("unused")
+        public Builder<K, V> evictionPolicy(EvictionPolicy policy) {
+            evictionPolicy = policy;
+            return this;
+        }
+
         public SkipListCache<K, V> build() {
-            return new SkipListCache<>(keyCoder, externalStore, maxPageSize,
-                    maxPages, numEvictionThreads, pageFactory);
+            ByteStore store = externalStore;
+            if (offHeapBytes > 0) {
+                store = new OffHeapPageCache(store, offHeapBytes);
+            }
+            return new SkipListCache<>(keyCoder, store, maxPageSize,
+                    maxPages, numEvictionThreads, pageFactory, compression,
+                    dictionaryDir, trainDictionary, evictionPolicy);
         }
 
     }
@@ -223,6 +338,21 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
 
     public SkipListCache(KeyCoder<K, V> keyCoder, ByteStore externalStore, int maxPageSize,
             int maxPages, int numEvictionThreads, PageFactory pageFactory) {
+        this(keyCoder, externalStore, maxPageSize, maxPages, numEvictionThreads, pageFactory,
+                PageCompression.defaultCompression(), null, false);
+    }
+
+    public SkipListCache(KeyCoder<K, V> keyCoder, ByteStore externalStore, int maxPageSize,
+            int maxPages, int numEvictionThreads, PageFactory pageFactory,
+            PageCompression compression, File dictionaryDir, boolean trainDictionary) {
+        this(keyCoder, externalStore, maxPageSize, maxPages, numEvictionThreads, pageFactory,
+                compression, dictionaryDir, trainDictionary, null);
+    }
+
+    public SkipListCache(KeyCoder<K, V> keyCoder, ByteStore externalStore, int maxPageSize,
+            int maxPages, int numEvictionThreads, PageFactory pageFactory,
+            PageCompression compression, File dictionaryDir, boolean trainDictionary,
+            EvictionPolicy evictionPolicy) {
         if (externalStore == null) {
             throw new NullPointerException("externalStore must be non-null");
         }
@@ -232,6 +362,16 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
         }
 
         this.pageFactory = pageFactory;
+        this.compression = compression;
+        this.evictionPolicy = (evictionPolicy != null) ? evictionPolicy : EvictionPolicy.defaultPolicy();
+        this.metrics = new SkipListCacheMetrics(this);
+        if (dictionaryDir != null) {
+            this.dictionary = PageDictionary.load(dictionaryDir);
+            if (dictionary == null && trainDictionary && compression.supportsDictionary()
+                    && !externalStore.isReadOnly()) {
+                this.dictionaryTrainer = new PageDictionary.Trainer(dictionaryDir);
+            }
+        }
         this.keyCoder = keyCoder;
         this.negInf = keyCoder.negInfinity();
         this.cache = new ConcurrentSkipListMap<>();
@@ -255,6 +395,16 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
         purgeThreadPool = Executors.newScheduledThreadPool(numEvictionThreads,
                 new NamedThreadFactory(scope + "-purge-", true));
 
+        if (prefetchPages > 0 && prefetchThreads > 0) {
+            prefetchThreadPool = new ThreadPoolExecutor(prefetchThreads, prefetchThreads,
+                    60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(prefetchQueue),
+                    new NamedThreadFactory(scope + "-prefetch-", true),
+                    new ThreadPoolExecutor.DiscardPolicy());
+            prefetchThreadPool.allowCoreThreadTimeOut(true);
+        } else {
+            prefetchThreadPool = null;
+        }
+
         for (int i = 0; i < numEvictionThreads; i++) {
             purgeThreadPool.scheduleAtFixedRate(new BackgroundPurgeTask(),
                     i,
@@ -268,8 +418,10 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
         }
 
         log.info("[init] ro=" + isReadOnly() + " maxPageSize=" + maxPageSize +
-                 " maxPages=" + maxPages + " gztype=" + Page.gztype + " gzlevel=" +
-                 Page.gzlevel + " gzbuf=" + Page.gzbuf + " mem[page=" + mem_page + "]");
+                 " maxPages=" + maxPages + " compression=" + compression + " dictionary=" +
+                 (dictionary != null) + " eviction=" + this.evictionPolicy.name() +
+                 " offheap=" + (externalStore instanceof OffHeapPageCache) + " gzlevel=" + Page.gzlevel +
+                 " gzbuf=" + Page.gzbuf + " mem[page=" + mem_page + "]");
 
     }
 
@@ -285,6 +437,29 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
 
     final K negInf;
 
+    /**
+     * Returns the dictionary to compress an encoded page with. While
+     * a dictionary is being trained the page is offered as a sample
+     * and null is returned.
+     */
+    PageDictionary dictionary(byte[] page, int offset, int length) {
+        PageDictionary current = dictionary;
+        if (current != null) {
+            return current;
+        }
+        PageDictionary.Trainer trainer = dictionaryTrainer;
+        if (trainer != null) {
+            PageDictionary trained = trainer.offer(page, offset, length);
+            if (trained != null) {
+                dictionary = trained;
+            }
+            if (trainer.isDone()) {
+                dictionaryTrainer = null;
+            }
+        }
+        return null;
+    }
+
     public final boolean nullRawValue(byte[] value) {
         return (value == null);
     }
@@ -470,33 +645,46 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
 
         private void fixedNumberEviction() {
             ByteBufOutputStream byteStream = new ByteBufOutputStream(PooledByteBufAllocator.DEFAULT.buffer());
+            WriteBatch batch = new WriteBatch(true);
             try {
                 for (int i = 0; i < maxEvictions; i++) {
-                    doEvictPage(byteStream);
+                    doEvictPage(byteStream, batch);
                 }
             } finally {
+                batch.flush();
                 byteStream.buffer().release();
             }
         }
 
         private void backgroundEviction() {
             ByteBufOutputStream byteStream = new ByteBufOutputStream(PooledByteBufAllocator.DEFAULT.buffer());
+            WriteBatch batch = new WriteBatch(true);
             try {
-                while (!shutdownEvictionThreads.get() && shouldEvictPage() && doEvictPage(byteStream)) ;
+                while (!shutdownEvictionThreads.get() && shouldEvictPage() && doEvictPage(byteStream, batch)) ;
             } finally {
+                batch.flush();
                 byteStream.buffer().release();
             }
         }
 
-        private EvictionStatus attemptPageEviction(Page<K, V> page, IterationMode iteration, ByteBufOutputStream byteStream) {
+        private EvictionStatus attemptPageEviction(Page<K, V> page, IterationMode iteration,
+                ByteBufOutputStream byteStream, WriteBatch batch) {
+            if (page.isWriteLockedByCurrentThread()) {
+                // the page is waiting in the batch of this thread
+                return EvictionStatus.TRYLOCK_FAIL;
+            }
             if (iteration == IterationMode.OPTIMISTIC) {
                 if (!page.writeTryLock()) {
                     return EvictionStatus.TRYLOCK_FAIL;
                 }
             } else {
+                // never block on a page lock while holding the locks of a batch
+                batch.flush();
                 page.writeLock();
             }
 
+            boolean batched = false;
+
             try {
                 if (page.inTransientState()) {
                     return EvictionStatus.TRANSIENT_PAGE;
@@ -513,24 +701,20 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
                     return EvictionStatus.EVICTED_PAGE;
                 }
 
-                pushPageToDisk(page, byteStream);
-
-                addToPurgeSet(page);
-
                 if (iteration == IterationMode.OPTIMISTIC) {
                     timeout = timeout + expirationDelta;
                 }
 
+                batched = pushPageToDisk(page, byteStream, batch);
+
+                if (!batched) {
+                    addToPurgeSet(page);
+                }
+
                 return EvictionStatus.SUCCESS;
             } finally {
-                writeUnlockAndNull(page);
-            }
-        }
-
-        private void addToPurgeSet(Page<K, V> page) {
-            if (!page.firstKey.equals(negInf)) {
-                if (purgeSet.add(page.firstKey)) {
-                    purgeSetSize.getAndIncrement();
+                if (!batched) {
+                    writeUnlockAndNull(page);
                 }
             }
         }
@@ -539,16 +723,17 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
          * Returns <code>true</code> is a page is evicted and
          * false otherwise.
          * @param byteStream
+         * @param batch
          */
-        private boolean doEvictPage(ByteBufOutputStream byteStream) {
+        private boolean doEvictPage(ByteBufOutputStream byteStream, WriteBatch batch) {
             long referenceTime = generateTimestamp();
 
 
             Page<K, V> current = evictionQueue.poll();
 
+            // the page the eviction policy prefers to evict and its timestamp
             Page<K, V> oldestPage = current;
 
-            // keeps track of the timestamp with the smallest value
             long oldestTimeStamp = (current != null) ? current.timeStamp : 0;
 
             int counter = 0;
@@ -571,16 +756,16 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
                 status = EvictionStatus.NO_STATUS;
 
                 if (((iteration == IterationMode.OPTIMISTIC) &&
-                     ((referenceTime - timestamp) >= timeout)) ||
+                     evictionPolicy.evictable(current, referenceTime - timestamp, timeout)) ||
                     (iteration == IterationMode.PESSIMISTIC)) {
-                    status = attemptPageEviction(current, iteration, byteStream);
+                    status = attemptPageEviction(current, iteration, byteStream, batch);
 
                     if (status.completeSuccess()) {
                         return true;
                     }
                 }
 
-                if (timestamp < oldestTimeStamp) {
+                if (evictionPolicy.preferVictim(current, timestamp, oldestPage, oldestTimeStamp)) {
                     oldestTimeStamp = timestamp;
                     oldestPage = current;
                 }
@@ -594,7 +779,7 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
                         case OPTIMISTIC:
                             iteration = IterationMode.PESSIMISTIC;
                             timeout /= 2;
-                            status = attemptPageEviction(oldestPage, iteration, byteStream);
+                            status = attemptPageEviction(oldestPage, iteration, byteStream, batch);
                             if (status.completeSuccess()) {
                                 return true;
                             }
@@ -1314,6 +1499,7 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
             K externalKey, byte[] floorPageEncoded) {
         Page<K, V> newPage = pageFactory.generateEmptyPage(this, externalKey, current.getEncodeType());
         newPage.decode(floorPageEncoded);
+        fault(newPage);
         newPage.writeLock();
         assert (newPage.firstKey.equals(externalKey));
         assert (compareKeys(current.firstKey, newPage.firstKey) < 0);
@@ -1490,7 +1676,7 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
                     }
                 }
                 if (returnPage) {
-                    current.timeStamp = generateTimestamp();
+                    touch(current);
 
                     /**
                      *  Fancy way of asserting that we do not
@@ -1722,6 +1908,16 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
         K nextKey;
         V nextValue;
 
+        /**
+         * Consecutive page boundaries crossed since the last read-ahead request.
+         */
+        int crossings;
+
+        /**
+         * First key of the last page loaded by read-ahead.
+         */
+        final AtomicReference<K> prefetched = new AtomicReference<>();
+
         SkipListCacheIterator(K from, boolean inclusive) {
             this.page = locatePage(from, LockMode.READMODE);
             this.prevKey = null;
@@ -1796,7 +1992,7 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
                 }
 
                 while (position < page.size && page.values.get(position) == null
-                       && nullRawValue(page.rawValues.get(position))) {
+                       && !page.hasRawValue(position)) {
                     position++;
                 }
 
@@ -1814,6 +2010,29 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
             }
         }
 
+
+        /**
+         * Called with the read lock of the current page held after moving
+         * onto the next page. Once the iterator has moved sequentially across
+         * {@link #prefetchTrigger} pages, asks for the following pages to be
+         * loaded in the background. A new request is made each time the
+         * iterator has consumed half of the pages that were requested.
+         */
+        private void readAhead() {
+            if (prefetchThreadPool == null || ++crossings < prefetchTrigger) {
+                return;
+            }
+            if (crossings - prefetchTrigger < Math.max(prefetchPages / 2, 1) && prefetched.get() != null) {
+                return;
+            }
+            crossings = prefetchTrigger;
+            K start = prefetched.get();
+            if (start == null || compareKeys(start, page.firstKey) <= 0) {
+                start = page.firstKey;
+            }
+            prefetchThreadPool.execute(new PrefetchTask(start, prefetchPages, prefetched));
+        }
+
         /**
          * Finds the next key greater than or equal to the targetKey.
          * If inclusive is false then find the next key greater than
@@ -1860,12 +2079,13 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
                 }
 
                 while (position < page.size && page.values.get(position) == null
-                       && nullRawValue(page.rawValues.get(position))) {
+                       && !page.hasRawValue(position)) {
                     position++;
                 }
 
                 if (position < page.size) {
                     stamp = page.writeStamp;
+                    readAhead();
                     return true;
                 }
             }
@@ -1873,6 +2093,65 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
 
     }
 
+    /**
+     * Loads the pages that follow a key into memory on behalf of an
+     * iterator. Stops early when the cache is full or closing.
+     */
+    private final class PrefetchTask implements Runnable {
+
+        private final K start;
+
+        private final int count;
+
+        private final AtomicReference<K> prefetched;
+
+        PrefetchTask(K start, int count, AtomicReference<K> prefetched) {
+            this.start = start;
+            this.count = count;
+            this.prefetched = prefetched;
+        }
+
+        @Override
+        public void run() {
+            try {
+                byte[] encodedKey = keyCoder.keyEncode(start);
+                for (int i = 0; i < count && !shutdownGuard.get() && !mustEvictPage(); i++) {
+                    encodedKey = externalStore.higherKey(encodedKey);
+                    if (encodedKey == null) {
+                        return;
+                    }
+                    K key = keyCoder.keyDecode(encodedKey);
+                    if (!isResident(key)) {
+                        Page<K, V> page = locatePage(key, LockMode.READMODE, true);
+                        if (page != null) {
+                            page.readUnlock();
+                            metrics.pagesPrefetched.mark();
+                        }
+                    }
+                    prefetched.set(key);
+                }
+            } catch (Exception ex) {
+                logException("Uncaught exception in skiplist page prefetch thread", ex);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the page that starts with the key is in memory.
+     */
+    private boolean isResident(K key) {
+        Page<K, V> page = cache.get(key);
+        if (page == null) {
+            return false;
+        }
+        page.readLock();
+        try {
+            return page.keys != null && !page.inTransientState();
+        } finally {
+            page.readUnlock();
+        }
+    }
+
     @Override
     public Iterator<Map.Entry<K, V>> range(K start, boolean inclusive) {
         return new SkipListCacheIterator(start, inclusive);
@@ -1908,11 +2187,104 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
         remove(key);
     }
 
+    /**
+     * Write entries that are sorted by key directly to the external store
+     * as full pages. The pages bypass the cache and the eviction threads.
+     * Only the left sentinel page may exist and its keys must be smaller
+     * than the loaded keys. The sentinel is linked to the first loaded page
+     * so keys smaller than the loaded keys may still be put into it.
+     *
+     * @return number of pages written
+     */
+    @Override
+    public long bulkLoad(Iterator<Map.Entry<K, V>> entries) {
+        if (isReadOnly()) {
+            throw new IllegalStateException("bulk load of a read only store");
+        }
+        int entriesPerPage = maxPageSize > 0 ? maxPageSize : defaultMaxPageEntries;
+        Page<K, V> sentinel = cache.get(negInf);
+        ByteBufOutputStream byteStream = new ByteBufOutputStream(PooledByteBufAllocator.DEFAULT.buffer());
+        TreeMap<byte[], byte[]> batch = new TreeMap<>(UnsignedBytes.lexicographicalComparator());
+        long batchBytes = 0;
+        long pages = 0;
+        sentinel.writeLock();
+        try {
+            pullPageFromDisk(sentinel, LockMode.WRITEMODE);
+            if (sentinel.nextFirstKey != null || externalStore.higherKey(keyCoder.keyEncode(negInf)) != null) {
+                throw new IllegalStateException("bulk load requires an empty store");
+            }
+            K last = sentinel.size > 0 ? sentinel.keys.get(sentinel.size - 1) : null;
+            K firstKey = null;
+            Page<K, V> page = null;
+            while (entries.hasNext()) {
+                Map.Entry<K, V> entry = entries.next();
+                K key = entry.getKey();
+                if (last != null && compareKeys(last, key) >= 0) {
+                    throw new IllegalArgumentException("bulk load key " + key + " is not greater than " + last);
+                }
+                last = key;
+                if (page != null && page.size >= entriesPerPage) {
+                    page.nextFirstKey = key;
+                    byte[] encodeKey = keyCoder.keyEncode(page.firstKey);
+                    byte[] encodePage = page.encode(byteStream);
+                    batch.put(encodeKey, encodePage);
+                    batchBytes += encodeKey.length + encodePage.length;
+                    pages++;
+                    if (batch.size() >= writeBatchPages || batchBytes >= writeBatchBytes) {
+                        externalStore.putAll(batch);
+                        batch.clear();
+                        batchBytes = 0;
+                    }
+                    page = null;
+                }
+                if (page == null) {
+                    page = pageFactory.generateEmptyPage(this, key, sentinel.getEncodeType());
+                    page.initialize();
+                    if (firstKey == null) {
+                        firstKey = key;
+                    }
+                }
+                page.keys.add(key);
+                page.values.add(entry.getValue());
+                page.rawValues.add(null);
+                page.size++;
+            }
+            if (page != null) {
+                byte[] encodeKey = keyCoder.keyEncode(page.firstKey);
+                batch.put(encodeKey, page.encode(byteStream));
+                pages++;
+            }
+            if (!batch.isEmpty()) {
+                externalStore.putAll(batch);
+            }
+            if (firstKey != null) {
+                sentinel.nextFirstKey = firstKey;
+                sentinel.state = ExternalMode.DISK_MEMORY_DIRTY;
+            }
+        } finally {
+            sentinel.writeUnlock();
+            byteStream.buffer().release();
+        }
+        log.info("[bulk] wrote " + pages + " pages of up to " + entriesPerPage + " entries");
+        return pages;
+    }
+
 
+    @Override
     public long getMemoryEstimate() {
         return memoryEstimate.get() + getNumPagesInMemory() * mem_page;
     }
 
+    @Override
+    public long getPageAccesses() {
+        return metrics.pageAccesses.count();
+    }
+
+    @Override
+    public long getPageFaults() {
+        return metrics.pageFaults.count();
+    }
+
     void updateMemoryEstimate(int delta) {
         long est = memoryEstimate.addAndGet(delta);
         assert (est >= 0);
@@ -1930,6 +2302,19 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
     }
 
     private void pushPageToDisk(Page<K, V> current, ByteBufOutputStream byteStream) {
+        pushPageToDisk(current, byteStream, null);
+    }
+
+    /**
+     * Write the page to the external store if it is dirty and release its
+     * contents. If a batch is provided then a dirty page is added to the
+     * batch instead and stays write locked with its contents intact until
+     * the batch is flushed, so readers never observe the page missing from
+     * both memory and disk.
+     *
+     * @return true if the page was added to the batch
+     */
+    private boolean pushPageToDisk(Page<K, V> current, ByteBufOutputStream byteStream, WriteBatch batch) {
 
         assert (current.isWriteLockedByCurrentThread());
 
@@ -1942,11 +2327,87 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
             byte[] encodeKey = keyCoder.keyEncode(current.firstKey);
             byte[] encodePage = current.encode(byteStream);
 
+            current.state = ExternalMode.DISK_MEMORY_IDENTICAL;
+
+            if (batch != null && writeBatchPages > 1) {
+                batch.add(current, encodeKey, encodePage);
+                return true;
+            }
+
             externalStore.put(encodeKey, encodePage);
+        }
 
-            current.state = ExternalMode.DISK_MEMORY_IDENTICAL;
+        releasePage(current);
+        return false;
+    }
+
+    private void addToPurgeSet(Page<K, V> page) {
+        if (!page.firstKey.equals(negInf)) {
+            if (purgeSet.add(page.firstKey)) {
+                purgeSetSize.getAndIncrement();
+            }
+        }
+    }
+
+    /**
+     * Dirty pages that have been encoded by one thread and are waiting to
+     * be written to the external store. The pages stay write locked by that
+     * thread until {@link #flush()} writes them with a single
+     * {@link ByteStore#putAll(Map)} sorted by encoded key. A thread holding
+     * a batch must only try-lock other pages.
+     */
+    private final class WriteBatch {
+
+        private final ArrayList<Page<K, V>> pages = new ArrayList<>();
+
+        private final TreeMap<byte[], byte[]> entries = new TreeMap<>(UnsignedBytes.lexicographicalComparator());
+
+        private final boolean purge;
+
+        private long bytes;
+
+        WriteBatch(boolean purge) {
+            this.purge = purge;
+        }
+
+        void add(Page<K, V> page, byte[] key, byte[] value) {
+            pages.add(page);
+            entries.put(key, value);
+            bytes += key.length + value.length;
+            if (pages.size() >= writeBatchPages || bytes >= writeBatchBytes) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (pages.isEmpty()) {
+                return;
+            }
+            boolean success = false;
+            try {
+                externalStore.putAll(entries);
+                success = true;
+            } finally {
+                for (Page<K, V> page : pages) {
+                    if (success) {
+                        releasePage(page);
+                        if (purge) {
+                            addToPurgeSet(page);
+                        }
+                    } else {
+                        // the page is still in memory so it will be written again later
+                        page.state = ExternalMode.DISK_MEMORY_DIRTY;
+                    }
+                    page.writeUnlock();
+                }
+                pages.clear();
+                entries.clear();
+                bytes = 0;
+            }
         }
+    }
 
+    private void releasePage(Page<K, V> current) {
         updateMemoryEstimate(-current.getMemoryEstimate());
         current.keys.clear();
         current.values.clear();
@@ -1961,6 +2422,7 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
         assert (current.isWriteLockedByCurrentThread());
 
         current.decode(page);
+        fault(current);
 
         updateMemoryEstimate(current.getMemoryEstimate());
         evictionQueue.offer(current);
@@ -2060,6 +2522,7 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
                 log.info(MetricsUtil.histogramToString("numberKeysPerPage",
                         metrics.numberKeysPerPage));
             }
+            metrics.close();
         }
         return status;
     }
@@ -2090,8 +2553,15 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
     private void waitForEvictionThreads() {
         purgeThreadPool.shutdown();
         evictionThreadPool.shutdown();
+        if (prefetchThreadPool != null) {
+            prefetchThreadPool.getQueue().clear();
+            prefetchThreadPool.shutdown();
+        }
 
         try {
+            if (prefetchThreadPool != null) {
+                prefetchThreadPool.awaitTermination(threadPoolWaitShutdownSeconds, TimeUnit.SECONDS);
+            }
             purgeThreadPool.awaitTermination(threadPoolWaitShutdownSeconds, TimeUnit.SECONDS);
             evictionThreadPool.awaitTermination(threadPoolWaitShutdownSeconds, TimeUnit.SECONDS);
         } catch (InterruptedException ignored) {
@@ -2106,19 +2576,27 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
 
     private void pushAllPagesToDisk() {
         final ByteBufOutputStream byteStream = new ByteBufOutputStream(PooledByteBufAllocator.DEFAULT.buffer());
+        final WriteBatch batch = new WriteBatch(false);
         try {
 
             for (Page<K, V> page : evictionQueue) {
 
-                page.writeLock();
+                if (page.isWriteLockedByCurrentThread()) {
+                    continue;
+                }
 
-                if (!page.inTransientState() && page.keys != null) {
-                    pushPageToDisk(page, byteStream);
+                if (!page.writeTryLock()) {
+                    batch.flush();
+                    page.writeLock();
                 }
 
-                page.writeUnlock();
+                if (page.inTransientState() || page.keys == null ||
+                    !pushPageToDisk(page, byteStream, batch)) {
+                    page.writeUnlock();
+                }
             }
         } finally {
+            batch.flush();
             byteStream.buffer().release();
         }
 
@@ -2191,6 +2669,27 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
         return System.nanoTime();
     }
 
+    /**
+     * Record an access to a page.
+     */
+    private void touch(Page<K, V> page) {
+        page.timeStamp = generateTimestamp();
+        evictionPolicy.onAccess(page);
+        if (accessSampleRate == 1) {
+            metrics.pageAccesses.mark();
+        } else if (ThreadLocalRandom.current().nextInt(accessSampleRate) == 0) {
+            metrics.pageAccesses.mark(accessSampleRate);
+        }
+    }
+
+    /**
+     * Record that a page was read from the external store.
+     */
+    private void fault(Page<K, V> page) {
+        evictionPolicy.onFault(page);
+        metrics.pageFaults.mark();
+    }
+
     @Override
     public void setMaxPageMem(long maxPageMem) {
         this.maxPageMem = maxPageMem;
@@ -2198,14 +2697,15 @@ public class SkipListCache<K, V extends Codec.BytesCodable> implements PagedKeyV
 
     @Override
     public void setMaxTotalMem(long maxTotalMem) {
-        this.maxTotalMem = maxTotalMem;
-        this.softTotalMem = maxTotalMem - (long) ((1.0d / shouldEvictDelta) * maxTotalMem);
+        long softTotalMem = maxTotalMem - (long) ((1.0d / shouldEvictDelta) * maxTotalMem);
         globalMaxTotalMem = Math.max(globalMaxTotalMem, maxTotalMem);
         globalSoftTotalMem = Math.max(globalSoftTotalMem, softTotalMem);
         if (isReadOnly()) {
-            this.maxTotalMem = globalMaxTotalMem;
-            this.softTotalMem = globalSoftTotalMem;
+            maxTotalMem = globalMaxTotalMem;
+            softTotalMem = globalSoftTotalMem;
         }
+        this.softTotalMem = softTotalMem;
+        this.maxTotalMem = maxTotalMem;
     }
 
     @Override
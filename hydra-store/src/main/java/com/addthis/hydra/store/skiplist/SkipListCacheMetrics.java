@@ -13,9 +13,13 @@
  */
 package com.addthis.hydra.store.skiplist;
 
+import java.util.concurrent.TimeUnit;
+
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Gauge;
 import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricsRegistry;
 
 public class SkipListCacheMetrics {
 
@@ -33,6 +37,21 @@ public class SkipListCacheMetrics {
     @SuppressWarnings("unused")
     final Gauge<Long> pagesDeletedGauge;
 
+    // Accesses to pages. Includes the accesses that caused a page fault.
+    // Sampled once every SkipListCache.accessSampleRate accesses.
+    final Meter pageAccesses;
+
+    // Pages read from the external store.
+    final Meter pageFaults;
+
+    // Pages loaded by iterator read-ahead.
+    final Meter pagesPrefetched;
+
+    // Fraction of page accesses that found the page in memory.
+    // Labeled with the name of the eviction policy.
+    @SuppressWarnings("unused")
+    final Gauge<Double> hitRateGauge;
+
     final Histogram encodeFirstKeySize;
 
     final Histogram encodeNextFirstKeySize;
@@ -85,6 +104,24 @@ public class SkipListCacheMetrics {
                     }
                 });
 
+        pageAccesses = Metrics.newMeter(SkipListCache.class, "pageAccesses", parent.scope,
+                "accesses", TimeUnit.SECONDS);
+
+        pageFaults = Metrics.newMeter(SkipListCache.class, "pageFaults", parent.scope,
+                "faults", TimeUnit.SECONDS);
+
+        pagesPrefetched = Metrics.newMeter(SkipListCache.class, "pagesPrefetched", parent.scope,
+                "pages", TimeUnit.SECONDS);
+
+        hitRateGauge = Metrics.newGauge(SkipListCache.class,
+                "hitRate-" + parent.evictionPolicy.name(), parent.scope,
+                new Gauge<Double>() {
+                    @Override
+                    public Double value() {
+                        return hitRate();
+                    }
+                });
+
         encodeFirstKeySize = SkipListCache.trackEncodingByteUsage ?
                              Metrics.newHistogram(SkipListCache.class, "encodeFirstKeySize", parent.scope) :
                              null;
@@ -111,4 +148,31 @@ public class SkipListCacheMetrics {
 
     }
 
+    /**
+     * Removes the metrics of the cache from the registry. The scope
+     * is unique to the cache so they would never be reused.
+     */
+    void close() {
+        MetricsRegistry registry = Metrics.defaultRegistry();
+        for (String name : new String[]{"memoryEstimate", "cacheSize", "pagesInMemory", "pagesDeleted",
+                                        "pageAccesses", "pageFaults", "pagesPrefetched",
+                                        "hitRate-" + parent.evictionPolicy.name(),
+                                        "encodeFirstKeySize", "encodeNextFirstKeySize", "encodeKeySize",
+                                        "encodeValueSize", "encodePageSize", "numberKeysPerPage"}) {
+            registry.removeMetric(SkipListCache.class, name, parent.scope);
+        }
+    }
+
+    /**
+     * Fraction of page accesses since the cache was opened that
+     * found the page in memory.
+     */
+    public double hitRate() {
+        long accesses = pageAccesses.count();
+        if (accesses == 0) {
+            return 1.0;
+        }
+        return Math.max(0.0, 1.0 - ((double) pageFaults.count()) / accesses);
+    }
+
 }
@@ -0,0 +1,90 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.skiplist;
+
+import com.addthis.basis.util.Parameter;
+
+import com.addthis.hydra.store.util.FrequencySketch;
+
+/**
+ * Frequency aware policy in the style of W-TinyLFU. Page accesses are
+ * counted in a small count-min sketch whose counters are halved
+ * periodically so that old popularity fades.
+ * <p/>
+ * Pages that were just read in are protected by the eviction timeout,
+ * which plays the part of the admission window. After that a page is
+ * only evicted if it is not accessed more often than the page most
+ * recently read from the external store, so a newly read page only
+ * displaces pages that are no more popular than itself. A scan or a
+ * tree merge therefore evicts the pages it has read itself, not the
+ * pages that are written to continuously. When no page qualifies, the
+ * least frequently used page of the pass is evicted.
+ */
+public class TinyLfuEvictionPolicy extends EvictionPolicy {
+
+    static final String NAME = "tinylfu";
+
+    static final int defaultWidth = Parameter.intValue("eps.cache.tinylfu.width", 1 << 14);
+
+    private final FrequencySketch sketch;
+
+    /**
+     * Frequency of the page most recently read from the external store.
+     */
+    private volatile int admitFrequency;
+
+    public TinyLfuEvictionPolicy() {
+        this(defaultWidth);
+    }
+
+    public TinyLfuEvictionPolicy(int width) {
+        this.sketch = new FrequencySketch(width);
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public void onAccess(Page<?, ?> page) {
+        sketch.increment(page.firstKey);
+    }
+
+    @Override
+    public void onFault(Page<?, ?> page) {
+        // count the access that caused the fault
+        admitFrequency = sketch.frequency(page.firstKey) + 1;
+    }
+
+    @Override
+    public boolean evictable(Page<?, ?> candidate, long age, long timeout) {
+        return age >= timeout && sketch.frequency(candidate.firstKey) <= admitFrequency;
+    }
+
+    @Override
+    public boolean preferVictim(Page<?, ?> candidate, long candidateTime,
+            Page<?, ?> victim, long victimTime) {
+        int candidateFrequency = sketch.frequency(candidate.firstKey);
+        int victimFrequency = sketch.frequency(victim.firstKey);
+        if (candidateFrequency != victimFrequency) {
+            return candidateFrequency < victimFrequency;
+        }
+        return candidateTime < victimTime;
+    }
+
+    int frequency(Object key) {
+        return sketch.frequency(key);
+    }
+}
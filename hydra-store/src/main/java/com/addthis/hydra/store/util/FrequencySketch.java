@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Count-min sketch of four rows of saturating four bit counters.
+ * Once ten times as many increments as there are columns have been
+ * recorded every counter is halved. Concurrent updates are not
+ * synchronized. An occasional lost increment only makes the estimate
+ * slightly less accurate.
+ */
+public final class FrequencySketch {
+
+    private static final int DEPTH = 4;
+
+    private static final int MAX_COUNT = 15;
+
+    private static final int[] SEEDS = {0x97cb3127, 0xc3a5c85c, 0x85ebca6b, 0xc2b2ae35};
+
+    private final byte[] table;
+
+    private final int width;
+
+    private final int sampleSize;
+
+    private final AtomicInteger additions = new AtomicInteger();
+
+    public FrequencySketch(int width) {
+        this.width = Integer.highestOneBit(Math.max(width, 16) - 1) << 1;
+        this.table = new byte[DEPTH * this.width];
+        this.sampleSize = 10 * this.width;
+    }
+
+    private int index(int hash, int row) {
+        int h = hash * SEEDS[row];
+        h ^= h >>> 16;
+        return row * width + (h & (width - 1));
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 17;
+        hash *= 0xed5ad4bb;
+        hash ^= hash >>> 11;
+        return hash;
+    }
+
+    public int frequency(Object key) {
+        return frequencyOfHash(key.hashCode());
+    }
+
+    /**
+     * Frequency of a key with the given hash code.
+     */
+    public int frequencyOfHash(int keyHash) {
+        int hash = spread(keyHash);
+        int min = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            min = Math.min(min, table[index(hash, i)]);
+        }
+        return min;
+    }
+
+    public void increment(Object key) {
+        incrementHash(key.hashCode());
+    }
+
+    /**
+     * Counts an access to a key with the given hash code.
+     */
+    public void incrementHash(int keyHash) {
+        int hash = spread(keyHash);
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = index(hash, i);
+            if (table[index] < MAX_COUNT) {
+                table[index]++;
+                added = true;
+            }
+        }
+        if (added && additions.incrementAndGet() >= sampleSize) {
+            reset();
+        }
+    }
+
+    private synchronized void reset() {
+        if (additions.get() < sampleSize) {
+            return;
+        }
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (byte) (table[i] >>> 1);
+        }
+        additions.set(additions.get() / 2);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.addthis.basis.util.Bytes;
+
+import com.addthis.hydra.store.DBIntValue;
+import com.addthis.hydra.store.skiplist.PrefixKeyCodec;
+import com.addthis.hydra.store.util.Raw;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestDBKey {
+
+    @Test
+    public void testEncoding() {
+        DBKeyCoder<DBIntValue> coder = new DBKeyCoder<>(DBIntValue.class);
+        int[] ids = {0, 1, 255, 256, 65536, Integer.MAX_VALUE};
+        String[] names = {"", "a", "hello world"};
+        for (int id : ids) {
+            for (String name : names) {
+                DBKey key = new DBKey(id, name);
+                byte[] legacy = Raw.get(Bytes.toBytes(id)).cat(Raw.get(name)).toBytes();
+                assertArrayEquals(legacy, key.toBytes());
+                ByteBuf buffer = Unpooled.buffer();
+                buffer.writeByte(7);
+                coder.keyEncode(key, buffer);
+                byte[] written = new byte[buffer.readableBytes()];
+                buffer.readBytes(written);
+                assertArrayEquals(legacy, Bytes.cut(written, 1, written.length - 1));
+                assertEquals(key, coder.keyDecode(written, 1, written.length - 1));
+                assertEquals(key, new DBKey(legacy));
+            }
+        }
+    }
+
+    @Test
+    public void testPrefixCodec() {
+        DBKeyCoder<DBIntValue> coder = new DBKeyCoder<>(DBIntValue.class);
+        DBKey firstKey = new DBKey(42, "child");
+        List<DBKey> keys = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            keys.add(new DBKey(42, "child" + String.format("%04d", i)));
+        }
+        keys.add(new DBKey(43, ""));
+        keys.add(new DBKey(43, "x"));
+        PrefixKeyCodec<DBKey> encoder = new PrefixKeyCodec<>(coder);
+        encoder.reset(firstKey.toBytes());
+        ByteBuf buffer = Unpooled.buffer();
+        int fullLength = 0;
+        for (DBKey key : keys) {
+            fullLength += encoder.encode(key, buffer);
+        }
+        assertTrue(buffer.readableBytes() < fullLength / 2);
+        PrefixKeyCodec<DBKey> decoder = new PrefixKeyCodec<>(coder);
+        decoder.reset(firstKey.toBytes());
+        for (DBKey key : keys) {
+            assertEquals(key, decoder.decode(buffer));
+        }
+        assertEquals(0, buffer.readableBytes());
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.kv;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.addthis.basis.util.ClosableIterator;
+import com.addthis.basis.util.Files;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestByteStoreLSM {
+
+    private static byte[] createBytes(int input) {
+        return String.format("%05d", input).getBytes();
+    }
+
+    @Test
+    public void testGetPut() throws IOException {
+        File tempDir = null;
+        try {
+            tempDir = Files.createTempDir();
+            ByteStoreLSM store = new ByteStoreLSM(tempDir);
+            for (int i = 0; i < 1000; i++) {
+                store.put(createBytes(i), createBytes(1000 - i));
+                if (i % 100 == 0) {
+                    store.sync();
+                }
+            }
+            for (int i = 0; i < 1000; i++) {
+                assertArrayEquals(createBytes(1000 - i), store.get(createBytes(i)));
+            }
+            assertNull(store.get(createBytes(-1)));
+            assertNull(store.get(createBytes(1000)));
+            assertNull(store.get(new String("").getBytes()));
+            store.close();
+            store = new ByteStoreLSM(tempDir);
+            for (int i = 0; i < 1000; i++) {
+                assertArrayEquals(createBytes(1000 - i), store.get(createBytes(i)));
+            }
+            assertEquals(1000, store.count());
+            store.close();
+        } finally {
+            if (tempDir != null) {
+                Files.deleteDir(tempDir);
+            }
+        }
+    }
+
+    @Test
+    public void testNextHigherValue() throws IOException {
+        File tempDir = null;
+        try {
+            tempDir = Files.createTempDir();
+            ByteStoreLSM store = new ByteStoreLSM(tempDir);
+            for (int i = 1; i < 10; i++) {
+                store.put(createBytes(i), createBytes(10 - i));
+                if (i % 3 == 0) {
+                    store.sync();
+                }
+            }
+            for (int i = 1; i < 9; i++) {
+                assertArrayEquals(createBytes(i + 1), store.higherKey(createBytes(i)));
+                assertArrayEquals(createBytes(i), store.lowerKey(createBytes(i + 1)));
+                assertArrayEquals(createBytes(i), store.floorKey(createBytes(i)));
+            }
+            assertArrayEquals(createBytes(1), store.higherKey(createBytes(0)));
+            assertArrayEquals(createBytes(1), store.firstKey());
+            assertArrayEquals(createBytes(9), store.lastKey());
+            assertArrayEquals(createBytes(9), store.firstEntry());
+            assertNull(store.higherKey(createBytes(9)));
+            assertNull(store.higherKey(createBytes(10)));
+            assertNull(store.lowerKey(createBytes(1)));
+            store.close();
+        } finally {
+            if (tempDir != null) {
+                Files.deleteDir(tempDir);
+            }
+        }
+    }
+
+    @Test
+    public void testDelete() throws IOException {
+        File tempDir = null;
+        try {
+            tempDir = Files.createTempDir();
+            ByteStoreLSM store = new ByteStoreLSM(tempDir);
+            for (int i = 0; i < 20; i++) {
+                store.put(createBytes(i), createBytes(i));
+            }
+            store.sync();
+            assertArrayEquals(createBytes(4), store.delete(createBytes(5)));
+            assertArrayEquals(createBytes(4), store.delete(createBytes(6)));
+            assertNull(store.delete(createBytes(0)));
+            assertNull(store.delete(createBytes(0)));
+            assertNull(store.delete(createBytes(100)));
+            store.sync();
+            assertNull(store.get(createBytes(5)));
+            assertFalse(store.hasKey(createBytes(6)));
+            assertArrayEquals(createBytes(7), store.higherKey(createBytes(4)));
+            assertArrayEquals(createBytes(4), store.lowerKey(createBytes(7)));
+            assertArrayEquals(createBytes(4), store.floorKey(createBytes(6)));
+            assertArrayEquals(createBytes(1), store.firstKey());
+            assertEquals(17, store.count());
+            store.put(createBytes(5), createBytes(50));
+            assertArrayEquals(createBytes(50), store.get(createBytes(5)));
+            store.compact();
+            assertEquals(1, store.segmentCount());
+            assertArrayEquals(createBytes(50), store.get(createBytes(5)));
+            assertNull(store.get(createBytes(6)));
+            assertEquals(18, store.count());
+            store.close();
+        } finally {
+            if (tempDir != null) {
+                Files.deleteDir(tempDir);
+            }
+        }
+    }
+
+    @Test
+    public void testIterator() throws IOException {
+        File tempDir = null;
+        try {
+            tempDir = Files.createTempDir();
+            ByteStoreLSM store = new ByteStoreLSM(tempDir);
+            for (int i = 2; i < 100; i += 2) {
+                store.put(createBytes(i), createBytes(i));
+                if (i % 10 == 0) {
+                    store.sync();
+                }
+            }
+            // start below the first key begins at the first key
+            assertIteration(store, createBytes(0), 2);
+            // start between keys begins at the floor key
+            assertIteration(store, createBytes(31), 30);
+            assertIteration(store, createBytes(30), 30);
+            // start past the last key begins at the last key
+            assertIteration(store, createBytes(500), 98);
+            assertIteration(store, null, 2);
+            ClosableIterator<PageEntry> iterator = store.keyIterator(createBytes(10));
+            try {
+                assertArrayEquals(createBytes(10), iterator.next().key());
+                iterator.remove();
+                assertNull(iterator.next().value());
+            } finally {
+                iterator.close();
+            }
+            assertNull(store.get(createBytes(10)));
+            store.close();
+        } finally {
+            if (tempDir != null) {
+                Files.deleteDir(tempDir);
+            }
+        }
+    }
+
+    @Test
+    public void testReadOnly() throws IOException {
+        File tempDir = null;
+        try {
+            tempDir = Files.createTempDir();
+            ByteStoreLSM store = new ByteStoreLSM(tempDir);
+            for (int i = 0; i < 100; i++) {
+                store.put(createBytes(i), createBytes(i));
+            }
+            store.close(true);
+            assertEquals(ByteStoreType.LSM, ByteStoreType.detect(tempDir, ByteStoreType.BDB));
+            store = new ByteStoreLSM(tempDir, true);
+            assertTrue(store.isReadOnly());
+            assertArrayEquals(createBytes(42), store.get(createBytes(42)));
+            try {
+                store.put(createBytes(1), createBytes(1));
+                fail();
+            } catch (UnsupportedOperationException ignored) {
+            }
+            store.close();
+        } finally {
+            if (tempDir != null) {
+                Files.deleteDir(tempDir);
+            }
+        }
+    }
+
+    private static void assertIteration(ByteStore store, byte[] start, int first) {
+        ClosableIterator<PageEntry> iterator = store.iterator(start);
+        try {
+            for (int i = first; i < 100; i += 2) {
+                assertTrue(iterator.hasNext());
+                PageEntry entry = iterator.next();
+                assertArrayEquals(createBytes(i), entry.key());
+                assertArrayEquals(createBytes(i), entry.value());
+            }
+            assertFalse(iterator.hasNext());
+        } finally {
+            iterator.close();
+        }
+    }
+
+}
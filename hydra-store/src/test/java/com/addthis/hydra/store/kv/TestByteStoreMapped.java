@@ -0,0 +1,136 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.kv;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Map;
+
+import com.addthis.basis.util.ClosableIterator;
+import com.addthis.basis.util.Files;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestByteStoreMapped {
+
+    private static byte[] createBytes(int input) {
+        return String.format("%05d", input).getBytes();
+    }
+
+    private static ByteStoreMapped createStore(File dir, int chunkSize) throws IOException {
+        ConcurrentByteStoreBDB source = new ConcurrentByteStoreBDB(dir, "test");
+        for (int i = 2; i < 1000; i += 2) {
+            source.put(createBytes(i), createBytes(i * 3));
+        }
+        ByteStoreMapped.export(source, dir, 8, chunkSize);
+        source.close();
+        assertEquals(ByteStoreType.MAPPED, ByteStoreType.detectReadOnly(dir, ByteStoreType.BDB));
+        return new ByteStoreMapped(dir);
+    }
+
+    @Test
+    public void testGet() throws IOException {
+        File tempDir = null;
+        try {
+            tempDir = Files.createTempDir();
+            // small chunks exercise records that would straddle a mapping
+            ByteStoreMapped store = createStore(tempDir, 101);
+            assertEquals(499, store.count());
+            for (int i = 2; i < 1000; i += 2) {
+                assertArrayEquals(createBytes(i * 3), store.get(createBytes(i)));
+                assertTrue(store.hasKey(createBytes(i)));
+                assertNull(store.get(createBytes(i + 1)));
+            }
+            assertNull(store.get(createBytes(0)));
+            assertArrayEquals(createBytes(2), store.firstKey());
+            assertArrayEquals(createBytes(6), store.firstEntry());
+            assertArrayEquals(createBytes(998), store.lastKey());
+            store.close();
+        } finally {
+            if (tempDir != null) {
+                Files.deleteDir(tempDir);
+            }
+        }
+    }
+
+    @Test
+    public void testNavigation() throws IOException {
+        File tempDir = null;
+        try {
+            tempDir = Files.createTempDir();
+            ByteStoreMapped store = createStore(tempDir, 1 << 20);
+            for (int i = 2; i < 998; i += 2) {
+                assertArrayEquals(createBytes(i + 2), store.higherKey(createBytes(i)));
+                assertArrayEquals(createBytes(i + 2), store.higherKey(createBytes(i + 1)));
+                assertArrayEquals(createBytes(i), store.lowerKey(createBytes(i + 2)));
+                assertArrayEquals(createBytes(i), store.floorKey(createBytes(i + 1)));
+                Map.Entry<byte[], byte[]> entry = store.floorEntry(createBytes(i + 1));
+                assertArrayEquals(createBytes(i), entry.getKey());
+                assertArrayEquals(createBytes(i * 3), entry.getValue());
+            }
+            assertArrayEquals(createBytes(2), store.higherKey(createBytes(0)));
+            assertNull(store.higherKey(createBytes(998)));
+            assertNull(store.lowerKey(createBytes(2)));
+            assertNull(store.floorEntry(createBytes(1)));
+            store.close();
+        } finally {
+            if (tempDir != null) {
+                Files.deleteDir(tempDir);
+            }
+        }
+    }
+
+    @Test
+    public void testIterator() throws IOException {
+        File tempDir = null;
+        try {
+            tempDir = Files.createTempDir();
+            ByteStoreMapped store = createStore(tempDir, 101);
+            assertIteration(store.iterator(createBytes(0)), 2, false);
+            assertIteration(store.iterator(createBytes(501)), 500, false);
+            assertIteration(store.keyIterator(createBytes(500)), 500, true);
+            assertIteration(store.iterator(createBytes(5000)), 998, false);
+            store.close();
+        } finally {
+            if (tempDir != null) {
+                Files.deleteDir(tempDir);
+            }
+        }
+    }
+
+    private static void assertIteration(ClosableIterator<PageEntry> iterator, int first, boolean keyonly) {
+        try {
+            for (int i = first; i < 1000; i += 2) {
+                assertTrue(iterator.hasNext());
+                PageEntry entry = iterator.next();
+                assertArrayEquals(createBytes(i), entry.key());
+                if (keyonly) {
+                    assertNull(entry.value());
+                } else {
+                    assertArrayEquals(createBytes(i * 3), entry.value());
+                }
+            }
+            assertFalse(iterator.hasNext());
+        } finally {
+            iterator.close();
+        }
+    }
+}
@@ -16,11 +16,16 @@ package com.addthis.hydra.store.kv;
 import java.io.File;
 import java.io.IOException;
 
+import java.util.TreeMap;
+
 import com.addthis.basis.util.Files;
 
+import com.google.common.primitives.UnsignedBytes;
+
 import org.junit.Test;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 
@@ -89,4 +94,27 @@ public class TestConcurrentByteStoreBDB {
         }
     }
 
+    @Test
+    public void testPutAll() throws IOException {
+        File tempDir = null;
+        try {
+            tempDir = Files.createTempDir();
+            ConcurrentByteStoreBDB store = new ConcurrentByteStoreBDB(tempDir, "test");
+            store.put(createBytes(4), createBytes(0));
+            TreeMap<byte[], byte[]> batch = new TreeMap<>(UnsignedBytes.lexicographicalComparator());
+            for (int i = 0; i < 10; i++) {
+                batch.put(createBytes(i), createBytes(10 - i));
+            }
+            store.putAll(batch);
+            assertEquals(10, store.count());
+            for (int i = 0; i < 10; i++) {
+                assertArrayEquals(createBytes(10 - i), store.get(createBytes(i)));
+            }
+            store.close();
+        } finally {
+            if (tempDir != null) {
+                Files.deleteDir(tempDir);
+            }
+        }
+    }
 }
@@ -0,0 +1,143 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.kv;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.TreeMap;
+
+import com.addthis.basis.util.Files;
+
+import com.google.common.primitives.UnsignedBytes;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestOffHeapPageCache {
+
+    private static byte[] createBytes(int input) {
+        return String.format("%05d", input).getBytes();
+    }
+
+    @Test
+    public void testGetPutDelete() throws IOException {
+        File tempDir = null;
+        try {
+            tempDir = Files.createTempDir();
+            OffHeapPageCache store = new OffHeapPageCache(new ConcurrentByteStoreBDB(tempDir, "test"), 1024 * 1024);
+            for (int i = 0; i < 10; i++) {
+                store.put(createBytes(i), createBytes(10 - i));
+            }
+            for (int i = 0; i < 10; i++) {
+                assertArrayEquals(createBytes(10 - i), store.get(createBytes(i)));
+            }
+            assertEquals(10, store.getHits());
+            assertEquals(0, store.getMisses());
+            TreeMap<byte[], byte[]> batch = new TreeMap<>(UnsignedBytes.lexicographicalComparator());
+            for (int i = 0; i < 5; i++) {
+                batch.put(createBytes(i), createBytes(i));
+            }
+            store.putAll(batch);
+            for (int i = 0; i < 5; i++) {
+                assertArrayEquals(createBytes(i), store.get(createBytes(i)));
+            }
+            store.delete(createBytes(3));
+            assertNull(store.get(createBytes(3)));
+            assertFalse(store.hasKey(createBytes(3)));
+            assertNull(store.get(createBytes(10)));
+            store.close();
+        } finally {
+            if (tempDir != null) {
+                Files.deleteDir(tempDir);
+            }
+        }
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        File tempDir = null;
+        try {
+            tempDir = Files.createTempDir();
+            ConcurrentByteStoreBDB backing = new ConcurrentByteStoreBDB(tempDir, "test");
+            byte[] value = new byte[100];
+            for (int i = 0; i < 100; i++) {
+                backing.put(createBytes(i), value);
+            }
+            OffHeapPageCache store = new OffHeapPageCache(backing, 2000);
+            for (int i = 0; i < 100; i++) {
+                assertArrayEquals(value, store.get(createBytes(i)));
+            }
+            assertEquals(100, store.getMisses());
+            assertTrue(store.getBytes() <= 2000);
+            // the most recent entries are still cached
+            assertArrayEquals(value, store.get(createBytes(99)));
+            assertEquals(1, store.getHits());
+            // the oldest were evicted and are read from the backing store
+            assertArrayEquals(value, store.get(createBytes(0)));
+            assertEquals(101, store.getMisses());
+            store.close();
+        } finally {
+            if (tempDir != null) {
+                Files.deleteDir(tempDir);
+            }
+        }
+    }
+
+    @Test
+    public void testWriteAdmission() throws IOException {
+        File tempDir = null;
+        try {
+            tempDir = Files.createTempDir();
+            ConcurrentByteStoreBDB backing = new ConcurrentByteStoreBDB(tempDir, "test");
+            byte[] value = new byte[100];
+            for (int i = 0; i < 20; i++) {
+                backing.put(createBytes(i), value);
+            }
+            OffHeapPageCache store = new OffHeapPageCache(backing, 2000);
+            for (int j = 0; j < 3; j++) {
+                for (int i = 0; i < 20; i++) {
+                    assertArrayEquals(value, store.get(createBytes(i)));
+                }
+            }
+            assertEquals(20, store.getMisses());
+            assertEquals(40, store.getHits());
+            // a key written once does not evict keys that are read repeatedly
+            store.put(createBytes(100), value);
+            assertEquals(1, store.getRejections());
+            for (int i = 0; i < 20; i++) {
+                assertArrayEquals(value, store.get(createBytes(i)));
+            }
+            assertEquals(60, store.getHits());
+            // the rejected write is still visible through the backing store
+            assertArrayEquals(value, store.get(createBytes(100)));
+            assertEquals(21, store.getMisses());
+            // a cached key is updated in place
+            byte[] update = new byte[50];
+            store.put(createBytes(5), update);
+            assertArrayEquals(update, store.get(createBytes(5)));
+            assertEquals(1, store.getRejections());
+            store.close();
+        } finally {
+            if (tempDir != null) {
+                Files.deleteDir(tempDir);
+            }
+        }
+    }
+}
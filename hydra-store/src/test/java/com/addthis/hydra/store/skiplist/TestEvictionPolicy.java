@@ -0,0 +1,113 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.skiplist;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.addthis.basis.util.Files;
+
+import com.addthis.hydra.store.DBIntValue;
+import com.addthis.hydra.store.kv.ByteStore;
+import com.addthis.hydra.store.kv.ConcurrentByteStoreBDB;
+import com.addthis.hydra.store.kv.KeyCoder;
+import com.addthis.hydra.store.util.FrequencySketch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestEvictionPolicy {
+
+    @SuppressWarnings("unchecked")
+    private static Page<Integer, DBIntValue> createPage(int firstKey) {
+        return Page.DefaultPageFactory.singleton.generateEmptyPage(null, firstKey, KeyCoder.EncodeType.SPARSE);
+    }
+
+    @Test
+    public void testFrequencySketch() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        for (int i = 0; i < 10; i++) {
+            sketch.increment(1);
+        }
+        sketch.increment(2);
+        assertEquals(10, sketch.frequency(1));
+        assertEquals(1, sketch.frequency(2));
+        assertEquals(0, sketch.frequency(3));
+        for (int i = 0; i < 20; i++) {
+            sketch.increment(1);
+        }
+        assertEquals(15, sketch.frequency(1));
+        // aging halves the counters once the sample is full
+        for (int i = 0; i < 640; i++) {
+            sketch.increment(1000 + i);
+        }
+        assertTrue(sketch.frequency(1) < 15);
+    }
+
+    @Test
+    public void testTinyLfu() {
+        TinyLfuEvictionPolicy policy = new TinyLfuEvictionPolicy(1024);
+        Page<Integer, DBIntValue> hot = createPage(1);
+        Page<Integer, DBIntValue> cold = createPage(2);
+        for (int i = 0; i < 8; i++) {
+            policy.onAccess(hot);
+        }
+        policy.onAccess(cold);
+        Page<Integer, DBIntValue> scanned = createPage(3);
+        policy.onFault(scanned);
+        policy.onAccess(scanned);
+        assertFalse(policy.evictable(hot, 100, 10));
+        assertTrue(policy.evictable(cold, 100, 10));
+        assertFalse(policy.evictable(cold, 5, 10));
+        assertTrue(policy.preferVictim(cold, 10, hot, 5));
+        assertFalse(policy.preferVictim(hot, 5, cold, 10));
+
+        ClockEvictionPolicy clock = new ClockEvictionPolicy();
+        assertTrue(clock.evictable(hot, 100, 10));
+        assertTrue(clock.preferVictim(hot, 5, cold, 10));
+    }
+
+    @Test
+    public void testSkipListCache() throws IOException {
+        File tempDir = null;
+        try {
+            tempDir = Files.createTempDir();
+            int numElements = 10000;
+            ByteStore externalStore = new ConcurrentByteStoreBDB(tempDir, "db");
+            SkipListCache<Integer, DBIntValue> cache =
+                    new SkipListCache.Builder<>(new SimpleIntKeyCoder(), externalStore, 25, 20)
+                            .evictionPolicy(EvictionPolicy.create("tinylfu")).build();
+            for (int i = 0; i < numElements; i++) {
+                cache.put(i, new DBIntValue(numElements - i));
+            }
+            for (int j = 0; j < 3; j++) {
+                for (int i = 0; i < numElements; i++) {
+                    assertEquals(new Integer(numElements - i), cache.get(i).getVal());
+                    // keep the first page hot
+                    assertEquals(new Integer(numElements), cache.get(0).getVal());
+                }
+            }
+            double hitRate = cache.metrics.hitRate();
+            assertTrue(hitRate > 0.0 && hitRate < 1.0);
+            cache.waitForShutdown();
+        } finally {
+            if (tempDir != null) {
+                Files.deleteDir(tempDir);
+            }
+        }
+    }
+}
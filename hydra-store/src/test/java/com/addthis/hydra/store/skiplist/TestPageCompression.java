@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.skiplist;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import com.addthis.basis.util.Files;
+
+import com.addthis.hydra.store.DBIntValue;
+import com.addthis.hydra.store.kv.ByteStore;
+import com.addthis.hydra.store.kv.ConcurrentByteStoreBDB;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestPageCompression {
+
+    private static byte[] createPage(int seed) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            builder.append(String.format("key%05d:value%05d;", seed + i, (seed * 31 + i) % 1000));
+        }
+        return builder.toString().getBytes();
+    }
+
+    private static byte[] roundTrip(PageCompression compression, byte[] raw,
+            PageDictionary dictionary) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(compression.id());
+        compression.compress(raw, 0, raw.length, out, dictionary);
+        byte[] page = out.toByteArray();
+        assertEquals(compression, PageCompression.fromFlags(page[0]));
+        ByteBuf buffer = compression.decompress(page, dictionary);
+        byte[] result = new byte[buffer.readableBytes()];
+        buffer.readBytes(result);
+        return result;
+    }
+
+    @Test
+    public void testCodecs() throws IOException {
+        for (PageCompression compression : PageCompression.values()) {
+            for (int i = 0; i < 3; i++) {
+                byte[] raw = createPage(i);
+                assertArrayEquals(compression.toString(), raw, roundTrip(compression, raw, null));
+            }
+            assertArrayEquals(new byte[0], roundTrip(compression, new byte[0], null));
+        }
+    }
+
+    @Test
+    public void testDictionary() throws IOException {
+        File tempDir = null;
+        try {
+            tempDir = Files.createTempDir();
+            PageDictionary.Trainer trainer = new PageDictionary.Trainer(tempDir, 256 * 1024, 4096);
+            PageDictionary dictionary = null;
+            for (int i = 0; dictionary == null && i < 10000; i++) {
+                byte[] raw = createPage(i);
+                dictionary = trainer.offer(raw, 0, raw.length);
+            }
+            assertNotNull(dictionary);
+            assertTrue(trainer.isDone());
+            assertNull(trainer.offer(new byte[10], 0, 10));
+            PageDictionary loaded = PageDictionary.load(tempDir);
+            assertNotNull(loaded);
+            assertArrayEquals(dictionary.bytes(), loaded.bytes());
+            byte[] raw = createPage(12345);
+            assertArrayEquals(raw, roundTrip(PageCompression.ZSTD, raw, loaded));
+        } finally {
+            if (tempDir != null) {
+                Files.deleteDir(tempDir);
+            }
+        }
+    }
+
+    @Test
+    public void testMixedCodecs() throws IOException {
+        File tempDir = null;
+        try {
+            tempDir = Files.createTempDir();
+            int numElements = 1000;
+            // every reopen rewrites a third of the values with another codec
+            for (PageCompression compression : PageCompression.values()) {
+                ByteStore externalStore = new ConcurrentByteStoreBDB(tempDir, "db");
+                SkipListCache<Integer, DBIntValue> cache =
+                        new SkipListCache.Builder<>(new SimpleIntKeyCoder(), externalStore, 8, Integer.MAX_VALUE)
+                                .compression(compression).dictionary(tempDir, true).build();
+                for (int i = compression.id() % 3; i < numElements; i += 3) {
+                    cache.put(i, new DBIntValue(numElements - i + compression.id()));
+                }
+                cache.waitForShutdown();
+            }
+            ByteStore externalStore = new ConcurrentByteStoreBDB(tempDir, "db");
+            SkipListCache<Integer, DBIntValue> cache =
+                    new SkipListCache.Builder<>(new SimpleIntKeyCoder(), externalStore, 8, Integer.MAX_VALUE)
+                            .compression(PageCompression.NONE).build();
+            for (int i = 0; i < numElements; i++) {
+                int last = (i % 3) + 3 * ((PageCompression.values().length - 1 - (i % 3)) / 3);
+                assertEquals(new Integer(numElements - i + last), cache.get(i).getVal());
+            }
+            cache.waitForShutdown();
+        } finally {
+            if (tempDir != null) {
+                Files.deleteDir(tempDir);
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.skiplist;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestPrefixKeyCodec {
+
+    @Test
+    public void testRoundTrip() {
+        SimpleIntKeyCoder coder = new SimpleIntKeyCoder();
+        PrefixKeyCodec<Integer> encoder = new PrefixKeyCodec<>(coder);
+        PrefixKeyCodec<Integer> decoder = new PrefixKeyCodec<>(coder);
+        ByteBuf buffer = Unpooled.buffer();
+        for (int page = 0; page < 3; page++) {
+            int firstKey = page * 1000 - 1000;
+            encoder.reset(coder.keyEncode(firstKey));
+            for (int i = 0; i < 1000; i += 7) {
+                assertEquals(4, encoder.encode(firstKey + i, buffer));
+            }
+        }
+        for (int page = 0; page < 3; page++) {
+            int firstKey = page * 1000 - 1000;
+            decoder.reset(coder.keyEncode(firstKey));
+            for (int i = 0; i < 1000; i += 7) {
+                assertEquals(new Integer(firstKey + i), decoder.decode(buffer));
+                assertEquals(4, decoder.keyLength());
+            }
+        }
+        assertEquals(0, buffer.readableBytes());
+    }
+}
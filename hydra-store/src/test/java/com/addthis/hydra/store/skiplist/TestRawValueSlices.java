@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.store.skiplist;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestRawValueSlices {
+
+    private static RawValueSlices create() {
+        byte[] buffer = "xxaabbbcccc".getBytes();
+        RawValueSlices slices = new RawValueSlices(buffer, 1);
+        slices.addSlice(2, 2);
+        slices.addSlice(4, 3);
+        slices.addSlice(7, 4);
+        return slices;
+    }
+
+    @Test
+    public void testSlices() throws IOException {
+        RawValueSlices slices = create();
+        assertEquals(3, slices.size());
+        assertArrayEquals("aa".getBytes(), slices.get(0));
+        assertArrayEquals("bbb".getBytes(), slices.get(1));
+        assertArrayEquals("cccc".getBytes(), slices.get(2));
+        assertEquals(3, slices.length(1));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        slices.writeTo(2, new DataOutputStream(bytes));
+        assertArrayEquals("cccc".getBytes(), bytes.toByteArray());
+    }
+
+    @Test
+    public void testModification() {
+        RawValueSlices slices = create();
+        slices.set(1, null);
+        assertTrue(slices.isNull(1));
+        assertNull(slices.get(1));
+        slices.add(0, "zz".getBytes());
+        slices.add(4, null);
+        assertEquals(5, slices.size());
+        assertArrayEquals("zz".getBytes(), slices.get(0));
+        assertArrayEquals("aa".getBytes(), slices.get(1));
+        assertTrue(slices.isNull(2));
+        assertArrayEquals("cccc".getBytes(), slices.get(3));
+        assertTrue(slices.isNull(4));
+        slices.remove(1);
+        assertFalse(slices.isNull(2));
+        assertArrayEquals("cccc".getBytes(), slices.get(2));
+        ArrayList<byte[]> tail = new ArrayList<>(slices.subList(2, 4));
+        assertArrayEquals("cccc".getBytes(), tail.get(0));
+        assertNull(tail.get(1));
+        slices.subList(2, 4).clear();
+        assertEquals(2, slices.size());
+    }
+}
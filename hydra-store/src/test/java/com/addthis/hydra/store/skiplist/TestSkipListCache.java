@@ -16,6 +16,7 @@ package com.addthis.hydra.store.skiplist;
 import java.io.File;
 import java.io.IOException;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
@@ -23,6 +24,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.addthis.basis.test.SlowTest;
 import com.addthis.basis.util.Files;
@@ -30,6 +33,7 @@ import com.addthis.basis.util.Files;
 import com.addthis.hydra.store.DBIntValue;
 import com.addthis.hydra.store.kv.ByteStore;
 import com.addthis.hydra.store.kv.ConcurrentByteStoreBDB;
+import com.addthis.hydra.store.kv.OffHeapPageCache;
 
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
@@ -172,6 +176,201 @@ public class TestSkipListCache {
 
     }
 
+    /**
+     * Readers run against a writer that rewrites every key.
+     * A value is always a multiple of the element count plus its key,
+     * so any inconsistent read shows up as a mismatch.
+     */
+    @Test
+    public void testReadsDuringWrites() throws Exception {
+        File directory = null;
+
+        try {
+            directory = makeTemporaryDirectory();
+            ByteStore externalStore = new ConcurrentByteStoreBDB(directory, "db");
+            final SkipListCache<Integer, DBIntValue> cache =
+                    new SkipListCache.Builder<>(new SimpleIntKeyCoder(), externalStore, 25, 20).build();
+            final int numElements = fastNumElements;
+            final AtomicBoolean done = new AtomicBoolean(false);
+            final AtomicInteger errors = new AtomicInteger(0);
+
+            Thread[] readers = new Thread[4];
+            for (int i = 0; i < readers.length; i++) {
+                final Random random = new Random(i);
+                readers[i] = new Thread("ReaderThread" + i) {
+                    @Override
+                    public void run() {
+                        while (!done.get()) {
+                            int key = random.nextInt(numElements);
+                            DBIntValue value = cache.get(key);
+                            if (value != null && value.getVal() % numElements != key) {
+                                errors.incrementAndGet();
+                            }
+                            Iterator<Map.Entry<Integer, DBIntValue>> iterator = cache.range(key, true);
+                            int prev = key - 1;
+                            for (int j = 0; j < 100 && iterator.hasNext(); j++) {
+                                Map.Entry<Integer, DBIntValue> entry = iterator.next();
+                                if (entry.getKey() <= prev ||
+                                    entry.getValue().getVal() % numElements != entry.getKey()) {
+                                    errors.incrementAndGet();
+                                }
+                                prev = entry.getKey();
+                            }
+                        }
+                    }
+                };
+                readers[i].start();
+            }
+
+            for (int pass = 0; pass < 5; pass++) {
+                for (int i = 0; i < numElements; i++) {
+                    cache.put(i, new DBIntValue(pass * numElements + i));
+                }
+            }
+
+            done.set(true);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+
+            assertEquals(0, errors.get());
+
+            for (int i = 0; i < numElements; i++) {
+                assertEquals(new Integer(4 * numElements + i), cache.get(i).getVal());
+            }
+
+            consistentWaitShutdown(cache);
+        } finally {
+            if (directory != null) {
+                if (!Files.deleteDir(directory)) {
+                    fail();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testOffHeapCache() throws IOException {
+        File directory = null;
+
+        try {
+            directory = makeTemporaryDirectory();
+            ByteStore externalStore = new ConcurrentByteStoreBDB(directory, "db");
+            SkipListCache<Integer, DBIntValue> cache =
+                    new SkipListCache.Builder<>(new SimpleIntKeyCoder(), externalStore, 25, 10)
+                            .offHeapCache(16 * 1024 * 1024).build();
+            assertTrue(cache.externalStore instanceof OffHeapPageCache);
+
+            for (int i = 0; i < fastNumElements; i++) {
+                cache.put(i, new DBIntValue(fastNumElements - i));
+            }
+
+            for (int j = 0; j < 2; j++) {
+                for (int i = 0; i < fastNumElements; i++) {
+                    assertEquals(new Integer(fastNumElements - i), cache.get(i).getVal());
+                }
+            }
+
+            assertTrue(((OffHeapPageCache) cache.externalStore).getHits() > 0);
+
+            consistentWaitShutdown(cache);
+        } finally {
+            if (directory != null) {
+                if (!Files.deleteDir(directory)) {
+                    fail();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPrefetchIteration() throws IOException {
+        File directory = null;
+
+        try {
+            directory = makeTemporaryDirectory();
+            ByteStore externalStore = new ConcurrentByteStoreBDB(directory, "db");
+            SkipListCache<Integer, DBIntValue> cache =
+                    new SkipListCache.Builder<>(new SimpleIntKeyCoder(), externalStore, 25, 0).build();
+
+            for (int i = 0; i < fastNumElements; i++) {
+                cache.put(i, new DBIntValue(fastNumElements - i));
+            }
+
+            consistentWaitShutdown(cache);
+
+            externalStore = new ConcurrentByteStoreBDB(directory, "db");
+            cache = new SkipListCache.Builder<>(new SimpleIntKeyCoder(), externalStore, 25, 1000).build();
+
+            Iterator<Map.Entry<Integer, DBIntValue>> iterator = cache.range(0, true);
+            for (int i = 0; i < fastNumElements; i++) {
+                assertTrue(iterator.hasNext());
+                Map.Entry<Integer, DBIntValue> entry = iterator.next();
+                assertEquals(new Integer(i), entry.getKey());
+                assertEquals(new Integer(fastNumElements - i), entry.getValue().getVal());
+            }
+            assertFalse(iterator.hasNext());
+
+            if (SkipListCache.prefetchPages > 0) {
+                assertTrue(cache.metrics.pagesPrefetched.count() > 0);
+            }
+
+            consistentWaitShutdown(cache);
+        } finally {
+            if (directory != null) {
+                if (!Files.deleteDir(directory)) {
+                    fail();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBulkLoad() throws IOException {
+        File directory = null;
+
+        try {
+            directory = makeTemporaryDirectory();
+            ByteStore externalStore = new ConcurrentByteStoreBDB(directory, "db");
+            SkipListCache<Integer, DBIntValue> cache =
+                    new SkipListCache.Builder<>(new SimpleIntKeyCoder(), externalStore, 25, 0).build();
+
+            List<Map.Entry<Integer, DBIntValue>> entries = new ArrayList<>();
+            for (int i = 0; i < fastNumElements; i++) {
+                entries.add(new AbstractMap.SimpleEntry<>(2 * i, new DBIntValue(i)));
+            }
+            assertEquals((fastNumElements + 24) / 25, cache.bulkLoad(entries.iterator()));
+            cache.put(-1, new DBIntValue(-1));
+            cache.put(1, new DBIntValue(1));
+            assertEquals(new Integer(10), cache.get(20).getVal());
+
+            consistentWaitShutdown(cache);
+
+            externalStore = new ConcurrentByteStoreBDB(directory, "db");
+            cache = new SkipListCache.Builder<>(new SimpleIntKeyCoder(), externalStore, 25, 1000).build();
+
+            Iterator<Map.Entry<Integer, DBIntValue>> iterator = cache.range(-1, true);
+            assertEquals(new Integer(-1), iterator.next().getKey());
+            for (int i = 0; i < fastNumElements; i++) {
+                Map.Entry<Integer, DBIntValue> entry = iterator.next();
+                assertEquals(new Integer(2 * i), entry.getKey());
+                assertEquals(new Integer(i), entry.getValue().getVal());
+                if (i == 0) {
+                    assertEquals(new Integer(1), iterator.next().getKey());
+                }
+            }
+            assertFalse(iterator.hasNext());
+
+            consistentWaitShutdown(cache);
+        } finally {
+            if (directory != null) {
+                if (!Files.deleteDir(directory)) {
+                    fail();
+                }
+            }
+        }
+    }
+
     private static final int rangeDeletionSlowIterations = 1_000;
     private static final int rangeDeletionSlowElements = 1_000;
 
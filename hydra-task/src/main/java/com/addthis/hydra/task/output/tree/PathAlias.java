@@ -123,6 +123,14 @@ public class PathAlias extends PathKeyValue {
         }
     }
 
+    /**
+     * aliases are resolved against the current state of the tree
+     */
+    @Override
+    public boolean isCombinable() {
+        return false;
+    }
+
     @Override
     public DataTreeNode getOrCreateNode(final TreeMapState state, final String name) {
         if (hard) {
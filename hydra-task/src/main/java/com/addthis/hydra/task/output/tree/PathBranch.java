@@ -100,6 +100,30 @@ public final class PathBranch extends PathElement {
         }
     }
 
+    @Override
+    public boolean isCombinable() {
+        if (!super.isCombinable()) {
+            return false;
+        }
+        if (each != null) {
+            for (PathElement pe : each) {
+                if (!pe.isCombinable()) {
+                    return false;
+                }
+            }
+        }
+        if (list != null) {
+            for (PathElement pe[] : list) {
+                for (PathElement p : pe) {
+                    if (!p.isCombinable()) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
     @Override
     public TreeNodeList getNextNodeList(TreeMapState state) {
         TreeNodeList res = new TreeNodeList(count);
@@ -47,6 +47,7 @@ public final class PathCall extends PathOp {
     private String printableRule;
 
     private PathElement ppath[];
+    private boolean checking;
 
     public PathCall() {
     }
@@ -67,6 +68,30 @@ public final class PathCall extends PathOp {
         }
     }
 
+    /**
+     * bundles dispatched to a target are not combined
+     */
+    @Override
+    public boolean isCombinable() {
+        if (!super.isCombinable() || target != null) {
+            return false;
+        }
+        if (ppath != null && !checking) {
+            // a path may call itself
+            checking = true;
+            try {
+                for (PathElement pe : ppath) {
+                    if (!pe.isCombinable()) {
+                        return false;
+                    }
+                }
+            } finally {
+                checking = false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public TreeNodeList getNextNodeList(TreeMapState state) {
         if (target != null) {
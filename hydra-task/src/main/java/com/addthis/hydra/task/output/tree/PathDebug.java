@@ -32,6 +32,14 @@ public class PathDebug extends PathOp {
     @Codec.Set(codable = true)
     private String debug;
 
+    /**
+     * logs every bundle
+     */
+    @Override
+    public boolean isCombinable() {
+        return false;
+    }
+
     @Override
     public TreeNodeList getNextNodeList(TreeMapState state) {
         System.out.println("---> debug (" + debug + ") " + state.getBundle());
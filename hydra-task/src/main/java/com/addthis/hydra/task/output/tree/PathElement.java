@@ -290,4 +290,15 @@ public abstract class PathElement implements Codec.Codable, TreeDataParent {
     public boolean disabled() {
         return disabled;
     }
+
+    /**
+     * Returns true if processing a bundle once with a count value of N
+     * has the same effect on the tree as processing N identical bundles.
+     * Data attachments and bundle filters see each bundle and are
+     * never combined. Override in subclasses that have other per
+     * bundle side effects or that contain other path elements.
+     */
+    public boolean isCombinable() {
+        return data == null && filter == null;
+    }
 }
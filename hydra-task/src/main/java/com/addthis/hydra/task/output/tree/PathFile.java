@@ -124,6 +124,14 @@ public final class PathFile extends PathKeyValue {
 
     private BundleField tempAccess;
 
+    /**
+     * tokens are written to a shared temporary field
+     */
+    @Override
+    public boolean isCombinable() {
+        return false;
+    }
+
     /** */
     public void resolve(TreeMapper mapper) {
         super.resolve(mapper);
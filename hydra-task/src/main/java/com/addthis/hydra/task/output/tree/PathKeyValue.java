@@ -77,6 +77,11 @@ public class PathKeyValue extends PathValue {
         keyAccess = mapper.bindField(key);
     }
 
+    @Override
+    public boolean isCombinable() {
+        return prefilter == null && super.isCombinable();
+    }
+
     @Override
     public ValueObject getPathValue(TreeMapState state) {
         ValueObject v = getKeyValue(state.getBundle());
@@ -90,6 +90,14 @@ public class PathOutput extends PathElement {
         }
     }
 
+    /**
+     * runs a query for every bundle
+     */
+    @Override
+    public boolean isCombinable() {
+        return false;
+    }
+
     @Override
     public TreeNodeList getNextNodeList(final TreeMapState state) {
         exec(state.current().getTreeRoot());
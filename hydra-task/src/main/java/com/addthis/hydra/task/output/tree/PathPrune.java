@@ -71,6 +71,14 @@ public class PathPrune extends PathElement {
 
     // Is it better to try to do the pruning in this method or
     // whatever is getting the TreeNodeList back?
+    /**
+     * prunes relative to the time of every bundle
+     */
+    @Override
+    public boolean isCombinable() {
+        return false;
+    }
+
     @Override
     public TreeNodeList getNextNodeList(final TreeMapState state) {
         long now = JitterClock.globalTime();
@@ -92,6 +92,14 @@ public final class PathQuery extends PathOp {
         }
     }
 
+    /**
+     * reads the tree into the bundle
+     */
+    @Override
+    public boolean isCombinable() {
+        return false;
+    }
+
     @Override
     public TreeNodeList getNextNodeList(TreeMapState state) {
         String p[] = new String[path.length];
@@ -134,6 +134,18 @@ public class PathValue extends PathElement {
         return "PathValue[" + value + "]";
     }
 
+    /**
+     * once and delete depend on whether each bundle finds the node
+     * already present, and a value filter may keep state per bundle.
+     */
+    @Override
+    public boolean isCombinable() {
+        if (once || delete || vfilter != null) {
+            return false;
+        }
+        return super.isCombinable() && (each == null || each.isCombinable());
+    }
+
     /**
      * prevent subclasses from overriding as this is not used from here on
      */
@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.output.tree;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.addthis.basis.util.JitterClock;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.value.ValueObject;
+
+/**
+ * Per thread write combining of the bundles sent to a tree. Each sending
+ * thread collects bundles that have the same values in the fields that are
+ * read by the paths, and processes every distinct bundle once with the
+ * number of bundles it stands for as the count value. The nodes of a path
+ * are then leased once per window instead of once per bundle.
+ * <p/>
+ * A window ends after a number of bundles or once a bundle arrives after
+ * the window has been open for a number of milliseconds. Only usable when
+ * every path element {@link PathElement#isCombinable() is combinable}.
+ */
+final class TreeMapCombiner {
+
+    private final TreeMapper mapper;
+    private final TreeMapperPathReference target;
+    private final BundleField[] fields;
+    private final int maxBundles;
+    private final long maxMillis;
+
+    private final Set<Buffer> buffers = Collections.newSetFromMap(new ConcurrentHashMap<Buffer, Boolean>());
+
+    private final ThreadLocal<Buffer> local = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            Buffer buffer = new Buffer();
+            buffers.add(buffer);
+            return buffer;
+        }
+    };
+
+    TreeMapCombiner(TreeMapper mapper, TreeMapperPathReference target, Collection<BundleField> fields,
+            int maxBundles, long maxMillis) {
+        this.mapper = mapper;
+        this.target = target;
+        this.fields = fields.toArray(new BundleField[fields.size()]);
+        this.maxBundles = maxBundles;
+        this.maxMillis = maxMillis;
+    }
+
+    public void send(Bundle bundle) {
+        local.get().add(bundle);
+    }
+
+    /**
+     * Process the bundles of every thread. Called once the input is complete.
+     */
+    public void flush() {
+        for (Buffer buffer : buffers) {
+            buffer.flush();
+        }
+    }
+
+    private static final class Combined {
+
+        final Bundle bundle;
+        int count = 1;
+
+        Combined(Bundle bundle) {
+            this.bundle = bundle;
+        }
+    }
+
+    /**
+     * Only locked by another thread during {@link #flush()}.
+     */
+    private final class Buffer {
+
+        private final Map<List<ValueObject>, Combined> combined = new LinkedHashMap<>();
+        private int bundles;
+        private long opened;
+
+        synchronized void add(Bundle bundle) {
+            ValueObject[] values = new ValueObject[fields.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = bundle.getValue(fields[i]);
+            }
+            List<ValueObject> key = Arrays.asList(values);
+            Combined entry = combined.get(key);
+            if (entry == null) {
+                combined.put(key, new Combined(copy(bundle)));
+            } else {
+                entry.count++;
+            }
+            long now = JitterClock.globalTime();
+            if (bundles++ == 0) {
+                opened = now;
+            }
+            if (bundles >= maxBundles || now - opened >= maxMillis) {
+                flush();
+            }
+        }
+
+        synchronized void flush() {
+            for (Combined entry : combined.values()) {
+                mapper.processBundle(entry.bundle, target, entry.count);
+            }
+            combined.clear();
+            bundles = 0;
+        }
+
+        /**
+         * the sender may reuse the bundle once it has been sent
+         */
+        private Bundle copy(Bundle bundle) {
+            Bundle copy = bundle.createBundle();
+            for (BundleField field : bundle) {
+                copy.setValue(field, bundle.getValue(field));
+            }
+            return copy;
+        }
+    }
+}
@@ -62,10 +62,17 @@ public final class TreeMapState implements DataTreeNodeUpdater, DataTreeNodeInit
 
     /** */
     public TreeMapState(TreeMapper processor, DataTreeNode rootNode, PathElement path[], Bundle bundle) {
+        this(processor, rootNode, path, bundle, 1);
+    }
+
+    /**
+     * process a bundle that stands for countValue identical bundles
+     */
+    public TreeMapState(TreeMapper processor, DataTreeNode rootNode, PathElement path[], Bundle bundle, int countValue) {
         this.path = path;
         this.bundle = bundle;
         this.processor = processor;
-        this.countValue = 1;
+        this.countValue = countValue;
         this.stack = new LinkedList<DataTreeNode>();
         this.thread = Thread.currentThread();
         this.profiling = processor != null ? processor.isProfiling() : false;
@@ -70,9 +70,13 @@ import com.addthis.hydra.data.query.source.QueryHandle;
 import com.addthis.hydra.data.query.source.QuerySource;
 import com.addthis.hydra.data.tree.ConcurrentTree;
 import com.addthis.hydra.data.tree.DataTree;
+import com.addthis.hydra.data.tree.SegmentedTree;
 import com.addthis.hydra.data.tree.TreeCommonParameters;
 import com.addthis.hydra.data.util.TimeField;
 import com.addthis.hydra.store.db.CloseOperation;
+import com.addthis.hydra.store.db.PageDB;
+import com.addthis.hydra.store.kv.ByteStoreType;
+import com.addthis.hydra.store.skiplist.PageCompression;
 import com.addthis.hydra.task.output.DataOutputTypeList;
 import com.addthis.hydra.task.output.tree.TreeMapperStats.Snapshot;
 import com.addthis.hydra.task.run.TaskRunConfig;
@@ -288,6 +292,26 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
     @Codec.Set(codable = true)
     private int maxErrors = 0;
 
+    /**
+     * If greater than zero then each thread that sends bundles
+     * combines up to this many bundles before updating the tree.
+     * Bundles with the same values in the fields used by the paths
+     * are processed once and their number is added to the hit counts.
+     * Ignored unless every path element only counts hits: no data
+     * attachments, bundle filters, aliases, queries or prunes.
+     * Default is either "mapper.combine.bundles" configuration value or 0.
+     */
+    @Codec.Set(codable = true)
+    private int combineBundles = Parameter.intValue("mapper.combine.bundles", 0);
+
+    /**
+     * Maximum age in milliseconds of the bundles that are
+     * combined by a thread. See {@link #combineBundles combineBundles}.
+     * Default is either "mapper.combine.millis" configuration value or 1000.
+     */
+    @Codec.Set(codable = true)
+    private long combineMillis = Parameter.longValue("mapper.combine.millis", 1000L);
+
     private final ConcurrentMap<String, BundleField> fields = new ConcurrentHashMap<>();
     private final IndexHash<PathElement[]> pathIndex = new IndexHash<>();
 
@@ -304,6 +328,7 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
     private MeshyServer liveQueryServer;
     private TreeMapperStats mapstats;
     private TaskRunConfig config;
+    private TreeMapCombiner combiner;
 
     private final AtomicLong lastHeaderTime = new AtomicLong(JitterClock.globalTime());
     private final AtomicLong benchCalls = new AtomicLong(0);
@@ -358,6 +383,53 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
         Long maxCacheMem;
         @Codec.Set(codable = true)
         Integer maxPageMem;
+        /**
+         * Backing store for a newly created tree, either "BDB" or "LSM".
+         * An existing tree keeps the store it was created with.
+         */
+        @Codec.Set(codable = true)
+        ByteStoreType storeType;
+        /**
+         * If true then export the tree to a memory mapped file on close
+         * for faster read only queries.
+         */
+        @Codec.Set(codable = true)
+        boolean exportMapped;
+        /**
+         * Page compression codec: "NONE", "DEFLATE", "GZIP", "LZF",
+         * "SNAPPY", "LZ4" or "ZSTD". Each page records its codec so
+         * this may be changed for an existing tree.
+         */
+        @Codec.Set(codable = true)
+        PageCompression compression;
+        /**
+         * If true then train a ZSTD dictionary from the first pages
+         * written by a tree that does not yet have one.
+         */
+        @Codec.Set(codable = true)
+        Boolean compressionDictionary;
+        /**
+         * If set then the node cache and the page cache of the tree
+         * share this many bytes. Their sizes are adjusted while the
+         * job runs based on their hit rates and the free heap.
+         */
+        @Codec.Set(codable = true)
+        Long memBudget;
+        /**
+         * If true then a new tree stores each top level node, such as
+         * a time bucket, as a separate tree in its own directory.
+         * Deleting a top level node then drops its directory.
+         * An existing tree keeps the layout it was created with.
+         */
+        @Codec.Set(codable = true)
+        boolean segmented;
+        /**
+         * If positive then a segmented tree keeps this many top level
+         * nodes with the largest names when the job completes and
+         * drops the others. See {@link #segmented segmented}.
+         */
+        @Codec.Set(codable = true)
+        int retainSegments;
     }
 
     /** */
@@ -393,6 +465,20 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
                 out.resolve(this);
             }
         }
+        if (combineBundles > 1 && root != null && root.getTargetUnit() != null) {
+            boolean combinable = true;
+            for (PathElement pe : pathIndex.getValueByIndex(root.getTargetUnit())) {
+                if (!pe.isCombinable()) {
+                    log.warn("[init] not combining bundles, path element " + pe + " is not combinable");
+                    combinable = false;
+                    break;
+                }
+            }
+            if (combinable) {
+                combiner = new TreeMapCombiner(this, root, fields.values(), combineBundles, combineMillis);
+                log.info("[init] combining up to " + combineBundles + " bundles per thread on fields " + fields.keySet());
+            }
+        }
     }
 
     public PathElement[] getPath(String path) {
@@ -427,6 +513,10 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
             if (storage.maxPageSize != null) TreeCommonParameters.setDefaultMaxPageSize(storage.maxCacheSize);
             if (storage.maxPageMem != null) TreeCommonParameters.setDefaultMaxPageMem(storage.maxPageMem);
             if (storage.memSample != null) TreeCommonParameters.setDefaultMemSample(storage.memSample);
+            if (storage.storeType != null) TreeCommonParameters.setDefaultStoreType(storage.storeType);
+            if (storage.compression != null) TreeCommonParameters.setDefaultCompression(storage.compression);
+            if (storage.compressionDictionary != null) TreeCommonParameters.setDefaultTrainDictionary(storage.compressionDictionary);
+            if (storage.memBudget != null) TreeCommonParameters.setDefaultMemBudget(storage.memBudget);
         }
 
         if (Strings.isEmpty(localhost)) {
@@ -436,7 +526,17 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
         log.info("[init] host=" + localhost + " port=" + port + " target=" + root + " job=" + config.jobId);
 
         Path treePath = Paths.get(runConfig.dir, "data");
-        tree = new ConcurrentTree(Files.initDirectory(treePath.toFile()));
+        File treeDir = Files.initDirectory(treePath.toFile());
+        if (SegmentedTree.isSegmented(treeDir)) {
+            tree = new SegmentedTree(treeDir, false);
+        } else if (storage != null && storage.segmented && !new File(treeDir, "nextID").exists()) {
+            tree = new SegmentedTree(treeDir, false);
+        } else {
+            if (storage != null && storage.segmented) {
+                log.warn("[init] existing tree is not segmented: " + treeDir);
+            }
+            tree = new ConcurrentTree(treeDir);
+        }
         bench = new Bench(EnumSet.allOf(BENCH.class), 1000);
 
         if (enableHttp) {
@@ -497,7 +597,9 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
 
     /** */
     public BundleField bindField(String key) {
-        return getFormat().getField(key);
+        BundleField field = getFormat().getField(key);
+        fields.put(key, field);
+        return field;
     }
 
     @Override
@@ -541,6 +643,13 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
      * router for delivery to another hydra node.
      */
     public void processBundle(Bundle bundle, TreeMapperPathReference target) {
+        processBundle(bundle, target, 1);
+    }
+
+    /**
+     * process a bundle that stands for count identical bundles
+     */
+    void processBundle(Bundle bundle, TreeMapperPathReference target, int count) {
         try {
             Integer unit = target.getTargetUnit();
             if (unit == null) {
@@ -561,16 +670,16 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
                     throw new RuntimeException("Invalid bundle: " + bundle + " unable to read TimeField due to NumberFormatException");
                 }
             }
-            bench.addEvents(BENCH.UNITS, 1);
-            bench.addEvents(BENCH.TIME, bundleTime >> 8);
-            processPath(bundle, pathIndex.getValueByIndex(unit));
+            bench.addEvents(BENCH.UNITS, count);
+            bench.addEvents(BENCH.TIME, (bundleTime >> 8) * count);
+            processPath(bundle, pathIndex.getValueByIndex(unit), count);
         } catch (RuntimeException ex) {
             throw ex;
         } catch (Exception ex)  {
             log.warn("", ex);
         }
-        processed.incrementAndGet();
-        bench.addEvents(BENCH.LOCAL, 1);
+        processed.addAndGet(count);
+        bench.addEvents(BENCH.LOCAL, count);
         checkBench();
     }
 
@@ -593,9 +702,9 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
      * Processor interface this is where packets and rules are finally executed
      * locally.
      */
-    private void processPath(Bundle bundle, PathElement path[]) {
+    private void processPath(Bundle bundle, PathElement path[], int count) {
         try {
-            TreeMapState ps = new TreeMapState(this, tree, path, bundle);
+            TreeMapState ps = new TreeMapState(this, tree, path, bundle, count);
             processNodes.addAndGet(ps.touched());
         } catch (RuntimeException ex) {
             throw ex;
@@ -840,7 +949,11 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
     public void send(Bundle bundle) {
         long markBefore = System.nanoTime();
         streamWaitime.addAndGet(markBefore - lastBundleTime.getAndSet(markBefore));
-        processBundle(bundle, root);
+        if (combiner != null) {
+            combiner.send(bundle);
+        } else {
+            processBundle(bundle, root);
+        }
         long markAfter = System.nanoTime();
         mapWriteTime.addAndGet(markAfter - markBefore);
         streamReadCount.incrementAndGet();
@@ -860,6 +973,9 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
     @Override
     public void sendComplete() {
         try {
+            if (combiner != null) {
+                combiner.flush();
+            }
             boolean doPost = false;
             if (post != null) {
                 int sample = 0;
@@ -898,7 +1014,9 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
                 liveQueryServer.close();
             }
             // disable web interface
-            jetty.stop();
+            if (jetty != null) {
+                jetty.stop();
+            }
             if (queryServer != null) {
                 // cancel running queries
                 queryEngine.cancelActiveThreads();
@@ -923,7 +1041,21 @@ public final class TreeMapper extends DataOutputTypeList implements QuerySource,
             if (doValidate) {
                 closeOperation = repairTree ? CloseOperation.REPAIR : CloseOperation.TEST;
             }
+            if (tree instanceof SegmentedTree && storage != null && storage.retainSegments > 0) {
+                int dropped = ((SegmentedTree) tree).retain(storage.retainSegments);
+                log.info("[close] dropped " + dropped + " tree segments");
+            }
             tree.close(false, closeOperation);
+            if (storage != null && storage.exportMapped) {
+                log.info("[close] exporting tree storage");
+                if (tree instanceof SegmentedTree) {
+                    for (File segment : ((SegmentedTree) tree).getSegmentDirectories()) {
+                        PageDB.exportMapped(segment);
+                    }
+                } else {
+                    PageDB.exportMapped(Paths.get(config.dir, "data").toFile());
+                }
+            }
             if (jmxname != null) {
                 log.info("[close] unregistering JMX");
                 ManagementFactory.getPlatformMBeanServer().unregisterMBean(jmxname);
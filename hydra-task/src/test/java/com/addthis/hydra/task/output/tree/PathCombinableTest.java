@@ -0,0 +1,59 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.output.tree;
+
+import java.util.HashMap;
+
+import com.addthis.hydra.data.tree.TreeDataParameters;
+import com.addthis.hydra.data.tree.prop.DataTime;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PathCombinableTest {
+
+    @Test
+    public void testCountOnly() throws Exception {
+        assertTrue(new PathValue("date").isCombinable());
+        assertTrue(new PathBranch(new PathElement[]{new PathValue("a"), new PathValue("b")}).isCombinable());
+    }
+
+    @Test
+    public void testDataAttachment() throws Exception {
+        HashMap<String, TreeDataParameters> data = new HashMap<>();
+        data.put("time", new DataTime.Config());
+        PathValue value = new PathValue("date");
+        value.setData(data);
+        assertFalse(value.isCombinable());
+        assertFalse(new PathBranch(new PathElement[]{new PathValue("a"), value}).isCombinable());
+    }
+
+    @Test
+    public void testPerBundleState() throws Exception {
+        PathValue once = new PathValue("date");
+        once.once = true;
+        assertFalse(once.isCombinable());
+        PathValue delete = new PathValue("date");
+        delete.delete = true;
+        assertFalse(delete.isCombinable());
+    }
+
+    @Test
+    public void testSideEffects() throws Exception {
+        assertFalse(new PathPrune().isCombinable());
+        assertFalse(new PathBranch(new PathElement[]{new PathValue("a"), new PathDebug()}).isCombinable());
+    }
+}
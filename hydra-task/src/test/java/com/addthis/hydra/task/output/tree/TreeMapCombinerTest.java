@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.task.output.tree;
+
+import java.io.File;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.addthis.basis.util.ClosableIterator;
+import com.addthis.basis.util.Files;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.codec.CodecJSON;
+import com.addthis.hydra.data.tree.DataTreeNode;
+import com.addthis.hydra.data.tree.ReadTree;
+import com.addthis.hydra.task.run.TaskRunConfig;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TreeMapCombinerTest {
+
+    private static final String counts =
+            "[{type:\"const\", value:\"root\"}, {type:\"value\", key:\"A\"}, {type:\"value\", key:\"B\"}]";
+
+    private static final String once =
+            "[{type:\"const\", value:\"root\"}, {type:\"value\", key:\"A\", once:true}, {type:\"value\", key:\"B\"}]";
+
+    private static final String delete =
+            "[{type:\"const\", value:\"root\"}, {type:\"value\", key:\"A\"}, {type:\"value\", key:\"B\", delete:true}]";
+
+    @Test
+    public void testCounts() throws Exception {
+        assertEquals(build(counts, 0), build(counts, 16));
+    }
+
+    @Test
+    public void testOnce() throws Exception {
+        assertEquals(build(once, 0), build(once, 16));
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        assertEquals(build(delete, 0), build(delete, 16));
+    }
+
+    /**
+     * Maps the same bundles into a new tree and returns
+     * the hit count of every node keyed by its path.
+     */
+    private static Map<String, Long> build(String path, int combineBundles) throws Exception {
+        File dir = Files.createTempDir();
+        try {
+            TreeMapper mapper = CodecJSON.decodeString(new TreeMapper(),
+                    "{enableHttp:false, enableJmx:false, enableQuery:false, live:false, " +
+                    "combineBundles:" + combineBundles + ", paths:{ROOT:" + path + "}}");
+            mapper.open(new TaskRunConfig(0, 1, null, dir.getPath()));
+            for (int i = 0; i < 1000; i++) {
+                Bundle bundle = mapper.createBundle();
+                bundle.setValue(mapper.bindField("A"), ValueFactory.create("a" + (i % 3)));
+                bundle.setValue(mapper.bindField("B"), ValueFactory.create("b" + (i % 7)));
+                mapper.send(bundle);
+            }
+            mapper.sendComplete();
+            Map<String, Long> nodes = new TreeMap<>();
+            ReadTree tree = new ReadTree(new File(dir, "data"));
+            try {
+                collect(tree.getRootNode(), "", nodes);
+            } finally {
+                tree.close();
+            }
+            return nodes;
+        } finally {
+            Files.deleteDir(dir);
+        }
+    }
+
+    private static void collect(DataTreeNode node, String path, Map<String, Long> nodes) {
+        ClosableIterator<DataTreeNode> children = node.getIterator();
+        try {
+            while (children.hasNext()) {
+                DataTreeNode child = children.next();
+                String childPath = path + "/" + child.getName();
+                nodes.put(childPath, child.getCounter());
+                collect(child, childPath, nodes);
+            }
+        } finally {
+            children.close();
+        }
+    }
+}